@@ -12,13 +12,17 @@ import android.util.Log;
 import android.view.View;
 import android.widget.Toast;
 
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 
 import com.example.twiliovoiceapp.databinding.ActivityCallBinding;
+import com.example.twiliovoiceapp.metrics.CallSetupTrace;
 import com.example.twiliovoiceapp.model.TwilioPhoneNumber;
 import com.example.twiliovoiceapp.service.VoiceService;
 import com.example.twiliovoiceapp.viewmodel.PhoneNumberViewModel;
+import com.google.android.material.snackbar.Snackbar;
 
 /**
  * CallActivity - Handles the active call UI and interaction.
@@ -28,17 +32,28 @@ import com.example.twiliovoiceapp.viewmodel.PhoneNumberViewModel;
 public class CallActivity extends AppCompatActivity implements VoiceService.CallStateListener {
     private static final String TAG = "CallActivity";
 
+    // Levels this far below full scale show as an empty meter
+    private static final float METER_RANGE_DB = 60f;
+
     private ActivityCallBinding binding;
     private PhoneNumberViewModel phoneNumberViewModel;
     private VoiceService voiceService;
     private boolean bound = false;
     private boolean keypadVisible = false;
     
+    // Whether the service has been seen in a call, so its idle state is not taken as the end of ours
+    private boolean callSeen = false;
+    
     // Call details
     private String phoneNumber;
     private String twilioNumber;
     private String displayName;
     private AudioManager audioManager;
+    
+    // Call setup timestamps, handed on to the service with the call
+    private long tappedAt;
+    private long createdAt;
+    private long boundAt;
 
     // Service connection
     private final ServiceConnection serviceConnection = new ServiceConnection() {
@@ -46,25 +61,19 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         public void onServiceConnected(ComponentName name, IBinder service) {
             VoiceService.VoiceBinder binder = (VoiceService.VoiceBinder) service;
             voiceService = binder.getService();
-            voiceService.setCallStateListener(CallActivity.this);
+            voiceService.addCallStateListener(CallActivity.this, ContextCompat.getMainExecutor(CallActivity.this));
             bound = true;
+            if (boundAt == 0) {
+                boundAt = SystemClock.elapsedRealtime();
+            }
             
             // Start the call if we're just binding
             if (voiceService.getCallState() == VoiceService.CallState.DISCONNECTED) {
                 startCall();
             } else {
-                // Update UI to match current call state
-                updateUIForCallState(voiceService.getCallState());
-                
-                // Update mute and speaker state
+                // The call and recording state are replayed to the listener; mute and speaker are not events
                 updateMuteButton(voiceService.isMuted());
                 updateSpeakerButton(voiceService.isSpeakerOn());
-                
-                // Update recording state
-                if (voiceService.isRecording()) {
-                    binding.textViewRecordingIndicator.setVisibility(View.VISIBLE);
-                    binding.textViewRecord.setText(R.string.btn_stop_recording);
-                }
             }
         }
 
@@ -78,6 +87,7 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        createdAt = SystemClock.elapsedRealtime();
         binding = ActivityCallBinding.inflate(getLayoutInflater());
         setContentView(binding.getRoot());
         
@@ -91,6 +101,7 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         Intent intent = getIntent();
         phoneNumber = intent.getStringExtra("phone_number");
         twilioNumber = intent.getStringExtra("twilio_number");
+        tappedAt = intent.getLongExtra(CallSetupTrace.EXTRA_TAPPED, 0);
         
         if (phoneNumber == null || twilioNumber == null) {
             Toast.makeText(this, "Invalid call parameters", Toast.LENGTH_SHORT).show();
@@ -132,7 +143,7 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         
         // Unbind from the service, but don't stop it
         if (bound) {
-            voiceService.removeCallStateListener();
+            voiceService.removeCallStateListener(this);
             unbindService(serviceConnection);
             bound = false;
         }
@@ -160,6 +171,7 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         
         // Initially hide the recording indicator
         binding.textViewRecordingIndicator.setVisibility(View.GONE);
+        binding.progressAudioLevel.setVisibility(View.GONE);
     }
     
     /**
@@ -181,6 +193,9 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         // Recording button
         binding.fabRecord.setOnClickListener(v -> toggleRecording());
         
+        // Drop message button
+        binding.fabDropMessage.setOnClickListener(v -> dropMessage());
+        
         // Keypad digit buttons
         binding.buttonKeypad0.setOnClickListener(v -> sendDTMF("0"));
         binding.buttonKeypad1.setOnClickListener(v -> sendDTMF("1"));
@@ -206,6 +221,9 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
             serviceIntent.setAction(VoiceService.ACTION_OUTGOING_CALL);
             serviceIntent.putExtra("phone_number", phoneNumber);
             serviceIntent.putExtra("twilio_number", twilioNumber);
+            serviceIntent.putExtra(CallSetupTrace.EXTRA_TAPPED, tappedAt);
+            serviceIntent.putExtra(CallSetupTrace.EXTRA_ACTIVITY_CREATED, createdAt);
+            serviceIntent.putExtra(CallSetupTrace.EXTRA_SERVICE_BOUND, boundAt);
             startService(serviceIntent);
             
             // Update UI
@@ -290,12 +308,15 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
                 // Stop recording
                 voiceService.stopRecording();
                 binding.textViewRecordingIndicator.setVisibility(View.GONE);
+                binding.progressAudioLevel.setVisibility(View.GONE);
                 binding.textViewRecord.setText(R.string.btn_start_recording);
             } else {
                 // Start recording
                 boolean success = voiceService.startRecording();
                 if (success) {
+                    Toast.makeText(this, R.string.recording_started, Toast.LENGTH_SHORT).show();
                     binding.textViewRecordingIndicator.setVisibility(View.VISIBLE);
+                    binding.progressAudioLevel.setVisibility(View.VISIBLE);
                     binding.textViewRecord.setText(R.string.btn_stop_recording);
                 } else {
                     Toast.makeText(this, R.string.error_recording_failed, Toast.LENGTH_SHORT).show();
@@ -304,6 +325,21 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
         }
     }
     
+    /**
+     * Leave the pre-recorded message in the call and move on; the service hangs up
+     * once it has played
+     */
+    private void dropMessage() {
+        if (bound && voiceService != null) {
+            if (voiceService.dropMessage()) {
+                Toast.makeText(this, R.string.drop_message_started, Toast.LENGTH_SHORT).show();
+                finish();
+            } else {
+                Toast.makeText(this, R.string.drop_message_failed, Toast.LENGTH_SHORT).show();
+            }
+        }
+    }
+    
     /**
      * Send DTMF tones
      * 
@@ -340,6 +376,8 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
                 binding.chronometerCallDuration.setVisibility(View.VISIBLE);
                 binding.chronometerCallDuration.setBase(SystemClock.elapsedRealtime());
                 binding.chronometerCallDuration.start();
+                binding.layoutDropMessage.setVisibility(
+                        bound && voiceService != null && voiceService.canDropMessage() ? View.VISIBLE : View.GONE);
                 break;
                 
             case DISCONNECTED:
@@ -347,6 +385,7 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
                 binding.textViewCallStatus.setText(R.string.call_status_disconnected);
                 binding.textViewCallStatus.setTextColor(getResources().getColor(R.color.callEnded));
                 binding.chronometerCallDuration.stop();
+                binding.layoutDropMessage.setVisibility(View.GONE);
                 
                 // Finish activity after a delay
                 binding.getRoot().postDelayed(this::finish, 2000);
@@ -359,6 +398,14 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
     @Override
     public void onCallStateChanged(VoiceService.CallState state, String phoneNumber) {
         Log.d(TAG, "Call state changed: " + state);
+        if (state == VoiceService.CallState.DISCONNECTED || state == VoiceService.CallState.FAILED) {
+            if (!callSeen) {
+                // The idle service, before the call placed from here has started
+                return;
+            }
+        } else {
+            callSeen = true;
+        }
         updateUIForCallState(state);
     }
 
@@ -381,12 +428,42 @@ public class CallActivity extends AppCompatActivity implements VoiceService.Call
     @Override
     public void onRecordingStarted() {
         Log.d(TAG, "Recording started");
-        Toast.makeText(this, R.string.recording_started, Toast.LENGTH_SHORT).show();
+        binding.textViewRecordingIndicator.setVisibility(View.VISIBLE);
+        binding.progressAudioLevel.setVisibility(View.VISIBLE);
+        binding.textViewRecord.setText(R.string.btn_stop_recording);
     }
 
     @Override
-    public void onRecordingStopped(String filePath) {
+    public void onRecordingStopped(@Nullable String filePath) {
         Log.d(TAG, "Recording stopped: " + filePath);
-        Toast.makeText(this, getString(R.string.recording_saved, filePath), Toast.LENGTH_LONG).show();
+        binding.textViewRecordingIndicator.setVisibility(View.GONE);
+        binding.progressAudioLevel.setVisibility(View.GONE);
+        binding.textViewRecord.setText(R.string.btn_start_recording);
+        if (filePath == null) {
+            return;
+        }
+        Snackbar.make(binding.getRoot(), getString(R.string.recording_saved, filePath), Snackbar.LENGTH_LONG)
+                .setAction(R.string.btn_play_recording, v -> {
+                    Intent intent = new Intent(this, RecordingPlayerActivity.class);
+                    intent.putExtra(RecordingPlayerActivity.EXTRA_LOCATION, filePath);
+                    startActivity(intent);
+                })
+                .show();
+    }
+
+    @Override
+    public void onAudioLevel(float rmsDbfs, float peakDbfs) {
+        binding.progressAudioLevel.setProgress(toMeterPercent(rmsDbfs));
+        binding.progressAudioLevel.setSecondaryProgress(toMeterPercent(peakDbfs));
+    }
+
+    /**
+     * Map a level onto the meter, which spans the 60 dB below full scale
+     *
+     * @param dbfs The level in dBFS
+     * @return The meter position from 0 to 100
+     */
+    private static int toMeterPercent(float dbfs) {
+        return Math.round(Math.max(0f, Math.min(1f, (dbfs + METER_RANGE_DB) / METER_RANGE_DB)) * 100);
     }
 }
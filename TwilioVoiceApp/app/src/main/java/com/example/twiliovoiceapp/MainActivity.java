@@ -1,9 +1,16 @@
 package com.example.twiliovoiceapp;
 
 import android.Manifest;
+import android.content.ComponentName;
+import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
@@ -18,15 +25,21 @@ import androidx.core.app.ActivityCompat;
 import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 
+import com.example.twiliovoiceapp.database.AppDatabase;
 import com.example.twiliovoiceapp.databinding.ActivityMainBinding;
+import com.example.twiliovoiceapp.metrics.CallSetupTrace;
 import com.example.twiliovoiceapp.model.TwilioPhoneNumber;
 import com.example.twiliovoiceapp.service.VoiceService;
+import com.example.twiliovoiceapp.token.AccessTokenProvider;
 import com.example.twiliovoiceapp.viewmodel.PhoneNumberViewModel;
 import com.google.android.material.button.MaterialButton;
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * MainActivity - The main entry point of the application.
@@ -36,11 +49,37 @@ public class MainActivity extends AppCompatActivity {
     private static final String TAG = "MainActivity";
     private static final int PERMISSION_REQUEST_CODE = 1;
     
+    // Pause in typing after which the call path is warmed up
+    private static final long PREWARM_DELAY_MILLIS = 400;
+    
+    // Digits entered before the input looks like a number that is about to be called
+    private static final int PREWARM_MIN_DIGITS = 7;
+    
     private ActivityMainBinding binding;
     private PhoneNumberViewModel phoneNumberViewModel;
     private List<TwilioPhoneNumber> twilioPhoneNumbers = new ArrayList<>();
     private TwilioPhoneNumber selectedTwilioNumber = null;
     
+    // Call path warm-up while the user is dialing
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Runnable prewarmRunnable = this::prewarmCall;
+    private Future<?> prewarmLookup;
+    private boolean serviceWarm = false;
+    
+    // Binding only keeps the voice service created; calls go through CallActivity
+    private final ServiceConnection prewarmConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            Log.d(TAG, "Voice service warmed up");
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            // Recreated by the system while still bound
+        }
+    };
+    
     // Required permissions for making calls
     private final String[] requiredPermissions = {
             Manifest.permission.RECORD_AUDIO,
@@ -74,6 +113,23 @@ public class MainActivity extends AppCompatActivity {
         super.onResume();
         // Refresh phone numbers when returning to the activity
         loadTwilioPhoneNumbers();
+        
+        // Warm up again for a number still in the input
+        schedulePrewarm();
+    }
+    
+    @Override
+    protected void onStop() {
+        super.onStop();
+        
+        // A call started from here has bound the service itself by now
+        cancelPrewarm();
+    }
+    
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        executor.shutdown();
     }
     
     /**
@@ -148,11 +204,86 @@ public class MainActivity extends AppCompatActivity {
 
             @Override
             public void afterTextChanged(Editable s) {
-                // Update UI based on input (could add formatting here)
+                // Warm up the call path once typing pauses on a plausible number
+                schedulePrewarm();
             }
         });
     }
     
+    /**
+     * Warm up the call path after a pause in typing if the input looks like a
+     * number, or cancel the warm-up if it no longer does
+     */
+    private void schedulePrewarm() {
+        handler.removeCallbacks(prewarmRunnable);
+        if (isPlausibleNumber()) {
+            handler.postDelayed(prewarmRunnable, PREWARM_DELAY_MILLIS);
+        } else {
+            cancelPrewarm();
+        }
+    }
+    
+    /**
+     * Check whether the entered number is long enough to be called
+     * 
+     * @return true if the input holds enough digits
+     */
+    private boolean isPlausibleNumber() {
+        Editable text = binding.editTextPhoneNumber.getText();
+        if (text == null) {
+            return false;
+        }
+        int digits = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (Character.isDigit(text.charAt(i))) {
+                digits++;
+            }
+        }
+        return digits >= PREWARM_MIN_DIGITS;
+    }
+    
+    /**
+     * Get everything a call from the selected Twilio number needs ready before the
+     * call button is tapped: its access token, the voice service with its
+     * notification channel, and the database with the number's row
+     */
+    private void prewarmCall() {
+        if (selectedTwilioNumber == null || !isPlausibleNumber()) {
+            return;
+        }
+        String twilioNumber = selectedTwilioNumber.getPhoneNumber();
+        
+        // Fetches only if no fresh token is cached, and joins a fetch already running
+        AccessTokenProvider.getInstance(this).prefetch(twilioNumber);
+        
+        if (!serviceWarm) {
+            serviceWarm = bindService(new Intent(this, VoiceService.class), prewarmConnection,
+                    Context.BIND_AUTO_CREATE);
+        }
+        
+        if (prewarmLookup != null) {
+            prewarmLookup.cancel(false);
+        }
+        Context context = getApplicationContext();
+        prewarmLookup = executor.submit(() ->
+                AppDatabase.getDatabase(context).phoneNumberDao().getByPhoneNumber(twilioNumber));
+    }
+    
+    /**
+     * Stop warming up the call path and let the voice service go if nothing else uses it
+     */
+    private void cancelPrewarm() {
+        handler.removeCallbacks(prewarmRunnable);
+        if (prewarmLookup != null) {
+            prewarmLookup.cancel(false);
+            prewarmLookup = null;
+        }
+        if (serviceWarm) {
+            unbindService(prewarmConnection);
+            serviceWarm = false;
+        }
+    }
+    
     /**
      * Load Twilio phone numbers from the repository
      */
@@ -196,6 +327,9 @@ public class MainActivity extends AppCompatActivity {
                     @Override
                     public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
                         selectedTwilioNumber = phoneNumbers.get(position);
+                        
+                        // The token to warm up depends on the number calling
+                        schedulePrewarm();
                     }
 
                     @Override
@@ -223,6 +357,9 @@ public class MainActivity extends AppCompatActivity {
      * Initiate a call to the entered phone number
      */
     private void initiateCall() {
+        // Call setup is timed from the tap
+        long tappedAt = SystemClock.elapsedRealtime();
+        
         // Get the entered phone number
         String phoneNumber = binding.editTextPhoneNumber.getText().toString().trim();
         
@@ -252,6 +389,7 @@ public class MainActivity extends AppCompatActivity {
         Intent intent = new Intent(this, CallActivity.class);
         intent.putExtra("phone_number", phoneNumber);
         intent.putExtra("twilio_number", selectedTwilioNumber.getPhoneNumber());
+        intent.putExtra(CallSetupTrace.EXTRA_TAPPED, tappedAt);
         startActivity(intent);
     }
     
@@ -0,0 +1,323 @@
+package com.example.twiliovoiceapp;
+
+import android.content.Intent;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.View;
+import android.widget.SeekBar;
+import android.widget.Toast;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+
+import com.example.twiliovoiceapp.database.AppDatabase;
+import com.example.twiliovoiceapp.databinding.ActivityRecordingPlayerBinding;
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.playback.RecordingPlayer;
+import com.example.twiliovoiceapp.provider.RecordingsProvider;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.KeystoreKeyWrapper;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.storage.RecordingStorageManager;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * RecordingPlayerActivity - Plays back a call recording and shares it with other apps.
+ * The recording is opened in the background and played with {@link RecordingPlayer};
+ * the seek bar jumps straight to any point, however long the recording is, and shows
+ * the recording's waveform, drawn from its peak index without decoding any audio.
+ */
+public class RecordingPlayerActivity extends AppCompatActivity {
+    private static final String TAG = "RecordingPlayerActivity";
+
+    // Path or document URI of the recording, or of the manifest of a segmented recording
+    public static final String EXTRA_LOCATION = "recording_location";
+
+    private static final long POSITION_UPDATE_INTERVAL = 200;
+
+    // Columns of the waveform behind the seek bar
+    private static final int WAVEFORM_COLUMNS = 200;
+
+    private ActivityRecordingPlayerBinding binding;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private RecordingPlayer player;
+    private boolean tracking = false;
+
+    private final Runnable positionUpdater = new Runnable() {
+        @Override
+        public void run() {
+            if (player != null) {
+                if (!tracking) {
+                    long position = player.getPositionMillis();
+                    binding.seekBarPosition.setProgress((int) position);
+                    binding.textElapsed.setText(formatTime(position));
+                }
+                handler.postDelayed(this, POSITION_UPDATE_INTERVAL);
+            }
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        binding = ActivityRecordingPlayerBinding.inflate(getLayoutInflater());
+        setContentView(binding.getRoot());
+
+        if (getSupportActionBar() != null) {
+            getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+            getSupportActionBar().setTitle(R.string.title_activity_recording_player);
+        }
+
+        String location = getIntent().getStringExtra(EXTRA_LOCATION);
+        if (location == null) {
+            finish();
+            return;
+        }
+
+        binding.buttonPlayPause.setOnClickListener(v -> togglePlayback());
+        binding.buttonShare.setOnClickListener(v -> shareRecording(location));
+        binding.seekBarPosition.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
+            @Override
+            public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser) {
+                    binding.textElapsed.setText(formatTime(progress));
+                }
+            }
+
+            @Override
+            public void onStartTrackingTouch(SeekBar seekBar) {
+                tracking = true;
+            }
+
+            @Override
+            public void onStopTrackingTouch(SeekBar seekBar) {
+                tracking = false;
+                if (player != null) {
+                    player.seekTo(seekBar.getProgress());
+                }
+            }
+        });
+
+        loadRecording(location);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        if (player != null && player.isPlaying()) {
+            player.pause();
+            binding.buttonPlayPause.setText(R.string.btn_play);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(positionUpdater);
+        RecordingPlayer current = player;
+        player = null;
+        if (current != null) {
+            // Closing waits for the playback thread, so keep it off the main thread
+            executor.execute(current::close);
+        }
+        executor.shutdown();
+    }
+
+    @Override
+    public boolean onSupportNavigateUp() {
+        onBackPressed();
+        return true;
+    }
+
+    /**
+     * Open the recording in the background and set up the controls when it is ready
+     *
+     * @param location Path or document URI of the recording
+     */
+    private void loadRecording(String location) {
+        executor.execute(() -> {
+            RecordingStorageManager storageManager = RecordingStorageManager.getInstance(this);
+            RecordingStore store = storageManager.getStoreFor(location);
+            String name = storageManager.getNameFor(location);
+            KeyWrapper keyWrapper = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+                    ? KeystoreKeyWrapper.getInstance() : null;
+            try {
+                if (name == null) {
+                    throw new IOException("Recording no longer exists: " + location);
+                }
+                RecordingPlayer opened = RecordingPlayer.open(store, name, keyWrapper);
+                byte[] min = new byte[WAVEFORM_COLUMNS];
+                byte[] max = new byte[WAVEFORM_COLUMNS];
+                boolean hasWaveform = opened.getWaveform(WAVEFORM_COLUMNS, min, max);
+                runOnUiThread(() -> {
+                    if (isDestroyed()) {
+                        // Nothing has been played yet, so this returns at once
+                        opened.close();
+                        return;
+                    }
+                    binding.textRecordingName.setText(name);
+                    if (hasWaveform) {
+                        binding.seekBarPosition.setBackground(new WaveformDrawable(min, max,
+                                binding.seekBarPosition.getPaddingLeft(), binding.seekBarPosition.getPaddingRight(),
+                                ContextCompat.getColor(this, R.color.lightGray)));
+                    }
+                    onPlayerReady(opened);
+                });
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error opening recording " + location, e);
+                runOnUiThread(() -> {
+                    Toast.makeText(this, R.string.playback_error, Toast.LENGTH_LONG).show();
+                    finish();
+                });
+            }
+        });
+    }
+
+    /**
+     * Offer the recording to other apps as a single WAV file
+     *
+     * @param location Path or document URI of the recording
+     */
+    private void shareRecording(String location) {
+        executor.execute(() -> {
+            CallRecording recording = AppDatabase.getDatabase(this).callRecordingDao().getByPath(location);
+            runOnUiThread(() -> {
+                if (recording == null) {
+                    Toast.makeText(this, R.string.share_unavailable, Toast.LENGTH_SHORT).show();
+                    return;
+                }
+                Intent intent = new Intent(Intent.ACTION_SEND);
+                intent.setType("audio/x-wav");
+                intent.putExtra(Intent.EXTRA_STREAM, RecordingsProvider.getUri(recording.getId()));
+                intent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+                startActivity(Intent.createChooser(intent, getString(R.string.share_recording_title)));
+            });
+        });
+    }
+
+    /**
+     * Set up the controls for an opened recording and start playing it
+     *
+     * @param opened The player for the recording
+     */
+    private void onPlayerReady(RecordingPlayer opened) {
+        player = opened;
+        player.setListener(new RecordingPlayer.Listener() {
+            @Override
+            public void onCompleted() {
+                runOnUiThread(() -> binding.buttonPlayPause.setText(R.string.btn_play));
+            }
+
+            @Override
+            public void onError(IOException e) {
+                runOnUiThread(() -> {
+                    binding.buttonPlayPause.setText(R.string.btn_play);
+                    Toast.makeText(RecordingPlayerActivity.this, R.string.playback_error,
+                            Toast.LENGTH_LONG).show();
+                });
+            }
+        });
+
+        long duration = player.getDurationMillis();
+        binding.progressLoading.setVisibility(View.GONE);
+        binding.seekBarPosition.setMax((int) duration);
+        binding.seekBarPosition.setEnabled(true);
+        binding.textDuration.setText(formatTime(duration));
+        binding.textElapsed.setText(formatTime(0));
+        binding.buttonPlayPause.setEnabled(true);
+
+        togglePlayback();
+        handler.post(positionUpdater);
+    }
+
+    /**
+     * Toggle between playing and paused
+     */
+    private void togglePlayback() {
+        if (player == null) {
+            return;
+        }
+        if (player.isPlaying()) {
+            player.pause();
+            binding.buttonPlayPause.setText(R.string.btn_play);
+        } else {
+            player.play();
+            binding.buttonPlayPause.setText(R.string.btn_pause);
+        }
+    }
+
+    /**
+     * Format a position for display
+     *
+     * @param millis The position in milliseconds
+     * @return The position as minutes and seconds
+     */
+    private String formatTime(long millis) {
+        long seconds = millis / 1000;
+        return getString(R.string.playback_time_format, seconds / 60, seconds % 60);
+    }
+
+    /**
+     * Draws a waveform summary as one vertical line per column, lined up with the seek
+     * bar's track
+     */
+    private static class WaveformDrawable extends Drawable {
+        private final byte[] min;
+        private final byte[] max;
+        private final int insetLeft;
+        private final int insetRight;
+        private final Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+        WaveformDrawable(byte[] min, byte[] max, int insetLeft, int insetRight, int color) {
+            this.min = min;
+            this.max = max;
+            this.insetLeft = insetLeft;
+            this.insetRight = insetRight;
+            paint.setColor(color);
+            paint.setStrokeCap(Paint.Cap.ROUND);
+        }
+
+        @Override
+        public void draw(@NonNull Canvas canvas) {
+            Rect bounds = getBounds();
+            float columnWidth = (float) (bounds.width() - insetLeft - insetRight) / min.length;
+            float middle = bounds.exactCenterY();
+            float scale = bounds.height() / 2f / 128;
+            paint.setStrokeWidth(Math.max(1, columnWidth * 0.6f));
+            for (int i = 0; i < min.length; i++) {
+                float x = bounds.left + insetLeft + (i + 0.5f) * columnWidth;
+                canvas.drawLine(x, middle - max[i] * scale, x, middle - min[i] * scale, paint);
+            }
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            paint.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(@Nullable ColorFilter colorFilter) {
+            paint.setColorFilter(colorFilter);
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+}
@@ -1,10 +1,15 @@
 package com.example.twiliovoiceapp;
 
+import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.net.Uri;
 import android.os.Bundle;
 import android.text.InputType;
+import android.graphics.Typeface;
+import android.util.Log;
+import android.widget.ScrollView;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
@@ -16,12 +21,21 @@ import androidx.preference.Preference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.PreferenceManager;
 
+import com.example.twiliovoiceapp.audio.MessageDrop;
+import com.example.twiliovoiceapp.metrics.CallSetupMetrics;
+import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 /**
  * SettingsActivity - Activity for configuring app settings.
  * This activity allows users to configure Twilio credentials,
  * call settings, and manage phone numbers.
  */
 public class SettingsActivity extends AppCompatActivity {
+    private static final String TAG = "SettingsActivity";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -56,6 +70,8 @@ public class SettingsActivity extends AppCompatActivity {
     public static class SettingsFragment extends PreferenceFragmentCompat implements
             SharedPreferences.OnSharedPreferenceChangeListener {
 
+        private final ExecutorService executor = Executors.newSingleThreadExecutor();
+
         @Override
         public void onCreatePreferences(Bundle savedInstanceState, String rootKey) {
             // Load preferences from XML
@@ -110,6 +126,33 @@ public class SettingsActivity extends AppCompatActivity {
                 });
             }
             
+            // Configure voicemail message preference
+            Preference dropMessagePref = findPreference("drop_message");
+            if (dropMessagePref != null) {
+                if (MessageDrop.isAvailable(requireContext())) {
+                    long seconds = MessageDrop.FORMAT.getDurationMillis(MessageDrop.getFile(requireContext()).length()) / 1000;
+                    dropMessagePref.setSummary(getString(R.string.drop_message_set, seconds));
+                }
+                
+                // Handle message selection
+                dropMessagePref.setOnPreferenceClickListener(preference -> {
+                    Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("audio/*");
+                    startActivityForResult(intent, REQUEST_DROP_MESSAGE);
+                    return true;
+                });
+            }
+            
+            // Configure call setup latency preference
+            Preference latencyPref = findPreference("call_setup_latency");
+            if (latencyPref != null) {
+                latencyPref.setOnPreferenceClickListener(preference -> {
+                    showCallSetupLatency();
+                    return true;
+                });
+            }
+            
             // Configure manage numbers preference
             Preference manageNumbersPref = findPreference("manage_numbers");
             if (manageNumbersPref != null) {
@@ -137,6 +180,12 @@ public class SettingsActivity extends AppCompatActivity {
                     .unregisterOnSharedPreferenceChangeListener(this);
         }
         
+        @Override
+        public void onDestroy() {
+            super.onDestroy();
+            executor.shutdown();
+        }
+        
         @Override
         public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
             // Handle preference changes
@@ -180,10 +229,85 @@ public class SettingsActivity extends AppCompatActivity {
                             Toast.LENGTH_SHORT).show();
                 }
             }
+            if (requestCode == REQUEST_DROP_MESSAGE && resultCode == RESULT_OK && data != null) {
+                Uri uri = data.getData();
+                if (uri != null) {
+                    prepareDropMessage(uri);
+                }
+            }
             super.onActivityResult(requestCode, resultCode, data);
         }
         
+        /**
+         * Show the call setup latency percentiles, read in the background
+         */
+        private void showCallSetupLatency() {
+            Context context = requireContext().getApplicationContext();
+            executor.execute(() -> {
+                String text = CallSetupMetrics.getInstance(context).dump();
+                if (getActivity() == null) {
+                    return;
+                }
+                getActivity().runOnUiThread(() -> {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    TextView view = new TextView(requireContext());
+                    int padding = Math.round(16 * getResources().getDisplayMetrics().density);
+                    view.setPadding(padding, padding, padding, 0);
+                    view.setTypeface(Typeface.MONOSPACE);
+                    view.setTextSize(11);
+                    view.setTextIsSelectable(true);
+                    view.setText(text);
+                    ScrollView scroller = new ScrollView(requireContext());
+                    scroller.addView(view);
+                    new MaterialAlertDialogBuilder(requireContext())
+                            .setTitle(R.string.pref_title_call_setup_latency)
+                            .setView(scroller)
+                            .setPositiveButton(android.R.string.ok, null)
+                            .show();
+                });
+            });
+        }
+        
+        /**
+         * Convert the chosen recording into the voicemail message in the background
+         * 
+         * @param uri The chosen recording
+         */
+        private void prepareDropMessage(Uri uri) {
+            Context context = requireContext().getApplicationContext();
+            executor.execute(() -> {
+                long duration;
+                try {
+                    duration = MessageDrop.prepare(context, uri);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Error preparing voicemail message from " + uri, e);
+                    duration = -1;
+                }
+                long result = duration;
+                if (getActivity() == null) {
+                    return;
+                }
+                getActivity().runOnUiThread(() -> {
+                    if (!isAdded()) {
+                        return;
+                    }
+                    if (result < 0) {
+                        Toast.makeText(context, R.string.drop_message_invalid, Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    Preference dropMessagePref = findPreference("drop_message");
+                    if (dropMessagePref != null) {
+                        dropMessagePref.setSummary(getString(R.string.drop_message_set, result / 1000));
+                    }
+                    Toast.makeText(context, R.string.drop_message_saved, Toast.LENGTH_SHORT).show();
+                });
+            });
+        }
+        
         private static final int REQUEST_DIRECTORY = 1001;
+        private static final int REQUEST_DROP_MESSAGE = 1002;
         private static final int RESULT_OK = -1; // Activity.RESULT_OK
     }
 }
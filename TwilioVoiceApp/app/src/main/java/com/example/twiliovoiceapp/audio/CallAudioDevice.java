@@ -0,0 +1,332 @@
+package com.example.twiliovoiceapp.audio;
+
+import android.media.AudioAttributes;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.example.twiliovoiceapp.call.CustomAudioDevice;
+import com.example.twiliovoiceapp.recording.StereoInterleaver;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.twilio.voice.AudioDevice;
+import com.twilio.voice.AudioDeviceContext;
+import com.twilio.voice.AudioFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Audio device for the Voice SDK that captures the microphone and plays the remote
+ * audio through its own buffers, so each side of the call can be recorded on its own
+ * and a pre-recorded message can be sent in place of the microphone.
+ * <p>
+ * Audio moves in 10 ms frames on two threads: one reads the microphone and hands each
+ * frame to the SDK, the other pulls each remote frame from the SDK and plays it. While
+ * a tap is open, the same frames also go to a {@link StereoInterleaver}, which puts the
+ * local side in the left channel and the remote side in the right. While a
+ * {@link MessageDrop} plays, the microphone is still read, to keep it drained, but its
+ * frames are dropped and the message's frames are sent instead. All frame buffers are
+ * allocated once per device.
+ */
+public class CallAudioDevice implements AudioDevice, CustomAudioDevice {
+    private static final String TAG = "CallAudioDevice";
+
+    // Format of the stereo audio handed to a tap
+    public static final WavFormat TAP_FORMAT = WavFormat.pcm16(AudioFormat.AUDIO_SAMPLE_RATE_48000, 2);
+
+    static final int FRAME_MILLIS = 10;
+    static final int FRAME_BYTES = AudioFormat.AUDIO_SAMPLE_RATE_48000 * FRAME_MILLIS / 1000 * 2;
+
+    // Platform buffers hold a few frames, so one late wakeup does not glitch
+    private static final int PLATFORM_BUFFER_FRAMES = 4;
+
+    // How far one side may run ahead of the other in a tap before the other is padded
+    private static final int MAX_TAP_LAG_MILLIS = 100;
+
+    private final AudioFormat format =
+            new AudioFormat(AudioFormat.AUDIO_SAMPLE_RATE_48000, AudioFormat.AUDIO_SAMPLE_MONO);
+    private final ByteBuffer captureBuffer = ByteBuffer.allocateDirect(FRAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer renderBuffer = ByteBuffer.allocateDirect(FRAME_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+
+    private AudioRecord audioRecord;
+    private Thread captureThread;
+    private volatile boolean capturing;
+
+    private AudioTrack audioTrack;
+    private Thread renderThread;
+    private volatile boolean rendering;
+
+    private volatile StereoInterleaver tap;
+    private volatile boolean muted;
+
+    // Message being sent in place of the microphone, its next frame, and who to tell when it ends
+    private volatile MessageDrop message;
+    private int messageFrame;
+    private Runnable messageFinished;
+
+    /**
+     * Start copying both sides of the call to a receiver, as 48 kHz stereo with the
+     * local side on the left
+     *
+     * @param output Receiver of the stereo audio, called on the audio threads
+     */
+    public void startTap(StereoInterleaver.Output output) {
+        stopTap();
+        tap = new StereoInterleaver(output,
+                AudioFormat.AUDIO_SAMPLE_RATE_48000 * MAX_TAP_LAG_MILLIS / 1000);
+    }
+
+    /**
+     * Stop copying the call's audio, handing over whatever is still waiting first
+     */
+    public void stopTap() {
+        StereoInterleaver current = tap;
+        tap = null;
+        if (current != null) {
+            current.close();
+            if (current.getPaddedFrames() > 0) {
+                Log.d(TAG, "Tap closed: " + current.getFramesWritten() + " frames, "
+                        + current.getPaddedFrames() + " with one side missing");
+            }
+        }
+    }
+
+    /**
+     * Silence the microphone, both towards the SDK and in the tap
+     *
+     * @param muted true to silence the microphone
+     */
+    public void setMuted(boolean muted) {
+        this.muted = muted;
+    }
+
+    /**
+     * Send a message into the call in place of the microphone, from its start
+     *
+     * @param message The message to send
+     * @param onFinished Called on the capture thread once the last frame has been sent
+     */
+    public void playMessage(MessageDrop message, Runnable onFinished) {
+        this.message = null;
+        this.messageFrame = 0;
+        this.messageFinished = onFinished;
+        this.message = message;
+    }
+
+    /**
+     * Stop sending a message and go back to the microphone; the finish callback is not called
+     */
+    public void stopMessage() {
+        message = null;
+    }
+
+    /**
+     * Check whether a message is being sent
+     *
+     * @return true while a message is playing
+     */
+    public boolean isPlayingMessage() {
+        return message != null;
+    }
+
+    @Nullable
+    @Override
+    public AudioFormat getCapturerFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean onInitCapturer() {
+        return true;
+    }
+
+    @Override
+    public boolean onStartCapturing(@NonNull AudioDeviceContext audioDeviceContext) {
+        int minSize = AudioRecord.getMinBufferSize(format.getSampleRate(),
+                android.media.AudioFormat.CHANNEL_IN_MONO, android.media.AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            Log.e(TAG, "Microphone does not support " + format.getSampleRate() + " Hz");
+            return false;
+        }
+        try {
+            audioRecord = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION,
+                    format.getSampleRate(), android.media.AudioFormat.CHANNEL_IN_MONO,
+                    android.media.AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minSize, FRAME_BYTES * PLATFORM_BUFFER_FRAMES));
+        } catch (IllegalArgumentException | SecurityException e) {
+            Log.e(TAG, "Error opening microphone", e);
+            return false;
+        }
+        if (audioRecord.getState() != AudioRecord.STATE_INITIALIZED) {
+            Log.e(TAG, "Microphone did not initialize");
+            audioRecord.release();
+            audioRecord = null;
+            return false;
+        }
+
+        audioRecord.startRecording();
+        capturing = true;
+        captureThread = new Thread(() -> captureLoop(audioDeviceContext), TAG + "-capture");
+        captureThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopCapturing() {
+        capturing = false;
+        joinQuietly(captureThread);
+        captureThread = null;
+        if (audioRecord != null) {
+            audioRecord.stop();
+            audioRecord.release();
+            audioRecord = null;
+        }
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public AudioFormat getRendererFormat() {
+        return format;
+    }
+
+    @Override
+    public boolean onInitRenderer() {
+        return true;
+    }
+
+    @Override
+    public boolean onStartRendering(@NonNull AudioDeviceContext audioDeviceContext) {
+        int minSize = AudioTrack.getMinBufferSize(format.getSampleRate(),
+                android.media.AudioFormat.CHANNEL_OUT_MONO, android.media.AudioFormat.ENCODING_PCM_16BIT);
+        if (minSize <= 0) {
+            Log.e(TAG, "Speaker does not support " + format.getSampleRate() + " Hz");
+            return false;
+        }
+        AudioAttributes attributes = new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                .build();
+        android.media.AudioFormat trackFormat = new android.media.AudioFormat.Builder()
+                .setSampleRate(format.getSampleRate())
+                .setChannelMask(android.media.AudioFormat.CHANNEL_OUT_MONO)
+                .setEncoding(android.media.AudioFormat.ENCODING_PCM_16BIT)
+                .build();
+        try {
+            audioTrack = new AudioTrack(attributes, trackFormat,
+                    Math.max(minSize, FRAME_BYTES * PLATFORM_BUFFER_FRAMES),
+                    AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        } catch (IllegalArgumentException e) {
+            Log.e(TAG, "Error opening speaker", e);
+            return false;
+        }
+        if (audioTrack.getState() != AudioTrack.STATE_INITIALIZED) {
+            Log.e(TAG, "Speaker did not initialize");
+            audioTrack.release();
+            audioTrack = null;
+            return false;
+        }
+
+        audioTrack.play();
+        rendering = true;
+        renderThread = new Thread(() -> renderLoop(audioDeviceContext), TAG + "-render");
+        renderThread.start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopRendering() {
+        rendering = false;
+        joinQuietly(renderThread);
+        renderThread = null;
+        if (audioTrack != null) {
+            audioTrack.stop();
+            audioTrack.release();
+            audioTrack = null;
+        }
+        return true;
+    }
+
+    /**
+     * Read the microphone one frame at a time and hand each frame to the SDK and the tap
+     */
+    private void captureLoop(AudioDeviceContext context) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (capturing) {
+            captureBuffer.clear();
+            int read = audioRecord.read(captureBuffer, FRAME_BYTES);
+            if (read < 0) {
+                Log.e(TAG, "Error reading microphone: " + read);
+                break;
+            }
+            if (read < FRAME_BYTES) {
+                // Only when stopping; the SDK takes whole frames
+                continue;
+            }
+
+            // A playing message replaces the microphone with a view of its mapped file
+            ByteBuffer frame = captureBuffer;
+            MessageDrop playing = message;
+            if (playing != null) {
+                frame = playing.getFrame(messageFrame++);
+            } else if (muted) {
+                for (int i = 0; i < FRAME_BYTES; i++) {
+                    captureBuffer.put(i, (byte) 0);
+                }
+            }
+
+            StereoInterleaver current = tap;
+            if (current != null) {
+                current.writeLeft(frame);
+                frame.clear();
+            }
+            AudioDevice.audioDeviceWriteCaptureData(context, frame);
+
+            if (playing != null && messageFrame == playing.getFrameCount() && message == playing) {
+                message = null;
+                messageFinished.run();
+            }
+        }
+    }
+
+    /**
+     * Pull the remote audio from the SDK one frame at a time, hand it to the tap and
+     * play it; the blocking write paces the loop
+     */
+    private void renderLoop(AudioDeviceContext context) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        while (rendering) {
+            renderBuffer.clear();
+            AudioDevice.audioDeviceReadRenderData(context, renderBuffer);
+            renderBuffer.clear();
+
+            StereoInterleaver current = tap;
+            if (current != null) {
+                current.writeRight(renderBuffer);
+                renderBuffer.clear();
+            }
+            int written = audioTrack.write(renderBuffer, FRAME_BYTES, AudioTrack.WRITE_BLOCKING);
+            if (written < 0) {
+                Log.e(TAG, "Error writing to speaker: " + written);
+                break;
+            }
+        }
+    }
+
+    private static void joinQuietly(Thread thread) {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.example.twiliovoiceapp.audio;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+
+import com.example.twiliovoiceapp.recording.ChannelSink;
+import com.example.twiliovoiceapp.recording.RecordingSink;
+import com.example.twiliovoiceapp.recording.Resampler;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.example.twiliovoiceapp.recording.WavInfo;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A pre-recorded message, e.g. a voicemail, that {@link CallAudioDevice} sends into a
+ * call in place of the microphone.
+ * <p>
+ * The message is converted once, when it is chosen, to raw PCM in the format the
+ * device captures in, and kept in the app's private storage. Playing it maps that file
+ * into memory and cuts the mapping into one view per 10 ms frame up front, so the
+ * capture thread hands the SDK the file's pages directly, without copying or
+ * allocating anything per frame.
+ */
+public class MessageDrop {
+
+    // Format the message is stored and played in, matching the device's capture format
+    public static final WavFormat FORMAT = WavFormat.pcm16(48000, 1);
+
+    private static final String FILE_NAME = "drop_message.pcm";
+
+    // Size of the reads while converting a chosen file
+    private static final int CONVERT_BUFFER_SIZE = 64 * 1024;
+
+    // Whether a message has been set up; the file is only checked once per process
+    private static volatile Boolean available;
+
+    private final ByteBuffer[] frames;
+
+    private MessageDrop(ByteBuffer[] frames) {
+        this.frames = frames;
+    }
+
+    /**
+     * Get the file the message to drop is kept in
+     *
+     * @param context The context
+     * @return The file, which may not exist yet
+     */
+    public static File getFile(Context context) {
+        return new File(context.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Check whether a message has been set up
+     *
+     * @param context The context
+     * @return true if there is a message to drop
+     */
+    public static boolean isAvailable(Context context) {
+        Boolean cached = available;
+        if (cached == null) {
+            cached = getFile(context).length() > 0;
+            available = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Convert a chosen file into the message to drop, replacing any previous one. WAV
+     * files must hold 16-bit PCM, at any rate and channel count; anything else is read
+     * as raw 16-bit mono PCM at 48 kHz.
+     *
+     * @param context The context
+     * @param uri The chosen file
+     * @return The length of the message in milliseconds
+     * @throws IOException If the file could not be read or is not 16-bit PCM
+     */
+    public static long prepare(Context context, Uri uri) throws IOException {
+        File target = getFile(context);
+        File temp = new File(target.getPath() + ".tmp");
+        try (ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r")) {
+            if (descriptor == null) {
+                throw new FileNotFoundException("Could not open " + uri);
+            }
+            try (FileInputStream in = new FileInputStream(descriptor.getFileDescriptor());
+                 FileOutputStream out = new FileOutputStream(temp)) {
+                convert(in.getChannel(), new ChannelSink(out.getChannel()));
+            }
+        } catch (IOException | RuntimeException e) {
+            temp.delete();
+            throw e;
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not replace " + target);
+        }
+        long length = target.length();
+        available = length > 0;
+        return FORMAT.getDurationMillis(length);
+    }
+
+    /**
+     * Open the message for playing
+     *
+     * @param file The message file, from {@link #getFile}
+     * @return The message, cut into frames
+     * @throws IOException If the file could not be mapped
+     */
+    public static MessageDrop open(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            FileChannel channel = raf.getChannel();
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            int size = mapped.capacity();
+            int frameBytes = CallAudioDevice.FRAME_BYTES;
+            ByteBuffer[] frames = new ByteBuffer[(size + frameBytes - 1) / frameBytes];
+            for (int i = 0; i < frames.length; i++) {
+                int start = i * frameBytes;
+                if (start + frameBytes <= size) {
+                    mapped.limit(start + frameBytes);
+                    mapped.position(start);
+                    frames[i] = mapped.slice().order(ByteOrder.LITTLE_ENDIAN);
+                } else {
+                    // The SDK takes whole frames, so the last one is copied and padded with silence
+                    ByteBuffer last = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+                    mapped.limit(size);
+                    mapped.position(start);
+                    last.put(mapped);
+                    last.clear();
+                    frames[i] = last;
+                }
+            }
+            return new MessageDrop(frames);
+        }
+    }
+
+    /**
+     * Get the number of frames in the message
+     *
+     * @return The frame count
+     */
+    public int getFrameCount() {
+        return frames.length;
+    }
+
+    /**
+     * Get one frame of the message, ready to be read from its start
+     *
+     * @param index The frame index
+     * @return A view of the frame
+     */
+    public ByteBuffer getFrame(int index) {
+        ByteBuffer frame = frames[index];
+        frame.clear();
+        return frame;
+    }
+
+    /**
+     * Get the length of the message
+     *
+     * @return The length in milliseconds
+     */
+    public long getDurationMillis() {
+        return (long) frames.length * CallAudioDevice.FRAME_MILLIS;
+    }
+
+    /**
+     * Copy the audio of a chosen file into a sink in the message format
+     */
+    private static void convert(FileChannel source, RecordingSink sink) throws IOException {
+        try {
+            long start = 0;
+            long end = source.size();
+            WavFormat format = FORMAT;
+            WavInfo info = WavInfo.read(source);
+            if (info != null) {
+                format = info.getFormat();
+                if (format.getFormatTag() != WavFormat.FORMAT_PCM || format.getBitsPerSample() != 16) {
+                    throw new IOException("Only 16-bit PCM messages are supported");
+                }
+                start = info.getDataOffset();
+                end = Math.min(end, start + info.getDataBytes());
+            }
+            if (format.getSampleRate() != FORMAT.getSampleRate() || format.getChannels() != FORMAT.getChannels()) {
+                sink = new Resampler(sink, format, FORMAT.getSampleRate(), true);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocateDirect(CONVERT_BUFFER_SIZE);
+            ByteBuffer[] buffers = {buffer};
+            long position = start;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = source.read(buffer, position);
+                if (read <= 0) {
+                    break;
+                }
+                position += read;
+                buffer.flip();
+                sink.write(buffers, 0, 1);
+            }
+        } finally {
+            sink.close();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.twiliovoiceapp.call;
+
+import androidx.annotation.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * What {@link com.example.twiliovoiceapp.service.VoiceService} needs from a voice
+ * stack to place, answer and run calls: {@link TwilioCallEngine} for real calls
+ * through the Voice SDK, or {@link FakeCallEngine} to drive the service's call
+ * handling and recording path with scripted calls, without a device or a Twilio
+ * account.
+ * <p>
+ * Listener callbacks arrive on one thread, the main thread for the Twilio engine, and
+ * pass the same {@link Call} object the call was placed with, so calls can be told
+ * apart by identity.
+ */
+public interface CallEngine {
+
+    /**
+     * A call placed through the engine
+     */
+    interface Call {
+        /**
+         * Mute or unmute the microphone
+         *
+         * @param mute true to mute
+         */
+        void mute(boolean mute);
+
+        /**
+         * Send keypad tones to the other side
+         *
+         * @param digits The digits to send
+         */
+        void sendDigits(String digits);
+
+        /**
+         * Start delivering the call's mixed audio
+         *
+         * @param listener Receiver of the audio
+         */
+        void startRecording(AudioListener listener);
+
+        /**
+         * Stop delivering the call's audio
+         */
+        void stopRecording();
+
+        /**
+         * Hang up; the listener's {@link Listener#onDisconnected} follows
+         */
+        void disconnect();
+    }
+
+    /**
+     * An incoming call ringing on the device, as received by one engine
+     */
+    interface Invite {
+        /**
+         * Get the parameters the caller sent with the call
+         *
+         * @return The parameters, e.g. From
+         */
+        Map<String, String> getParams();
+    }
+
+    /**
+     * Receiver of the progress of a call
+     */
+    interface Listener {
+        void onConnectFailure(Call call, CallError error);
+        void onRinging(Call call);
+        void onConnected(Call call);
+        void onReconnecting(Call call, CallError error);
+        void onReconnected(Call call);
+        void onDisconnected(Call call, @Nullable CallError error);
+    }
+
+    /**
+     * Receiver of a call's audio, as 16-bit mono PCM at 48 kHz
+     */
+    interface AudioListener {
+        void onRecordingStarted();
+        void onRecordingFailed(Exception e);
+        void onRecordingStopped();
+
+        /**
+         * Take the next run of audio. The buffer is reused once this returns.
+         *
+         * @param buffer The audio, from position to limit
+         */
+        void onBufferAvailable(ByteBuffer buffer);
+    }
+
+    /**
+     * Place an outgoing call
+     *
+     * @param accessToken Access token to authorize the call with
+     * @param params Parameters for the call, e.g. To and From
+     * @param listener Receiver of the call's progress
+     * @return The call, before it is connected
+     */
+    Call connect(String accessToken, Map<String, String> params, Listener listener);
+
+    /**
+     * Answer an incoming call
+     *
+     * @param invite The incoming call, received by this engine
+     * @param listener Receiver of the call's progress
+     * @return The call, before it is connected
+     * @throws IllegalArgumentException If the invite was received by another kind of engine
+     */
+    Call accept(Invite invite, Listener listener);
+
+    /**
+     * Choose the audio device for calls placed from now on
+     *
+     * @param device The custom device, or null for the engine's own
+     * @throws IllegalArgumentException If the engine cannot use that kind of device
+     */
+    void setAudioDevice(@Nullable CustomAudioDevice device);
+
+    /**
+     * Get the edge location calls are placed through
+     *
+     * @return The edge name
+     */
+    String getEdge();
+}
@@ -0,0 +1,44 @@
+package com.example.twiliovoiceapp.call;
+
+/**
+ * Why a call failed, was interrupted or ended, as reported by a {@link CallEngine}
+ */
+public class CallError {
+
+    private final int code;
+    private final String message;
+
+    /**
+     * Constructor for the error
+     *
+     * @param code The Twilio error code
+     * @param message Description of the error
+     */
+    public CallError(int code, String message) {
+        this.code = code;
+        this.message = message;
+    }
+
+    /**
+     * Get the error code
+     *
+     * @return The Twilio error code, e.g. 20104 for an expired access token
+     */
+    public int getCode() {
+        return code;
+    }
+
+    /**
+     * Get the description of the error
+     *
+     * @return The message
+     */
+    public String getMessage() {
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return code + ": " + message;
+    }
+}
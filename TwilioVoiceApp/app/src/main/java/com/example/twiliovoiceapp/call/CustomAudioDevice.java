@@ -0,0 +1,11 @@
+package com.example.twiliovoiceapp.call;
+
+/**
+ * An audio device a {@link CallEngine} can place calls through in place of its own, e.g.
+ * {@link com.example.twiliovoiceapp.audio.CallAudioDevice}.
+ * <p>
+ * The engine interface only passes devices along, so it does not depend on any voice
+ * stack; each engine accepts the kind of device its stack can use and rejects others.
+ */
+public interface CustomAudioDevice {
+}
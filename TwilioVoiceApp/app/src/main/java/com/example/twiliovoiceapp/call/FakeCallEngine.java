@@ -0,0 +1,521 @@
+package com.example.twiliovoiceapp.call;
+
+import androidx.annotation.Nullable;
+
+import com.example.twiliovoiceapp.recording.WavFormat;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Call engine that plays out scripted calls instead of placing real ones, so the call
+ * handling, recording path and listener dispatch built on {@link CallEngine} can be
+ * exercised and timed on a plain JVM or under Robolectric.
+ * <p>
+ * Each call follows a {@link Script}: how long it takes to ring and to be answered,
+ * whether it fails instead, when the network drops and comes back, and when the other
+ * side hangs up. Incoming calls come from {@link #invite} and, once accepted, skip the
+ * ringing and connect after the script's ringing delay. While recording, a call
+ * delivers synthetic 48 kHz mono audio in 10 ms frames, at real-time pace or faster,
+ * through one reused buffer as the SDK does.
+ * <p>
+ * Timing runs on the given scheduler and every callback is handed to one callback
+ * executor, in the order the script puts the events in, so a run with the same scripts
+ * always produces the same sequence of callbacks.
+ */
+public class FakeCallEngine implements CallEngine {
+
+    // Format of the audio delivered to recording listeners
+    public static final WavFormat AUDIO_FORMAT = WavFormat.pcm16(48000, 1);
+
+    public static final String EDGE = "fake";
+
+    // Error reported while a scripted network drop lasts, as the SDK reports it
+    public static final int ERROR_SIGNALING_DISCONNECTED = 53001;
+
+    private static final int FRAME_MILLIS = 10;
+    private static final int FRAME_SAMPLES = AUDIO_FORMAT.getSampleRate() * FRAME_MILLIS / 1000;
+
+    /**
+     * Source of the synthetic audio
+     */
+    public interface AudioSource {
+        /**
+         * Get one sample of the call's audio
+         *
+         * @param index The sample index from the start of the recording
+         * @return The 16-bit sample
+         */
+        short sample(long index);
+    }
+
+    /**
+     * How a call placed through the fake engine plays out
+     */
+    public static class Script {
+        private long ringingDelayMillis = 100;
+        private long answerDelayMillis = 500;
+        private CallError connectFailure;
+        private final List<long[]> reconnects = new ArrayList<>();
+        private long hangUpAfterMillis = -1;
+        private AudioSource audio = sine(440, -20);
+        private double audioSpeed = 1;
+
+        /**
+         * Set how long after connecting the call starts ringing, or an accepted
+         * incoming call connects
+         *
+         * @param millis The delay in milliseconds
+         * @return This script
+         */
+        public Script ringAfter(long millis) {
+            ringingDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * Set how long the call rings before it is answered
+         *
+         * @param millis The delay in milliseconds
+         * @return This script
+         */
+        public Script answerAfter(long millis) {
+            answerDelayMillis = millis;
+            return this;
+        }
+
+        /**
+         * Make the call fail to connect, when it would otherwise start ringing
+         *
+         * @param code The Twilio error code to report
+         * @param message The error message
+         * @return This script
+         */
+        public Script failWith(int code, String message) {
+            connectFailure = new CallError(code, message);
+            return this;
+        }
+
+        /**
+         * Drop the network for a while during the call. May be repeated.
+         *
+         * @param afterMillis When the drop starts, counted from the answer
+         * @param forMillis How long until the call is reconnected
+         * @return This script
+         */
+        public Script reconnect(long afterMillis, long forMillis) {
+            reconnects.add(new long[] {afterMillis, forMillis});
+            return this;
+        }
+
+        /**
+         * Have the other side hang up
+         *
+         * @param millis When, counted from the answer
+         * @return This script
+         */
+        public Script hangUpAfter(long millis) {
+            hangUpAfterMillis = millis;
+            return this;
+        }
+
+        /**
+         * Set the audio delivered while recording
+         *
+         * @param source The audio
+         * @return This script
+         */
+        public Script audio(AudioSource source) {
+            audio = source;
+            return this;
+        }
+
+        /**
+         * Deliver audio faster than real time, e.g. to soak-test the recording path
+         *
+         * @param speed How many times real time
+         * @return This script
+         */
+        public Script audioSpeed(double speed) {
+            audioSpeed = speed;
+            return this;
+        }
+    }
+
+    /**
+     * Audio of a steady tone
+     *
+     * @param frequency The frequency in Hz
+     * @param dbfs The level in dBFS
+     * @return The audio source
+     */
+    public static AudioSource sine(double frequency, double dbfs) {
+        double amplitude = 32767 * Math.pow(10, dbfs / 20);
+        double step = 2 * Math.PI * frequency / AUDIO_FORMAT.getSampleRate();
+        return index -> (short) Math.round(amplitude * Math.sin(step * index));
+    }
+
+    /**
+     * Audio of digital silence, e.g. to exercise dead-audio detection
+     *
+     * @return The audio source
+     */
+    public static AudioSource silence() {
+        return index -> 0;
+    }
+
+    private final ScheduledExecutorService scheduler;
+    private final Executor callbackExecutor;
+    private final Deque<Script> scripts = new ArrayDeque<>();
+    private Script defaultScript = new Script();
+    private final List<FakeCall> calls = new CopyOnWriteArrayList<>();
+    private volatile CustomAudioDevice audioDevice;
+
+    /**
+     * Constructor for an engine that makes its callbacks on the scheduler's thread
+     *
+     * @param scheduler Single-threaded scheduler timing the scripted events
+     */
+    public FakeCallEngine(ScheduledExecutorService scheduler) {
+        this(scheduler, scheduler);
+    }
+
+    /**
+     * Constructor for the engine
+     *
+     * @param scheduler Scheduler timing the scripted events
+     * @param callbackExecutor Serial executor the callbacks are made on, e.g. the main thread
+     */
+    public FakeCallEngine(ScheduledExecutorService scheduler, Executor callbackExecutor) {
+        this.scheduler = scheduler;
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Set the script for calls when none is queued
+     *
+     * @param script The script
+     */
+    public synchronized void setDefaultScript(Script script) {
+        defaultScript = script;
+    }
+
+    /**
+     * Queue a script for the next call placed
+     *
+     * @param script The script
+     */
+    public synchronized void enqueue(Script script) {
+        scripts.addLast(script);
+    }
+
+    /**
+     * Get the calls placed so far
+     *
+     * @return The calls, oldest first
+     */
+    public List<FakeCall> getCalls() {
+        return Collections.unmodifiableList(calls);
+    }
+
+    /**
+     * Get the audio device last chosen
+     *
+     * @return The custom device, or null for the engine's own
+     */
+    @Nullable
+    public CustomAudioDevice getAudioDevice() {
+        return audioDevice;
+    }
+
+    /**
+     * Create an incoming call to answer through {@link #accept}
+     *
+     * @param params Parameters the caller sent, e.g. From
+     * @return The invite
+     */
+    public CallEngine.Invite invite(Map<String, String> params) {
+        Map<String, String> copy = new HashMap<>(params);
+        return () -> copy;
+    }
+
+    @Override
+    public CallEngine.Call connect(String accessToken, Map<String, String> params, Listener listener) {
+        return start(new HashMap<>(params), false, listener);
+    }
+
+    @Override
+    public CallEngine.Call accept(Invite invite, Listener listener) {
+        return start(new HashMap<>(invite.getParams()), true, listener);
+    }
+
+    @Override
+    public void setAudioDevice(@Nullable CustomAudioDevice device) {
+        audioDevice = device;
+    }
+
+    @Override
+    public String getEdge() {
+        return EDGE;
+    }
+
+    /**
+     * Play out a call with the next queued script
+     */
+    private FakeCall start(Map<String, String> params, boolean incoming, Listener listener) {
+        Script script;
+        synchronized (this) {
+            script = scripts.isEmpty() ? defaultScript : scripts.removeFirst();
+        }
+        FakeCall call = new FakeCall(script, params, incoming, listener);
+        calls.add(call);
+        call.start();
+        return call;
+    }
+
+    /**
+     * A scripted call. Its state only changes on the callback executor.
+     */
+    public class FakeCall implements CallEngine.Call {
+
+        /**
+         * Where the call is in its script
+         */
+        public static final int CONNECTING = 0;
+        public static final int RINGING = 1;
+        public static final int CONNECTED = 2;
+        public static final int RECONNECTING = 3;
+        public static final int DISCONNECTED = 4;
+        public static final int FAILED = 5;
+
+        private final Script script;
+        private final Map<String, String> params;
+        private final boolean incoming;
+        private final Listener listener;
+        private final List<ScheduledFuture<?>> pending = new ArrayList<>();
+        private final StringBuffer digitsSent = new StringBuffer();
+        private volatile int state = CONNECTING;
+        private volatile boolean muted;
+
+        // Recording, touched only on the callback executor
+        private AudioListener audioListener;
+        private ScheduledFuture<?> audioTask;
+        private ByteBuffer frame;
+        private volatile long framesDelivered;
+
+        FakeCall(Script script, Map<String, String> params, boolean incoming, Listener listener) {
+            this.script = script;
+            this.params = params;
+            this.incoming = incoming;
+            this.listener = listener;
+        }
+
+        /**
+         * Schedule the events of the script
+         */
+        void start() {
+            long ringingAt = script.ringingDelayMillis;
+            if (script.connectFailure != null) {
+                after(ringingAt, () -> {
+                    end(FAILED);
+                    listener.onConnectFailure(this, script.connectFailure);
+                });
+                return;
+            }
+            long connectedAt = ringingAt;
+            if (!incoming) {
+                after(ringingAt, () -> {
+                    state = RINGING;
+                    listener.onRinging(this);
+                });
+                connectedAt += script.answerDelayMillis;
+            }
+            after(connectedAt, () -> {
+                state = CONNECTED;
+                listener.onConnected(this);
+            });
+            for (long[] reconnect : script.reconnects) {
+                after(connectedAt + reconnect[0], () -> {
+                    if (state == CONNECTED) {
+                        state = RECONNECTING;
+                        listener.onReconnecting(this, new CallError(ERROR_SIGNALING_DISCONNECTED,
+                                "Signaling connection disconnected"));
+                    }
+                });
+                after(connectedAt + reconnect[0] + reconnect[1], () -> {
+                    if (state == RECONNECTING) {
+                        state = CONNECTED;
+                        listener.onReconnected(this);
+                    }
+                });
+            }
+            if (script.hangUpAfterMillis >= 0) {
+                after(connectedAt + script.hangUpAfterMillis, () -> {
+                    end(DISCONNECTED);
+                    listener.onDisconnected(this, null);
+                });
+            }
+        }
+
+        @Override
+        public void mute(boolean mute) {
+            muted = mute;
+        }
+
+        @Override
+        public void sendDigits(String digits) {
+            digitsSent.append(digits);
+        }
+
+        @Override
+        public void startRecording(AudioListener audio) {
+            callbackExecutor.execute(() -> {
+                if (state != CONNECTED && state != RECONNECTING) {
+                    audio.onRecordingFailed(new IllegalStateException("Call is not connected"));
+                    return;
+                }
+                stopAudio();
+                if (frame == null) {
+                    frame = ByteBuffer.allocateDirect(FRAME_SAMPLES * 2).order(ByteOrder.LITTLE_ENDIAN);
+                }
+                audioListener = audio;
+                audio.onRecordingStarted();
+                long periodNanos = (long) (TimeUnit.MILLISECONDS.toNanos(FRAME_MILLIS) / script.audioSpeed);
+                audioTask = scheduler.scheduleAtFixedRate(() -> callbackExecutor.execute(this::deliverFrame),
+                        periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+            });
+        }
+
+        @Override
+        public void stopRecording() {
+            callbackExecutor.execute(this::stopAudio);
+        }
+
+        @Override
+        public void disconnect() {
+            callbackExecutor.execute(() -> {
+                if (state == DISCONNECTED || state == FAILED) {
+                    return;
+                }
+                end(DISCONNECTED);
+                listener.onDisconnected(this, null);
+            });
+        }
+
+        /**
+         * Get where the call is in its script
+         *
+         * @return One of the state constants
+         */
+        public int getState() {
+            return state;
+        }
+
+        /**
+         * Get the parameters the call was placed with, or the caller sent
+         *
+         * @return The parameters, e.g. To and From
+         */
+        public Map<String, String> getParams() {
+            return params;
+        }
+
+        /**
+         * Check whether the call was answered rather than placed
+         *
+         * @return true for an incoming call
+         */
+        public boolean isIncoming() {
+            return incoming;
+        }
+
+        /**
+         * Check whether the call was last muted
+         *
+         * @return true if muted
+         */
+        public boolean isMuted() {
+            return muted;
+        }
+
+        /**
+         * Get the keypad tones sent so far
+         *
+         * @return The digits, in order
+         */
+        public String getDigitsSent() {
+            return digitsSent.toString();
+        }
+
+        /**
+         * Get the number of audio frames delivered to recording listeners
+         *
+         * @return The frame count, 10 ms each
+         */
+        public long getFramesDelivered() {
+            return framesDelivered;
+        }
+
+        private void after(long delayMillis, Runnable event) {
+            ScheduledFuture<?> future = scheduler.schedule(() -> callbackExecutor.execute(() -> {
+                // Events already handed over when the call ended are dropped here
+                if (state != DISCONNECTED && state != FAILED) {
+                    event.run();
+                }
+            }), delayMillis, TimeUnit.MILLISECONDS);
+            synchronized (pending) {
+                pending.add(future);
+            }
+        }
+
+        private void end(int endState) {
+            state = endState;
+            synchronized (pending) {
+                for (ScheduledFuture<?> future : pending) {
+                    future.cancel(false);
+                }
+                pending.clear();
+            }
+            stopAudio();
+        }
+
+        private void stopAudio() {
+            if (audioTask != null) {
+                audioTask.cancel(false);
+                audioTask = null;
+            }
+            AudioListener audio = audioListener;
+            audioListener = null;
+            if (audio != null) {
+                audio.onRecordingStopped();
+            }
+        }
+
+        private void deliverFrame() {
+            AudioListener audio = audioListener;
+            if (audio == null) {
+                return;
+            }
+            long first = framesDelivered * FRAME_SAMPLES;
+            frame.clear();
+            for (int i = 0; i < FRAME_SAMPLES; i++) {
+                frame.putShort(script.audio.sample(first + i));
+            }
+            frame.flip();
+            framesDelivered++;
+            audio.onBufferAvailable(frame);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.example.twiliovoiceapp.call;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.twilio.voice.AudioDevice;
+import com.twilio.voice.CallException;
+import com.twilio.voice.CallInvite;
+import com.twilio.voice.ConnectOptions;
+import com.twilio.voice.Voice;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+
+/**
+ * Call engine that places real calls through the Twilio Voice SDK
+ */
+public class TwilioCallEngine implements CallEngine {
+
+    private final Context context;
+
+    // The SDK's own audio device, put back when the custom one is not wanted
+    private AudioDevice defaultAudioDevice;
+
+    /**
+     * Constructor for the engine
+     *
+     * @param context The context calls are placed from
+     */
+    public TwilioCallEngine(Context context) {
+        this.context = context;
+    }
+
+    @Override
+    public CallEngine.Call connect(String accessToken, Map<String, String> params, Listener listener) {
+        ConnectOptions connectOptions = new ConnectOptions.Builder(accessToken)
+                .params(params)
+                .build();
+        TwilioCall call = new TwilioCall();
+        call.call = Voice.connect(context, connectOptions, new SdkListener(call, listener));
+        return call;
+    }
+
+    /**
+     * Wrap an invite pushed by the Voice SDK, to be answered through the engine
+     *
+     * @param callInvite The incoming call invite
+     * @return The invite
+     */
+    public static CallEngine.Invite invite(CallInvite callInvite) {
+        return new TwilioInvite(callInvite);
+    }
+
+    @Override
+    public CallEngine.Call accept(Invite invite, Listener listener) {
+        if (!(invite instanceof TwilioInvite)) {
+            throw new IllegalArgumentException("Not a Voice SDK invite: " + invite);
+        }
+        TwilioCall call = new TwilioCall();
+        call.call = ((TwilioInvite) invite).callInvite.accept(new SdkListener(call, listener));
+        return call;
+    }
+
+    @Override
+    public void setAudioDevice(@Nullable CustomAudioDevice device) {
+        if (device != null && !(device instanceof AudioDevice)) {
+            throw new IllegalArgumentException("Not a Voice SDK audio device: " + device);
+        }
+        if (defaultAudioDevice == null) {
+            defaultAudioDevice = Voice.getAudioDevice();
+        }
+        Voice.setAudioDevice(device != null ? (AudioDevice) device : defaultAudioDevice);
+    }
+
+    @Override
+    public String getEdge() {
+        return Voice.getEdge();
+    }
+
+    private static CallError toError(@Nullable CallException error) {
+        return error != null ? new CallError(error.getErrorCode(), error.getMessage()) : null;
+    }
+
+    /**
+     * An SDK invite behind the engine's interface
+     */
+    private static class TwilioInvite implements CallEngine.Invite {
+        final CallInvite callInvite;
+
+        TwilioInvite(CallInvite callInvite) {
+            this.callInvite = callInvite;
+        }
+
+        @Override
+        public Map<String, String> getParams() {
+            return callInvite.getCustomParameters();
+        }
+    }
+
+    /**
+     * An SDK call behind the engine's interface
+     */
+    private static class TwilioCall implements CallEngine.Call {
+        com.twilio.voice.Call call;
+
+        @Override
+        public void mute(boolean mute) {
+            call.mute(mute);
+        }
+
+        @Override
+        public void sendDigits(String digits) {
+            call.sendDigits(digits);
+        }
+
+        @Override
+        public void startRecording(AudioListener listener) {
+            call.startRecording(new com.twilio.voice.Call.AudioRecordingListener() {
+                @Override
+                public void onRecordingStarted() {
+                    listener.onRecordingStarted();
+                }
+
+                @Override
+                public void onRecordingFailed(Exception e) {
+                    listener.onRecordingFailed(e);
+                }
+
+                @Override
+                public void onRecordingStopped() {
+                    listener.onRecordingStopped();
+                }
+
+                @Override
+                public void onBufferAvailable(ByteBuffer byteBuffer) {
+                    listener.onBufferAvailable(byteBuffer);
+                }
+            });
+        }
+
+        @Override
+        public void stopRecording() {
+            call.stopRecording();
+        }
+
+        @Override
+        public void disconnect() {
+            call.disconnect();
+        }
+    }
+
+    /**
+     * Passes SDK callbacks on with the engine's call object in place of the SDK's
+     */
+    private static class SdkListener implements com.twilio.voice.Call.Listener {
+        private final TwilioCall call;
+        private final Listener listener;
+
+        SdkListener(TwilioCall call, Listener listener) {
+            this.call = call;
+            this.listener = listener;
+        }
+
+        @Override
+        public void onConnectFailure(@NonNull com.twilio.voice.Call sdkCall, @NonNull CallException error) {
+            listener.onConnectFailure(call, toError(error));
+        }
+
+        @Override
+        public void onRinging(@NonNull com.twilio.voice.Call sdkCall) {
+            listener.onRinging(call);
+        }
+
+        @Override
+        public void onConnected(@NonNull com.twilio.voice.Call sdkCall) {
+            listener.onConnected(call);
+        }
+
+        @Override
+        public void onReconnecting(@NonNull com.twilio.voice.Call sdkCall, @NonNull CallException error) {
+            listener.onReconnecting(call, toError(error));
+        }
+
+        @Override
+        public void onReconnected(@NonNull com.twilio.voice.Call sdkCall) {
+            listener.onReconnected(call);
+        }
+
+        @Override
+        public void onDisconnected(@NonNull com.twilio.voice.Call sdkCall, @Nullable CallException error) {
+            listener.onDisconnected(call, toError(error));
+        }
+    }
+}
@@ -6,8 +6,11 @@ import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
+import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.model.RecordingUpload;
 import com.example.twiliovoiceapp.model.TwilioPhoneNumber;
 
 import java.util.concurrent.ExecutorService;
@@ -18,11 +21,14 @@ import java.util.concurrent.Executors;
  * Defines the database configuration and serves as the app's main access point to the persisted data.
  * Uses the Singleton pattern to ensure only one instance of the database is created.
  */
-@Database(entities = {TwilioPhoneNumber.class}, version = 1, exportSchema = false)
+@Database(entities = {TwilioPhoneNumber.class, CallRecording.class, RecordingUpload.class},
+        version = 4, exportSchema = false)
 public abstract class AppDatabase extends RoomDatabase {
 
     // DAO methods
     public abstract PhoneNumberDao phoneNumberDao();
+    public abstract CallRecordingDao callRecordingDao();
+    public abstract RecordingUploadDao recordingUploadDao();
 
     // Singleton instance
     private static volatile AppDatabase INSTANCE;
@@ -47,6 +53,7 @@ public abstract class AppDatabase extends RoomDatabase {
                             context.getApplicationContext(),
                             AppDatabase.class,
                             "twilio_voice_database")
+                            .addMigrations(MIGRATION_1_2, MIGRATION_2_3, MIGRATION_3_4)
                             .addCallback(sRoomDatabaseCallback)
                             .build();
                 }
@@ -55,6 +62,61 @@ public abstract class AppDatabase extends RoomDatabase {
         return INSTANCE;
     }
 
+    /**
+     * Migration adding the call recordings catalog
+     */
+    static final Migration MIGRATION_1_2 = new Migration(1, 2) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `call_recordings` ("
+                    + "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`phoneNumber` TEXT, "
+                    + "`twilioNumber` TEXT, "
+                    + "`startTime` INTEGER NOT NULL, "
+                    + "`durationMillis` INTEGER NOT NULL, "
+                    + "`sizeBytes` INTEGER NOT NULL, "
+                    + "`format` TEXT, "
+                    + "`path` TEXT NOT NULL)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_call_recordings_phoneNumber_startTime` "
+                    + "ON `call_recordings` (`phoneNumber`, `startTime`)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_call_recordings_startTime` "
+                    + "ON `call_recordings` (`startTime`)");
+        }
+    };
+
+    /**
+     * Migration adding the recording upload queue
+     */
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `recording_uploads` ("
+                    + "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, "
+                    + "`recordingId` INTEGER NOT NULL, "
+                    + "`name` TEXT NOT NULL, "
+                    + "`location` TEXT NOT NULL, "
+                    + "`sizeBytes` INTEGER NOT NULL, "
+                    + "`uploadedBytes` INTEGER NOT NULL, "
+                    + "`state` INTEGER NOT NULL, "
+                    + "`attempts` INTEGER NOT NULL, "
+                    + "`nextAttemptTime` INTEGER NOT NULL, "
+                    + "`lastError` TEXT)");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_recording_uploads_state_nextAttemptTime` "
+                    + "ON `recording_uploads` (`state`, `nextAttemptTime`)");
+        }
+    };
+
+    /**
+     * Migration indexing recordings by path, for lookups and deletes by file
+     */
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_call_recordings_path` "
+                    + "ON `call_recordings` (`path`)");
+        }
+    };
+
     /**
      * Callback for database creation and opening events.
      * Can be used to populate the database when it's first created.
@@ -0,0 +1,152 @@
+package com.example.twiliovoiceapp.database;
+
+import androidx.lifecycle.LiveData;
+import androidx.room.Dao;
+import androidx.room.Delete;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.model.RecordingUpload;
+
+import java.util.List;
+
+/**
+ * Data Access Object (DAO) for CallRecording entities.
+ * Lookups by number and by date range are answered from the table's indexes,
+ * so they stay fast regardless of how many recordings are on the device.
+ */
+@Dao
+public interface CallRecordingDao {
+
+    /**
+     * Insert a new recording into the catalog.
+     *
+     * @param recording The recording to insert
+     * @return The row ID of the new recording
+     */
+    @Insert
+    long insert(CallRecording recording);
+
+    /**
+     * Delete a recording from the catalog. The file itself is not touched.
+     *
+     * @param recording The recording to delete
+     */
+    @Delete
+    void delete(CallRecording recording);
+
+    /**
+     * Delete a recording from the catalog by its location.
+     *
+     * @param path The file path or content URI of the recording
+     */
+    @Query("DELETE FROM call_recordings WHERE path = :path")
+    void deleteByPath(String path);
+
+    /**
+     * Get a recording by its ID.
+     *
+     * @param id The recording ID
+     * @return The recording, or null if not found
+     */
+    @Query("SELECT * FROM call_recordings WHERE id = :id")
+    CallRecording getById(long id);
+
+    /**
+     * Get a recording by its location.
+     *
+     * @param path The file path or content URI of the recording
+     * @return The recording, or null if not found
+     */
+    @Query("SELECT * FROM call_recordings WHERE path = :path LIMIT 1")
+    CallRecording getByPath(String path);
+
+    /**
+     * Get all recordings, newest first.
+     *
+     * @return LiveData list of all recordings
+     */
+    @Query("SELECT * FROM call_recordings ORDER BY startTime DESC")
+    LiveData<List<CallRecording>> getAllRecordings();
+
+    /**
+     * Get the recordings of calls with a number, newest first.
+     *
+     * @param phoneNumber The number of the other party
+     * @return LiveData list of matching recordings
+     */
+    @Query("SELECT * FROM call_recordings WHERE phoneNumber = :phoneNumber ORDER BY startTime DESC")
+    LiveData<List<CallRecording>> getRecordingsForNumber(String phoneNumber);
+
+    /**
+     * Get the recordings of calls with a number as a regular list (non-LiveData).
+     *
+     * @param phoneNumber The number of the other party
+     * @return List of matching recordings, newest first
+     */
+    @Query("SELECT * FROM call_recordings WHERE phoneNumber = :phoneNumber ORDER BY startTime DESC")
+    List<CallRecording> getRecordingsForNumberList(String phoneNumber);
+
+    /**
+     * Get the recordings started within a time range, newest first.
+     *
+     * @param from Start of the range, inclusive, in milliseconds since the epoch
+     * @param to End of the range, exclusive, in milliseconds since the epoch
+     * @return List of matching recordings
+     */
+    @Query("SELECT * FROM call_recordings WHERE startTime >= :from AND startTime < :to ORDER BY startTime DESC")
+    List<CallRecording> getRecordingsBetween(long from, long to);
+
+    /**
+     * Get the recordings of calls with a number within a time range, newest first.
+     *
+     * @param phoneNumber The number of the other party
+     * @param from Start of the range, inclusive, in milliseconds since the epoch
+     * @param to End of the range, exclusive, in milliseconds since the epoch
+     * @return List of matching recordings
+     */
+    @Query("SELECT * FROM call_recordings WHERE phoneNumber = :phoneNumber "
+            + "AND startTime >= :from AND startTime < :to ORDER BY startTime DESC")
+    List<CallRecording> getRecordingsForNumberBetween(String phoneNumber, long from, long to);
+
+    /**
+     * Get the oldest recordings, for eviction when storage runs low.
+     *
+     * @param limit The maximum number of recordings to return
+     * @return List of recordings, oldest first
+     */
+    @Query("SELECT * FROM call_recordings ORDER BY startTime ASC LIMIT :limit")
+    List<CallRecording> getOldestRecordings(int limit);
+
+    /**
+     * Get the oldest recordings whose files have all been uploaded to the archive.
+     * A recording counts as archived only with at least one finished upload and none
+     * outstanding; one that was never queued, e.g. because the archive could not have
+     * decrypted it, is not archived.
+     *
+     * @param limit The maximum number of recordings to return
+     * @return List of archived recordings, oldest first
+     */
+    @Query("SELECT * FROM call_recordings WHERE id IN (SELECT recordingId FROM recording_uploads "
+            + "WHERE state = " + RecordingUpload.STATE_DONE + ") "
+            + "AND id NOT IN (SELECT recordingId FROM recording_uploads "
+            + "WHERE state != " + RecordingUpload.STATE_DONE + ") ORDER BY startTime ASC LIMIT :limit")
+    List<CallRecording> getOldestArchivedRecordings(int limit);
+
+    /**
+     * Count the total number of recordings in the catalog.
+     *
+     * @return The count of recordings
+     */
+    @Query("SELECT COUNT(*) FROM call_recordings")
+    int count();
+
+    /**
+     * Get the space used by all recordings in the catalog.
+     *
+     * @return The total size in bytes
+     */
+    @Query("SELECT COALESCE(SUM(sizeBytes), 0) FROM call_recordings")
+    long getTotalSize();
+}
@@ -0,0 +1,78 @@
+package com.example.twiliovoiceapp.database;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+import androidx.room.Update;
+
+import com.example.twiliovoiceapp.model.RecordingUpload;
+
+import java.util.List;
+
+/**
+ * Data Access Object (DAO) for RecordingUpload entities.
+ * Holds the persistent state of the upload queue.
+ */
+@Dao
+public interface RecordingUploadDao {
+
+    /**
+     * Add a file to the upload queue.
+     *
+     * @param upload The upload to insert
+     * @return The row ID of the new upload
+     */
+    @Insert
+    long insert(RecordingUpload upload);
+
+    /**
+     * Update an upload's state.
+     *
+     * @param upload The upload to update
+     */
+    @Update
+    void update(RecordingUpload upload);
+
+    /**
+     * Store the offset the server has confirmed for an upload.
+     *
+     * @param id The upload ID
+     * @param uploadedBytes The confirmed offset
+     */
+    @Query("UPDATE recording_uploads SET uploadedBytes = :uploadedBytes WHERE id = :id")
+    void setUploadedBytes(long id, long uploadedBytes);
+
+    /**
+     * Put uploads that were running when the process died back in the queue.
+     */
+    @Query("UPDATE recording_uploads SET state = " + RecordingUpload.STATE_PENDING
+            + " WHERE state = " + RecordingUpload.STATE_UPLOADING)
+    void resetInterrupted();
+
+    /**
+     * Get the pending uploads that are due, oldest first.
+     *
+     * @param now The current time in milliseconds since the epoch
+     * @param limit The maximum number of uploads to return
+     * @return List of due uploads
+     */
+    @Query("SELECT * FROM recording_uploads WHERE state = " + RecordingUpload.STATE_PENDING
+            + " AND nextAttemptTime <= :now ORDER BY id LIMIT :limit")
+    List<RecordingUpload> getDueUploads(long now, int limit);
+
+    /**
+     * Get the time the next pending upload becomes due.
+     *
+     * @return The time in milliseconds since the epoch, or null if nothing is pending
+     */
+    @Query("SELECT MIN(nextAttemptTime) FROM recording_uploads WHERE state = " + RecordingUpload.STATE_PENDING)
+    Long getNextAttemptTime();
+
+    /**
+     * Remove all uploads of a recording, e.g. because its files were deleted.
+     *
+     * @param recordingId ID of the catalog entry
+     */
+    @Query("DELETE FROM recording_uploads WHERE recordingId = :recordingId")
+    void deleteForRecording(long recordingId);
+}
@@ -0,0 +1,204 @@
+package com.example.twiliovoiceapp.metrics;
+
+import android.content.Context;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Call setup latency, kept as one {@link LatencyHistogram} per phase for all calls
+ * together and for each Twilio number and edge, so a setup budget can be checked
+ * against real calls.
+ * <p>
+ * The histograms are saved to the app's private storage after every call, so they
+ * build up across restarts, and can be read back as a table of percentiles from
+ * settings or with {@code adb shell dumpsys activity service VoiceService} during a call.
+ */
+public class CallSetupMetrics {
+    private static final String TAG = "CallSetupMetrics";
+
+    private static final String FILE_NAME = "call_setup_latency.bin";
+    private static final int FILE_MAGIC = 0x43534c31; // "CSL1"
+
+    private static final String KEY_ALL = "All calls";
+
+    // Singleton instance
+    private static volatile CallSetupMetrics INSTANCE;
+
+    private final File file;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Map<String, Map<CallSetupTrace.Phase, LatencyHistogram>> histograms = new LinkedHashMap<>();
+    private boolean loaded;
+
+    private CallSetupMetrics(Context context) {
+        this.file = new File(context.getApplicationContext().getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Get the singleton instance of the metrics
+     *
+     * @param context The context
+     * @return The metrics
+     */
+    public static CallSetupMetrics getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (CallSetupMetrics.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new CallSetupMetrics(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Add the phases of a connected call, and save, in the background
+     *
+     * @param trace The call's timestamps
+     * @param twilioNumber The Twilio number the call was placed from
+     * @param edge The Twilio edge the call went through
+     */
+    public void record(CallSetupTrace trace, String twilioNumber, String edge) {
+        executor.execute(() -> {
+            synchronized (this) {
+                load();
+                String key = twilioNumber + " @ " + edge;
+                for (CallSetupTrace.Phase phase : CallSetupTrace.Phase.values()) {
+                    long duration = trace.getDuration(phase);
+                    if (duration >= 0) {
+                        getHistogram(KEY_ALL, phase).record(duration);
+                        getHistogram(key, phase).record(duration);
+                    }
+                }
+            }
+            save();
+        });
+    }
+
+    /**
+     * Describe the recorded latencies as a table of percentiles per phase
+     *
+     * @return The text, one block per number and edge after the one for all calls
+     */
+    public synchronized String dump() {
+        load();
+        StringBuilder text = new StringBuilder("Call setup latency (ms)\n");
+        if (histograms.isEmpty()) {
+            return text.append("No connected calls yet\n").toString();
+        }
+        for (Map.Entry<String, Map<CallSetupTrace.Phase, LatencyHistogram>> entry : histograms.entrySet()) {
+            text.append('\n').append(entry.getKey()).append('\n');
+            text.append(String.format(Locale.US, "%-18s %6s %7s %7s %7s %7s%n",
+                    "phase", "count", "p50", "p95", "p99", "max"));
+            for (Map.Entry<CallSetupTrace.Phase, LatencyHistogram> phase : entry.getValue().entrySet()) {
+                LatencyHistogram histogram = phase.getValue();
+                text.append(String.format(Locale.US, "%-18s %6d %7d %7d %7d %7d%n",
+                        phase.getKey().getLabel(), histogram.getCount(),
+                        histogram.getPercentile(50), histogram.getPercentile(95),
+                        histogram.getPercentile(99), histogram.getMax()));
+            }
+        }
+        return text.toString();
+    }
+
+    private LatencyHistogram getHistogram(String key, CallSetupTrace.Phase phase) {
+        Map<CallSetupTrace.Phase, LatencyHistogram> phases = histograms.get(key);
+        if (phases == null) {
+            phases = new LinkedHashMap<>();
+            histograms.put(key, phases);
+        }
+        LatencyHistogram histogram = phases.get(phase);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            phases.put(phase, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Read the saved histograms the first time they are needed. Phases that no longer
+     * exist are skipped; a damaged file is logged and started over.
+     */
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Not a latency file");
+            }
+            int keys = in.readInt();
+            for (int k = 0; k < keys; k++) {
+                String key = in.readUTF();
+                int phases = in.readInt();
+                for (int p = 0; p < phases; p++) {
+                    String name = in.readUTF();
+                    LatencyHistogram histogram = LatencyHistogram.readFrom(in);
+                    CallSetupTrace.Phase phase = findPhase(name);
+                    if (phase != null) {
+                        getHistogram(key, phase);
+                        histograms.get(key).put(phase, histogram);
+                    }
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No calls recorded yet
+        } catch (IOException e) {
+            Log.e(TAG, "Error reading call setup latency, starting over", e);
+            histograms.clear();
+        }
+    }
+
+    /**
+     * Write the histograms to a temporary file and move it over the saved one, so a
+     * crash mid-write never loses the earlier calls
+     */
+    private void save() {
+        File temp = new File(file.getPath() + ".tmp");
+        synchronized (this) {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+                out.writeInt(FILE_MAGIC);
+                out.writeInt(histograms.size());
+                for (Map.Entry<String, Map<CallSetupTrace.Phase, LatencyHistogram>> entry : histograms.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+                    for (Map.Entry<CallSetupTrace.Phase, LatencyHistogram> phase : entry.getValue().entrySet()) {
+                        out.writeUTF(phase.getKey().name());
+                        phase.getValue().writeTo(out);
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error saving call setup latency", e);
+                temp.delete();
+                return;
+            }
+        }
+        if (!temp.renameTo(file)) {
+            Log.e(TAG, "Could not replace " + file);
+            temp.delete();
+        }
+    }
+
+    private static CallSetupTrace.Phase findPhase(String name) {
+        for (CallSetupTrace.Phase phase : CallSetupTrace.Phase.values()) {
+            if (phase.name().equals(name)) {
+                return phase;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,106 @@
+package com.example.twiliovoiceapp.metrics;
+
+import android.os.SystemClock;
+
+/**
+ * Timestamps of one outgoing call's way from the call button to the connected call,
+ * all on the {@code elapsedRealtime} clock so they can be compared across the
+ * activities and the service, and are not thrown off by wall clock changes.
+ */
+public class CallSetupTrace {
+
+    // Intent extras carrying the marks taken before the service has the call
+    public static final String EXTRA_TAPPED = "setup_tapped";
+    public static final String EXTRA_ACTIVITY_CREATED = "setup_activity_created";
+    public static final String EXTRA_SERVICE_BOUND = "setup_service_bound";
+
+    /**
+     * Points a call passes on its way to being connected
+     */
+    public enum Mark {
+        // The call button was tapped
+        TAPPED,
+        // The call screen was created
+        ACTIVITY_CREATED,
+        // The call screen was bound to the voice service
+        SERVICE_BOUND,
+        // The voice service started placing the call
+        CALL_STARTED,
+        // An access token was ready
+        TOKEN_READY,
+        // The call was handed to the Voice SDK
+        CONNECT_CALLED,
+        // The other side started ringing
+        RINGING,
+        // The other side answered
+        CONNECTED
+    }
+
+    /**
+     * Stretches between two marks that are measured
+     */
+    public enum Phase {
+        INTENT("intent", Mark.TAPPED, Mark.ACTIVITY_CREATED),
+        BIND("bind", Mark.ACTIVITY_CREATED, Mark.SERVICE_BOUND),
+        SERVICE("service", Mark.SERVICE_BOUND, Mark.CALL_STARTED),
+        TOKEN("token", Mark.CALL_STARTED, Mark.TOKEN_READY),
+        CONNECT("connect", Mark.TOKEN_READY, Mark.CONNECT_CALLED),
+        RINGING("ringing", Mark.CONNECT_CALLED, Mark.RINGING),
+        ANSWER("answer", Mark.RINGING, Mark.CONNECTED),
+        TAP_TO_RINGING("tap to ringing", Mark.TAPPED, Mark.RINGING),
+        TAP_TO_CONNECTED("tap to connected", Mark.TAPPED, Mark.CONNECTED);
+
+        private final String label;
+        private final Mark start;
+        private final Mark end;
+
+        Phase(String label, Mark start, Mark end) {
+            this.label = label;
+            this.start = start;
+            this.end = end;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private final long[] marks = new long[Mark.values().length];
+
+    /**
+     * Record that the call reached a point now
+     *
+     * @param mark The point reached
+     */
+    public void mark(Mark mark) {
+        mark(mark, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Record that the call reached a point. Only the first time counts, and unknown
+     * times (zero or less, e.g. a missing intent extra) are ignored.
+     *
+     * @param mark The point reached
+     * @param elapsedRealtime When it was reached
+     */
+    public void mark(Mark mark, long elapsedRealtime) {
+        if (elapsedRealtime > 0 && marks[mark.ordinal()] == 0) {
+            marks[mark.ordinal()] = elapsedRealtime;
+        }
+    }
+
+    /**
+     * Get how long a phase took
+     *
+     * @param phase The phase
+     * @return The duration in milliseconds, or -1 if either end was not marked
+     */
+    public long getDuration(Phase phase) {
+        long start = marks[phase.start.ordinal()];
+        long end = marks[phase.end.ordinal()];
+        if (start == 0 || end == 0 || end < start) {
+            return -1;
+        }
+        return end - start;
+    }
+}
@@ -0,0 +1,153 @@
+package com.example.twiliovoiceapp.metrics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Histogram of durations in milliseconds with a fixed relative precision, so any
+ * number of samples fits in a few hundred counters and percentiles can be read back at
+ * any time.
+ * <p>
+ * Durations below 16 ms each get their own bucket; above that, each power of two is
+ * split into 16 buckets, so a reported percentile is within about 6% of the true
+ * value. Durations beyond about 17 minutes land in the last bucket.
+ */
+public class LatencyHistogram {
+
+    // Buckets per power of two, as a power of two
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Largest power of two covered; 2^20 ms is about 17 minutes
+    private static final int MAX_EXPONENT = 20;
+
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_EXPONENT - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long count;
+    private long max;
+
+    /**
+     * Add one duration
+     *
+     * @param millis The duration in milliseconds
+     */
+    public void record(long millis) {
+        long value = Math.max(0, millis);
+        counts[bucketOf(value)]++;
+        count++;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Get the number of durations added
+     *
+     * @return The sample count
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the longest duration added
+     *
+     * @return The maximum in milliseconds
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * Get the duration that a share of the samples do not exceed
+     *
+     * @param percentile The share, from 0 to 100
+     * @return The duration in milliseconds, or 0 if there are no samples
+     */
+    public long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, midpointOf(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Write the histogram, skipping empty buckets
+     *
+     * @param out The stream to write to
+     * @throws IOException If writing fails
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeLong(max);
+        int used = 0;
+        for (long bucketCount : counts) {
+            if (bucketCount > 0) {
+                used++;
+            }
+        }
+        out.writeShort(used);
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            if (counts[i] > 0) {
+                out.writeShort(i);
+                out.writeLong(counts[i]);
+            }
+        }
+    }
+
+    /**
+     * Read a histogram written by {@link #writeTo}
+     *
+     * @param in The stream to read from
+     * @return The histogram
+     * @throws IOException If reading fails or the data is invalid
+     */
+    public static LatencyHistogram readFrom(DataInputStream in) throws IOException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.max = in.readLong();
+        int used = in.readUnsignedShort();
+        for (int i = 0; i < used; i++) {
+            int bucket = in.readUnsignedShort();
+            long bucketCount = in.readLong();
+            if (bucket >= BUCKET_COUNT || bucketCount < 0) {
+                throw new IOException("Invalid histogram bucket " + bucket);
+            }
+            histogram.counts[bucket] += bucketCount;
+            histogram.count += bucketCount;
+        }
+        return histogram;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) - SUB_BUCKETS;
+        return SUB_BUCKETS + (exponent - SUB_BUCKET_BITS) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Get the middle of the range of durations a bucket holds
+     */
+    private static long midpointOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = SUB_BUCKET_BITS + (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long low = (long) (SUB_BUCKETS + sub) << shift;
+        return low + ((1L << shift) >> 1);
+    }
+}
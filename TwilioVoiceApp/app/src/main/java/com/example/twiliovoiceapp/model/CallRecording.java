@@ -0,0 +1,138 @@
+package com.example.twiliovoiceapp.model;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Entity class representing a finished call recording.
+ * One row is written per recording so recordings can be looked up by number or date
+ * without listing the recording directory. The composite index on number and start
+ * time serves per-number history in date order; the start time index serves date
+ * range queries across all numbers; the path index serves looking a recording up, or
+ * deleting it, by its file.
+ */
+@Entity(tableName = "call_recordings",
+        indices = {
+                @Index(value = {"phoneNumber", "startTime"}),
+                @Index(value = {"startTime"}),
+                @Index(value = {"path"})
+        })
+public class CallRecording {
+
+    @PrimaryKey(autoGenerate = true)
+    private long id;
+
+    private String phoneNumber;
+    private String twilioNumber;
+    private long startTime;
+    private long durationMillis;
+    private long sizeBytes;
+    private String format;
+
+    @NonNull
+    private String path;
+
+    /**
+     * Default constructor required by Room
+     */
+    public CallRecording() {
+        this.path = "";
+    }
+
+    /**
+     * Constructor for a new recording
+     *
+     * @param phoneNumber The number of the other party
+     * @param twilioNumber The Twilio number used for the call
+     * @param startTime When the recording started, in milliseconds since the epoch
+     * @param durationMillis Length of the recorded audio
+     * @param sizeBytes Space used on the device
+     * @param format Short description of the stored format, e.g. "pcm"
+     * @param path File path or content URI of the recording, or of its manifest
+     */
+    @Ignore
+    public CallRecording(String phoneNumber, String twilioNumber, long startTime, long durationMillis,
+                         long sizeBytes, String format, @NonNull String path) {
+        this.phoneNumber = phoneNumber;
+        this.twilioNumber = twilioNumber;
+        this.startTime = startTime;
+        this.durationMillis = durationMillis;
+        this.sizeBytes = sizeBytes;
+        this.format = format;
+        this.path = path;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public String getPhoneNumber() {
+        return phoneNumber;
+    }
+
+    public void setPhoneNumber(String phoneNumber) {
+        this.phoneNumber = phoneNumber;
+    }
+
+    public String getTwilioNumber() {
+        return twilioNumber;
+    }
+
+    public void setTwilioNumber(String twilioNumber) {
+        this.twilioNumber = twilioNumber;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public void setStartTime(long startTime) {
+        this.startTime = startTime;
+    }
+
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    public void setDurationMillis(long durationMillis) {
+        this.durationMillis = durationMillis;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public String getFormat() {
+        return format;
+    }
+
+    public void setFormat(String format) {
+        this.format = format;
+    }
+
+    @NonNull
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(@NonNull String path) {
+        this.path = path;
+    }
+
+    @Override
+    public String toString() {
+        return "CallRecording{" + phoneNumber + " at " + startTime + ", " + durationMillis + " ms, "
+                + sizeBytes + " bytes, " + path + "}";
+    }
+}
@@ -0,0 +1,151 @@
+package com.example.twiliovoiceapp.model;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.Ignore;
+import androidx.room.Index;
+import androidx.room.PrimaryKey;
+
+/**
+ * Entity class representing one file waiting to be, or being, uploaded to the archive.
+ * The confirmed offset is stored after every chunk, so an upload interrupted by a
+ * crash, reboot or network loss continues where it stopped.
+ */
+@Entity(tableName = "recording_uploads",
+        indices = {@Index(value = {"state", "nextAttemptTime"})})
+public class RecordingUpload {
+
+    public static final int STATE_PENDING = 0;
+    public static final int STATE_UPLOADING = 1;
+    public static final int STATE_DONE = 2;
+    public static final int STATE_FAILED = 3;
+
+    @PrimaryKey(autoGenerate = true)
+    private long id;
+
+    private long recordingId;
+
+    @NonNull
+    private String name;
+
+    @NonNull
+    private String location;
+
+    private long sizeBytes;
+    private long uploadedBytes;
+    private int state;
+    private int attempts;
+    private long nextAttemptTime;
+    private String lastError;
+
+    /**
+     * Default constructor required by Room
+     */
+    public RecordingUpload() {
+        this.name = "";
+        this.location = "";
+    }
+
+    /**
+     * Constructor for a new upload
+     *
+     * @param recordingId ID of the catalog entry the file belongs to
+     * @param name File name used on the server
+     * @param location File path or content URI of the file
+     */
+    @Ignore
+    public RecordingUpload(long recordingId, @NonNull String name, @NonNull String location) {
+        this.recordingId = recordingId;
+        this.name = name;
+        this.location = location;
+        this.state = STATE_PENDING;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getRecordingId() {
+        return recordingId;
+    }
+
+    public void setRecordingId(long recordingId) {
+        this.recordingId = recordingId;
+    }
+
+    @NonNull
+    public String getName() {
+        return name;
+    }
+
+    public void setName(@NonNull String name) {
+        this.name = name;
+    }
+
+    @NonNull
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(@NonNull String location) {
+        this.location = location;
+    }
+
+    public long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    public void setSizeBytes(long sizeBytes) {
+        this.sizeBytes = sizeBytes;
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes;
+    }
+
+    public void setUploadedBytes(long uploadedBytes) {
+        this.uploadedBytes = uploadedBytes;
+    }
+
+    public int getState() {
+        return state;
+    }
+
+    public void setState(int state) {
+        this.state = state;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    public long getNextAttemptTime() {
+        return nextAttemptTime;
+    }
+
+    public void setNextAttemptTime(long nextAttemptTime) {
+        this.nextAttemptTime = nextAttemptTime;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingUpload{" + name + ", " + uploadedBytes + "/" + sizeBytes + " bytes, state " + state
+                + ", attempt " + attempts + "}";
+    }
+}
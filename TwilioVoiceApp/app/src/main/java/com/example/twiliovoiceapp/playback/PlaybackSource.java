@@ -0,0 +1,214 @@
+package com.example.twiliovoiceapp.playback;
+
+import com.example.twiliovoiceapp.recording.EncryptedRecordingReader;
+import com.example.twiliovoiceapp.recording.ImaAdpcmDecoder;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.example.twiliovoiceapp.recording.WavInfo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random-access 16-bit PCM reader over the audio stored in one recording file.
+ * <p>
+ * Plain files are memory-mapped, and PCM is handed out as views of the mapping, so
+ * audio goes from the page cache to the audio device without being copied. IMA-ADPCM
+ * blocks are decoded one at a time straight from the mapping. Encrypted files are
+ * read through {@link EncryptedRecordingReader}, which decrypts only the chunk that
+ * is being played.
+ */
+public class PlaybackSource {
+
+    // Files are mapped in windows so recordings longer than 2 GB can be played
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final WavFormat format;
+    private final long frames;
+    private final int frameBytes;
+    private final ByteSource bytes;
+    private final ImaAdpcmDecoder decoder;
+    private final ByteBuffer decoded;
+    private long decodedBlock = -1;
+
+    private PlaybackSource(WavFormat format, long dataBytes, ByteSource bytes) {
+        this.format = format;
+        this.bytes = bytes;
+        this.frameBytes = 2 * format.getChannels();
+        if (format.getFormatTag() == WavFormat.FORMAT_IMA_ADPCM) {
+            this.frames = dataBytes / format.getBlockAlign() * format.getSamplesPerBlock();
+            this.decoder = new ImaAdpcmDecoder(format);
+            this.decoded = ByteBuffer.allocateDirect(format.getSamplesPerBlock() * frameBytes)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+        } else {
+            this.frames = dataBytes / format.getBlockAlign();
+            this.decoder = null;
+            this.decoded = null;
+        }
+    }
+
+    /**
+     * Open a plain WAV recording by mapping it into memory
+     *
+     * @param channel A channel for reading the file
+     * @return The source
+     * @throws IOException If the file is not a WAV file or could not be mapped
+     */
+    public static PlaybackSource map(FileChannel channel) throws IOException {
+        WavInfo info = WavInfo.read(channel);
+        if (info == null) {
+            throw new IOException("Not a WAV file");
+        }
+        long dataBytes = info.getDataBytes(channel.size());
+        return new PlaybackSource(info.getFormat(), dataBytes,
+                new MappedBytes(channel, info.getDataOffset(), dataBytes, info.getFormat().getBlockAlign()));
+    }
+
+    /**
+     * Open an encrypted WAV recording
+     *
+     * @param channel A channel for reading the file
+     * @param keyWrapper The key wrapper the recording was written with
+     * @return The source
+     * @throws IOException If the file is not an encrypted WAV file or cannot be decrypted
+     */
+    public static PlaybackSource decrypt(FileChannel channel, KeyWrapper keyWrapper) throws IOException {
+        EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, keyWrapper);
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(WavInfo.HEADER_SCAN_LIMIT, reader.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (head.hasRemaining() && reader.read(head, head.position()) > 0) {
+            // Keep reading until the header window is full
+        }
+        head.flip();
+        WavInfo info = WavInfo.read(head);
+        if (info == null) {
+            throw new IOException("Not an encrypted WAV file");
+        }
+        long dataBytes = info.getDataBytes(reader.size());
+        return new PlaybackSource(info.getFormat(), dataBytes,
+                new DecryptedBytes(reader, info.getDataOffset(), info.getFormat().getBlockAlign()));
+    }
+
+    /**
+     * Get the format the audio is stored in
+     *
+     * @return The stored format; {@link #read} always returns 16-bit PCM of the same rate and channels
+     */
+    public WavFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the number of sample frames in the file
+     *
+     * @return The frame count
+     */
+    public long getFrames() {
+        return frames;
+    }
+
+    /**
+     * Get PCM starting at a sample frame. The returned buffer is only valid until the next
+     * call and may hold fewer frames than requested, e.g. at the end of an ADPCM block.
+     *
+     * @param frame The first sample frame
+     * @param maxFrames The largest number of frames wanted
+     * @return Little-endian 16-bit PCM from position to limit; empty past the end
+     * @throws IOException If the file could not be read
+     */
+    public ByteBuffer read(long frame, int maxFrames) throws IOException {
+        int count = (int) Math.max(0, Math.min(maxFrames, frames - frame));
+        if (count == 0) {
+            return EMPTY;
+        }
+        if (decoder == null) {
+            return bytes.read(frame * frameBytes, count * frameBytes);
+        }
+
+        int samplesPerBlock = format.getSamplesPerBlock();
+        long block = frame / samplesPerBlock;
+        if (block != decodedBlock) {
+            ByteBuffer encoded = bytes.read(block * format.getBlockAlign(), format.getBlockAlign());
+            decoded.clear();
+            decoder.decodeBlock(encoded, decoded);
+            decodedBlock = block;
+        }
+        int offset = (int) (frame - block * samplesPerBlock);
+        count = Math.min(count, samplesPerBlock - offset);
+        decoded.limit((offset + count) * frameBytes);
+        decoded.position(offset * frameBytes);
+        return decoded;
+    }
+
+    /**
+     * Access to the bytes of the data chunk
+     */
+    private abstract static class ByteSource {
+        /**
+         * Get bytes of the data chunk; a read never crosses a block boundary of the format
+         *
+         * @return A buffer valid until the next read, possibly shorter than requested
+         */
+        abstract ByteBuffer read(long position, int length) throws IOException;
+    }
+
+    private static class MappedBytes extends ByteSource {
+        private final ByteBuffer[] views;
+        private final long windowSize;
+
+        MappedBytes(FileChannel channel, long offset, long length, int blockAlign) throws IOException {
+            // Windows hold whole blocks, so a block is never split between two of them
+            this.windowSize = WINDOW_SIZE - WINDOW_SIZE % blockAlign;
+            int count = (int) ((length + windowSize - 1) / windowSize);
+            this.views = new ByteBuffer[count];
+            for (int i = 0; i < count; i++) {
+                long start = i * windowSize;
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, offset + start,
+                        Math.min(windowSize, length - start));
+                views[i] = window.order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) {
+            int window = (int) (position / windowSize);
+            ByteBuffer view = views[window];
+            int start = (int) (position - window * windowSize);
+            view.limit(Math.min(view.capacity(), start + length));
+            view.position(start);
+            return view;
+        }
+    }
+
+    private static class DecryptedBytes extends ByteSource {
+        private final EncryptedRecordingReader reader;
+        private final long offset;
+        private final ByteBuffer buffer;
+
+        DecryptedBytes(EncryptedRecordingReader reader, long offset, int blockAlign) {
+            this.reader = reader;
+            this.offset = offset;
+            // About 40 ms of 48 kHz mono PCM per read, in whole blocks
+            int size = Math.max(blockAlign, 4096 - 4096 % blockAlign);
+            this.buffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        @Override
+        ByteBuffer read(long position, int length) throws IOException {
+            buffer.clear();
+            buffer.limit(Math.min(buffer.capacity(), length));
+            while (buffer.hasRemaining()) {
+                if (reader.read(buffer, offset + position + buffer.position()) < 0) {
+                    break;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        }
+    }
+}
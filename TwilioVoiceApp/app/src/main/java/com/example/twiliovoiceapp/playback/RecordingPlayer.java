@@ -0,0 +1,437 @@
+package com.example.twiliovoiceapp.playback;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import com.example.twiliovoiceapp.recording.EncryptingSink;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.PeakIndex;
+import com.example.twiliovoiceapp.recording.RecordingFile;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.SegmentManifest;
+import com.example.twiliovoiceapp.recording.SegmentedSink;
+import com.example.twiliovoiceapp.recording.SilenceMap;
+import com.example.twiliovoiceapp.recording.WavFormat;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plays a recording, including segmented, compressed, encrypted and silence-suppressed
+ * ones, through an {@link AudioTrack}.
+ * <p>
+ * A single thread streams the audio: it looks up the current position in the
+ * {@link SeekIndex}, gets the PCM from the segment's {@link PlaybackSource} and writes
+ * it to the track, so for plain PCM files the track reads straight from the memory
+ * mapping. Seeking only moves the position the thread reads from and flushes the track.
+ */
+public class RecordingPlayer implements Closeable {
+    private static final String TAG = "RecordingPlayer";
+
+    // Frames written per step; about 20 ms at 48 kHz, so seeks and pauses take effect quickly
+    private static final int CHUNK_FRAMES = 960;
+
+    private static final long NO_SEEK = -1;
+
+    // Longest wait for the track to play out at the end, in case its head stops moving
+    private static final long DRAIN_TIMEOUT = 2000;
+
+    /**
+     * Interface for playback events, called on the playback thread
+     */
+    public interface Listener {
+        void onCompleted();
+        void onError(IOException e);
+    }
+
+    private final List<RecordingFile> files;
+    private final PlaybackSource[] sources;
+    private final SeekIndex index;
+    // Peak index of each segment, or null if a segment has none
+    private final PeakIndex[] peaks;
+    private final int frameBytes;
+    private final AudioTrack track;
+    private final ByteBuffer silence;
+    private final Object lock = new Object();
+    private final Thread thread;
+
+    private Listener listener;
+    private boolean playing;
+    private boolean released;
+    private long seekFrame = NO_SEEK;
+    // Timeline position of the first frame written after the last flush
+    private volatile long headBase;
+
+    private RecordingPlayer(List<RecordingFile> files, PlaybackSource[] sources, SeekIndex index,
+                            PeakIndex[] peaks) {
+        this.files = files;
+        this.sources = sources;
+        this.index = index;
+        this.peaks = peaks;
+
+        WavFormat format = sources[0].getFormat();
+        this.frameBytes = 2 * format.getChannels();
+        int channelMask = format.getChannels() == 1
+                ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+        int bufferSize = Math.max(AudioTrack.getMinBufferSize(format.getSampleRate(), channelMask,
+                AudioFormat.ENCODING_PCM_16BIT), 4 * CHUNK_FRAMES * frameBytes);
+        this.track = new AudioTrack(
+                new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_MEDIA)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build(),
+                new AudioFormat.Builder()
+                        .setSampleRate(format.getSampleRate())
+                        .setChannelMask(channelMask)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build(),
+                bufferSize, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        this.silence = ByteBuffer.allocateDirect(CHUNK_FRAMES * frameBytes);
+
+        this.thread = new Thread(this::run, "RecordingPlayer");
+        thread.start();
+    }
+
+    /**
+     * Open a recording for playback
+     *
+     * @param store The store holding the recording
+     * @param name File name of the recording, or of the manifest of a segmented recording
+     * @param keyWrapper Key wrapper for encrypted recordings, or null if none are expected
+     * @return The player, paused at the start
+     * @throws IOException If the recording could not be opened
+     */
+    public static RecordingPlayer open(RecordingStore store, String name, KeyWrapper keyWrapper)
+            throws IOException {
+        List<String> segmentNames;
+        if (name.endsWith(SegmentedSink.MANIFEST_SUFFIX)) {
+            try (RecordingFile manifest = store.open(name)) {
+                segmentNames = SegmentManifest.readSegmentNames(manifest.getReadChannel());
+            }
+            if (segmentNames.isEmpty()) {
+                throw new IOException("No finished segments in " + name);
+            }
+        } else {
+            segmentNames = Collections.singletonList(name);
+        }
+
+        List<RecordingFile> files = new ArrayList<>();
+        try {
+            PlaybackSource[] sources = new PlaybackSource[segmentNames.size()];
+            long[] frames = new long[sources.length];
+            SilenceMap[] silenceMaps = new SilenceMap[sources.length];
+            PeakIndex[] peaks = new PeakIndex[sources.length];
+            for (int i = 0; i < sources.length; i++) {
+                String segmentName = segmentNames.get(i);
+                RecordingFile file = store.open(segmentName);
+                files.add(file);
+                if (segmentName.endsWith(EncryptingSink.SUFFIX)) {
+                    if (keyWrapper == null) {
+                        throw new IOException("No key to decrypt " + segmentName);
+                    }
+                    sources[i] = PlaybackSource.decrypt(file.getReadChannel(), keyWrapper);
+                } else {
+                    sources[i] = PlaybackSource.map(file.getReadChannel());
+                }
+                frames[i] = sources[i].getFrames();
+
+                silenceMaps[i] = readSilence(store, segmentName);
+                peaks[i] = readPeaks(store, segmentName);
+            }
+            SeekIndex index = SeekIndex.build(sources[0].getFormat().getSampleRate(), frames, silenceMaps);
+            return new RecordingPlayer(files, sources, index, peaks);
+        } catch (IOException | RuntimeException e) {
+            closeAll(files);
+            throw e;
+        }
+    }
+
+    /**
+     * Set the listener for playback events
+     *
+     * @param listener The listener, or null
+     */
+    public void setListener(Listener listener) {
+        synchronized (lock) {
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Get the length of the recording
+     *
+     * @return The duration in milliseconds, including suppressed silence
+     */
+    public long getDurationMillis() {
+        return index.getDurationMillis();
+    }
+
+    /**
+     * Get the position being played
+     *
+     * @return The position in milliseconds
+     */
+    public long getPositionMillis() {
+        long frame = Math.min(index.getTotalFrames(), headBase + (track.getPlaybackHeadPosition() & 0xFFFFFFFFL));
+        return frame * 1000 / index.getSampleRate();
+    }
+
+    /**
+     * Summarize the recording's waveform from its peak indexes, for drawing behind a seek
+     * bar, without reading any audio
+     *
+     * @param columns The number of columns, spread evenly over the duration
+     * @param min Receives the minimum of each column, scaled to -128..127
+     * @param max Receives the maximum of each column
+     * @return false if a segment has no peak index, e.g. one recorded before they were kept
+     */
+    public boolean getWaveform(int columns, byte[] min, byte[] max) {
+        for (PeakIndex segmentPeaks : peaks) {
+            if (segmentPeaks == null) {
+                return false;
+            }
+        }
+        index.waveform(peaks, columns, min, max);
+        return true;
+    }
+
+    /**
+     * Check whether the recording is playing
+     *
+     * @return true if playing, false if paused
+     */
+    public boolean isPlaying() {
+        synchronized (lock) {
+            return playing;
+        }
+    }
+
+    /**
+     * Start or resume playback; at the end of the recording, playback starts over
+     */
+    public void play() {
+        synchronized (lock) {
+            if (released || playing) {
+                return;
+            }
+            playing = true;
+            track.play();
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Pause playback
+     */
+    public void pause() {
+        synchronized (lock) {
+            if (released || !playing) {
+                return;
+            }
+            playing = false;
+            track.pause();
+        }
+    }
+
+    /**
+     * Move to a position; takes effect within one chunk of audio
+     *
+     * @param millis The position in milliseconds
+     */
+    public void seekTo(long millis) {
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            seekFrame = Math.max(0, Math.min(index.getTotalFrames(), millis * index.getSampleRate() / 1000));
+            headBase = seekFrame;
+            // Discard what is queued, which also wakes a write blocked on a paused track
+            track.pause();
+            track.flush();
+            if (playing) {
+                track.play();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Stop playback and release the track and the recording files
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            if (released) {
+                return;
+            }
+            released = true;
+            track.pause();
+            track.flush();
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        track.release();
+        closeAll(files);
+    }
+
+    /**
+     * Read the silence map of a segment, opened directly rather than found by listing the store
+     *
+     * @return The map, or null if the segment has none
+     */
+    private static SilenceMap readSilence(RecordingStore store, String segmentName) throws IOException {
+        try (RecordingFile silenceFile = store.open(SilenceMap.nameFor(segmentName))) {
+            return SilenceMap.read(silenceFile.getReadChannel());
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Read the peak index of a segment; playback does not depend on it, so a missing or
+     * damaged one is skipped
+     */
+    private static PeakIndex readPeaks(RecordingStore store, String segmentName) {
+        String peakName = PeakIndex.nameFor(segmentName);
+        try (RecordingFile peakFile = store.open(peakName)) {
+            return PeakIndex.read(peakFile.getReadChannel());
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, "Skipping unreadable peak index " + peakName, e);
+            return null;
+        }
+    }
+
+    private void run() {
+        long frame = 0;
+        while (true) {
+            synchronized (lock) {
+                while (!released && !playing && seekFrame == NO_SEEK) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (released) {
+                    return;
+                }
+                if (seekFrame != NO_SEEK) {
+                    // Anything written since the seek was requested is from the old position
+                    frame = seekFrame;
+                    seekFrame = NO_SEEK;
+                    track.pause();
+                    track.flush();
+                    if (playing) {
+                        track.play();
+                    }
+                    continue;
+                }
+            }
+
+            try {
+                int run = index.find(frame);
+                if (run < 0) {
+                    finish();
+                    continue;
+                }
+                long offset = frame - index.getStart(run);
+                int count = (int) Math.min(CHUNK_FRAMES, index.getFrames(run) - offset);
+                long position = index.getPosition(run);
+                ByteBuffer pcm;
+                if (position == SeekIndex.SILENCE) {
+                    pcm = silence;
+                    pcm.clear().limit(count * frameBytes);
+                } else {
+                    pcm = sources[index.getSegment(run)].read(position + offset, count);
+                    if (!pcm.hasRemaining()) {
+                        // The file is shorter than its index; skip to the next run
+                        frame += count;
+                        continue;
+                    }
+                }
+                int written = track.write(pcm, pcm.remaining(), AudioTrack.WRITE_BLOCKING);
+                if (written < 0) {
+                    throw new IOException("AudioTrack write failed: " + written);
+                }
+                frame += written / frameBytes;
+            } catch (IOException e) {
+                Log.e(TAG, "Error playing recording", e);
+                Listener current;
+                synchronized (lock) {
+                    playing = false;
+                    track.pause();
+                    current = listener;
+                }
+                if (current != null) {
+                    current.onError(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Let the track play out what is queued, then rewind for the next play
+     */
+    private void finish() throws IOException {
+        synchronized (lock) {
+            if (seekFrame != NO_SEEK || released) {
+                return;
+            }
+            track.stop();
+        }
+        // After stop the head keeps counting until the queued audio has played out
+        long deadline = System.currentTimeMillis() + DRAIN_TIMEOUT;
+        while (headBase + (track.getPlaybackHeadPosition() & 0xFFFFFFFFL) < index.getTotalFrames()
+                && System.currentTimeMillis() < deadline) {
+            synchronized (lock) {
+                if (seekFrame != NO_SEEK || released) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        Listener current;
+        synchronized (lock) {
+            if (seekFrame != NO_SEEK || released) {
+                return;
+            }
+            playing = false;
+            seekFrame = 0;
+            headBase = 0;
+            current = listener;
+        }
+        if (current != null) {
+            current.onCompleted();
+        }
+    }
+
+    private static void closeAll(List<RecordingFile> files) {
+        for (RecordingFile file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing " + file.getName(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.twiliovoiceapp.playback;
+
+import com.example.twiliovoiceapp.recording.PeakIndex;
+import com.example.twiliovoiceapp.recording.SilenceMap;
+
+import java.util.Arrays;
+
+/**
+ * Maps the playback timeline of a recording to where its audio is stored.
+ * <p>
+ * The timeline is split into runs, each either stored audio in one segment file or a
+ * stretch of silence that {@code SilenceSuppressor} left out. The run start frames are
+ * kept in a sorted array, so finding the run for any position is a binary search and
+ * seeking costs the same at the start of a call as hours into it.
+ */
+public final class SeekIndex {
+
+    // Position of a run that is suppressed silence rather than stored audio
+    public static final long SILENCE = -1;
+
+    private final int sampleRate;
+    private final long totalFrames;
+    private final long[] starts;
+    private final int[] segments;
+    private final long[] positions;
+
+    private SeekIndex(int sampleRate, long totalFrames, long[] starts, int[] segments, long[] positions) {
+        this.sampleRate = sampleRate;
+        this.totalFrames = totalFrames;
+        this.starts = starts;
+        this.segments = segments;
+        this.positions = positions;
+    }
+
+    /**
+     * Build the index of a recording
+     *
+     * @param sampleRate Sample rate of the recording
+     * @param storedFrames Number of sample frames stored in each segment, in order
+     * @param silenceMaps Silence map of each segment, or null where nothing was suppressed
+     * @return The index
+     */
+    public static SeekIndex build(int sampleRate, long[] storedFrames, SilenceMap[] silenceMaps) {
+        int capacity = storedFrames.length;
+        for (SilenceMap map : silenceMaps) {
+            capacity += map != null ? 2 * map.size() : 0;
+        }
+        long[] starts = new long[capacity];
+        int[] segments = new int[capacity];
+        long[] positions = new long[capacity];
+
+        int runs = 0;
+        long timeline = 0;
+        for (int segment = 0; segment < storedFrames.length; segment++) {
+            SilenceMap map = silenceMaps[segment];
+            long stored = 0;
+            int silences = map != null ? map.size() : 0;
+            for (int i = 0; i <= silences; i++) {
+                // Audio up to the next silence, then the silence itself
+                long end = i < silences ? Math.min(map.getPosition(i), storedFrames[segment]) : storedFrames[segment];
+                if (end > stored) {
+                    starts[runs] = timeline;
+                    segments[runs] = segment;
+                    positions[runs] = stored;
+                    runs++;
+                    timeline += end - stored;
+                    stored = end;
+                }
+                if (i < silences && map.getLength(i) > 0) {
+                    starts[runs] = timeline;
+                    segments[runs] = segment;
+                    positions[runs] = SILENCE;
+                    runs++;
+                    timeline += map.getLength(i);
+                }
+            }
+        }
+        return new SeekIndex(sampleRate, timeline, Arrays.copyOf(starts, runs),
+                Arrays.copyOf(segments, runs), Arrays.copyOf(positions, runs));
+    }
+
+    /**
+     * Get the sample rate of the recording
+     *
+     * @return The sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the length of the timeline
+     *
+     * @return The number of sample frames, including suppressed silence
+     */
+    public long getTotalFrames() {
+        return totalFrames;
+    }
+
+    /**
+     * Get the length of the timeline
+     *
+     * @return The duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return totalFrames * 1000 / sampleRate;
+    }
+
+    /**
+     * Get the number of runs
+     *
+     * @return The run count
+     */
+    public int size() {
+        return starts.length;
+    }
+
+    /**
+     * Find the run containing a position on the timeline
+     *
+     * @param frame The timeline position in sample frames
+     * @return The run index, or -1 if the position is past the end
+     */
+    public int find(long frame) {
+        if (frame < 0 || frame >= totalFrames) {
+            return -1;
+        }
+        int index = Arrays.binarySearch(starts, frame);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Get where a run starts on the timeline
+     *
+     * @param index The run index
+     * @return The timeline position in sample frames
+     */
+    public long getStart(int index) {
+        return starts[index];
+    }
+
+    /**
+     * Get the length of a run
+     *
+     * @param index The run index
+     * @return The number of sample frames
+     */
+    public long getFrames(int index) {
+        return (index + 1 < starts.length ? starts[index + 1] : totalFrames) - starts[index];
+    }
+
+    /**
+     * Get the segment a run belongs to
+     *
+     * @param index The run index
+     * @return The segment index
+     */
+    public int getSegment(int index) {
+        return segments[index];
+    }
+
+    /**
+     * Get where the audio of a run is stored
+     *
+     * @param index The run index
+     * @return The first stored sample frame within the segment, or {@link #SILENCE}
+     */
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Summarize the waveform over the whole timeline, e.g. one column per step of a seek
+     * bar. Suppressed silence is flat.
+     *
+     * @param peaks Peak index of each segment, over its stored frames
+     * @param columns The number of columns
+     * @param min Receives the minimum of each column, scaled to -128..127
+     * @param max Receives the maximum of each column
+     */
+    public void waveform(PeakIndex[] peaks, int columns, byte[] min, byte[] max) {
+        int[] minMax = new int[2];
+        int run = 0;
+        for (int column = 0; column < columns; column++) {
+            long from = column * totalFrames / columns;
+            long to = (column + 1) * totalFrames / columns;
+            minMax[0] = 0;
+            minMax[1] = 0;
+            // Columns move forward through the runs, so each run is found once
+            while (run + 1 < starts.length && starts[run + 1] <= from) {
+                run++;
+            }
+            for (int i = run; i < starts.length && starts[i] < to; i++) {
+                if (positions[i] == SILENCE) {
+                    continue;
+                }
+                long first = Math.max(from, starts[i]);
+                long last = Math.min(to, starts[i] + getFrames(i));
+                peaks[segments[i]].accumulate(positions[i] + first - starts[i],
+                        positions[i] + last - starts[i], minMax);
+            }
+            min[column] = (byte) minMax[0];
+            max[column] = (byte) minMax[1];
+        }
+    }
+}
@@ -0,0 +1,470 @@
+package com.example.twiliovoiceapp.playback;
+
+import android.util.Log;
+
+import com.example.twiliovoiceapp.recording.EncryptedRecordingReader;
+import com.example.twiliovoiceapp.recording.EncryptingSink;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.RecordingFile;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.SegmentManifest;
+import com.example.twiliovoiceapp.recording.SegmentedSink;
+import com.example.twiliovoiceapp.recording.SilenceMap;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.example.twiliovoiceapp.recording.WavInfo;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A recording presented as one WAV file without writing one: a fresh header followed by
+ * the audio of every segment, read in place from the stored files.
+ * <p>
+ * The file is a list of pieces: the header, byte ranges of the stored files, and the
+ * silence {@code SilenceSuppressor} left out, which reads as zeros, laid out by the same
+ * {@link SeekIndex} the player uses. Any byte range can be read with a binary search over
+ * the piece offsets, and ranges of plain files are sent with {@link FileChannel#transferTo},
+ * so they never pass through the Java heap. Encrypted segments are decrypted as they are
+ * read. Compressed blocks cannot be split around a silence, so a compressed recording with
+ * suppressed silence is served as PCM, decoded block by block as it is read.
+ */
+public class StitchedWav implements Closeable {
+    private static final String TAG = "StitchedWav";
+
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] ZEROS = new byte[4096];
+
+    private final List<RecordingFile> files;
+    private final Piece[] pieces;
+    private final long[] offsets;
+    private final long size;
+    private ByteBuffer copyBuffer;
+
+    private StitchedWav(List<RecordingFile> files, List<Piece> pieces) {
+        this.files = files;
+        this.pieces = pieces.toArray(new Piece[0]);
+        this.offsets = new long[this.pieces.length];
+        long offset = 0;
+        for (int i = 0; i < this.pieces.length; i++) {
+            offsets[i] = offset;
+            offset += this.pieces[i].length;
+        }
+        this.size = offset;
+    }
+
+    /**
+     * Open a recording as a single WAV file
+     *
+     * @param store The store holding the recording
+     * @param name File name of the recording, or of the manifest of a segmented recording
+     * @param keyWrapper Key wrapper for encrypted recordings, or null if none are expected
+     * @return The stitched file
+     * @throws IOException If the recording could not be opened or its segments do not match
+     */
+    public static StitchedWav open(RecordingStore store, String name, KeyWrapper keyWrapper)
+            throws IOException {
+        List<String> segmentNames;
+        if (name.endsWith(SegmentedSink.MANIFEST_SUFFIX)) {
+            try (RecordingFile manifest = store.open(name)) {
+                segmentNames = SegmentManifest.readSegmentNames(manifest.getReadChannel());
+            }
+            if (segmentNames.isEmpty()) {
+                throw new IOException("No finished segments in " + name);
+            }
+        } else {
+            segmentNames = Collections.singletonList(name);
+        }
+
+        List<RecordingFile> files = new ArrayList<>();
+        try {
+            int count = segmentNames.size();
+            DataPiece[] data = new DataPiece[count];
+            long[] frames = new long[count];
+            SilenceMap[] silenceMaps = new SilenceMap[count];
+            RecordingFile[] segmentFiles = new RecordingFile[count];
+            boolean silenced = false;
+            WavFormat format = null;
+            for (int i = 0; i < count; i++) {
+                String segmentName = segmentNames.get(i);
+                RecordingFile file = store.open(segmentName);
+                files.add(file);
+                segmentFiles[i] = file;
+
+                WavInfo info;
+                long available;
+                if (segmentName.endsWith(EncryptingSink.SUFFIX)) {
+                    if (keyWrapper == null) {
+                        throw new IOException("No key to decrypt " + segmentName);
+                    }
+                    EncryptedRecordingReader reader = new EncryptedRecordingReader(file.getReadChannel(), keyWrapper);
+                    info = readHeader(reader);
+                    available = reader.size();
+                    data[i] = new DecryptedPiece(reader, info != null ? info.getDataOffset() : 0);
+                } else {
+                    FileChannel channel = file.getReadChannel();
+                    info = WavInfo.read(channel);
+                    available = channel.size();
+                    data[i] = new FilePiece(channel, info != null ? info.getDataOffset() : 0);
+                }
+                if (info == null) {
+                    throw new IOException("Not a WAV file: " + segmentName);
+                }
+                if (format == null) {
+                    format = info.getFormat();
+                } else if (!sameFormat(format, info.getFormat())) {
+                    throw new IOException("Format of " + segmentName + " differs from the first segment");
+                }
+
+                // Whole blocks only, so the stitched data chunk stays aligned; the index
+                // counts blocks, which for PCM are sample frames
+                long dataBytes = info.getDataBytes(available);
+                data[i].length = dataBytes - dataBytes % format.getBlockAlign();
+                frames[i] = data[i].length / format.getBlockAlign();
+
+                try (RecordingFile silenceFile = store.open(SilenceMap.nameFor(segmentName))) {
+                    silenceMaps[i] = SilenceMap.read(silenceFile.getReadChannel());
+                    silenced |= silenceMaps[i].size() > 0;
+                } catch (FileNotFoundException e) {
+                    // No silence was suppressed from this segment
+                }
+            }
+
+            if (silenced && format.getFormatTag() != WavFormat.FORMAT_PCM) {
+                // Decode, so the silence can go back between any two sample frames
+                format = WavFormat.pcm16(format.getSampleRate(), format.getChannels());
+                for (int i = 0; i < count; i++) {
+                    String segmentName = segmentNames.get(i);
+                    PlaybackSource source = segmentName.endsWith(EncryptingSink.SUFFIX)
+                            ? PlaybackSource.decrypt(segmentFiles[i].getReadChannel(), keyWrapper)
+                            : PlaybackSource.map(segmentFiles[i].getReadChannel());
+                    data[i] = new DecodedPiece(source, 0, format.getBlockAlign());
+                    frames[i] = source.getFrames();
+                }
+            }
+
+            List<Piece> pieces = new ArrayList<>();
+            pieces.add(null);
+            long dataBytes = 0;
+            SeekIndex index = SeekIndex.build(format.getSampleRate(), frames, silenceMaps);
+            for (int run = 0; run < index.size(); run++) {
+                long length = index.getFrames(run) * format.getBlockAlign();
+                long position = index.getPosition(run);
+                pieces.add(position == SeekIndex.SILENCE
+                        ? new ZeroPiece(length)
+                        : data[index.getSegment(run)].slice(position * format.getBlockAlign(), length));
+                dataBytes += length;
+            }
+            ByteBuffer header = ByteBuffer.allocate(format.getHeaderSize());
+            format.writeHeader(header, dataBytes);
+            header.flip();
+            pieces.set(0, new HeaderPiece(header));
+            return new StitchedWav(files, pieces);
+        } catch (IOException | RuntimeException e) {
+            closeAll(files);
+            throw e;
+        }
+    }
+
+    /**
+     * Get the size of the stitched file
+     *
+     * @return The size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Read bytes of the stitched file
+     *
+     * @param dst Buffer to fill from its position to its limit
+     * @param position Offset in the stitched file to read from
+     * @return The number of bytes read, or -1 at the end of the file
+     * @throws IOException If a stored file could not be read
+     */
+    public synchronized int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        int index = find(position);
+        while (dst.hasRemaining() && index < pieces.length) {
+            Piece piece = pieces[index];
+            long offset = position + total - offsets[index];
+            int count = (int) Math.min(dst.remaining(), piece.length - offset);
+            int limit = dst.limit();
+            dst.limit(dst.position() + count);
+            try {
+                piece.read(dst, offset);
+            } finally {
+                dst.limit(limit);
+            }
+            total += count;
+            index++;
+        }
+        return total;
+    }
+
+    /**
+     * Write a range of the stitched file to a channel, letting the system copy the
+     * stored files' bytes straight to it where possible
+     *
+     * @param position Offset in the stitched file to start at
+     * @param count Largest number of bytes to write
+     * @param target The channel to write to
+     * @return The number of bytes written
+     * @throws IOException If a stored file could not be read or the channel written
+     */
+    public synchronized long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        long end = Math.min(size, position + count);
+        long written = 0;
+        int index = position < size ? find(position) : pieces.length;
+        while (position + written < end) {
+            Piece piece = pieces[index];
+            long offset = position + written - offsets[index];
+            long length = Math.min(end - position - written, piece.length - offset);
+            if (!piece.transferTo(offset, length, target)) {
+                copyTo(piece, offset, length, target);
+            }
+            written += length;
+            index++;
+        }
+        return written;
+    }
+
+    @Override
+    public void close() {
+        closeAll(files);
+    }
+
+    private int find(long position) {
+        // Pieces are never empty, so each offset starts exactly one piece
+        int index = Arrays.binarySearch(offsets, position);
+        return index >= 0 ? index : -index - 2;
+    }
+
+    /**
+     * Write a range of a piece that cannot be sent directly, through a reused buffer
+     */
+    private void copyTo(Piece piece, long offset, long count, WritableByteChannel target) throws IOException {
+        if (copyBuffer == null) {
+            copyBuffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        }
+        long done = 0;
+        while (done < count) {
+            copyBuffer.clear();
+            copyBuffer.limit((int) Math.min(copyBuffer.capacity(), count - done));
+            piece.read(copyBuffer, offset + done);
+            copyBuffer.flip();
+            done += copyBuffer.remaining();
+            while (copyBuffer.hasRemaining()) {
+                target.write(copyBuffer);
+            }
+        }
+    }
+
+    private static WavInfo readHeader(EncryptedRecordingReader reader) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(WavInfo.HEADER_SCAN_LIMIT, reader.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (head.hasRemaining() && reader.read(head, head.position()) > 0) {
+            // Keep reading until the header window is full
+        }
+        head.flip();
+        return WavInfo.read(head);
+    }
+
+    private static boolean sameFormat(WavFormat a, WavFormat b) {
+        return a.getFormatTag() == b.getFormatTag()
+                && a.getSampleRate() == b.getSampleRate()
+                && a.getChannels() == b.getChannels()
+                && a.getBlockAlign() == b.getBlockAlign();
+    }
+
+    private static void closeAll(List<RecordingFile> files) {
+        for (RecordingFile file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing " + file.getName(), e);
+            }
+        }
+    }
+
+    /**
+     * A contiguous part of the stitched file
+     */
+    private abstract static class Piece {
+        long length;
+
+        /**
+         * Fill the buffer from an offset within the piece
+         */
+        abstract void read(ByteBuffer dst, long offset) throws IOException;
+
+        /**
+         * Send a range of the piece to a channel without copying it through the heap
+         *
+         * @return false if the piece has no way to do that and must be read instead
+         */
+        boolean transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+            return false;
+        }
+    }
+
+    /**
+     * A piece of a segment's audio, which the seek index cuts into runs
+     */
+    private abstract static class DataPiece extends Piece {
+        /**
+         * Get a piece covering part of this one
+         */
+        abstract DataPiece slice(long offset, long length);
+    }
+
+    private static class HeaderPiece extends Piece {
+        private final ByteBuffer header;
+
+        HeaderPiece(ByteBuffer header) {
+            this.header = header;
+            this.length = header.remaining();
+        }
+
+        @Override
+        void read(ByteBuffer dst, long offset) {
+            ByteBuffer source = header.duplicate();
+            source.position((int) offset).limit((int) offset + dst.remaining());
+            dst.put(source);
+        }
+    }
+
+    private static class ZeroPiece extends Piece {
+        ZeroPiece(long length) {
+            this.length = length;
+        }
+
+        @Override
+        void read(ByteBuffer dst, long offset) {
+            while (dst.hasRemaining()) {
+                dst.put(ZEROS, 0, Math.min(ZEROS.length, dst.remaining()));
+            }
+        }
+    }
+
+    private static class FilePiece extends DataPiece {
+        private final FileChannel channel;
+        private final long start;
+
+        FilePiece(FileChannel channel, long start) {
+            this.channel = channel;
+            this.start = start;
+        }
+
+        @Override
+        void read(ByteBuffer dst, long offset) throws IOException {
+            long position = start + offset;
+            while (dst.hasRemaining()) {
+                int read = channel.read(dst, position);
+                if (read < 0) {
+                    throw new IOException("Recording file is shorter than its header says");
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        boolean transferTo(long offset, long count, WritableByteChannel target) throws IOException {
+            long done = 0;
+            while (done < count) {
+                long sent = channel.transferTo(start + offset + done, count - done, target);
+                if (sent <= 0) {
+                    throw new IOException("Recording file is shorter than its header says");
+                }
+                done += sent;
+            }
+            return true;
+        }
+
+        @Override
+        DataPiece slice(long offset, long length) {
+            FilePiece piece = new FilePiece(channel, start + offset);
+            piece.length = length;
+            return piece;
+        }
+    }
+
+    private static class DecryptedPiece extends DataPiece {
+        private final EncryptedRecordingReader reader;
+        private final long start;
+
+        DecryptedPiece(EncryptedRecordingReader reader, long start) {
+            this.reader = reader;
+            this.start = start;
+        }
+
+        @Override
+        void read(ByteBuffer dst, long offset) throws IOException {
+            long position = start + offset;
+            while (dst.hasRemaining()) {
+                int read = reader.read(dst, position);
+                if (read < 0) {
+                    throw new IOException("Recording file is shorter than its header says");
+                }
+                position += read;
+            }
+        }
+
+        @Override
+        DataPiece slice(long offset, long length) {
+            DecryptedPiece piece = new DecryptedPiece(reader, start + offset);
+            piece.length = length;
+            return piece;
+        }
+    }
+
+    private static class DecodedPiece extends DataPiece {
+        private final PlaybackSource source;
+        private final long start;
+        private final int frameBytes;
+
+        DecodedPiece(PlaybackSource source, long start, int frameBytes) {
+            this.source = source;
+            this.start = start;
+            this.frameBytes = frameBytes;
+        }
+
+        @Override
+        void read(ByteBuffer dst, long offset) throws IOException {
+            while (dst.hasRemaining()) {
+                // Reads may start and end part way through a frame
+                int skip = (int) (offset % frameBytes);
+                int frames = (skip + dst.remaining() + frameBytes - 1) / frameBytes;
+                ByteBuffer pcm = source.read(start + offset / frameBytes, frames);
+                if (!pcm.hasRemaining()) {
+                    throw new IOException("Recording file is shorter than its header says");
+                }
+                pcm.position(pcm.position() + skip);
+                int count = Math.min(dst.remaining(), pcm.remaining());
+                pcm.limit(pcm.position() + count);
+                dst.put(pcm);
+                offset += count;
+            }
+        }
+
+        @Override
+        DataPiece slice(long offset, long length) {
+            DecodedPiece piece = new DecodedPiece(source, start + offset / frameBytes, frameBytes);
+            piece.length = length;
+            return piece;
+        }
+    }
+}
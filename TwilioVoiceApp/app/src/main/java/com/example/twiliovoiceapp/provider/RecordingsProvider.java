@@ -0,0 +1,322 @@
+package com.example.twiliovoiceapp.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.ProxyFileDescriptorCallback;
+import android.os.storage.StorageManager;
+import android.provider.OpenableColumns;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.RequiresApi;
+
+import com.example.twiliovoiceapp.database.AppDatabase;
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.playback.StitchedWav;
+import com.example.twiliovoiceapp.recording.EncryptingSink;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.KeystoreKeyWrapper;
+import com.example.twiliovoiceapp.recording.RecordingFile;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.SegmentedSink;
+import com.example.twiliovoiceapp.recording.SilenceMap;
+import com.example.twiliovoiceapp.storage.RecordingStorageManager;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves recordings to other apps, e.g. for sharing to email or a CRM, as
+ * {@code content://com.example.twiliovoiceapp.recordings/recordings/<id>}.
+ * <p>
+ * Every recording is served as a single WAV file without writing a copy. A plain,
+ * single-file recording is handed out as its own file descriptor. Anything else
+ * (segmented, encrypted or silence-suppressed recordings) is stitched on the fly by
+ * {@link StitchedWav}: from API 26 through a seekable proxy file descriptor, so readers
+ * can seek and read ranges, and before that through a pipe fed with
+ * {@code transferTo}.
+ */
+public class RecordingsProvider extends ContentProvider {
+    private static final String TAG = "RecordingsProvider";
+
+    public static final String AUTHORITY = "com.example.twiliovoiceapp.recordings";
+
+    private static final String PATH_RECORDINGS = "recordings";
+    private static final String MIME_TYPE = "audio/x-wav";
+    private static final String[] DEFAULT_PROJECTION = {OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE};
+
+    // Feeds pipes on devices without proxy file descriptors
+    private final ExecutorService pipeExecutor = Executors.newCachedThreadPool();
+    // Serves reads of proxy file descriptors
+    private Handler proxyHandler;
+
+    /**
+     * Get the URI a recording is shared under
+     *
+     * @param recordingId The ID of the recording in the catalog
+     * @return The content URI
+     */
+    public static Uri getUri(long recordingId) {
+        return new Uri.Builder()
+                .scheme(ContentResolver.SCHEME_CONTENT)
+                .authority(AUTHORITY)
+                .appendPath(PATH_RECORDINGS)
+                .appendPath(Long.toString(recordingId))
+                .build();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Nullable
+    @Override
+    public String getType(@NonNull Uri uri) {
+        return getRecordingId(uri) >= 0 ? MIME_TYPE : null;
+    }
+
+    @Nullable
+    @Override
+    public Cursor query(@NonNull Uri uri, @Nullable String[] projection, @Nullable String selection,
+                        @Nullable String[] selectionArgs, @Nullable String sortOrder) {
+        Shared shared = resolve(uri);
+        if (shared == null) {
+            return null;
+        }
+
+        String[] columns = projection != null ? projection : DEFAULT_PROJECTION;
+        Object[] row = new Object[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            if (OpenableColumns.DISPLAY_NAME.equals(columns[i])) {
+                row[i] = shared.displayName;
+            } else if (OpenableColumns.SIZE.equals(columns[i]) && shared.file != null) {
+                // Only known without stitching the whole recording for a file served as it is;
+                // left null, as allowed for an unknown size, for a stitched one
+                row[i] = shared.file.length();
+            }
+        }
+        MatrixCursor cursor = new MatrixCursor(columns, 1);
+        cursor.addRow(row);
+        return cursor;
+    }
+
+    @Nullable
+    @Override
+    public ParcelFileDescriptor openFile(@NonNull Uri uri, @NonNull String mode) throws FileNotFoundException {
+        if (!"r".equals(mode)) {
+            throw new FileNotFoundException("Recordings can only be opened for reading");
+        }
+        Shared shared = resolve(uri);
+        if (shared == null) {
+            throw new FileNotFoundException("No recording for " + uri);
+        }
+
+        if (shared.file != null) {
+            // Already a complete WAV file on its own
+            return ParcelFileDescriptor.open(shared.file, ParcelFileDescriptor.MODE_READ_ONLY);
+        }
+
+        StitchedWav wav;
+        try {
+            wav = StitchedWav.open(shared.store, shared.name, getKeyWrapper());
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening " + shared.name, e);
+            throw new FileNotFoundException("Could not open " + shared.name);
+        }
+        try {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+                StorageManager storageManager = getContext().getSystemService(StorageManager.class);
+                return storageManager.openProxyFileDescriptor(ParcelFileDescriptor.MODE_READ_ONLY,
+                        new StitchedCallback(wav), getProxyHandler());
+            }
+            return openPipe(wav);
+        } catch (IOException e) {
+            wav.close();
+            Log.e(TAG, "Error serving " + shared.name, e);
+            throw new FileNotFoundException("Could not serve " + shared.name);
+        }
+    }
+
+    @Nullable
+    @Override
+    public Uri insert(@NonNull Uri uri, @Nullable ContentValues values) {
+        throw new UnsupportedOperationException("Recordings are read-only");
+    }
+
+    @Override
+    public int delete(@NonNull Uri uri, @Nullable String selection, @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Recordings are read-only");
+    }
+
+    @Override
+    public int update(@NonNull Uri uri, @Nullable ContentValues values, @Nullable String selection,
+                      @Nullable String[] selectionArgs) {
+        throw new UnsupportedOperationException("Recordings are read-only");
+    }
+
+    /**
+     * Stream a stitched recording through a pipe; the reader cannot seek
+     */
+    private ParcelFileDescriptor openPipe(StitchedWav wav) throws IOException {
+        ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        pipeExecutor.execute(() -> {
+            try (ParcelFileDescriptor.AutoCloseOutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1])) {
+                wav.transferTo(0, wav.size(), out.getChannel());
+            } catch (IOException e) {
+                // Usually the reader closing its end early
+                Log.d(TAG, "Pipe closed: " + e.getMessage());
+            } finally {
+                wav.close();
+            }
+        });
+        return pipe[0];
+    }
+
+    private synchronized Handler getProxyHandler() {
+        if (proxyHandler == null) {
+            HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            proxyHandler = new Handler(thread.getLooper());
+        }
+        return proxyHandler;
+    }
+
+    private static KeyWrapper getKeyWrapper() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? KeystoreKeyWrapper.getInstance() : null;
+    }
+
+    private static long getRecordingId(Uri uri) {
+        if (!AUTHORITY.equals(uri.getAuthority()) || uri.getPathSegments().size() != 2
+                || !PATH_RECORDINGS.equals(uri.getPathSegments().get(0))) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(uri.getLastPathSegment());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Find the files behind a shared URI
+     *
+     * @return The recording's files, or null if the URI names no recording
+     */
+    private Shared resolve(Uri uri) {
+        long id = getRecordingId(uri);
+        if (id < 0) {
+            return null;
+        }
+        CallRecording recording = AppDatabase.getDatabase(getContext()).callRecordingDao().getById(id);
+        if (recording == null) {
+            return null;
+        }
+
+        String location = recording.getPath();
+        RecordingStorageManager storageManager = RecordingStorageManager.getInstance(getContext());
+        String name = storageManager.getNameFor(location);
+        if (name == null) {
+            return null;
+        }
+        RecordingStore store = storageManager.getStoreFor(location);
+
+        // Recordings are always shared as a plain WAV file
+        String baseName = name;
+        if (baseName.endsWith(SegmentedSink.MANIFEST_SUFFIX)) {
+            baseName = baseName.substring(0, baseName.length() - SegmentedSink.MANIFEST_SUFFIX.length()) + ".wav";
+        } else if (baseName.endsWith(EncryptingSink.SUFFIX)) {
+            baseName = baseName.substring(0, baseName.length() - EncryptingSink.SUFFIX.length());
+        }
+
+        // A single plain file with nothing to put back can be handed out as it is
+        File file = null;
+        if (!location.startsWith(ContentResolver.SCHEME_CONTENT + ":") && name.equals(baseName)
+                && !exists(store, SilenceMap.nameFor(name))) {
+            file = new File(location);
+        }
+        return new Shared(store, name, baseName, file);
+    }
+
+    /**
+     * Check for a file by opening it, without listing the whole store
+     *
+     * @return false only if the file is known not to exist
+     */
+    private static boolean exists(RecordingStore store, String name) {
+        try (RecordingFile file = store.open(name)) {
+            return true;
+        } catch (FileNotFoundException e) {
+            return false;
+        } catch (IOException e) {
+            // Stitching works either way, so assume it is there
+            Log.w(TAG, "Error opening " + name, e);
+            return true;
+        }
+    }
+
+    /**
+     * The files behind a shared recording
+     */
+    private static class Shared {
+        final RecordingStore store;
+        final String name;
+        final String displayName;
+        // The recording file itself if it can be served directly, otherwise null
+        final File file;
+
+        Shared(RecordingStore store, String name, String displayName, File file) {
+            this.store = store;
+            this.name = name;
+            this.displayName = displayName;
+            this.file = file;
+        }
+    }
+
+    /**
+     * Answers reads of a proxy file descriptor from a stitched recording
+     */
+    @RequiresApi(api = Build.VERSION_CODES.O)
+    private static class StitchedCallback extends ProxyFileDescriptorCallback {
+        private final StitchedWav wav;
+
+        StitchedCallback(StitchedWav wav) {
+            this.wav = wav;
+        }
+
+        @Override
+        public long onGetSize() {
+            return wav.size();
+        }
+
+        @Override
+        public int onRead(long offset, int size, byte[] data) throws ErrnoException {
+            try {
+                return Math.max(0, wav.read(ByteBuffer.wrap(data, 0, size), offset));
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading at " + offset, e);
+                throw new ErrnoException("onRead", OsConstants.EIO);
+            }
+        }
+
+        @Override
+        public void onRelease() {
+            wav.close();
+        }
+    }
+}
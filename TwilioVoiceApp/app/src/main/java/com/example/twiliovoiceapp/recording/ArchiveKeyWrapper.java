@@ -0,0 +1,92 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.MGF1ParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.OAEPParameterSpec;
+import javax.crypto.spec.PSource;
+
+/**
+ * Wraps recording data keys for the archive with the archive server's RSA public key,
+ * so recordings uploaded encrypted can be decrypted off the device, and still after a
+ * reinstall or the loss of the device's keystore key.
+ * <p>
+ * Keys are wrapped with RSA-OAEP, using SHA-256 for both the digest and MGF1. Only the
+ * holder of the private key, the archive, can unwrap them.
+ */
+public class ArchiveKeyWrapper implements KeyWrapper {
+
+    private static final String TRANSFORMATION = "RSA/ECB/OAEPPadding";
+    private static final OAEPParameterSpec OAEP_PARAMS = new OAEPParameterSpec(
+            "SHA-256", "MGF1", MGF1ParameterSpec.SHA256, PSource.PSpecified.DEFAULT);
+
+    private final PublicKey publicKey;
+    private final PrivateKey privateKey;
+
+    /**
+     * Constructor for the wrapper on the device, which can only wrap
+     *
+     * @param publicKey The archive's public key
+     */
+    public ArchiveKeyWrapper(PublicKey publicKey) {
+        this(publicKey, null);
+    }
+
+    /**
+     * Constructor for the wrapper on the archive side
+     *
+     * @param publicKey The archive's public key
+     * @param privateKey The archive's private key, or null to only wrap
+     */
+    public ArchiveKeyWrapper(PublicKey publicKey, PrivateKey privateKey) {
+        this.publicKey = publicKey;
+        this.privateKey = privateKey;
+    }
+
+    /**
+     * Create a wrapper from the archive's public key as configured in settings
+     *
+     * @param encoded The DER-encoded X.509 SubjectPublicKeyInfo of an RSA key
+     * @return The wrapper
+     * @throws IOException If the key is not a valid RSA public key
+     */
+    public static ArchiveKeyWrapper fromEncoded(byte[] encoded) throws IOException {
+        try {
+            return new ArchiveKeyWrapper(KeyFactory.getInstance("RSA")
+                    .generatePublic(new X509EncodedKeySpec(encoded)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            throw new IOException("Invalid archive public key", e);
+        }
+    }
+
+    @Override
+    public byte[] wrap(byte[] key) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, publicKey, OAEP_PARAMS);
+            return cipher.doFinal(key);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error wrapping recording key for the archive", e);
+        }
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrappedKey) throws IOException {
+        if (privateKey == null) {
+            throw new IOException("Only the archive can unwrap its copy of a recording key");
+        }
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, privateKey, OAEP_PARAMS);
+            return cipher.doFinal(wrappedKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error unwrapping archive copy of recording key", e);
+        }
+    }
+}
@@ -0,0 +1,266 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sidecar file holding a CRC-32C checksum for every fixed-size block of a recording
+ * file, written by {@link ChecksumSink}. The checksums cover the bytes exactly as they
+ * are stored, including container headers and encryption, so damage can be found
+ * without decoding or decrypting anything.
+ * <p>
+ * The header records the file's final length once it is closed cleanly; a length of
+ * {@value #LENGTH_OPEN} means the recording was interrupted and the checksums only
+ * cover the blocks completed before that.
+ */
+public final class BlockChecksums {
+
+    public static final String SUFFIX = ".crc";
+
+    // 64 KB is under a second of 48 kHz PCM, the granularity damage is reported at
+    public static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+
+    public static final long LENGTH_OPEN = -1;
+
+    private static final int MAGIC = 0x31435243; // "CRC1"
+    private static final int HEADER_SIZE = 16;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int ENTRY_SIZE = 4;
+
+    private final int blockSize;
+    private final long length;
+    private final int[] checksums;
+
+    private BlockChecksums(int blockSize, long length, int[] checksums) {
+        this.blockSize = blockSize;
+        this.length = length;
+        this.checksums = checksums;
+    }
+
+    /**
+     * Get the sidecar file name for a recording file
+     *
+     * @param recordingName File name of the recording
+     * @return File name of its checksums
+     */
+    public static String nameFor(String recordingName) {
+        return recordingName + SUFFIX;
+    }
+
+    /**
+     * Read a checksum file
+     *
+     * @param channel A channel for reading the sidecar file
+     * @return The parsed checksums
+     * @throws IOException If the file could not be read or is not a checksum file
+     */
+    public static BlockChecksums read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid checksum file size " + size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, buffer, 0);
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a checksum file");
+        }
+        int blockSize = buffer.getInt();
+        long length = buffer.getLong();
+        if (blockSize <= 0) {
+            throw new IOException("Invalid block size " + blockSize);
+        }
+
+        // A trailing partial entry from an interrupted write is ignored
+        int[] checksums = new int[(int) ((size - HEADER_SIZE) / ENTRY_SIZE)];
+        buffer.asIntBuffer().get(checksums);
+        return new BlockChecksums(blockSize, length, checksums);
+    }
+
+    /**
+     * Get the size of the blocks each checksum covers
+     *
+     * @return The block size in bytes
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Get the length of the recording file when it was closed
+     *
+     * @return The length in bytes, or {@link #LENGTH_OPEN} if it was never closed
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * Check whether the recording file was closed cleanly
+     *
+     * @return true if the checksums cover the whole file
+     */
+    public boolean isSealed() {
+        return length != LENGTH_OPEN;
+    }
+
+    /**
+     * Get the number of checksums
+     *
+     * @return The entry count
+     */
+    public int size() {
+        return checksums.length;
+    }
+
+    /**
+     * Get the checksum of a block
+     *
+     * @param index The block index
+     * @return The CRC-32C of the block
+     */
+    public long get(int index) {
+        return checksums[index] & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Bring the checksums of an interrupted recording up to date with the file as it is
+     * now, e.g. after its header was repaired. Blocks the writer never covered are
+     * checksummed as found, so call this only once the file has been verified.
+     *
+     * @param data A channel for reading the recording file
+     * @param reader A channel for reading the sidecar file
+     * @param writer A channel for writing the same sidecar file
+     * @throws IOException If either file could not be read or written
+     */
+    public static void reseal(FileChannel data, FileChannel reader, FileChannel writer) throws IOException {
+        BlockChecksums checksums = read(reader);
+        int blockSize = checksums.blockSize;
+        long length = data.size();
+        long fullBlocks = length / blockSize;
+        long kept = Math.min(checksums.size(), fullBlocks);
+
+        ByteBuffer block = ByteBuffer.allocateDirect(blockSize);
+        Crc32c crc = new Crc32c();
+        writer.truncate(HEADER_SIZE + kept * ENTRY_SIZE);
+
+        // The first block holds the container header, the part a repair rewrites
+        if (length > 0) {
+            resealBlock(data, writer, block, crc, 0, length);
+        }
+        for (long index = Math.max(kept, 1); index * blockSize < length; index++) {
+            resealBlock(data, writer, block, crc, index, length);
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        header.putLong(0, length);
+        writeFully(writer, header, LENGTH_OFFSET);
+        writer.force(false);
+    }
+
+    private static void resealBlock(FileChannel data, FileChannel writer, ByteBuffer block, Crc32c crc,
+                                    long index, long length) throws IOException {
+        long start = index * block.capacity();
+        block.clear();
+        block.limit((int) Math.min(block.capacity(), length - start));
+        readFully(data, block, start);
+        block.flip();
+        crc.reset();
+        crc.update(block);
+        ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        entry.putInt(0, (int) crc.getValue());
+        writeFully(writer, entry, HEADER_SIZE + index * ENTRY_SIZE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+            position += read;
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Appends checksums while recording. Entries are buffered and written a few at
+     * a time, or whenever {@link ChecksumSink} commits the recording to disk.
+     */
+    static class Writer implements Closeable {
+
+        private static final int BUFFER_SIZE = 256;
+
+        private final RecordingFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(RecordingFile file, int blockSize) throws IOException {
+            this.file = file;
+            this.channel = file.getWriteChannel();
+            buffer.putInt(MAGIC).putInt(blockSize).putLong(LENGTH_OPEN);
+        }
+
+        void add(long checksum) throws IOException {
+            if (buffer.remaining() < ENTRY_SIZE) {
+                flush();
+            }
+            buffer.putInt((int) checksum);
+        }
+
+        /**
+         * Replace the checksum of a block that was rewritten after it was added
+         */
+        void set(int index, long checksum) throws IOException {
+            flush();
+            ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            entry.putInt(0, (int) checksum);
+            writeFully(channel, entry, HEADER_SIZE + (long) index * ENTRY_SIZE);
+        }
+
+        /**
+         * Write out buffered entries and optionally force them to the device
+         */
+        void commit(boolean sync) throws IOException {
+            flush();
+            if (sync) {
+                channel.force(false);
+            }
+        }
+
+        /**
+         * Record the final length of the recording file, marking the checksums complete
+         */
+        void seal(long length) throws IOException {
+            flush();
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.putLong(0, length);
+            writeFully(channel, header, LENGTH_OFFSET);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                file.close();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sink that writes recorded audio straight to a file channel.
+ * Batches are written with a single gathered write where the channel allows it.
+ */
+public class ChannelSink implements PositionalSink {
+
+    protected final FileChannel channel;
+    private final Closeable resource;
+    private long closedSize = -1;
+
+    /**
+     * Constructor for the sink
+     *
+     * @param channel The channel to write to; closed together with the sink
+     */
+    public ChannelSink(FileChannel channel) {
+        this(channel, channel);
+    }
+
+    /**
+     * Constructor for a sink writing to an open recording file
+     *
+     * @param file The file to write to; closed together with the sink
+     */
+    public ChannelSink(RecordingFile file) {
+        this(file.getWriteChannel(), file);
+    }
+
+    private ChannelSink(FileChannel channel, Closeable resource) {
+        this.channel = channel;
+        this.resource = resource;
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        long remaining = 0;
+        for (int i = offset; i < offset + length; i++) {
+            remaining += buffers[i].remaining();
+        }
+
+        // A gathered write may be partial, so keep going until every buffer is drained
+        while (remaining > 0) {
+            remaining -= channel.write(buffers, offset, length);
+        }
+    }
+
+    @Override
+    public void writeAt(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * Force everything written so far to the storage device. Only the data and the
+     * metadata needed to read it back, such as the file length, are flushed.
+     *
+     * @throws IOException If the device could not be synced
+     */
+    public void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * Get the size of the file, as it was when the sink was closed
+     *
+     * @return The file size in bytes
+     * @throws IOException If the size could not be read
+     */
+    public long getSize() throws IOException {
+        return closedSize >= 0 ? closedSize : channel.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            closedSize = channel.size();
+        } finally {
+            resource.close();
+        }
+    }
+}
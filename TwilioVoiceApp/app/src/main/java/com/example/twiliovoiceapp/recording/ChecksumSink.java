@@ -0,0 +1,173 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stage at the bottom of a file's chain that checksums every block of the file as it is
+ * written into a {@link BlockChecksums} sidecar, and commits the file to the device
+ * according to a sync policy.
+ * <p>
+ * With a sync interval, writes are grouped: the file and its checksums are forced to
+ * the device at most once per interval, so a power loss costs at most that much audio
+ * while the number of flushes stays independent of how often the writer delivers data.
+ * <p>
+ * Rewriting data inside the first block, which is how {@link WavSink} and
+ * {@link EncryptingSink} finalize their headers, is supported by keeping a copy of
+ * that block and checksumming it again on close.
+ */
+public class ChecksumSink implements PositionalSink {
+
+    // Never force the file to the device; the system writes it back in its own time
+    public static final long SYNC_NEVER = -1;
+    // Force the file to the device once, when the recording is closed
+    public static final long SYNC_ON_CLOSE = 0;
+
+    private final ChannelSink out;
+    private final BlockChecksums.Writer checksums;
+    private final int blockSize;
+    private final long syncIntervalNanos;
+    private final ByteBuffer firstBlock;
+    private final Crc32c crc = new Crc32c();
+
+    private long size;
+    private boolean firstBlockDirty;
+    private long lastSync = System.nanoTime();
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The sink writing the recording file
+     * @param checksumFile Sidecar file the checksums are written to
+     * @param blockSize Number of bytes covered by each checksum
+     * @param syncIntervalMillis How often to force the file to the device while recording,
+     *                           or {@link #SYNC_NEVER} or {@link #SYNC_ON_CLOSE}
+     * @throws IOException If the sidecar could not be written
+     */
+    public ChecksumSink(ChannelSink out, RecordingFile checksumFile, int blockSize, long syncIntervalMillis)
+            throws IOException {
+        this.out = out;
+        this.checksums = new BlockChecksums.Writer(checksumFile, blockSize);
+        this.blockSize = blockSize;
+        this.syncIntervalNanos = syncIntervalMillis > 0 ? syncIntervalMillis * 1000000 : syncIntervalMillis;
+        this.firstBlock = ByteBuffer.allocateDirect(blockSize);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            append(buffers[i].duplicate());
+        }
+        out.write(buffers, offset, length);
+        commitIfDue();
+    }
+
+    @Override
+    public void writeAt(ByteBuffer buffer, long position) throws IOException {
+        if (position > size) {
+            throw new IOException("Cannot leave a gap at " + size);
+        }
+        if (position < size) {
+            long end = Math.min(position + buffer.remaining(), size);
+            if (end > blockSize) {
+                throw new IOException("Only the first " + blockSize + " bytes can be rewritten");
+            }
+            ByteBuffer rewritten = buffer.duplicate();
+            rewritten.limit(rewritten.position() + (int) (end - position));
+            ByteBuffer target = firstBlock.duplicate();
+            target.position((int) position);
+            target.put(rewritten);
+            if (size >= blockSize) {
+                firstBlockDirty = true;
+            }
+
+            // Whatever extends past the end is appended as usual
+            ByteBuffer appended = buffer.duplicate();
+            appended.position(appended.position() + (int) (end - position));
+            append(appended);
+        } else {
+            append(buffer.duplicate());
+        }
+        out.writeAt(buffer, position);
+        commitIfDue();
+    }
+
+    /**
+     * Checksum the final partial block, mark the checksums complete and close both files,
+     * forcing them to the device first unless syncing is off
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            try {
+                if (size % blockSize != 0) {
+                    checksums.add(blockChecksum(size / blockSize, (int) (size % blockSize)));
+                }
+                if (firstBlockDirty) {
+                    checksums.set(0, blockChecksum(0, blockSize));
+                }
+                // Data first, so sealed checksums never describe data that is not on the device
+                if (syncIntervalNanos != SYNC_NEVER) {
+                    out.sync();
+                }
+                checksums.seal(size);
+                checksums.commit(syncIntervalNanos != SYNC_NEVER);
+            } finally {
+                checksums.close();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Feed appended bytes to the checksum of the block they fall in, without consuming them
+     */
+    private void append(ByteBuffer data) throws IOException {
+        int limit = data.limit();
+        while (data.hasRemaining()) {
+            int offset = (int) (size % blockSize);
+            int count = Math.min(data.remaining(), blockSize - offset);
+            data.limit(data.position() + count);
+            if (size < blockSize) {
+                firstBlock.position(offset);
+                firstBlock.put(data);
+            } else {
+                crc.update(data);
+            }
+            data.limit(limit);
+            size += count;
+
+            if (size % blockSize == 0) {
+                checksums.add(blockChecksum(size / blockSize - 1, blockSize));
+            }
+        }
+    }
+
+    /**
+     * Finish the checksum of a block that has been fed in, and start the next one
+     */
+    private long blockChecksum(long index, int length) {
+        if (index == 0) {
+            ByteBuffer block = firstBlock.duplicate();
+            block.limit(length).position(0);
+            crc.reset();
+            crc.update(block);
+        }
+        long value = crc.getValue();
+        crc.reset();
+        return value;
+    }
+
+    private void commitIfDue() throws IOException {
+        if (syncIntervalNanos <= 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (now - lastSync >= syncIntervalNanos) {
+            lastSync = now;
+            out.sync();
+            checksums.commit(true);
+        }
+    }
+}
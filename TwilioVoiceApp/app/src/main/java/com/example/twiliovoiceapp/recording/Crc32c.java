@@ -0,0 +1,87 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Checksum;
+
+/**
+ * CRC-32C (Castagnoli) checksum, the variant used by iSCSI, ext4 and most storage formats.
+ * {@code java.util.zip.CRC32C} only exists from API 26, so this is a table-driven
+ * implementation that processes eight bytes per step, fast enough to check recordings
+ * as quickly as they can be read.
+ */
+public class Crc32c implements Checksum {
+
+    // Reflected form of the Castagnoli polynomial 0x1EDC6F41
+    private static final int POLYNOMIAL = 0x82F63B78;
+
+    private static final int[][] TABLES = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int c = n;
+            for (int k = 0; k < 8; k++) {
+                c = (c & 1) != 0 ? (c >>> 1) ^ POLYNOMIAL : c >>> 1;
+            }
+            TABLES[0][n] = c;
+        }
+        for (int t = 1; t < 8; t++) {
+            for (int n = 0; n < 256; n++) {
+                int c = TABLES[t - 1][n];
+                TABLES[t][n] = (c >>> 8) ^ TABLES[0][c & 0xFF];
+            }
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        update(ByteBuffer.wrap(b, off, len));
+    }
+
+    /**
+     * Update the checksum with the remaining bytes of a buffer, consuming them
+     *
+     * @param buffer The data, read from its position to its limit
+     */
+    public void update(ByteBuffer buffer) {
+        int[] t0 = TABLES[0], t1 = TABLES[1], t2 = TABLES[2], t3 = TABLES[3];
+        int[] t4 = TABLES[4], t5 = TABLES[5], t6 = TABLES[6], t7 = TABLES[7];
+        int c = crc;
+        int pos = buffer.position();
+        int limit = buffer.limit();
+
+        ByteOrder order = buffer.order();
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        for (; pos + 8 <= limit; pos += 8) {
+            long word = buffer.getLong(pos);
+            int lo = c ^ (int) word;
+            int hi = (int) (word >>> 32);
+            c = t7[lo & 0xFF] ^ t6[(lo >>> 8) & 0xFF] ^ t5[(lo >>> 16) & 0xFF] ^ t4[lo >>> 24]
+                    ^ t3[hi & 0xFF] ^ t2[(hi >>> 8) & 0xFF] ^ t1[(hi >>> 16) & 0xFF] ^ t0[hi >>> 24];
+        }
+        buffer.order(order);
+
+        for (; pos < limit; pos++) {
+            c = (c >>> 8) ^ t0[(c ^ buffer.get(pos)) & 0xFF];
+        }
+        buffer.position(limit);
+        crc = c;
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
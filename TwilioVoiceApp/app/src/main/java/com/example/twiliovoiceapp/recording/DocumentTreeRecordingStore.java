@@ -0,0 +1,221 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.UriPermission;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.DocumentsContract;
+import android.util.Log;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Recording store backed by a Storage Access Framework document tree, as picked with
+ * {@link android.content.Intent#ACTION_OPEN_DOCUMENT_TREE}.
+ * Documents are opened through a {@link ParcelFileDescriptor} and written with a
+ * {@link FileChannel}, so writes go straight to the provider's file descriptor at the
+ * same speed as a local file. The resolved tree and child document IDs are cached
+ * per tree, so starting a new recording costs one provider call to create the
+ * document and one to learn the name the provider gave it, which may differ from the
+ * requested one, e.g. when a document of that name already exists.
+ */
+public class DocumentTreeRecordingStore implements RecordingStore {
+    private static final String TAG = "DocumentTreeStore";
+
+    // One store per tree so the document ID cache survives between recordings
+    private static final Map<String, DocumentTreeRecordingStore> STORES = new HashMap<>();
+
+    private final ContentResolver contentResolver;
+    private final Uri treeUri;
+    private final Uri directoryUri;
+
+    // Display name -> document ID for children of the tree root
+    private final Map<String, String> documentIds = new HashMap<>();
+    private boolean childrenLoaded = false;
+    private boolean writable = false;
+
+    private DocumentTreeRecordingStore(Context context, Uri treeUri) {
+        this.contentResolver = context.getApplicationContext().getContentResolver();
+        this.treeUri = treeUri;
+        this.directoryUri = DocumentsContract.buildDocumentUriUsingTree(
+                treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+    }
+
+    /**
+     * Get the store for a document tree
+     *
+     * @param context The context
+     * @param treeUri The tree URI returned by the document picker
+     * @return The cached store for that tree
+     */
+    public static DocumentTreeRecordingStore forTree(Context context, Uri treeUri) {
+        synchronized (STORES) {
+            DocumentTreeRecordingStore store = STORES.get(treeUri.toString());
+            if (store == null) {
+                store = new DocumentTreeRecordingStore(context, treeUri);
+                STORES.put(treeUri.toString(), store);
+            }
+            return store;
+        }
+    }
+
+    /**
+     * Check whether the app still holds a persisted write grant for the tree.
+     * The result is cached after the first successful check.
+     *
+     * @return true if recordings can be written to the tree
+     */
+    public synchronized boolean isWritable() {
+        if (!writable) {
+            for (UriPermission permission : contentResolver.getPersistedUriPermissions()) {
+                if (permission.getUri().equals(treeUri) && permission.isWritePermission()) {
+                    writable = true;
+                    break;
+                }
+            }
+        }
+        return writable;
+    }
+
+    @Override
+    public RecordingFile create(String name, String mimeType) throws IOException {
+        Uri documentUri;
+        try {
+            documentUri = DocumentsContract.createDocument(contentResolver, directoryUri, mimeType, name);
+        } catch (RuntimeException e) {
+            throw new IOException("Cannot create " + name + " in " + treeUri, e);
+        }
+        if (documentUri == null) {
+            throw new FileNotFoundException("Cannot create " + name + " in " + treeUri);
+        }
+
+        // Cached under the name the document actually got, so it is found again by list
+        String actualName = queryDisplayName(documentUri, name);
+        if (!actualName.equals(name)) {
+            Log.w(TAG, "Created " + name + " as " + actualName);
+        }
+        synchronized (this) {
+            documentIds.put(actualName, DocumentsContract.getDocumentId(documentUri));
+        }
+        return openDocument(actualName, documentUri);
+    }
+
+    @Override
+    public RecordingFile open(String name) throws IOException {
+        String documentId = getDocumentId(name);
+        if (documentId == null) {
+            throw new FileNotFoundException(name + " not found in " + treeUri);
+        }
+        return openDocument(name, DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+    }
+
+    @Override
+    public List<String> list(String suffix) {
+        List<String> names = new ArrayList<>();
+        synchronized (this) {
+            loadChildren();
+            for (String name : documentIds.keySet()) {
+                if (name.endsWith(suffix)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean delete(String name) {
+        String documentId = getDocumentId(name);
+        if (documentId == null) {
+            return false;
+        }
+        try {
+            boolean deleted = DocumentsContract.deleteDocument(contentResolver,
+                    DocumentsContract.buildDocumentUriUsingTree(treeUri, documentId));
+            if (deleted) {
+                synchronized (this) {
+                    documentIds.remove(name);
+                }
+            }
+            return deleted;
+        } catch (FileNotFoundException | RuntimeException e) {
+            Log.e(TAG, "Error deleting " + name, e);
+            return false;
+        }
+    }
+
+    private synchronized String getDocumentId(String name) {
+        String documentId = documentIds.get(name);
+        if (documentId == null && !childrenLoaded) {
+            loadChildren();
+            documentId = documentIds.get(name);
+        }
+        return documentId;
+    }
+
+    /**
+     * Query the children of the tree root once and remember their document IDs
+     */
+    private void loadChildren() {
+        if (childrenLoaded) {
+            return;
+        }
+        Uri childrenUri = DocumentsContract.buildChildDocumentsUriUsingTree(
+                treeUri, DocumentsContract.getTreeDocumentId(treeUri));
+        String[] projection = {
+                DocumentsContract.Document.COLUMN_DOCUMENT_ID,
+                DocumentsContract.Document.COLUMN_DISPLAY_NAME
+        };
+        try (Cursor cursor = contentResolver.query(childrenUri, projection, null, null, null)) {
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    documentIds.put(cursor.getString(1), cursor.getString(0));
+                }
+            }
+            childrenLoaded = true;
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error listing " + treeUri, e);
+        }
+    }
+
+    /**
+     * Look up the display name of a document
+     *
+     * @param documentUri The document
+     * @param fallback Name to use if the provider does not say
+     * @return The display name
+     */
+    private String queryDisplayName(Uri documentUri, String fallback) {
+        String[] projection = {DocumentsContract.Document.COLUMN_DISPLAY_NAME};
+        try (Cursor cursor = contentResolver.query(documentUri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst() && cursor.getString(0) != null) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error querying the name of " + documentUri, e);
+        }
+        return fallback;
+    }
+
+    private RecordingFile openDocument(String name, Uri documentUri) throws IOException {
+        ParcelFileDescriptor descriptor = contentResolver.openFileDescriptor(documentUri, "rw");
+        if (descriptor == null) {
+            throw new FileNotFoundException("Cannot open " + documentUri);
+        }
+
+        // Both streams share the descriptor; closing the descriptor releases everything
+        FileChannel readChannel = new FileInputStream(descriptor.getFileDescriptor()).getChannel();
+        FileChannel writeChannel = new FileOutputStream(descriptor.getFileDescriptor()).getChannel();
+        return new RecordingFile(name, documentUri.toString(), readChannel, writeChannel, descriptor);
+    }
+}
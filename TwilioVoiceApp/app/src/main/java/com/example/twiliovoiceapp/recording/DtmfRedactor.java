@@ -0,0 +1,305 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Stage that keeps keypad tones out of recordings, so card numbers and PINs typed
+ * during a call never reach disk.
+ * <p>
+ * The audio is cut into 20 ms blocks and each block is run through the
+ * Goertzel algorithm at the eight DTMF frequencies. A block holds a tone when one row
+ * and one column frequency stand out: both loud enough, well above the other
+ * frequencies of their group, within the allowed twist of each other, and together
+ * carrying most of the block's energy. Audio is held back by one block, so the block
+ * before a detected tone (holding its start) is silenced as well as the tone itself
+ * and a short tail after it. All buffers are allocated up front, so nothing is
+ * allocated per block.
+ */
+public class DtmfRedactor implements RecordingSink {
+
+    // Row and column frequencies of the keypad
+    private static final double[] ROW_FREQUENCIES = {697, 770, 852, 941};
+    private static final double[] COLUMN_FREQUENCIES = {1209, 1336, 1477, 1633};
+
+    // Blocks per second; 20 ms resolves the rows 70 Hz apart while tolerating the
+    // allowed 1.5% frequency error, and fits whole inside the shortest valid tone
+    private static final int BLOCKS_PER_SECOND = 50;
+
+    // Quietest tone detected, in dBFS for each of the two frequencies
+    private static final double MIN_TONE_DBFS = -45;
+
+    // Largest allowed level difference between the row and column tone, in dB
+    private static final double MAX_TWIST_DB = 10;
+
+    // How far the strongest frequency of a group must stand above the others, in dB
+    private static final double MIN_PEAK_RATIO_DB = 6;
+
+    // Share of the block's energy the two tones must carry together
+    private static final double MIN_TONE_SHARE = 0.35;
+
+    // Blocks silenced after the last block with a tone, covering its tail and echo
+    private static final int HANGOVER_BLOCKS = 2;
+
+    private final RecordingSink out;
+    private final int channels;
+    private final int blockFrames;
+    private final float[] rowCoefficients = new float[ROW_FREQUENCIES.length];
+    private final float[] columnCoefficients = new float[COLUMN_FREQUENCIES.length];
+    private final float[] rowPowers = new float[ROW_FREQUENCIES.length];
+    private final float[] columnPowers = new float[COLUMN_FREQUENCIES.length];
+    private final double minTonePower;
+    private final double maxTwist;
+    private final double minPeakRatio;
+
+    // Mono samples of the block being filled, and the block's audio as it arrived
+    private final float[] mono;
+    private int frameCount;
+    private ByteBuffer current;
+
+    // The block before it, held back until the block after it has been checked
+    private ByteBuffer previous;
+    private boolean previousRedacted;
+    private final ByteBuffer[] outputArray = new ByteBuffer[1];
+
+    private int hangover;
+    private boolean inTone;
+    private long toneCount;
+    private long redactedBlocks;
+
+    // Partial frame: channel sum, channels seen, and the low byte of a split sample
+    private int channelSum;
+    private int channelCount;
+    private int pendingByte = -1;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The next stage, receiving the same format with tones silenced
+     * @param format Format of the incoming 16-bit PCM
+     */
+    public DtmfRedactor(RecordingSink out, WavFormat format) {
+        this.out = out;
+        this.channels = format.getChannels();
+        int sampleRate = format.getSampleRate();
+        this.blockFrames = sampleRate / BLOCKS_PER_SECOND;
+        for (int i = 0; i < ROW_FREQUENCIES.length; i++) {
+            rowCoefficients[i] = (float) (2 * Math.cos(2 * Math.PI * ROW_FREQUENCIES[i] / sampleRate));
+        }
+        for (int i = 0; i < COLUMN_FREQUENCIES.length; i++) {
+            columnCoefficients[i] = (float) (2 * Math.cos(2 * Math.PI * COLUMN_FREQUENCIES[i] / sampleRate));
+        }
+
+        // A sine of amplitude A over N samples has a Goertzel power of (A * N / 2)^2
+        double minAmplitude = 32768 * Math.pow(10, MIN_TONE_DBFS / 20);
+        this.minTonePower = Math.pow(minAmplitude * blockFrames / 2, 2);
+        this.maxTwist = Math.pow(10, MAX_TWIST_DB / 10);
+        this.minPeakRatio = Math.pow(10, MIN_PEAK_RATIO_DB / 10);
+
+        this.mono = new float[blockFrames];
+        int blockBytes = blockFrames * channels * 2;
+        this.current = ByteBuffer.allocateDirect(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.previous = ByteBuffer.allocateDirect(blockBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.previous.limit(0);
+    }
+
+    /**
+     * Get the number of tones found so far
+     *
+     * @return The number of separate tones that were silenced
+     */
+    public long getToneCount() {
+        return toneCount;
+    }
+
+    /**
+     * Get the length of audio silenced so far
+     *
+     * @return The number of silenced blocks
+     */
+    public long getRedactedBlocks() {
+        return redactedBlocks;
+    }
+
+    /**
+     * Get the length of a block
+     *
+     * @return The block length in frames
+     */
+    public int getBlockFrames() {
+        return blockFrames;
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            if (pendingByte >= 0 && pos < limit) {
+                addSample((short) (pendingByte | (buffer.get(pos++) << 8)));
+                pendingByte = -1;
+            }
+            for (; pos + 1 < limit; pos += 2) {
+                addSample((short) ((buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) << 8)));
+            }
+            if (pos < limit) {
+                pendingByte = buffer.get(pos) & 0xFF;
+            }
+            buffer.position(limit);
+        }
+    }
+
+    /**
+     * Pass on the held-back audio and close the next stage. The final partial block is
+     * too short to check, so it is silenced if a tone was still going on.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            emitPrevious();
+            boolean redact = inTone || hangover > 0;
+            current.flip();
+            if (redact) {
+                silence(current);
+            }
+            if (current.hasRemaining()) {
+                outputArray[0] = current;
+                out.write(outputArray, 0, 1);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void addSample(short sample) throws IOException {
+        current.putShort(sample);
+        channelSum += sample;
+        if (++channelCount < channels) {
+            return;
+        }
+        mono[frameCount++] = (float) channelSum / channels;
+        channelSum = 0;
+        channelCount = 0;
+        if (frameCount == blockFrames) {
+            endBlock();
+        }
+    }
+
+    /**
+     * Check the finished block for a tone, then pass on the block before it
+     */
+    private void endBlock() throws IOException {
+        boolean tone = detect();
+        boolean redact;
+        if (tone) {
+            if (!inTone) {
+                // The start of the tone is in the block before; a gap within the tail is the same tone
+                if (hangover == 0) {
+                    toneCount++;
+                }
+                previousRedacted = true;
+            }
+            hangover = HANGOVER_BLOCKS;
+            redact = true;
+        } else if (hangover > 0) {
+            hangover--;
+            redact = true;
+        } else {
+            redact = false;
+        }
+        inTone = tone;
+
+        emitPrevious();
+
+        // The finished block becomes the one held back
+        ByteBuffer held = previous;
+        previous = current;
+        previous.flip();
+        previousRedacted = redact;
+        current = held;
+        current.clear();
+        frameCount = 0;
+    }
+
+    private void emitPrevious() throws IOException {
+        if (previousRedacted) {
+            silence(previous);
+            redactedBlocks++;
+        }
+        if (previous.hasRemaining()) {
+            outputArray[0] = previous;
+            out.write(outputArray, 0, 1);
+        }
+        previousRedacted = false;
+    }
+
+    private static void silence(ByteBuffer block) {
+        for (int i = block.position(); i < block.limit(); i++) {
+            block.put(i, (byte) 0);
+        }
+    }
+
+    /**
+     * Decide whether the current block holds a keypad tone
+     */
+    private boolean detect() {
+        double energy = 0;
+        for (int n = 0; n < blockFrames; n++) {
+            energy += mono[n] * mono[n];
+        }
+        if (energy == 0) {
+            return false;
+        }
+        int row = goertzel(rowCoefficients, rowPowers);
+        int column = goertzel(columnCoefficients, columnPowers);
+        double rowPower = rowPowers[row];
+        double columnPower = columnPowers[column];
+
+        if (rowPower < minTonePower || columnPower < minTonePower) {
+            return false;
+        }
+        if (rowPower > columnPower * maxTwist || columnPower > rowPower * maxTwist) {
+            return false;
+        }
+        if (!standsOut(rowPowers, row) || !standsOut(columnPowers, column)) {
+            return false;
+        }
+        // A pure sine carries (N / 2) * energy of Goertzel power
+        return rowPower + columnPower >= MIN_TONE_SHARE * energy * blockFrames / 2;
+    }
+
+    /**
+     * Run the Goertzel algorithm over the block at each of a group's frequencies
+     *
+     * @return The index of the strongest frequency
+     */
+    private int goertzel(float[] coefficients, float[] powers) {
+        int strongest = 0;
+        for (int f = 0; f < coefficients.length; f++) {
+            float coefficient = coefficients[f];
+            float s1 = 0;
+            float s2 = 0;
+            for (int n = 0; n < blockFrames; n++) {
+                float s = mono[n] + coefficient * s1 - s2;
+                s2 = s1;
+                s1 = s;
+            }
+            powers[f] = s1 * s1 + s2 * s2 - coefficient * s1 * s2;
+            if (powers[f] > powers[strongest]) {
+                strongest = f;
+            }
+        }
+        return strongest;
+    }
+
+    private boolean standsOut(float[] powers, int strongest) {
+        for (int f = 0; f < powers.length; f++) {
+            if (f != strongest && powers[f] * minPeakRatio > powers[strongest]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,216 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random-access reader for recordings written by {@link EncryptingSink}.
+ * Only the chunks covering the requested range are read and decrypted, and the most
+ * recent chunk is kept, so sequential playback decrypts each chunk once and seeking
+ * costs a single chunk.
+ */
+public class EncryptedRecordingReader {
+
+    private final FileChannel channel;
+    private final int headerSize;
+    private final int chunkSize;
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+    private final byte[] aad = new byte[9];
+
+    private final long size;
+    private final long lastChunk;
+    private boolean complete = true;
+
+    private final ByteBuffer sealed;
+    private final ByteBuffer plaintext;
+    private long cachedChunk = -1;
+
+    /**
+     * Constructor for the reader on the device that made the recording
+     *
+     * @param channel A channel for reading the encrypted file
+     * @param keyWrapper The key wrapper the recording was written with
+     * @throws IOException If the file is not an encrypted recording or the key cannot be recovered
+     */
+    public EncryptedRecordingReader(FileChannel channel, KeyWrapper keyWrapper) throws IOException {
+        this(channel, keyWrapper, false);
+    }
+
+    /**
+     * Constructor for the reader. Reads the header and unwraps the data key.
+     *
+     * @param channel A channel for reading the encrypted file
+     * @param keyWrapper The key wrapper for the chosen copy of the data key
+     * @param archiveCopy true to unwrap the archive's copy of the key, false for the device's
+     * @throws IOException If the file is not an encrypted recording or the key cannot be recovered
+     */
+    public EncryptedRecordingReader(FileChannel channel, KeyWrapper keyWrapper, boolean archiveCopy)
+            throws IOException {
+        this.channel = channel;
+        ByteBuffer magic = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(magic, 0);
+        magic.flip();
+        int version = magic.getInt();
+        if (version == EncryptingSink.MAGIC) {
+            this.headerSize = EncryptingSink.HEADER_SIZE;
+        } else if (version == EncryptingSink.MAGIC_V2) {
+            this.headerSize = EncryptingSink.HEADER_SIZE_V2;
+        } else {
+            throw new IOException("Not an encrypted recording");
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        header.flip();
+        header.position(4);
+        this.chunkSize = header.getInt();
+        if (chunkSize <= 0) {
+            throw new IOException("Corrupt encrypted recording header");
+        }
+        byte[] wrappedKey = readKey(header);
+        if (archiveCopy) {
+            if (version != EncryptingSink.MAGIC_V2) {
+                throw new IOException("Recording has no archive copy of its key");
+            }
+            wrappedKey = readKey(header);
+        }
+        this.key = new SecretKeySpec(keyWrapper.unwrap(wrappedKey), "AES");
+        try {
+            this.cipher = Cipher.getInstance(EncryptingSink.TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available", e);
+        }
+
+        // Every chunk but the last is full, so the plaintext size follows from the file size
+        int overhead = EncryptingSink.NONCE_SIZE + EncryptingSink.TAG_SIZE;
+        long body = Math.max(0, channel.size() - headerSize);
+        long fullChunks = body / (chunkSize + overhead);
+        long rest = body % (chunkSize + overhead);
+        this.size = fullChunks * chunkSize + Math.max(0, rest - overhead);
+        this.lastChunk = rest > overhead ? fullChunks : fullChunks - 1;
+
+        this.sealed = ByteBuffer.allocateDirect(chunkSize + overhead);
+        this.plaintext = ByteBuffer.allocateDirect(chunkSize);
+    }
+
+    /**
+     * Get the size of the decrypted recording
+     *
+     * @return The plaintext size in bytes
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Check whether the last chunk was sealed as the final one. This is false for a
+     * recording that was cut off by a crash; everything before the cut is still readable.
+     * Only meaningful once the last chunk has been read.
+     *
+     * @return true if the recording was closed properly
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Read decrypted bytes
+     *
+     * @param dst Buffer to fill from its position
+     * @param position Plaintext offset to read from
+     * @return The number of bytes read, or -1 at the end of the recording
+     * @throws IOException If the file could not be read or a chunk fails authentication
+     */
+    public int read(ByteBuffer dst, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        int total = 0;
+        while (dst.hasRemaining() && position < size) {
+            long index = position / chunkSize;
+            loadChunk(index);
+            int offset = (int) (position - index * chunkSize);
+            int count = Math.min(dst.remaining(), plaintext.limit() - offset);
+            ByteBuffer slice = plaintext.duplicate();
+            slice.position(offset).limit(offset + count);
+            dst.put(slice);
+            position += count;
+            total += count;
+        }
+        return total;
+    }
+
+    private void loadChunk(long index) throws IOException {
+        if (index == cachedChunk) {
+            return;
+        }
+        cachedChunk = -1;
+        int overhead = EncryptingSink.NONCE_SIZE + EncryptingSink.TAG_SIZE;
+        int length = index < lastChunk ? chunkSize : (int) (size - index * chunkSize);
+        sealed.clear();
+        sealed.limit(length + overhead);
+        readFully(sealed, EncryptingSink.chunkOffset(headerSize, index, chunkSize));
+        sealed.flip();
+
+        byte[] nonce = new byte[EncryptingSink.NONCE_SIZE];
+        sealed.get(nonce);
+        boolean last = index == lastChunk;
+        try {
+            decrypt(index, nonce, last);
+        } catch (AEADBadTagException e) {
+            if (!last) {
+                throw new IOException("Chunk " + index + " failed authentication", e);
+            }
+            // The recording was cut off before its last chunk could be marked final
+            sealed.position(EncryptingSink.NONCE_SIZE);
+            try {
+                decrypt(index, nonce, false);
+            } catch (GeneralSecurityException retry) {
+                throw new IOException("Chunk " + index + " failed authentication", retry);
+            }
+            complete = false;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error decrypting chunk " + index, e);
+        }
+        cachedChunk = index;
+    }
+
+    private void decrypt(long index, byte[] nonce, boolean last) throws GeneralSecurityException {
+        plaintext.clear();
+        cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(EncryptingSink.TAG_BITS, nonce));
+        cipher.updateAAD(EncryptingSink.chunkAad(aad, index, last));
+        cipher.doFinal(sealed, plaintext);
+        plaintext.flip();
+    }
+
+    private static byte[] readKey(ByteBuffer header) throws IOException {
+        if (header.remaining() < 2) {
+            throw new IOException("Corrupt encrypted recording header");
+        }
+        int length = header.getShort() & 0xFFFF;
+        if (length > header.remaining()) {
+            throw new IOException("Corrupt encrypted recording header");
+        }
+        byte[] wrappedKey = new byte[length];
+        header.get(wrappedKey);
+        return wrappedKey;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of encrypted recording");
+            }
+            position += read;
+        }
+    }
+}
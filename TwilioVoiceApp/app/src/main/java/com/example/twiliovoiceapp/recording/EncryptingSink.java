@@ -0,0 +1,217 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Encryption stage that seals the stream in fixed-size AES-GCM chunks as it is written.
+ * <p>
+ * Layout: a header holding the chunk size and the recording's data key, wrapped by a
+ * {@link KeyWrapper}, followed by the chunks. A recording meant for the archive carries
+ * the data key a second time, wrapped for the archive by an {@link ArchiveKeyWrapper},
+ * in a larger {@value #HEADER_SIZE_V2}-byte header; otherwise the header is
+ * {@value #HEADER_SIZE} bytes and holds the device's copy only.
+ * Each chunk is a fresh random 12-byte nonce, the ciphertext and a 16-byte tag. The
+ * chunk index and a last-chunk flag are authenticated with each chunk, so chunks
+ * cannot be reordered or the file silently truncated. Every chunk but the last has
+ * the same size, so {@link EncryptedRecordingReader} can find and decrypt any chunk
+ * on its own.
+ * <p>
+ * Rewriting data inside the first chunk, which is how {@link WavSink} finalizes its
+ * header, is supported by keeping that chunk's plaintext and sealing it again on close.
+ */
+public class EncryptingSink implements PositionalSink {
+
+    public static final String SUFFIX = ".enc";
+    public static final String MIME_TYPE = "application/octet-stream";
+
+    // 16 KB of 48 kHz mono PCM is 170 ms, the most a crash can lose from the open chunk
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+
+    static final int MAGIC = 0x31434E45; // "ENC1"
+    static final int MAGIC_V2 = 0x32434E45; // "ENC2", with the archive's copy of the key
+    static final int HEADER_SIZE = 96;
+    static final int HEADER_SIZE_V2 = 1024;
+    static final int KEY_SIZE = 32;
+    static final int NONCE_SIZE = 12;
+    static final int TAG_SIZE = 16;
+    static final int TAG_BITS = TAG_SIZE * 8;
+    static final String TRANSFORMATION = "AES/GCM/NoPadding";
+
+    private final PositionalSink out;
+    private final int headerSize;
+    private final int chunkSize;
+    private final SecretKeySpec key;
+    private final Cipher cipher;
+    private final SecureRandom random = new SecureRandom();
+    private final byte[] nonce = new byte[NONCE_SIZE];
+    private final byte[] aad = new byte[9];
+
+    private final ByteBuffer chunk;
+    private final ByteBuffer firstChunk;
+    private final ByteBuffer sealed;
+
+    private long chunkIndex;
+    private boolean firstChunkDirty;
+
+    /**
+     * Constructor for a stage whose recording can only be read on this device
+     *
+     * @param out The file to write the encrypted stream to
+     * @param keyWrapper Protects the data key stored in the header
+     * @param chunkSize Plaintext bytes per chunk
+     * @throws IOException If the key could not be set up or the header written
+     */
+    public EncryptingSink(PositionalSink out, KeyWrapper keyWrapper, int chunkSize) throws IOException {
+        this(out, keyWrapper, null, chunkSize);
+    }
+
+    /**
+     * Constructor for the stage. Generates a data key and writes the header.
+     *
+     * @param out The file to write the encrypted stream to
+     * @param keyWrapper Protects the data key stored in the header
+     * @param archiveWrapper Protects the archive's copy of the data key, or null for none
+     * @param chunkSize Plaintext bytes per chunk
+     * @throws IOException If the key could not be set up or the header written
+     */
+    public EncryptingSink(PositionalSink out, KeyWrapper keyWrapper, KeyWrapper archiveWrapper,
+                          int chunkSize) throws IOException {
+        this.out = out;
+        this.headerSize = archiveWrapper != null ? HEADER_SIZE_V2 : HEADER_SIZE;
+        this.chunkSize = chunkSize;
+
+        byte[] rawKey = new byte[KEY_SIZE];
+        random.nextBytes(rawKey);
+        this.key = new SecretKeySpec(rawKey, "AES");
+        byte[] wrappedKey = keyWrapper.wrap(rawKey);
+        byte[] archiveKey = archiveWrapper != null ? archiveWrapper.wrap(rawKey) : new byte[0];
+        int keysSize = 2 + wrappedKey.length + (archiveWrapper != null ? 2 + archiveKey.length : 0);
+        if (keysSize > headerSize - 8) {
+            throw new IOException("Wrapped keys too large: " + wrappedKey.length + " + " + archiveKey.length);
+        }
+        try {
+            this.cipher = Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("AES-GCM not available", e);
+        }
+
+        this.chunk = ByteBuffer.allocateDirect(chunkSize);
+        this.firstChunk = ByteBuffer.allocateDirect(chunkSize);
+        this.sealed = ByteBuffer.allocateDirect(NONCE_SIZE + chunkSize + TAG_SIZE);
+
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(archiveWrapper != null ? MAGIC_V2 : MAGIC).putInt(chunkSize)
+                .putShort((short) wrappedKey.length).put(wrappedKey);
+        if (archiveWrapper != null) {
+            header.putShort((short) archiveKey.length).put(archiveKey);
+        }
+        header.clear();
+        out.writeAt(header, 0);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                // A full chunk is only sealed once more data arrives, so the last one gets the final flag
+                if (!chunk.hasRemaining()) {
+                    sealChunk(false);
+                }
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), chunk.remaining()));
+                chunk.put(buffer);
+                buffer.limit(limit);
+            }
+        }
+    }
+
+    @Override
+    public void writeAt(ByteBuffer buffer, long position) throws IOException {
+        if (position + buffer.remaining() > chunkSize) {
+            throw new IOException("Only the first " + chunkSize + " bytes can be rewritten");
+        }
+        ByteBuffer target = (chunkIndex == 0 ? chunk : firstChunk).duplicate();
+        if (position + buffer.remaining() > target.position()) {
+            throw new IOException("Cannot write past the end of the stream");
+        }
+        target.position((int) position);
+        target.put(buffer);
+        firstChunkDirty = chunkIndex > 0;
+    }
+
+    /**
+     * Seal the open chunk as the last one, reseal the first chunk if it was rewritten,
+     * and close the file
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (firstChunkDirty) {
+                seal(0, firstChunk, false);
+            }
+            if (chunk.position() > 0) {
+                sealChunk(true);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private void sealChunk(boolean last) throws IOException {
+        if (chunkIndex == 0) {
+            firstChunk.clear();
+            chunk.flip();
+            firstChunk.put(chunk);
+        }
+        seal(chunkIndex, chunk, last);
+        chunk.clear();
+        chunkIndex++;
+    }
+
+    /**
+     * Encrypt a chunk's plaintext, from 0 to its position, and write it in its slot
+     */
+    private void seal(long index, ByteBuffer plaintext, boolean last) throws IOException {
+        ByteBuffer input = plaintext.duplicate();
+        input.flip();
+        random.nextBytes(nonce);
+        sealed.clear();
+        sealed.put(nonce);
+        try {
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(TAG_BITS, nonce));
+            cipher.updateAAD(chunkAad(aad, index, last));
+            cipher.doFinal(input, sealed);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error encrypting chunk " + index, e);
+        }
+        sealed.flip();
+        out.writeAt(sealed, chunkOffset(headerSize, index, chunkSize));
+    }
+
+    /**
+     * Get where a chunk is stored in the file
+     */
+    static long chunkOffset(int headerSize, long index, int chunkSize) {
+        return headerSize + index * (NONCE_SIZE + chunkSize + TAG_SIZE);
+    }
+
+    /**
+     * Fill in the associated data authenticated with a chunk
+     */
+    static byte[] chunkAad(byte[] aad, long index, boolean last) {
+        for (int i = 0; i < 8; i++) {
+            aad[i] = (byte) (index >>> (8 * i));
+        }
+        aad[8] = (byte) (last ? 1 : 0);
+        return aad;
+    }
+}
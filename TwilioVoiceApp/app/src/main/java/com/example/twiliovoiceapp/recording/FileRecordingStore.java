@@ -0,0 +1,85 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recording store backed by a directory on the local file system.
+ */
+public class FileRecordingStore implements RecordingStore {
+
+    private final File directory;
+
+    /**
+     * Constructor for the store
+     *
+     * @param directory The directory recordings are kept in; created on first use
+     */
+    public FileRecordingStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get the directory backing this store
+     *
+     * @return The directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public RecordingFile create(String name, String mimeType) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+        // Never reuse a name: the file may belong to a recording that is still being closed
+        File file = new File(directory, name);
+        int dot = name.indexOf('.');
+        String base = dot >= 0 ? name.substring(0, dot) : name;
+        String extension = dot >= 0 ? name.substring(dot) : "";
+        for (int copy = 1; !file.createNewFile(); copy++) {
+            file = new File(directory, base + " (" + copy + ")" + extension);
+        }
+        return openFile(file);
+    }
+
+    @Override
+    public RecordingFile open(String name) throws IOException {
+        File file = new File(directory, name);
+        if (!file.exists()) {
+            throw new FileNotFoundException(file.getAbsolutePath());
+        }
+        return openFile(file);
+    }
+
+    @Override
+    public List<String> list(String suffix) {
+        List<String> names = new ArrayList<>();
+        String[] files = directory.list();
+        if (files != null) {
+            for (String name : files) {
+                if (name.endsWith(suffix)) {
+                    names.add(name);
+                }
+            }
+        }
+        return names;
+    }
+
+    @Override
+    public boolean delete(String name) {
+        return new File(directory, name).delete();
+    }
+
+    private RecordingFile openFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        return new RecordingFile(file.getName(), file.getAbsolutePath(), channel, channel, raf);
+    }
+}
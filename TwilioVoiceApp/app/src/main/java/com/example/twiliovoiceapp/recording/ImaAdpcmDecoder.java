@@ -0,0 +1,81 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Decoder for WAV-style IMA-ADPCM blocks as written by {@link ImaAdpcmEncoder}.
+ */
+public class ImaAdpcmDecoder {
+
+    private final int channels;
+    private final int samplesPerBlock;
+    private final int[] predictors;
+    private final int[] indices;
+
+    /**
+     * Constructor for the decoder
+     *
+     * @param format The IMA-ADPCM format of the blocks to decode
+     */
+    public ImaAdpcmDecoder(WavFormat format) {
+        if (format.getFormatTag() != WavFormat.FORMAT_IMA_ADPCM) {
+            throw new IllegalArgumentException("Not an IMA-ADPCM format: " + format);
+        }
+        this.channels = format.getChannels();
+        this.samplesPerBlock = format.getSamplesPerBlock();
+        this.predictors = new int[channels];
+        this.indices = new int[channels];
+    }
+
+    /**
+     * Decode one block into interleaved 16-bit little-endian PCM
+     *
+     * @param block The encoded block, consumed from position to limit
+     * @param pcm Destination with room for samplesPerBlock frames
+     */
+    public void decodeBlock(ByteBuffer block, ByteBuffer pcm) {
+        block.order(ByteOrder.LITTLE_ENDIAN);
+        pcm.order(ByteOrder.LITTLE_ENDIAN);
+        int base = pcm.position();
+        int frameBytes = 2 * channels;
+
+        for (int ch = 0; ch < channels; ch++) {
+            predictors[ch] = block.getShort();
+            indices[ch] = Math.min(88, Math.max(0, block.get()));
+            block.get();
+            pcm.putShort(base + ch * 2, (short) predictors[ch]);
+        }
+
+        for (int frame = 1; frame < samplesPerBlock; frame += 8) {
+            for (int ch = 0; ch < channels; ch++) {
+                for (int k = 0; k < 8; k += 2) {
+                    int b = block.get() & 0xFF;
+                    pcm.putShort(base + (frame + k) * frameBytes + ch * 2, decodeNibble(ch, b & 0x0F));
+                    pcm.putShort(base + (frame + k + 1) * frameBytes + ch * 2, decodeNibble(ch, b >> 4));
+                }
+            }
+        }
+        pcm.position(base + samplesPerBlock * frameBytes);
+    }
+
+    private short decodeNibble(int ch, int nibble) {
+        int step = ImaAdpcmEncoder.STEP_TABLE[indices[ch]];
+        int delta = step >> 3;
+        if ((nibble & 4) != 0) {
+            delta += step;
+        }
+        if ((nibble & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            delta += step >> 2;
+        }
+
+        int predictor = predictors[ch] + ((nibble & 8) != 0 ? -delta : delta);
+        predictor = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, predictor));
+        predictors[ch] = predictor;
+        indices[ch] = Math.max(0, Math.min(88, indices[ch] + ImaAdpcmEncoder.INDEX_TABLE[nibble]));
+        return (short) predictor;
+    }
+}
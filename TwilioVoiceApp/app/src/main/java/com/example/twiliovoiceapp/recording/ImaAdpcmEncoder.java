@@ -0,0 +1,195 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Streaming IMA-ADPCM encoder stage.
+ * Takes 16-bit little-endian PCM and writes WAV-style IMA-ADPCM blocks to the next sink
+ * as soon as each block is full, so the recording is compressed about 4:1 while the call
+ * is in progress. All state is preallocated; memory use is one block of samples.
+ */
+public class ImaAdpcmEncoder implements RecordingSink {
+
+    static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8,
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17,
+            19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118,
+            130, 143, 157, 173, 190, 209, 230, 253, 279, 307,
+            337, 371, 408, 449, 494, 544, 598, 658, 724, 796,
+            876, 963, 1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066,
+            2272, 2499, 2749, 3024, 3327, 3660, 4026, 4428, 4871, 5358,
+            5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487, 12635, 13899,
+            15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    private final RecordingSink out;
+    private final int channels;
+    private final int samplesPerBlock;
+
+    // Interleaved PCM samples collected for the current block
+    private final short[] samples;
+    private int sampleCount;
+
+    // Low byte of a sample split across two input buffers
+    private int pendingByte = -1;
+
+    // Per-channel encoder state, carried from block to block
+    private final int[] predictors;
+    private final int[] indices;
+
+    private final ByteBuffer block;
+    private final ByteBuffer[] blockArray;
+
+    /**
+     * Constructor for the encoder
+     *
+     * @param out The sink that receives encoded blocks, normally a {@link WavSink}
+     * @param format The IMA-ADPCM format to produce, from {@link WavFormat#imaAdpcm}
+     */
+    public ImaAdpcmEncoder(RecordingSink out, WavFormat format) {
+        if (format.getFormatTag() != WavFormat.FORMAT_IMA_ADPCM) {
+            throw new IllegalArgumentException("Not an IMA-ADPCM format: " + format);
+        }
+        this.out = out;
+        this.channels = format.getChannels();
+        this.samplesPerBlock = format.getSamplesPerBlock();
+        this.samples = new short[samplesPerBlock * channels];
+        this.predictors = new int[channels];
+        this.indices = new int[channels];
+        this.block = ByteBuffer.allocateDirect(format.getBlockAlign()).order(ByteOrder.LITTLE_ENDIAN);
+        this.blockArray = new ByteBuffer[] {block};
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            while (buffer.hasRemaining()) {
+                int low;
+                if (pendingByte >= 0) {
+                    low = pendingByte;
+                    pendingByte = -1;
+                } else if (buffer.remaining() >= 2) {
+                    low = buffer.get() & 0xFF;
+                } else {
+                    pendingByte = buffer.get() & 0xFF;
+                    break;
+                }
+                samples[sampleCount++] = (short) (low | (buffer.get() << 8));
+                if (sampleCount == samples.length) {
+                    encodeBlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Encode the final partial block, padded with its last sample, and close the next sink
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (sampleCount > 0) {
+                sampleCount -= sampleCount % channels;
+                while (sampleCount > 0 && sampleCount < samples.length) {
+                    samples[sampleCount] = samples[sampleCount - channels];
+                    sampleCount++;
+                }
+                if (sampleCount > 0) {
+                    encodeBlock();
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Encode the collected samples into one block and hand it to the next sink
+     */
+    private void encodeBlock() throws IOException {
+        block.clear();
+
+        // Block header: the first sample of each channel is stored verbatim
+        for (int ch = 0; ch < channels; ch++) {
+            predictors[ch] = samples[ch];
+            block.putShort(samples[ch]);
+            block.put((byte) indices[ch]);
+            block.put((byte) 0);
+        }
+
+        // The rest is stored as groups of 8 samples (4 bytes) per channel, interleaved
+        for (int frame = 1; frame < samplesPerBlock; frame += 8) {
+            for (int ch = 0; ch < channels; ch++) {
+                for (int k = 0; k < 8; k += 2) {
+                    int lowNibble = encodeSample(ch, samples[(frame + k) * channels + ch]);
+                    int highNibble = encodeSample(ch, samples[(frame + k + 1) * channels + ch]);
+                    block.put((byte) (lowNibble | (highNibble << 4)));
+                }
+            }
+        }
+
+        block.flip();
+        out.write(blockArray, 0, 1);
+        sampleCount = 0;
+    }
+
+    /**
+     * Encode one sample against the channel's predictor and update the predictor state
+     */
+    private int encodeSample(int ch, int sample) {
+        int predictor = predictors[ch];
+        int index = indices[ch];
+        int step = STEP_TABLE[index];
+
+        int diff = sample - predictor;
+        int nibble = 0;
+        if (diff < 0) {
+            nibble = 8;
+            diff = -diff;
+        }
+
+        int delta = step >> 3;
+        if (diff >= step) {
+            nibble |= 4;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 2;
+            diff -= step;
+            delta += step;
+        }
+        step >>= 1;
+        if (diff >= step) {
+            nibble |= 1;
+            delta += step;
+        }
+
+        predictor += (nibble & 8) != 0 ? -delta : delta;
+        if (predictor > Short.MAX_VALUE) {
+            predictor = Short.MAX_VALUE;
+        } else if (predictor < Short.MIN_VALUE) {
+            predictor = Short.MIN_VALUE;
+        }
+
+        index += INDEX_TABLE[nibble];
+        if (index < 0) {
+            index = 0;
+        } else if (index > 88) {
+            index = 88;
+        }
+
+        predictors[ch] = predictor;
+        indices[ch] = index;
+        return nibble;
+    }
+}
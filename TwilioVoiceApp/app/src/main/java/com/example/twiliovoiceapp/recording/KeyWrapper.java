@@ -0,0 +1,27 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+
+/**
+ * Protects the per-recording data keys of encrypted recordings with a long-lived master key.
+ */
+public interface KeyWrapper {
+
+    /**
+     * Encrypt a data key for storage in a recording's header
+     *
+     * @param key The raw data key
+     * @return The wrapped key
+     * @throws IOException If the master key is unavailable
+     */
+    byte[] wrap(byte[] key) throws IOException;
+
+    /**
+     * Recover a data key from a recording's header
+     *
+     * @param wrappedKey The wrapped key
+     * @return The raw data key
+     * @throws IOException If the master key is unavailable or the wrapped key is invalid
+     */
+    byte[] unwrap(byte[] wrappedKey) throws IOException;
+}
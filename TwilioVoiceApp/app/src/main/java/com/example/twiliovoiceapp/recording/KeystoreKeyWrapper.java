@@ -0,0 +1,108 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.os.Build;
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyProperties;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Key wrapper backed by an AES key in the Android Keystore, which never leaves
+ * secure hardware where the device has it. Only the short data keys go through the
+ * Keystore; audio is encrypted in-process with the unwrapped data key, so recording
+ * throughput does not depend on Keystore calls.
+ */
+@RequiresApi(api = Build.VERSION_CODES.M)
+public class KeystoreKeyWrapper implements KeyWrapper {
+
+    private static final String KEYSTORE = "AndroidKeyStore";
+    private static final String KEY_ALIAS = "recording_master_key";
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_SIZE = 12;
+    private static final int TAG_BITS = 128;
+
+    private static volatile KeystoreKeyWrapper INSTANCE;
+
+    private SecretKey masterKey;
+
+    private KeystoreKeyWrapper() {
+    }
+
+    /**
+     * Get the shared key wrapper
+     *
+     * @return The key wrapper
+     */
+    public static KeystoreKeyWrapper getInstance() {
+        if (INSTANCE == null) {
+            synchronized (KeystoreKeyWrapper.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new KeystoreKeyWrapper();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    @Override
+    public byte[] wrap(byte[] key) throws IOException {
+        try {
+            // The Keystore picks a random IV; it is stored in front of the wrapped key
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, getMasterKey());
+            byte[] iv = cipher.getIV();
+            byte[] sealed = cipher.doFinal(key);
+            byte[] wrapped = Arrays.copyOf(iv, IV_SIZE + sealed.length);
+            System.arraycopy(sealed, 0, wrapped, IV_SIZE, sealed.length);
+            return wrapped;
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error wrapping recording key", e);
+        }
+    }
+
+    @Override
+    public byte[] unwrap(byte[] wrappedKey) throws IOException {
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.DECRYPT_MODE, getMasterKey(),
+                    new GCMParameterSpec(TAG_BITS, wrappedKey, 0, IV_SIZE));
+            return cipher.doFinal(wrappedKey, IV_SIZE, wrappedKey.length - IV_SIZE);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Error unwrapping recording key", e);
+        }
+    }
+
+    /**
+     * Load the master key, generating it on first use
+     */
+    private synchronized SecretKey getMasterKey() throws GeneralSecurityException, IOException {
+        if (masterKey == null) {
+            KeyStore keyStore = KeyStore.getInstance(KEYSTORE);
+            keyStore.load(null);
+            KeyStore.Entry entry = keyStore.getEntry(KEY_ALIAS, null);
+            if (entry instanceof KeyStore.SecretKeyEntry) {
+                masterKey = ((KeyStore.SecretKeyEntry) entry).getSecretKey();
+            } else {
+                KeyGenerator generator = KeyGenerator.getInstance(KeyProperties.KEY_ALGORITHM_AES, KEYSTORE);
+                generator.init(new KeyGenParameterSpec.Builder(KEY_ALIAS,
+                        KeyProperties.PURPOSE_ENCRYPT | KeyProperties.PURPOSE_DECRYPT)
+                        .setBlockModes(KeyProperties.BLOCK_MODE_GCM)
+                        .setEncryptionPaddings(KeyProperties.ENCRYPTION_PADDING_NONE)
+                        .setKeySize(256)
+                        .build());
+                masterKey = generator.generateKey();
+            }
+        }
+        return masterKey;
+    }
+}
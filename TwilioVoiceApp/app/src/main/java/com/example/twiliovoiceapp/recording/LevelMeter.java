@@ -0,0 +1,170 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pass-through stage that measures the RMS and peak level of the audio on its way to
+ * the next stage. Levels are computed per 20 ms frame, reading samples in place without
+ * moving the buffers' positions, so nothing is allocated per frame.
+ * <p>
+ * Frames are summarized into one report per publish interval, carrying the loudest
+ * frame's RMS and the highest peak, so short bursts still show up on a meter that
+ * refreshes far less often than frames arrive. The stage also reports when the audio
+ * has been digital silence for a while, which is what a dead or blocked microphone
+ * looks like as opposed to a quiet room.
+ */
+public class LevelMeter implements RecordingSink {
+
+    // Level reported for digital silence
+    public static final float SILENCE_DBFS = -96f;
+
+    // Frames per second the levels are computed over
+    private static final int FRAMES_PER_SECOND = 50;
+
+    // A frame whose peak is at or below this is treated as digital silence
+    private static final int DEAD_PEAK = 1;
+
+    /**
+     * Interface for level reports, called on the thread writing to the stage
+     */
+    public interface Listener {
+        /**
+         * Report the levels since the previous report
+         *
+         * @param rmsDbfs RMS level of the loudest frame, in dBFS
+         * @param peakDbfs Highest sample peak, in dBFS
+         */
+        void onLevel(float rmsDbfs, float peakDbfs);
+
+        /**
+         * Report that the audio went dead, or came back
+         *
+         * @param dead true once the audio has been digital silence for the dead time
+         */
+        void onDeadAudio(boolean dead);
+    }
+
+    private final RecordingSink out;
+    private final Listener listener;
+    private final int samplesPerFrame;
+    private final long publishIntervalNanos;
+    private final long deadFrameLimit;
+
+    // Current frame
+    private int sampleCount;
+    private long sumSquares;
+    private int framePeak;
+
+    // Since the last report
+    private long maxSumSquares;
+    private int maxPeak;
+    private long lastPublish;
+
+    private long deadFrames;
+    private boolean dead;
+
+    // Low byte of a sample split across two input buffers
+    private int pendingByte = -1;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The next stage
+     * @param format Format of the incoming 16-bit PCM
+     * @param listener Receiver of the level reports
+     * @param publishIntervalMillis Shortest time between two level reports
+     * @param deadMillis How long the audio must be digital silence to count as dead
+     */
+    public LevelMeter(RecordingSink out, WavFormat format, Listener listener,
+                      long publishIntervalMillis, long deadMillis) {
+        this.out = out;
+        this.listener = listener;
+        this.samplesPerFrame = format.getSampleRate() / FRAMES_PER_SECOND * format.getChannels();
+        this.publishIntervalNanos = publishIntervalMillis * 1000000;
+        this.deadFrameLimit = deadMillis * FRAMES_PER_SECOND / 1000;
+        this.lastPublish = System.nanoTime();
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            if (pendingByte >= 0 && pos < limit) {
+                addSample((short) (pendingByte | (buffer.get(pos++) << 8)));
+                pendingByte = -1;
+            }
+            for (; pos + 1 < limit; pos += 2) {
+                addSample((short) ((buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) << 8)));
+            }
+            if (pos < limit) {
+                pendingByte = buffer.get(pos) & 0xFF;
+            }
+        }
+        out.write(buffers, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    /**
+     * Convert a sample amplitude to dBFS
+     *
+     * @param amplitude The amplitude, where 32768 is full scale
+     * @return The level in dBFS, at least {@link #SILENCE_DBFS}
+     */
+    public static float toDbfs(double amplitude) {
+        if (amplitude <= 0) {
+            return SILENCE_DBFS;
+        }
+        return (float) Math.max(SILENCE_DBFS, 20 * Math.log10(amplitude / 32768.0));
+    }
+
+    private void addSample(int sample) {
+        sumSquares += sample * sample;
+        int magnitude = sample < 0 ? -sample : sample;
+        if (magnitude > framePeak) {
+            framePeak = magnitude;
+        }
+        if (++sampleCount == samplesPerFrame) {
+            endFrame();
+        }
+    }
+
+    private void endFrame() {
+        if (sumSquares > maxSumSquares) {
+            maxSumSquares = sumSquares;
+        }
+        if (framePeak > maxPeak) {
+            maxPeak = framePeak;
+        }
+
+        if (framePeak <= DEAD_PEAK) {
+            if (++deadFrames == deadFrameLimit) {
+                dead = true;
+                listener.onDeadAudio(true);
+            }
+        } else {
+            deadFrames = 0;
+            if (dead) {
+                dead = false;
+                listener.onDeadAudio(false);
+            }
+        }
+        sampleCount = 0;
+        sumSquares = 0;
+        framePeak = 0;
+
+        long now = System.nanoTime();
+        if (now - lastPublish >= publishIntervalNanos) {
+            lastPublish = now;
+            listener.onLevel(toDbfs(Math.sqrt((double) maxSumSquares / samplesPerFrame)), toDbfs(maxPeak));
+            maxSumSquares = 0;
+            maxPeak = 0;
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sidecar file holding a min/max peak summary of a recording, written by
+ * {@link PeakIndexer}. Each entry covers a fixed window of sample frames and stores
+ * the lowest and highest sample in it, reduced to 8 bits, which is plenty for drawing
+ * a waveform. An hour of audio at 48 kHz summarizes to about 330 KB, and a thumbnail
+ * only needs to read a few kilobytes of it.
+ */
+public final class PeakIndex {
+
+    public static final String SUFFIX = ".peaks";
+
+    private static final int MAGIC = 0x31534B50; // "PKS1"
+    private static final int HEADER_SIZE = 12;
+    private static final int ENTRY_SIZE = 2;
+
+    private final int sampleRate;
+    private final int framesPerPeak;
+    private final byte[] peaks;
+
+    private PeakIndex(int sampleRate, int framesPerPeak, byte[] peaks) {
+        this.sampleRate = sampleRate;
+        this.framesPerPeak = framesPerPeak;
+        this.peaks = peaks;
+    }
+
+    /**
+     * Get the sidecar file name for a recording
+     *
+     * @param recordingName File name of the recording
+     * @return File name of its peak index
+     */
+    public static String nameFor(String recordingName) {
+        return recordingName + SUFFIX;
+    }
+
+    /**
+     * Read a peak index
+     *
+     * @param channel A channel for reading the sidecar file
+     * @return The parsed index
+     * @throws IOException If the file could not be read or is not a peak index
+     */
+    public static PeakIndex read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid peak index size " + size);
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(channel, header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC) {
+            throw new IOException("Not a peak index");
+        }
+        int sampleRate = header.getInt();
+        int framesPerPeak = header.getInt();
+
+        // A trailing partial entry from an interrupted write is ignored
+        int count = (int) ((size - HEADER_SIZE) / ENTRY_SIZE);
+        byte[] peaks = new byte[count * ENTRY_SIZE];
+        readFully(channel, ByteBuffer.wrap(peaks), HEADER_SIZE);
+        return new PeakIndex(sampleRate, framesPerPeak, peaks);
+    }
+
+    /**
+     * Get the sample rate of the recording
+     *
+     * @return The sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the number of sample frames each peak covers
+     *
+     * @return The window length in frames
+     */
+    public int getFramesPerPeak() {
+        return framesPerPeak;
+    }
+
+    /**
+     * Get the number of peaks
+     *
+     * @return The entry count
+     */
+    public int size() {
+        return peaks.length / ENTRY_SIZE;
+    }
+
+    /**
+     * Get the duration covered by the index
+     *
+     * @return The duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return (long) size() * framesPerPeak * 1000 / sampleRate;
+    }
+
+    /**
+     * Get the lowest sample in a window
+     *
+     * @param index The peak index
+     * @return The minimum, scaled to -128..127
+     */
+    public int getMin(int index) {
+        return peaks[index * ENTRY_SIZE];
+    }
+
+    /**
+     * Get the highest sample in a window
+     *
+     * @param index The peak index
+     * @return The maximum, scaled to -128..127
+     */
+    public int getMax(int index) {
+        return peaks[index * ENTRY_SIZE + 1];
+    }
+
+    /**
+     * Widen a minimum and maximum to cover a range of sample frames, e.g. the part of a
+     * seek bar column stored in this recording
+     *
+     * @param fromFrame First frame of the range
+     * @param toFrame Frame after the last
+     * @param minMax The minimum and maximum so far, scaled to -128..127; updated in place
+     */
+    public void accumulate(long fromFrame, long toFrame, int[] minMax) {
+        int count = size();
+        int from = (int) Math.min(count, fromFrame / framesPerPeak);
+        int to = (int) Math.min(count, (toFrame + framesPerPeak - 1) / framesPerPeak);
+        for (int i = from; i < to; i++) {
+            minMax[0] = Math.min(minMax[0], getMin(i));
+            minMax[1] = Math.max(minMax[1], getMax(i));
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Unexpected end of peak index");
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Appends peaks to an index while recording. Entries are buffered and written
+     * a few kilobytes at a time.
+     */
+    static class Writer implements Closeable {
+
+        private static final int BUFFER_SIZE = 4096;
+
+        private final RecordingFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(RecordingFile file, int sampleRate, int framesPerPeak) throws IOException {
+            this.file = file;
+            this.channel = file.getWriteChannel();
+            buffer.putInt(MAGIC).putInt(sampleRate).putInt(framesPerPeak);
+        }
+
+        void add(int min, int max) throws IOException {
+            if (buffer.remaining() < ENTRY_SIZE) {
+                flush();
+            }
+            buffer.put((byte) (min >> 8)).put((byte) (max >> 8));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                file.close();
+            }
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
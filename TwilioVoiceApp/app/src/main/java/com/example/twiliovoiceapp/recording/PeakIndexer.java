@@ -0,0 +1,95 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pass-through stage that builds a {@link PeakIndex} of the audio on its way to the
+ * next stage. Samples are read in place without moving the buffers' positions, so
+ * the audio itself is handed on untouched and nothing is allocated per batch.
+ */
+public class PeakIndexer implements RecordingSink {
+
+    // About 21 ms at 48 kHz, fine enough to scrub by
+    public static final int DEFAULT_FRAMES_PER_PEAK = 1024;
+
+    private final RecordingSink out;
+    private final PeakIndex.Writer peaks;
+    private final int samplesPerPeak;
+
+    private int sampleCount;
+    private int min = Integer.MAX_VALUE;
+    private int max = Integer.MIN_VALUE;
+
+    // Low byte of a sample split across two input buffers
+    private int pendingByte = -1;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The next stage
+     * @param format Format of the incoming 16-bit PCM
+     * @param peakFile Sidecar file the peak index is written to
+     * @param framesPerPeak Number of sample frames summarized by each peak
+     * @throws IOException If the sidecar could not be written
+     */
+    public PeakIndexer(RecordingSink out, WavFormat format, RecordingFile peakFile, int framesPerPeak)
+            throws IOException {
+        this.out = out;
+        this.peaks = new PeakIndex.Writer(peakFile, format.getSampleRate(), framesPerPeak);
+        this.samplesPerPeak = framesPerPeak * format.getChannels();
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            if (pendingByte >= 0 && pos < limit) {
+                addSample(pendingByte | (buffer.get(pos++) << 8));
+                pendingByte = -1;
+            }
+            for (; pos + 1 < limit; pos += 2) {
+                addSample((buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) << 8));
+            }
+            if (pos < limit) {
+                pendingByte = buffer.get(pos) & 0xFF;
+            }
+        }
+        out.write(buffers, offset, length);
+    }
+
+    /**
+     * Write the final partial window and close both the index and the next stage
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (sampleCount > 0) {
+                peaks.add(min, max);
+            }
+        } finally {
+            try {
+                peaks.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void addSample(int sample) throws IOException {
+        if (sample < min) {
+            min = sample;
+        }
+        if (sample > max) {
+            max = sample;
+        }
+        if (++sampleCount == samplesPerPeak) {
+            peaks.add(min, max);
+            sampleCount = 0;
+            min = Integer.MAX_VALUE;
+            max = Integer.MIN_VALUE;
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Recording sink that also supports writing at an absolute position.
+ * Used by container writers that reserve a header up front and patch it in place
+ * once the final sizes are known.
+ */
+public interface PositionalSink extends RecordingSink {
+
+    /**
+     * Write a buffer at an absolute position without moving the sequential write position.
+     *
+     * @param buffer The data to write, consumed from position to limit
+     * @param position Absolute byte offset to write at
+     * @throws IOException If the data could not be written
+     */
+    void writeAt(ByteBuffer buffer, long position) throws IOException;
+}
@@ -0,0 +1,125 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed-size ring holding the most recent audio of a call, so that a recording can
+ * start with what was said before Record was pressed.
+ * <p>
+ * The ring is a single direct buffer allocated up front; once it is full each write
+ * overwrites the oldest audio, so memory use stays constant however long the call lasts.
+ * {@link #drainTo} hands the buffered audio to a recording in order and detaches the
+ * ring, after which writes are ignored until {@link #reset} arms it again.
+ */
+public class PreRollBuffer {
+
+    private final ByteBuffer ring;
+
+    // Total bytes written since the last reset; the write position is this modulo the capacity
+    private long bytesWritten;
+    private boolean detached;
+
+    /**
+     * Constructor for the ring
+     *
+     * @param format Format of the incoming PCM
+     * @param millis How much of the most recent audio to keep
+     */
+    public PreRollBuffer(WavFormat format, long millis) {
+        // Whole frames only, so the oldest byte always starts a frame
+        long frames = format.getSampleRate() * millis / 1000;
+        this.ring = ByteBuffer.allocateDirect((int) (frames * format.getBlockAlign()));
+    }
+
+    /**
+     * Get the size of the ring
+     *
+     * @return The capacity in bytes
+     */
+    public int getCapacity() {
+        return ring.capacity();
+    }
+
+    /**
+     * Copy audio into the ring, overwriting the oldest audio once it is full.
+     * The buffer's position is left unchanged.
+     *
+     * @param buffer The audio to add
+     */
+    public synchronized void write(ByteBuffer buffer) {
+        if (detached) {
+            return;
+        }
+        int capacity = ring.capacity();
+        ByteBuffer src = buffer.duplicate();
+        if (src.remaining() > capacity) {
+            // Only the end of an oversized buffer can survive
+            bytesWritten += src.remaining() - capacity;
+            src.position(src.limit() - capacity);
+        }
+
+        int length = src.remaining();
+        int pos = (int) (bytesWritten % capacity);
+        int first = Math.min(length, capacity - pos);
+        int limit = src.limit();
+        src.limit(src.position() + first);
+        ring.limit(capacity).position(pos);
+        ring.put(src);
+        if (first < length) {
+            src.limit(limit);
+            ring.position(0);
+            ring.put(src);
+        }
+        bytesWritten += length;
+    }
+
+    /**
+     * Write the buffered audio, oldest first, to a sink and detach the ring.
+     * Writes arriving after this are ignored, so the copy runs outside the lock
+     * without the audio thread waiting on it.
+     *
+     * @param out The sink to write to
+     * @return The number of bytes written
+     * @throws IOException If the sink failed
+     */
+    public long drainTo(RecordingSink out) throws IOException {
+        ByteBuffer[] slices;
+        synchronized (this) {
+            if (detached) {
+                return 0;
+            }
+            detached = true;
+            int capacity = ring.capacity();
+            if (bytesWritten <= capacity) {
+                slices = new ByteBuffer[] {slice(0, (int) bytesWritten)};
+            } else {
+                int pos = (int) (bytesWritten % capacity);
+                slices = new ByteBuffer[] {slice(pos, capacity), slice(0, pos)};
+            }
+        }
+
+        long length = 0;
+        for (ByteBuffer slice : slices) {
+            length += slice.remaining();
+        }
+        if (length > 0) {
+            out.write(slices, 0, slices.length);
+        }
+        return length;
+    }
+
+    /**
+     * Empty the ring and start buffering again
+     */
+    public synchronized void reset() {
+        bytesWritten = 0;
+        detached = false;
+    }
+
+    private ByteBuffer slice(int from, int to) {
+        ByteBuffer slice = ring.duplicate();
+        slice.limit(to).position(from);
+        return slice;
+    }
+}
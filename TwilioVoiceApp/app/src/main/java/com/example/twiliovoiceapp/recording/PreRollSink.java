@@ -0,0 +1,60 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stage at the top of a recording that writes the audio held in a {@link PreRollBuffer}
+ * ahead of the live audio. The ring is drained on the writer thread when the first live
+ * batch arrives, or at close if none does, so pressing Record never waits on the disk.
+ */
+public class PreRollSink implements RecordingSink {
+
+    private final RecordingSink out;
+    private final PreRollBuffer preRoll;
+
+    private boolean drained;
+    private long preRollBytes;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The rest of the recording
+     * @param preRoll The ring holding the audio before the recording started
+     */
+    public PreRollSink(RecordingSink out, PreRollBuffer preRoll) {
+        this.out = out;
+        this.preRoll = preRoll;
+    }
+
+    /**
+     * Get the amount of buffered audio written ahead of the live audio
+     *
+     * @return The byte count, or 0 until the ring has been drained
+     */
+    public long getPreRollBytes() {
+        return preRollBytes;
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        drain();
+        out.write(buffers, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            drain();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (!drained) {
+            drained = true;
+            preRollBytes = preRoll.drainTo(out);
+        }
+    }
+}
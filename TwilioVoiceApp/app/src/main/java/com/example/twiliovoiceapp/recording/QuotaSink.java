@@ -0,0 +1,81 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Stage at the top of a file's chain that charges the file's growth to a
+ * {@link StorageAccount}. When the account reports storage exhausted, further audio
+ * is dropped before it reaches the rest of the chain, so a full disk ends the recording
+ * early with a valid, finalized file instead of failing with an IOException partway
+ * through the call. Growth is measured on the file itself, so compression, silence
+ * suppression and encryption overhead are all accounted for exactly.
+ */
+public class QuotaSink implements RecordingSink {
+    private static final String TAG = "QuotaSink";
+
+    private final RecordingSink out;
+    private final ChannelSink file;
+    private final StorageAccount account;
+
+    private long size;
+    private long droppedBytes;
+    private boolean exhausted;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The rest of the chain
+     * @param file The sink at the bottom of the chain writing the file
+     * @param account The account the file's growth is charged to
+     */
+    public QuotaSink(RecordingSink out, ChannelSink file, StorageAccount account) {
+        this.out = out;
+        this.file = file;
+        this.account = account;
+    }
+
+    /**
+     * Get the number of audio bytes dropped because storage was exhausted
+     *
+     * @return The dropped byte count
+     */
+    public long getDroppedBytes() {
+        return droppedBytes;
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        if (exhausted) {
+            for (int i = offset; i < offset + length; i++) {
+                droppedBytes += buffers[i].remaining();
+                buffers[i].position(buffers[i].limit());
+            }
+            return;
+        }
+
+        out.write(buffers, offset, length);
+        long newSize = file.getSize();
+        if (newSize > size) {
+            if (!account.charge(newSize - size)) {
+                exhausted = true;
+                Log.w(TAG, "Storage exhausted at " + newSize + " bytes; dropping the rest of the recording");
+            }
+            size = newSize;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+
+        // The final header or chunk may still have grown the file
+        long newSize = file.getSize();
+        if (newSize > size) {
+            account.charge(newSize - size);
+            size = newSize;
+        }
+    }
+}
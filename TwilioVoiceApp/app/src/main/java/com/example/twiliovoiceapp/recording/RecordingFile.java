@@ -0,0 +1,59 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * An open file in a {@link RecordingStore}.
+ * Exposes separate read and write channels because a descriptor handed out by a
+ * document provider can only be wrapped in one direction at a time; for local files
+ * both are the same channel.
+ */
+public class RecordingFile implements Closeable {
+
+    private final String name;
+    private final String location;
+    private final FileChannel readChannel;
+    private final FileChannel writeChannel;
+    private final Closeable resource;
+
+    /**
+     * Constructor for the file
+     *
+     * @param name The file name within its store
+     * @param location User-visible location, a path or content URI
+     * @param readChannel Channel for reading, or null if the file is write-only
+     * @param writeChannel Channel for writing
+     * @param resource The underlying resource, closed together with the file
+     */
+    public RecordingFile(String name, String location, FileChannel readChannel,
+                         FileChannel writeChannel, Closeable resource) {
+        this.name = name;
+        this.location = location;
+        this.readChannel = readChannel;
+        this.writeChannel = writeChannel;
+        this.resource = resource;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public FileChannel getReadChannel() {
+        return readChannel;
+    }
+
+    public FileChannel getWriteChannel() {
+        return writeChannel;
+    }
+
+    @Override
+    public void close() throws IOException {
+        resource.close();
+    }
+}
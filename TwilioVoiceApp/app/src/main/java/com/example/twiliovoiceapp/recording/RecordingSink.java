@@ -0,0 +1,24 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Destination for recorded audio.
+ * Sinks consume the remaining bytes of each buffer they are given and can be
+ * chained, so that a processing stage writes its output into the next sink.
+ */
+public interface RecordingSink extends Closeable {
+
+    /**
+     * Write a batch of buffers.
+     * Each buffer is consumed from its position to its limit.
+     *
+     * @param buffers The buffers to write
+     * @param offset Index of the first buffer to write
+     * @param length Number of buffers to write
+     * @throws IOException If the data could not be written
+     */
+    void write(ByteBuffer[] buffers, int offset, int length) throws IOException;
+}
@@ -0,0 +1,47 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * A place where recordings are kept, either a local directory or a
+ * Storage Access Framework document tree chosen by the user.
+ */
+public interface RecordingStore {
+
+    /**
+     * Create a new, empty file and open it for writing. An existing file is never
+     * overwritten; the new one is given another name instead.
+     *
+     * @param name The file name
+     * @param mimeType The MIME type of the file
+     * @return The open file, whose name may differ from the one asked for
+     * @throws IOException If the file could not be created
+     */
+    RecordingFile create(String name, String mimeType) throws IOException;
+
+    /**
+     * Open an existing file for reading and writing
+     *
+     * @param name The file name
+     * @return The open file
+     * @throws IOException If the file does not exist or could not be opened
+     */
+    RecordingFile open(String name) throws IOException;
+
+    /**
+     * List the files in the store
+     *
+     * @param suffix Only names ending with this suffix are returned
+     * @return The matching file names
+     */
+    List<String> list(String suffix);
+
+    /**
+     * Delete a file
+     *
+     * @param name The file name
+     * @return true if the file was deleted
+     */
+    boolean delete(String name);
+}
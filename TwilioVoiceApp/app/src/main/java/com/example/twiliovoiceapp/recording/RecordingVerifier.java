@@ -0,0 +1,187 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Checks a recording file against its {@link BlockChecksums} and reports the byte
+ * ranges that are damaged. The file is read front to back in large sequential reads,
+ * so a recording is verified about as fast as the storage can deliver it.
+ */
+public final class RecordingVerifier {
+
+    // Read size; whole blocks at a time, about a megabyte per read
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private RecordingVerifier() {
+    }
+
+    /**
+     * Verify a recording file
+     *
+     * @param data A channel for reading the recording file
+     * @param checksums The checksums of the file
+     * @return The verification report
+     * @throws IOException If the file could not be read
+     */
+    public static Report verify(FileChannel data, BlockChecksums checksums) throws IOException {
+        int blockSize = checksums.getBlockSize();
+        long fileSize = data.size();
+
+        // A sealed file must have exactly its recorded length; an interrupted one is
+        // checked as far as its completed blocks go
+        long expectedSize = checksums.isSealed()
+                ? checksums.getLength()
+                : (long) checksums.size() * blockSize;
+        int blocks = (int) Math.min(checksums.size(), (expectedSize + blockSize - 1) / blockSize);
+
+        Report report = new Report(checksums.isSealed(), fileSize);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(Math.max(1, READ_SIZE / blockSize) * blockSize);
+        Crc32c crc = new Crc32c();
+        long position = 0;
+        int index = 0;
+        while (index < blocks && position < fileSize) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), expectedSize - position));
+            int read = readUpTo(data, buffer, position);
+            buffer.flip();
+
+            // Check every block that was read in full
+            while (index < blocks && buffer.hasRemaining()) {
+                long end = Math.min((long) (index + 1) * blockSize, expectedSize);
+                int length = (int) (end - position);
+                if (buffer.remaining() < length) {
+                    break;
+                }
+                ByteBuffer block = buffer.duplicate();
+                block.limit(block.position() + length);
+                crc.reset();
+                crc.update(block);
+                if (crc.getValue() != checksums.get(index)) {
+                    report.addDamage(position, end);
+                } else {
+                    report.verifiedBytes += length;
+                }
+                buffer.position(buffer.position() + length);
+                position = end;
+                index++;
+            }
+            if (read < buffer.limit() || (index < blocks && buffer.hasRemaining())) {
+                // The file ends before the last block it should contain
+                break;
+            }
+        }
+
+        if (position < expectedSize) {
+            // Cut off: the rest of the file, or of its checksums, is missing
+            report.addDamage(position, expectedSize);
+        }
+        report.uncheckedBytes = Math.max(0, fileSize - expectedSize);
+        return report;
+    }
+
+    private static int readUpTo(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+
+    /**
+     * Result of verifying a recording file
+     */
+    public static class Report {
+        private final boolean sealed;
+        private final long fileSize;
+        private final List<long[]> damagedRanges = new ArrayList<>();
+        private long verifiedBytes;
+        private long uncheckedBytes;
+
+        Report(boolean sealed, long fileSize) {
+            this.sealed = sealed;
+            this.fileSize = fileSize;
+        }
+
+        /**
+         * Check whether no damage was found
+         *
+         * @return true if every checksummed block matched
+         */
+        public boolean isIntact() {
+            return damagedRanges.isEmpty();
+        }
+
+        /**
+         * Check whether the recording was closed cleanly
+         *
+         * @return true if the checksums covered the whole file
+         */
+        public boolean isSealed() {
+            return sealed;
+        }
+
+        /**
+         * Get the damaged parts of the file, including any part missing from its end.
+         * Adjacent damaged blocks are merged into one range.
+         *
+         * @return List of {start, end} byte offsets, end exclusive, in file order
+         */
+        public List<long[]> getDamagedRanges() {
+            return Collections.unmodifiableList(damagedRanges);
+        }
+
+        /**
+         * Get the number of bytes whose checksum matched
+         *
+         * @return The verified byte count
+         */
+        public long getVerifiedBytes() {
+            return verifiedBytes;
+        }
+
+        /**
+         * Get the number of bytes at the end of an interrupted recording that were
+         * written after its last checksum and could not be checked
+         *
+         * @return The unchecked byte count
+         */
+        public long getUncheckedBytes() {
+            return uncheckedBytes;
+        }
+
+        void addDamage(long start, long end) {
+            if (!damagedRanges.isEmpty()) {
+                long[] last = damagedRanges.get(damagedRanges.size() - 1);
+                if (last[1] == start) {
+                    last[1] = end;
+                    return;
+                }
+            }
+            damagedRanges.add(new long[] {start, end});
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            builder.append(isIntact() ? "intact" : "damaged")
+                    .append(sealed ? "" : " (interrupted)")
+                    .append(", ").append(verifiedBytes).append('/').append(fileSize).append(" bytes verified");
+            for (long[] range : damagedRanges) {
+                builder.append(", bad ").append(range[0]).append('-').append(range[1]);
+            }
+            if (uncheckedBytes > 0) {
+                builder.append(", ").append(uncheckedBytes).append(" bytes unchecked");
+            }
+            return builder.toString();
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.util.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous writer for call recordings.
+ * Audio buffers handed over on the SDK callback thread are copied into a ring of
+ * preallocated direct buffers, and a dedicated writer thread drains the ring into
+ * a {@link RecordingSink} in large gathered writes. Nothing is allocated and nothing
+ * blocks on the callback thread; when the ring is full the frame is dropped and counted.
+ * A frame offered while the writer is closing is either written before the sink is
+ * closed or dropped and counted, never lost silently.
+ */
+public class RecordingWriter implements Closeable {
+    private static final String TAG = "RecordingWriter";
+
+    public static final int DEFAULT_SLOT_COUNT = 128;
+    public static final int DEFAULT_SLOT_SIZE = 4096;
+
+    // Maximum number of slots handed to the sink in one gathered write
+    private static final int MAX_BATCH = 32;
+
+    // How long the writer thread sleeps when the ring is not worth draining yet
+    private static final long PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    // Producer states: not accepting audio, accepting it, or in the middle of an offer
+    private static final int CLOSED = 0;
+    private static final int OPEN = 1;
+    private static final int OFFERING = 2;
+
+    private final RecordingSink sink;
+    private final ByteBuffer[] slots;
+    private final ByteBuffer[] batch;
+    private final int mask;
+    private final int slotSize;
+    private final int wakeThreshold;
+    private final Thread writerThread;
+
+    // Ring positions: head is owned by the writer thread, tail by the producer
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+
+    // Counters
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile int maxQueueDepth;
+
+    // Close only takes the state from OPEN, so it waits out an offer in progress and no
+    // slot is published after the final drain
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+    private volatile boolean running;
+    private volatile IOException writeError;
+
+    /**
+     * Constructor with the default ring size
+     *
+     * @param sink The sink to drain recorded audio into
+     */
+    public RecordingWriter(RecordingSink sink) {
+        this(sink, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * Constructor with an explicit ring size
+     *
+     * @param sink The sink to drain recorded audio into
+     * @param slotCount Number of ring slots, rounded up to a power of two
+     * @param slotSize Capacity of each slot in bytes
+     */
+    public RecordingWriter(RecordingSink sink, int slotCount, int slotSize) {
+        int capacity = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+        this.sink = sink;
+        this.slotSize = slotSize;
+        this.mask = capacity - 1;
+        this.slots = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = ByteBuffer.allocateDirect(slotSize);
+        }
+        this.batch = new ByteBuffer[Math.min(MAX_BATCH, capacity)];
+        this.wakeThreshold = Math.max(1, batch.length / 2);
+        this.writerThread = new Thread(this::drainLoop, TAG);
+        this.writerThread.setPriority(Thread.NORM_PRIORITY - 1);
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start() {
+        running = true;
+        state.set(OPEN);
+        writerThread.start();
+    }
+
+    /**
+     * Copy a buffer of recorded audio into the ring.
+     * Called on the audio callback thread; never blocks and never allocates.
+     *
+     * @param buffer The audio data, consumed from position to limit
+     * @return true if the data was queued, false if it was dropped
+     */
+    public boolean offer(ByteBuffer buffer) {
+        int bytes = buffer.remaining();
+        if (bytes == 0) {
+            return true;
+        }
+
+        if (!state.compareAndSet(OPEN, OFFERING)) {
+            return drop(buffer, bytes);
+        }
+        try {
+            return enqueue(buffer, bytes);
+        } finally {
+            state.set(OPEN);
+        }
+    }
+
+    /**
+     * Stop accepting audio, flush everything that is queued and close the sink.
+     * Blocks until the writer thread has finished.
+     *
+     * @throws IOException If writing or closing the sink failed
+     */
+    @Override
+    public void close() throws IOException {
+        while (state.get() != CLOSED && !state.compareAndSet(OPEN, CLOSED)) {
+            // An offer is copying into the ring, which takes microseconds
+            Thread.yield();
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Pick up anything queued after the writer thread's last pass
+        drain();
+        sink.close();
+
+        if (writeError != null) {
+            throw writeError;
+        }
+    }
+
+    /**
+     * Get the number of audio buffers dropped because the ring was full
+     *
+     * @return The dropped frame count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Get the number of bytes dropped because the ring was full
+     *
+     * @return The dropped byte count
+     */
+    public long getDroppedBytes() {
+        return droppedBytes.get();
+    }
+
+    /**
+     * Get the number of bytes handed to the sink so far
+     *
+     * @return The written byte count
+     */
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * Get the number of slots currently waiting to be written
+     *
+     * @return The current queue depth
+     */
+    public int getQueueDepth() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Get the highest queue depth seen since the writer was created
+     *
+     * @return The maximum queue depth in slots
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * Get the number of slots in the ring
+     *
+     * @return The ring capacity
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Copy a buffer into free slots and publish them, or drop it if they would not fit
+     */
+    private boolean enqueue(ByteBuffer buffer, int bytes) {
+        int needed = (bytes + slotSize - 1) / slotSize;
+        long t = tail.get();
+        long depth = t - head.get();
+        if (writeError != null || depth + needed > slots.length) {
+            return drop(buffer, bytes);
+        }
+
+        // Split the buffer across as many slots as it needs
+        int limit = buffer.limit();
+        for (int i = 0; i < needed; i++) {
+            ByteBuffer slot = slots[(int) ((t + i) & mask)];
+            slot.clear();
+            buffer.limit(Math.min(limit, buffer.position() + slotSize));
+            slot.put(buffer);
+            slot.flip();
+        }
+        buffer.limit(limit);
+        tail.set(t + needed);
+
+        depth += needed;
+        if (depth > maxQueueDepth) {
+            maxQueueDepth = (int) depth;
+        }
+        if (depth >= wakeThreshold) {
+            LockSupport.unpark(writerThread);
+        }
+        return true;
+    }
+
+    /**
+     * Discard a buffer and count it as dropped
+     */
+    private boolean drop(ByteBuffer buffer, int bytes) {
+        droppedFrames.incrementAndGet();
+        droppedBytes.addAndGet(bytes);
+        buffer.position(buffer.limit());
+        return false;
+    }
+
+    /**
+     * Writer thread body: wait for a batch to build up, then drain it
+     */
+    private void drainLoop() {
+        while (running) {
+            if (tail.get() - head.get() < wakeThreshold) {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+            drain();
+        }
+    }
+
+    /**
+     * Write every queued slot to the sink in batches of up to {@link #MAX_BATCH}
+     */
+    private void drain() {
+        long h = head.get();
+        long t = tail.get();
+        while (h < t) {
+            int count = (int) Math.min(t - h, batch.length);
+            long bytes = 0;
+            for (int i = 0; i < count; i++) {
+                batch[i] = slots[(int) ((h + i) & mask)];
+                bytes += batch[i].remaining();
+            }
+
+            if (writeError == null) {
+                try {
+                    sink.write(batch, 0, count);
+                    bytesWritten.addAndGet(bytes);
+                } catch (IOException e) {
+                    Log.e(TAG, "Error writing recording data", e);
+                    writeError = e;
+                }
+            }
+
+            h += count;
+            head.set(h);
+            t = tail.get();
+        }
+    }
+}
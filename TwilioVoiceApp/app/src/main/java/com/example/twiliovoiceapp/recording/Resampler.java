@@ -0,0 +1,238 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Stage that converts 16-bit PCM to a lower sample rate, e.g. the SDK's 48 kHz down to
+ * 8 or 16 kHz for archiving at telephony quality.
+ * <p>
+ * Channels are either averaged into mono or kept apart, then the rate is changed by a
+ * rational factor L/M with a polyphase windowed-sinc filter: for each output sample only the filter phase that
+ * lands on a real input sample is evaluated, so the cost is one short dot product per
+ * output sample whatever the ratio. Input is gathered into fixed-size frames and all
+ * state (history, coefficients, output buffer) is allocated up front.
+ */
+public class Resampler implements RecordingSink {
+
+    // Frames the input is processed in, in milliseconds
+    private static final int FRAME_MILLIS = 20;
+
+    // Zero crossings of the sinc on each side of the center, at the output cutoff
+    private static final int ZERO_CROSSINGS = 8;
+
+    // Passband edge as a fraction of the output Nyquist frequency
+    private static final double CUTOFF = 0.92;
+
+    // Kaiser window shape; about 80 dB of stopband attenuation
+    private static final double KAISER_BETA = 8.0;
+
+    private final RecordingSink out;
+    private final int channels;
+    private final int outputChannels;
+    private final int up;
+    private final int down;
+    private final int taps;
+    private final float[] coefficients;
+
+    // Recent input per output channel, each sample written twice so the last taps are
+    // always contiguous
+    private final float[][] history;
+    private int historyIndex;
+    private int phase;
+
+    // Input frame, interleaved by output channel
+    private final float[] frame;
+    private int frameLength;
+    private final int frameCapacity;
+    private final ByteBuffer output;
+    private final ByteBuffer[] outputArray;
+
+    // Partial input frame: channel sum, channels seen, and the low byte of a split sample
+    private int channelSum;
+    private int channelCount;
+    private int pendingByte = -1;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The next stage, receiving 16-bit PCM at the output rate
+     * @param format Format of the incoming 16-bit PCM
+     * @param outputRate Sample rate to convert to
+     * @param downmix Whether to average the channels into mono, rather than keep them
+     */
+    public Resampler(RecordingSink out, WavFormat format, int outputRate, boolean downmix) {
+        this.out = out;
+        this.channels = format.getChannels();
+        this.outputChannels = downmix ? 1 : channels;
+        int inputRate = format.getSampleRate();
+        int gcd = gcd(inputRate, outputRate);
+        this.up = outputRate / gcd;
+        this.down = inputRate / gcd;
+
+        // Filter length in input samples, long enough to reach the cutoff's zero crossings
+        double cutoffHz = CUTOFF * 0.5 * Math.min(inputRate, outputRate);
+        this.taps = (int) Math.ceil(ZERO_CROSSINGS * inputRate / cutoffHz) | 1;
+        this.coefficients = design(up, taps, cutoffHz / ((double) inputRate * up));
+        this.history = new float[outputChannels][2 * taps];
+
+        this.frameCapacity = inputRate * FRAME_MILLIS / 1000;
+        this.frame = new float[frameCapacity * outputChannels];
+        int outputFrame = (int) ((long) frameCapacity * up / down) + 1;
+        this.output = ByteBuffer.allocateDirect(2 * outputChannels * outputFrame).order(ByteOrder.LITTLE_ENDIAN);
+        this.outputArray = new ByteBuffer[] {output};
+    }
+
+    /**
+     * Get the format written to the next stage
+     *
+     * @param format Format of the incoming 16-bit PCM
+     * @param outputRate The output sample rate
+     * @param downmix Whether the channels are averaged into mono
+     * @return 16-bit PCM at that rate
+     */
+    public static WavFormat outputFormat(WavFormat format, int outputRate, boolean downmix) {
+        return WavFormat.pcm16(outputRate, downmix ? 1 : format.getChannels());
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int pos = buffer.position();
+            int limit = buffer.limit();
+            if (pendingByte >= 0 && pos < limit) {
+                addSample((short) (pendingByte | (buffer.get(pos++) << 8)));
+                pendingByte = -1;
+            }
+            for (; pos + 1 < limit; pos += 2) {
+                addSample((short) ((buffer.get(pos) & 0xFF) | (buffer.get(pos + 1) << 8)));
+            }
+            if (pos < limit) {
+                pendingByte = buffer.get(pos) & 0xFF;
+            }
+            buffer.position(limit);
+        }
+    }
+
+    /**
+     * Convert the final partial frame and close the next stage
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            processFrame();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void addSample(int sample) throws IOException {
+        if (outputChannels > 1) {
+            frame[frameLength * outputChannels + channelCount] = sample;
+        } else {
+            channelSum += sample;
+        }
+        if (++channelCount < channels) {
+            return;
+        }
+        if (outputChannels == 1) {
+            frame[frameLength] = (float) channelSum / channels;
+        }
+        frameLength++;
+        channelSum = 0;
+        channelCount = 0;
+        if (frameLength == frameCapacity) {
+            processFrame();
+        }
+    }
+
+    /**
+     * Filter one frame of input and hand the output to the next stage
+     */
+    private void processFrame() throws IOException {
+        output.clear();
+        for (int i = 0; i < frameLength; i++) {
+            historyIndex = historyIndex + 1 == taps ? 0 : historyIndex + 1;
+            for (int c = 0; c < outputChannels; c++) {
+                float sample = frame[i * outputChannels + c];
+                history[c][historyIndex] = sample;
+                history[c][historyIndex + taps] = sample;
+            }
+
+            // Every output whose newest input is this sample; the oldest tap sits just after it
+            for (; phase < up; phase += down) {
+                int base = phase * taps;
+                int start = historyIndex + 1;
+                for (int c = 0; c < outputChannels; c++) {
+                    float[] channelHistory = history[c];
+                    float sum = 0;
+                    for (int t = 0; t < taps; t++) {
+                        sum += coefficients[base + t] * channelHistory[start + t];
+                    }
+                    int value = Math.round(sum);
+                    output.putShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value)));
+                }
+            }
+            phase -= up;
+        }
+        frameLength = 0;
+        output.flip();
+        if (output.hasRemaining()) {
+            out.write(outputArray, 0, 1);
+        }
+    }
+
+    /**
+     * Design the polyphase filter: a Kaiser-windowed sinc at the upsampled rate, split
+     * into one set of taps per phase, each stored oldest first to match the history
+     * and normalized to unity gain at DC
+     */
+    private static float[] design(int phases, int taps, double cutoff) {
+        int length = phases * taps;
+        double center = (length - 1) / 2.0;
+        double windowNorm = besselI0(KAISER_BETA);
+        float[] coefficients = new float[length];
+        for (int p = 0; p < phases; p++) {
+            double sum = 0;
+            double[] phaseTaps = new double[taps];
+            for (int t = 0; t < taps; t++) {
+                int k = p + phases * t;
+                double x = k - center;
+                double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+                double r = 2 * x / (length - 1);
+                double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r))) / windowNorm;
+                phaseTaps[t] = sinc * window;
+                sum += phaseTaps[t];
+            }
+            for (int t = 0; t < taps; t++) {
+                // Tap t applies to the input t samples before the newest
+                coefficients[p * taps + taps - 1 - t] = (float) (phaseTaps[t] / sum);
+            }
+        }
+        return coefficients;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; k < 50; k++) {
+            term *= (x / (2 * k)) * (x / (2 * k));
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
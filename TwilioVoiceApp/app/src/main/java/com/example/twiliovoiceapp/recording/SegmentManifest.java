@@ -0,0 +1,182 @@
+package com.example.twiliovoiceapp.recording;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rolling manifest of a segmented recording, stored as JSON lines.
+ * The first line describes the recording, each following line describes one finished
+ * segment, and a final line marks the recording complete, or records why it could not
+ * be finished, e.g. because its last segment failed to close. Lines are only ever appended
+ * and flushed to disk as they are written, so after a crash the manifest still lists
+ * every segment that was finished.
+ */
+public class SegmentManifest implements Closeable {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RecordingFile file;
+    private final FileChannel channel;
+
+    /**
+     * Constructor for the manifest. Writes the header line immediately.
+     *
+     * @param file The manifest file, opened for writing
+     * @param recordingName Base name shared by all segments
+     * @param format Format of the audio timeline the offsets refer to
+     * @param segmentMillis Target duration of each segment
+     * @throws IOException If the header could not be written
+     */
+    public SegmentManifest(RecordingFile file, String recordingName, WavFormat format,
+                           long segmentMillis) throws IOException {
+        this.file = file;
+        this.channel = file.getWriteChannel();
+        try {
+            appendLine(new JSONObject()
+                    .put("recording", recordingName)
+                    .put("sampleRate", format.getSampleRate())
+                    .put("channels", format.getChannels())
+                    .put("segmentMs", segmentMillis));
+        } catch (JSONException e) {
+            throw new IOException("Error writing manifest header", e);
+        }
+    }
+
+    /**
+     * Read the names of the finished segments of a recording, in recording order
+     *
+     * @param channel A channel for reading the manifest file
+     * @return The segment file names
+     * @throws IOException If the manifest could not be read
+     */
+    public static List<String> readSegmentNames(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid manifest size " + size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // Keep reading until the whole manifest is in memory
+        }
+
+        List<String> names = new ArrayList<>();
+        for (String line : new String(buffer.array(), 0, buffer.position(), UTF_8).split("\n")) {
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                JSONObject entry = new JSONObject(line);
+                if (entry.has("name")) {
+                    names.add(entry.getString("name"));
+                }
+            } catch (JSONException e) {
+                // A line cut off by a crash can only be the last one
+                break;
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Get the file name of the manifest
+     *
+     * @return The name, as the store created it
+     */
+    public String getName() {
+        return file.getName();
+    }
+
+    /**
+     * Get the location of the manifest file
+     *
+     * @return A path or content URI
+     */
+    public String getLocation() {
+        return file.getLocation();
+    }
+
+    /**
+     * Record a finished segment
+     *
+     * @param index Zero-based segment number
+     * @param name File name of the segment
+     * @param startFrame Offset of the segment's first sample frame in the recording
+     * @param frames Number of sample frames in the segment
+     * @param sampleRate Sample rate used to convert frames to milliseconds
+     * @throws IOException If the entry could not be written
+     */
+    public void addSegment(int index, String name, long startFrame, long frames, int sampleRate)
+            throws IOException {
+        try {
+            appendLine(new JSONObject()
+                    .put("index", index)
+                    .put("name", name)
+                    .put("startFrame", startFrame)
+                    .put("frames", frames)
+                    .put("startMs", startFrame * 1000 / sampleRate)
+                    .put("durationMs", frames * 1000 / sampleRate));
+        } catch (JSONException e) {
+            throw new IOException("Error writing manifest entry", e);
+        }
+    }
+
+    /**
+     * Mark the recording complete and close the manifest
+     *
+     * @param segments Total number of segments
+     * @param frames Total number of sample frames in the recording
+     * @throws IOException If the manifest could not be written or closed
+     */
+    public void complete(int segments, long frames) throws IOException {
+        try {
+            appendLine(new JSONObject()
+                    .put("complete", true)
+                    .put("segments", segments)
+                    .put("frames", frames));
+        } catch (JSONException e) {
+            throw new IOException("Error writing manifest trailer", e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Record that the recording could not be finished and close the manifest. The
+     * segments listed so far are still usable.
+     *
+     * @param reason Why the recording failed
+     * @throws IOException If the manifest could not be written or closed
+     */
+    public void fail(String reason) throws IOException {
+        try {
+            appendLine(new JSONObject()
+                    .put("complete", false)
+                    .put("error", reason));
+        } catch (JSONException e) {
+            throw new IOException("Error writing manifest trailer", e);
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private void appendLine(JSONObject line) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap((line.toString() + "\n").getBytes(UTF_8));
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+    }
+}
@@ -0,0 +1,169 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+/**
+ * Splits a recording into fixed-duration segment files.
+ * Each segment is a complete, finalized file as soon as the next one starts, and is
+ * listed in a {@link SegmentManifest} so downstream processing can pick it up while
+ * the call is still going. Segment boundaries fall on exact sample frames.
+ */
+public class SegmentedSink implements RecordingSink {
+    private static final String TAG = "SegmentedSink";
+
+    public static final String MANIFEST_SUFFIX = ".manifest.jsonl";
+
+    /**
+     * Builds the stage chain for one segment file
+     */
+    public interface SegmentFactory {
+        /**
+         * Create the sink chain that writes a segment
+         *
+         * @param file The newly created segment file
+         * @return The first stage of the chain; closing it must close the file
+         * @throws IOException If the file could not be prepared
+         */
+        RecordingSink create(RecordingFile file) throws IOException;
+    }
+
+    private final RecordingStore store;
+    private final String baseName;
+    private final String suffix;
+    private final String mimeType;
+    private final WavFormat format;
+    private final long framesPerSegment;
+    private final SegmentFactory factory;
+    private final SegmentManifest manifest;
+
+    private RecordingSink segment;
+    private String segmentName;
+    private int segmentIndex = -1;
+    private long segmentStartFrame;
+    private long totalBytes;
+
+    /**
+     * Constructor for the sink. Creates the manifest and the first segment.
+     *
+     * @param store The store segments and manifest are written to
+     * @param baseName Base file name; segments are named baseName_partNNN followed by the suffix
+     * @param suffix File name suffix of the segments, e.g. ".wav"
+     * @param mimeType MIME type of the segment files
+     * @param format Format of the incoming audio
+     * @param segmentMillis Duration of each segment
+     * @param factory Builds the stage chain for each segment file
+     * @throws IOException If the manifest or first segment could not be created
+     */
+    public SegmentedSink(RecordingStore store, String baseName, String suffix, String mimeType,
+                         WavFormat format, long segmentMillis, SegmentFactory factory) throws IOException {
+        this.store = store;
+        this.baseName = baseName;
+        this.suffix = suffix;
+        this.mimeType = mimeType;
+        this.format = format;
+        this.framesPerSegment = Math.max(1, segmentMillis * format.getSampleRate() / 1000);
+        this.factory = factory;
+        this.manifest = new SegmentManifest(
+                store.create(baseName + MANIFEST_SUFFIX, "application/octet-stream"),
+                baseName, format, segmentMillis);
+        openNextSegment();
+    }
+
+    /**
+     * Get the file name of the manifest describing the segments
+     *
+     * @return The name, as the store created it
+     */
+    public String getManifestName() {
+        return manifest.getName();
+    }
+
+    /**
+     * Get the location of the manifest describing the segments
+     *
+     * @return A path or content URI
+     */
+    public String getManifestLocation() {
+        return manifest.getLocation();
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        long segmentBytes = framesPerSegment * format.getBlockAlign();
+        long batchBytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            batchBytes += buffers[i].remaining();
+        }
+        if (batchBytes < segmentStartFrame * format.getBlockAlign() + segmentBytes - totalBytes) {
+            // Common case: the whole batch fits in the current segment
+            segment.write(buffers, offset, length);
+            totalBytes += batchBytes;
+            return;
+        }
+
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            while (buffer.hasRemaining()) {
+                long room = segmentStartFrame * format.getBlockAlign() + segmentBytes - totalBytes;
+                if (room <= 0) {
+                    rotate();
+                    continue;
+                }
+
+                // Write up to the segment boundary, then continue with the rest of the buffer
+                int limit = buffer.limit();
+                int chunk = (int) Math.min(buffer.remaining(), room);
+                buffer.limit(buffer.position() + chunk);
+                segment.write(buffers, i, 1);
+                buffer.limit(limit);
+                totalBytes += chunk;
+            }
+        }
+    }
+
+    /**
+     * Finish the current segment and mark the manifest complete, or note in the manifest
+     * that the recording failed if the segment could not be finished
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            finishSegment();
+        } catch (IOException | RuntimeException e) {
+            try {
+                manifest.fail(e.toString());
+            } catch (IOException manifestError) {
+                e.addSuppressed(manifestError);
+            }
+            throw e;
+        }
+        manifest.complete(segmentIndex + 1, totalBytes / format.getBlockAlign());
+    }
+
+    private void rotate() throws IOException {
+        finishSegment();
+        openNextSegment();
+    }
+
+    private void finishSegment() throws IOException {
+        long endFrame = totalBytes / format.getBlockAlign();
+        segment.close();
+        manifest.addSegment(segmentIndex, segmentName, segmentStartFrame,
+                endFrame - segmentStartFrame, format.getSampleRate());
+        segmentStartFrame = endFrame;
+    }
+
+    private void openNextSegment() throws IOException {
+        segmentIndex++;
+        RecordingFile file = store.create(
+                String.format(Locale.US, "%s_part%03d%s", baseName, segmentIndex, suffix), mimeType);
+        // Listed in the manifest under the name the store actually gave it
+        segmentName = file.getName();
+        segment = factory.create(file);
+        Log.d(TAG, "Started segment " + segmentName);
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sidecar file listing the silent runs that {@link SilenceSuppressor} left out of a
+ * recording. The file is a small header followed by fixed-size little-endian
+ * entries of (output sample frame, suppressed sample frames), one per silent run,
+ * in recording order.
+ */
+public final class SilenceMap {
+
+    public static final String SUFFIX = ".silence";
+
+    private static final int MAGIC = 0x314C4953; // "SIL1"
+    private static final int HEADER_SIZE = 8;
+    private static final int ENTRY_SIZE = 16;
+
+    private final int sampleRate;
+    private final long[] positions;
+    private final long[] lengths;
+
+    private SilenceMap(int sampleRate, long[] positions, long[] lengths) {
+        this.sampleRate = sampleRate;
+        this.positions = positions;
+        this.lengths = lengths;
+    }
+
+    /**
+     * Get the sidecar file name for a recording
+     *
+     * @param recordingName File name of the recording
+     * @return File name of its silence map
+     */
+    public static String nameFor(String recordingName) {
+        return recordingName + SUFFIX;
+    }
+
+    /**
+     * Read a silence map
+     *
+     * @param channel A channel for reading the sidecar file
+     * @return The parsed map
+     * @throws IOException If the file could not be read or is not a silence map
+     */
+    public static SilenceMap read(FileChannel channel) throws IOException {
+        long size = channel.size();
+        if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+            throw new IOException("Invalid silence map size " + size);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // Keep reading until the whole file is in memory
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not a silence map");
+        }
+        int sampleRate = buffer.getInt();
+
+        // A trailing partial entry from an interrupted write is ignored
+        int count = buffer.remaining() / ENTRY_SIZE;
+        long[] positions = new long[count];
+        long[] lengths = new long[count];
+        for (int i = 0; i < count; i++) {
+            positions[i] = buffer.getLong();
+            lengths[i] = buffer.getLong();
+        }
+        return new SilenceMap(sampleRate, positions, lengths);
+    }
+
+    /**
+     * Get the sample rate the frame counts refer to
+     *
+     * @return The sample rate in Hz
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Get the number of silent runs
+     *
+     * @return The entry count
+     */
+    public int size() {
+        return positions.length;
+    }
+
+    /**
+     * Get where a silent run was removed
+     *
+     * @param index The entry index
+     * @return The sample frame of the stored recording the silence belongs before
+     */
+    public long getPosition(int index) {
+        return positions[index];
+    }
+
+    /**
+     * Get how long a silent run was
+     *
+     * @param index The entry index
+     * @return The number of suppressed sample frames
+     */
+    public long getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Get the total length of all silent runs
+     *
+     * @return The number of suppressed sample frames
+     */
+    public long getTotalLength() {
+        long total = 0;
+        for (long length : lengths) {
+            total += length;
+        }
+        return total;
+    }
+
+    /**
+     * Appends entries to a silence map while recording
+     */
+    static class Writer implements Closeable {
+
+        private final RecordingFile file;
+        private final FileChannel channel;
+        private final ByteBuffer entry = ByteBuffer.allocate(ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        Writer(RecordingFile file, int sampleRate) throws IOException {
+            this.file = file;
+            this.channel = file.getWriteChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(sampleRate).flip();
+            writeFully(header);
+        }
+
+        void add(long position, long length) throws IOException {
+            entry.clear();
+            entry.putLong(position).putLong(length).flip();
+            writeFully(entry);
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
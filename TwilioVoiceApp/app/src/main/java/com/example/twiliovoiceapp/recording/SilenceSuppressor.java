@@ -0,0 +1,163 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Voice activity stage that drops long runs of silence from the recording.
+ * Energy is measured per 20 ms frame directly on preallocated buffers. Frames below
+ * the threshold are still written for a short hangover after speech so words are
+ * not clipped; after that they are skipped and the length of the skipped run is
+ * written as a marker to a {@link SilenceMap} sidecar. The recording itself stays a
+ * valid, shorter WAV file, and the original timeline is restored on playback and
+ * export from the {@code SeekIndex} built over it.
+ */
+public class SilenceSuppressor implements RecordingSink {
+
+    private static final int FRAMES_PER_SECOND = 50;
+
+    // Voiced frames are batched so the next stage still sees large writes
+    private static final int OUTPUT_FRAMES = 32;
+
+    private final RecordingSink out;
+    private final SilenceMap.Writer markers;
+    private final int samplesPerFrame;
+    private final long thresholdEnergy;
+    private final int hangoverFrames;
+
+    private final ByteBuffer frame;
+    private final ByteBuffer output;
+    private final ByteBuffer[] outputArray;
+
+    private int hangoverRemaining;
+    private long silentRun;
+    private long outputSamples;
+    private long suppressedSamples;
+
+    /**
+     * Constructor for the stage
+     *
+     * @param out The next stage, receiving voiced audio
+     * @param format Format of the incoming 16-bit PCM
+     * @param markerFile Sidecar file the silence markers are written to
+     * @param thresholdDbfs Frames with an RMS level below this (in dBFS) count as silent
+     * @param minSilenceMillis Silence shorter than this is kept in the recording
+     * @throws IOException If the sidecar could not be written
+     */
+    public SilenceSuppressor(RecordingSink out, WavFormat format, RecordingFile markerFile,
+                             double thresholdDbfs, long minSilenceMillis) throws IOException {
+        this.out = out;
+        this.markers = new SilenceMap.Writer(markerFile, format.getSampleRate());
+        this.samplesPerFrame = format.getSampleRate() / FRAMES_PER_SECOND;
+        this.hangoverFrames = (int) (minSilenceMillis * FRAMES_PER_SECOND / 1000);
+
+        // Compare mean square energy against the threshold amplitude squared
+        double amplitude = 32768.0 * Math.pow(10.0, thresholdDbfs / 20.0);
+        this.thresholdEnergy = (long) (amplitude * amplitude);
+
+        int frameBytes = samplesPerFrame * format.getBlockAlign();
+        this.frame = ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN);
+        this.output = ByteBuffer.allocateDirect(frameBytes * OUTPUT_FRAMES);
+        this.outputArray = new ByteBuffer[] {output};
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            int limit = buffer.limit();
+            while (buffer.hasRemaining()) {
+                buffer.limit(buffer.position() + Math.min(buffer.remaining(), frame.remaining()));
+                frame.put(buffer);
+                buffer.limit(limit);
+                if (!frame.hasRemaining()) {
+                    processFrame();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the total number of sample frames left out of the recording so far
+     *
+     * @return The suppressed sample frame count
+     */
+    public long getSuppressedSamples() {
+        return suppressedSamples + silentRun;
+    }
+
+    /**
+     * Flush the trailing partial frame and any open silence run, then close the next stage
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (frame.position() > 0) {
+                frame.flip();
+                emit();
+            }
+            endSilentRun();
+            flushOutput();
+        } finally {
+            try {
+                markers.close();
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private void processFrame() throws IOException {
+        frame.flip();
+        if (!isSilent()) {
+            endSilentRun();
+            hangoverRemaining = hangoverFrames;
+            emit();
+        } else if (hangoverRemaining > 0) {
+            hangoverRemaining--;
+            emit();
+        } else {
+            silentRun += samplesPerFrame;
+            frame.clear();
+        }
+    }
+
+    /**
+     * Mean square energy of the current frame, computed in place
+     */
+    private boolean isSilent() {
+        int limit = frame.limit();
+        long sum = 0;
+        for (int i = 0; i < limit; i += 2) {
+            int sample = frame.getShort(i);
+            sum += sample * sample;
+        }
+        return sum / Math.max(1, limit / 2) < thresholdEnergy;
+    }
+
+    private void emit() throws IOException {
+        if (output.remaining() < frame.remaining()) {
+            flushOutput();
+        }
+        outputSamples += frame.remaining() / (frame.capacity() / samplesPerFrame);
+        output.put(frame);
+        frame.clear();
+    }
+
+    private void flushOutput() throws IOException {
+        output.flip();
+        if (output.hasRemaining()) {
+            out.write(outputArray, 0, 1);
+        }
+        output.clear();
+    }
+
+    private void endSilentRun() throws IOException {
+        if (silentRun > 0) {
+            markers.add(outputSamples, silentRun);
+            suppressedSamples += silentRun;
+            silentRun = 0;
+        }
+    }
+}
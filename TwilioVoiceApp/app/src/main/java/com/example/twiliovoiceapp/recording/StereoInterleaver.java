@@ -0,0 +1,208 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Joins two mono 16-bit PCM streams, arriving on different threads, into one stereo
+ * stream: the left stream in the left channel and the right stream in the right.
+ * <p>
+ * Both streams run off the same sample clock, so samples are paired by count: the nth
+ * left sample goes into the same frame as the nth right sample. Whichever stream runs
+ * ahead waits in a preallocated ring. When it gets more than the allowed lag ahead,
+ * the other stream has stalled (e.g. playback stopped), and the waiting samples go out
+ * against silence. When the stalled stream comes back, everything the other stream
+ * queued meanwhile is sent out against silence too, as it happened during the stall,
+ * so the two channels stay in step. Output is written through one reused buffer, so
+ * nothing is allocated per frame.
+ */
+public class StereoInterleaver {
+
+    /**
+     * Receiver of the joined stereo audio, called on whichever thread completed it
+     */
+    public interface Output {
+        /**
+         * Take a run of interleaved stereo frames
+         *
+         * @param stereo Little-endian 16-bit stereo PCM, consumed from position to limit
+         */
+        void onFrames(ByteBuffer stereo);
+    }
+
+    // Frames handed to the output at a time
+    private static final int OUTPUT_FRAMES = 480;
+
+    private final Output output;
+    private final Channel left;
+    private final Channel right;
+    private final ByteBuffer buffer;
+    private boolean closed;
+    // The stream that fell the whole ring behind, until it sends again
+    private Channel stalled;
+
+    private long framesWritten;
+    private long paddedFrames;
+
+    /**
+     * Constructor for the interleaver
+     *
+     * @param output Receiver of the stereo audio
+     * @param maxLagFrames How far one stream may run ahead before the other is padded
+     */
+    public StereoInterleaver(Output output, int maxLagFrames) {
+        this.output = output;
+        this.left = new Channel(maxLagFrames);
+        this.right = new Channel(maxLagFrames);
+        this.buffer = ByteBuffer.allocateDirect(OUTPUT_FRAMES * 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Add samples of the left stream
+     *
+     * @param mono Little-endian 16-bit mono PCM, consumed from position to limit
+     */
+    public synchronized void writeLeft(ByteBuffer mono) {
+        write(left, mono);
+    }
+
+    /**
+     * Add samples of the right stream
+     *
+     * @param mono Little-endian 16-bit mono PCM, consumed from position to limit
+     */
+    public synchronized void writeRight(ByteBuffer mono) {
+        write(right, mono);
+    }
+
+    /**
+     * Send out whatever is still waiting, against silence, and ignore any later samples
+     */
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        pair();
+        pad(left);
+        pad(right);
+        closed = true;
+    }
+
+    /**
+     * Get the number of stereo frames sent out
+     *
+     * @return The frame count
+     */
+    public synchronized long getFramesWritten() {
+        return framesWritten;
+    }
+
+    /**
+     * Get the number of frames sent out with one channel filled with silence
+     *
+     * @return The padded frame count
+     */
+    public synchronized long getPaddedFrames() {
+        return paddedFrames;
+    }
+
+    private void write(Channel channel, ByteBuffer mono) {
+        if (closed) {
+            mono.position(mono.limit());
+            return;
+        }
+        Channel other = channel == left ? right : left;
+        if (stalled == channel) {
+            // Back after a stall; what the other stream sent meanwhile had no partner,
+            // apart from its latest samples, which arrived alongside these
+            int keep = Math.min(other.count, mono.remaining() / 2);
+            while (other.count > keep) {
+                pad(other, other.count - keep);
+            }
+            stalled = null;
+        }
+        int pos = mono.position();
+        int limit = mono.limit();
+        for (; pos + 1 < limit; pos += 2) {
+            if (channel.count == channel.samples.length) {
+                // The other stream is behind by the whole ring
+                pair();
+                if (channel.count == channel.samples.length) {
+                    stalled = other;
+                    pad(channel, OUTPUT_FRAMES);
+                }
+            }
+            channel.add((short) ((mono.get(pos) & 0xFF) | (mono.get(pos + 1) << 8)));
+        }
+        mono.position(limit);
+        pair();
+    }
+
+    /**
+     * Send out every frame both streams have a sample for
+     */
+    private void pair() {
+        while (left.count > 0 && right.count > 0) {
+            buffer.clear();
+            int frames = Math.min(OUTPUT_FRAMES, Math.min(left.count, right.count));
+            for (int i = 0; i < frames; i++) {
+                buffer.putShort(left.take());
+                buffer.putShort(right.take());
+            }
+            emit(frames);
+        }
+    }
+
+    private void pad(Channel channel) {
+        while (channel.count > 0) {
+            pad(channel, OUTPUT_FRAMES);
+        }
+    }
+
+    /**
+     * Send out up to a number of samples of one stream against silence in the other
+     */
+    private void pad(Channel channel, int maxFrames) {
+        buffer.clear();
+        int frames = Math.min(OUTPUT_FRAMES, Math.min(maxFrames, channel.count));
+        for (int i = 0; i < frames; i++) {
+            short sample = channel.take();
+            buffer.putShort(channel == left ? sample : 0);
+            buffer.putShort(channel == right ? sample : 0);
+        }
+        paddedFrames += frames;
+        emit(frames);
+    }
+
+    private void emit(int frames) {
+        buffer.flip();
+        framesWritten += frames;
+        output.onFrames(buffer);
+    }
+
+    /**
+     * Ring of the samples of one stream waiting for the other
+     */
+    private static class Channel {
+        final short[] samples;
+        int head;
+        int count;
+
+        Channel(int capacity) {
+            this.samples = new short[Math.max(1, capacity)];
+        }
+
+        void add(short sample) {
+            int index = head + count;
+            samples[index < samples.length ? index : index - samples.length] = sample;
+            count++;
+        }
+
+        short take() {
+            short sample = samples[head];
+            head = head + 1 == samples.length ? 0 : head + 1;
+            count--;
+            return sample;
+        }
+    }
+}
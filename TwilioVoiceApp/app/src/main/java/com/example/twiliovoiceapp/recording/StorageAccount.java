@@ -0,0 +1,15 @@
+package com.example.twiliovoiceapp.recording;
+
+/**
+ * Keeps track of the space used by recordings as they are written.
+ */
+public interface StorageAccount {
+
+    /**
+     * Account for bytes that were just added to a recording file
+     *
+     * @param bytes The number of new bytes
+     * @return true if recording can continue, false if storage is exhausted
+     */
+    boolean charge(long bytes);
+}
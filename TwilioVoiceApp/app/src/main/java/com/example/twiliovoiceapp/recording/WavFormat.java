@@ -0,0 +1,170 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Describes the audio format of a WAV file and knows how to lay out its RIFF header.
+ */
+public class WavFormat {
+
+    public static final int FORMAT_PCM = 1;
+    public static final int FORMAT_IMA_ADPCM = 0x11;
+
+    private final int formatTag;
+    private final int sampleRate;
+    private final int channels;
+    private final int bitsPerSample;
+    private final int blockAlign;
+    private final int samplesPerBlock;
+
+    /**
+     * Constructor for the format
+     *
+     * @param formatTag The WAVE format tag, e.g. {@link #FORMAT_PCM}
+     * @param sampleRate Sample rate in Hz
+     * @param channels Number of interleaved channels
+     * @param bitsPerSample Bits per sample per channel
+     * @param blockAlign Size in bytes of one block (one frame for PCM)
+     * @param samplesPerBlock Number of sample frames in one block (1 for PCM)
+     */
+    public WavFormat(int formatTag, int sampleRate, int channels, int bitsPerSample,
+                     int blockAlign, int samplesPerBlock) {
+        this.formatTag = formatTag;
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bitsPerSample = bitsPerSample;
+        this.blockAlign = blockAlign;
+        this.samplesPerBlock = samplesPerBlock;
+    }
+
+    /**
+     * Create a 16-bit linear PCM format
+     *
+     * @param sampleRate Sample rate in Hz
+     * @param channels Number of interleaved channels
+     * @return The format
+     */
+    public static WavFormat pcm16(int sampleRate, int channels) {
+        return new WavFormat(FORMAT_PCM, sampleRate, channels, 16, 2 * channels, 1);
+    }
+
+    /**
+     * Create a 4-bit IMA-ADPCM format with the conventional block size for the sample rate
+     *
+     * @param sampleRate Sample rate in Hz
+     * @param channels Number of interleaved channels
+     * @return The format
+     */
+    public static WavFormat imaAdpcm(int sampleRate, int channels) {
+        int blockAlign = 256 * channels * Math.max(1, sampleRate / 11025);
+        // Each block holds one header sample per channel plus two samples per data byte
+        int samplesPerBlock = (blockAlign - 4 * channels) * 8 / (4 * channels) + 1;
+        return new WavFormat(FORMAT_IMA_ADPCM, sampleRate, channels, 4, blockAlign, samplesPerBlock);
+    }
+
+    public int getFormatTag() {
+        return formatTag;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public int getChannels() {
+        return channels;
+    }
+
+    public int getBitsPerSample() {
+        return bitsPerSample;
+    }
+
+    public int getBlockAlign() {
+        return blockAlign;
+    }
+
+    public int getSamplesPerBlock() {
+        return samplesPerBlock;
+    }
+
+    /**
+     * Get the average number of bytes per second of audio
+     *
+     * @return The byte rate
+     */
+    public int getByteRate() {
+        return (int) ((long) sampleRate * blockAlign / samplesPerBlock);
+    }
+
+    /**
+     * Get the size of the header written by {@link #writeHeader}
+     *
+     * @return The header size in bytes
+     */
+    public int getHeaderSize() {
+        // Compressed formats carry a 2-byte fmt extension and a fact chunk
+        return formatTag == FORMAT_PCM ? 44 : 60;
+    }
+
+    /**
+     * Write a complete RIFF header for the given amount of audio data.
+     * The buffer is switched to little-endian order.
+     *
+     * @param header Destination buffer with at least {@link #getHeaderSize()} bytes remaining
+     * @param dataBytes Size of the data chunk in bytes
+     */
+    public void writeHeader(ByteBuffer header, long dataBytes) {
+        boolean pcm = formatTag == FORMAT_PCM;
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'R').put((byte) 'I').put((byte) 'F').put((byte) 'F');
+        header.putInt((int) (getHeaderSize() - 8 + dataBytes));
+        header.put((byte) 'W').put((byte) 'A').put((byte) 'V').put((byte) 'E');
+
+        header.put((byte) 'f').put((byte) 'm').put((byte) 't').put((byte) ' ');
+        header.putInt(pcm ? 16 : 20);
+        header.putShort((short) formatTag);
+        header.putShort((short) channels);
+        header.putInt(sampleRate);
+        header.putInt(getByteRate());
+        header.putShort((short) blockAlign);
+        header.putShort((short) bitsPerSample);
+
+        if (!pcm) {
+            header.putShort((short) 2);
+            header.putShort((short) samplesPerBlock);
+
+            header.put((byte) 'f').put((byte) 'a').put((byte) 'c').put((byte) 't');
+            header.putInt(4);
+            header.putInt((int) getSampleFrames(dataBytes));
+        }
+
+        header.put((byte) 'd').put((byte) 'a').put((byte) 't').put((byte) 'a');
+        header.putInt((int) dataBytes);
+    }
+
+    /**
+     * Get the number of sample frames stored in a given amount of audio data
+     *
+     * @param dataBytes Size of the audio data in bytes
+     * @return The number of sample frames
+     */
+    public long getSampleFrames(long dataBytes) {
+        return dataBytes / blockAlign * samplesPerBlock;
+    }
+
+    /**
+     * Get the playback duration of a given amount of audio data
+     *
+     * @param dataBytes Size of the audio data in bytes
+     * @return The duration in milliseconds
+     */
+    public long getDurationMillis(long dataBytes) {
+        return getSampleFrames(dataBytes) * 1000L / sampleRate;
+    }
+
+    @Override
+    public String toString() {
+        return "WavFormat{tag=" + formatTag + ", " + sampleRate + " Hz, " + channels + " ch, "
+                + bitsPerSample + " bit}";
+    }
+}
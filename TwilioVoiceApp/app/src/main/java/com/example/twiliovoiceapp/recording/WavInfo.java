@@ -0,0 +1,169 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Parsed header of an existing WAV file: its format and where the size fields
+ * and audio data are located.
+ */
+public class WavInfo {
+
+    // The header is always near the start of the file; no need to read further
+    public static final int HEADER_SCAN_LIMIT = 512;
+
+    private static final int ID_RIFF = fourCc("RIFF");
+    private static final int ID_WAVE = fourCc("WAVE");
+    private static final int ID_FMT = fourCc("fmt ");
+    private static final int ID_FACT = fourCc("fact");
+    private static final int ID_DATA = fourCc("data");
+
+    private final WavFormat format;
+    private final long riffSize;
+    private final long dataBytes;
+    private final int dataOffset;
+    private final int factOffset;
+
+    private WavInfo(WavFormat format, long riffSize, long dataBytes, int dataOffset, int factOffset) {
+        this.format = format;
+        this.riffSize = riffSize;
+        this.dataBytes = dataBytes;
+        this.dataOffset = dataOffset;
+        this.factOffset = factOffset;
+    }
+
+    /**
+     * Read and parse the header of a WAV file
+     *
+     * @param channel A channel for reading the file
+     * @return The parsed header, or null if the file is not a WAV file
+     * @throws IOException If the file could not be read
+     */
+    public static WavInfo read(FileChannel channel) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate((int) Math.min(HEADER_SCAN_LIMIT, channel.size()))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // Keep reading until the header window is full
+        }
+        head.flip();
+        return read(head);
+    }
+
+    /**
+     * Parse the header of a WAV file from its first bytes, e.g. after decrypting them
+     *
+     * @param head The start of the file, little-endian, read from index 0 to its limit
+     * @return The parsed header, or null if the bytes are not a WAV header
+     */
+    public static WavInfo read(ByteBuffer head) {
+        if (head.limit() < 12 || head.getInt(0) != ID_RIFF || head.getInt(8) != ID_WAVE) {
+            return null;
+        }
+
+        // Walk the chunks up to the data chunk
+        WavFormat format = null;
+        int factOffset = -1;
+        int pos = 12;
+        while (pos + 8 <= head.limit()) {
+            int id = head.getInt(pos);
+            long length = head.getInt(pos + 4) & 0xFFFFFFFFL;
+            if (id == ID_FMT && pos + 24 <= head.limit()) {
+                int formatTag = head.getShort(pos + 8) & 0xFFFF;
+                int samplesPerBlock = 1;
+                if (formatTag != WavFormat.FORMAT_PCM && length >= 20 && pos + 28 <= head.limit()) {
+                    samplesPerBlock = head.getShort(pos + 26) & 0xFFFF;
+                }
+                format = new WavFormat(formatTag,
+                        head.getInt(pos + 12),
+                        head.getShort(pos + 10) & 0xFFFF,
+                        head.getShort(pos + 22) & 0xFFFF,
+                        head.getShort(pos + 20) & 0xFFFF,
+                        samplesPerBlock);
+            } else if (id == ID_FACT) {
+                factOffset = pos + 8;
+            } else if (id == ID_DATA) {
+                if (format == null || format.getBlockAlign() == 0) {
+                    return null;
+                }
+                return new WavInfo(format, head.getInt(4) & 0xFFFFFFFFL, length, pos + 8, factOffset);
+            } else if (length > HEADER_SCAN_LIMIT) {
+                return null;
+            }
+            pos += 8 + length + (length & 1);
+        }
+        return null;
+    }
+
+    /**
+     * Get the format described by the fmt chunk
+     *
+     * @return The audio format
+     */
+    public WavFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the RIFF chunk size recorded in the header
+     *
+     * @return The RIFF size in bytes
+     */
+    public long getRiffSize() {
+        return riffSize;
+    }
+
+    /**
+     * Get the data chunk size recorded in the header
+     *
+     * @return The data size in bytes
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    /**
+     * Get the size of the audio data in a file of the given length. The placeholder size of
+     * a header that was never finalized, as left by a crash, is not trusted: everything after
+     * the header is taken to be audio.
+     *
+     * @param fileSize The length of the file, or of its plaintext for an encrypted file
+     * @return The data size in bytes, never past the end of the file
+     */
+    public long getDataBytes(long fileSize) {
+        long available = Math.max(0, fileSize - dataOffset);
+        return dataBytes == 0 ? available : Math.min(dataBytes, available);
+    }
+
+    /**
+     * Get the offset of the first audio byte
+     *
+     * @return The data offset in bytes
+     */
+    public int getDataOffset() {
+        return dataOffset;
+    }
+
+    /**
+     * Get the offset of the data chunk's size field
+     *
+     * @return The offset in bytes
+     */
+    public int getDataSizeOffset() {
+        return dataOffset - 4;
+    }
+
+    /**
+     * Get the offset of the fact chunk's sample count
+     *
+     * @return The offset in bytes, or -1 if there is no fact chunk
+     */
+    public int getFactOffset() {
+        return factOffset;
+    }
+
+    private static int fourCc(String id) {
+        return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+    }
+}
@@ -0,0 +1,117 @@
+package com.example.twiliovoiceapp.recording;
+
+import android.util.Log;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Repairs WAV files whose header was never finalized, e.g. because the process was
+ * killed mid-call. Only the header and the file length are read, so each file is
+ * fixed in a single pass regardless of how long the recording is. Interrupted files
+ * with a checksum sidecar are additionally read through once to report damage.
+ * Which files were interrupted is tracked by
+ * {@link com.example.twiliovoiceapp.storage.RecordingRecovery}.
+ */
+public final class WavRecovery {
+    private static final String TAG = "WavRecovery";
+
+    private WavRecovery() {
+    }
+
+    /**
+     * Repair a WAV file that was interrupted. A file whose checksums are sealed was
+     * closed cleanly and is left alone without being opened. Otherwise the file is first
+     * verified against its checksums, if it has any, and the checksums are then brought
+     * up to date with the repaired file.
+     *
+     * @param store The store holding the file
+     * @param name The file name
+     * @return true if the file's header was repaired
+     * @throws IOException If the file could not be opened, read or written
+     */
+    public static boolean recoverFile(RecordingStore store, String name) throws IOException {
+        try (RecordingFile checksumFile = openIfExists(store, BlockChecksums.nameFor(name))) {
+            BlockChecksums checksums = checksumFile != null
+                    ? BlockChecksums.read(checksumFile.getReadChannel()) : null;
+            if (checksums != null && checksums.isSealed()) {
+                return false;
+            }
+            try (RecordingFile file = store.open(name)) {
+                if (checksums != null) {
+                    RecordingVerifier.Report report = RecordingVerifier.verify(file.getReadChannel(), checksums);
+                    if (!report.isIntact()) {
+                        Log.w(TAG, "Interrupted recording " + name + " is " + report);
+                    }
+                }
+                boolean fixed = recover(file.getReadChannel(), file.getWriteChannel());
+                if (fixed) {
+                    Log.i(TAG, "Repaired WAV header of " + name);
+                }
+                if (checksums != null) {
+                    BlockChecksums.reseal(file.getReadChannel(), checksumFile.getReadChannel(),
+                            checksumFile.getWriteChannel());
+                }
+                return fixed;
+            }
+        }
+    }
+
+    /**
+     * Repair the header of a single WAV file if its sizes do not match the file length.
+     * A trailing partial block left by an interrupted write is truncated.
+     *
+     * @param reader A channel for reading the file
+     * @param writer A channel for writing the same file
+     * @return true if the file was repaired, false if it was intact or not a WAV file
+     * @throws IOException If the file could not be read or written
+     */
+    public static boolean recover(FileChannel reader, FileChannel writer) throws IOException {
+        long fileSize = reader.size();
+        WavInfo info = WavInfo.read(reader);
+        if (info == null) {
+            return false;
+        }
+
+        WavFormat format = info.getFormat();
+        long dataOffset = info.getDataOffset();
+        long dataBytes = Math.max(0, fileSize - dataOffset);
+        dataBytes -= dataBytes % format.getBlockAlign();
+        long riffSize = dataOffset - 8 + dataBytes;
+
+        if (info.getDataBytes() == dataBytes && info.getRiffSize() == riffSize
+                && dataOffset + dataBytes == fileSize) {
+            return false;
+        }
+
+        if (dataOffset + dataBytes < fileSize) {
+            writer.truncate(dataOffset + dataBytes);
+        }
+        writeInt(writer, 4, riffSize);
+        writeInt(writer, info.getDataSizeOffset(), dataBytes);
+        if (info.getFactOffset() >= 0) {
+            writeInt(writer, info.getFactOffset(), format.getSampleFrames(dataBytes));
+        }
+        writer.force(false);
+        return true;
+    }
+
+    private static RecordingFile openIfExists(RecordingStore store, String name) throws IOException {
+        try {
+            return store.open(name);
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static void writeInt(FileChannel channel, long position, long value) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(0, (int) value);
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Streaming WAV writer.
+ * The RIFF header is reserved when the sink is created and patched in place with a
+ * positional write when it is closed, so the audio data is written exactly once.
+ * A file that is never closed keeps a zero-length header and is fixed up by
+ * {@link WavRecovery} the next time the app starts.
+ */
+public class WavSink implements RecordingSink {
+
+    private final PositionalSink out;
+    private final WavFormat format;
+    private final ByteBuffer header;
+    private long dataBytes;
+
+    /**
+     * Constructor for the sink. Writes the placeholder header immediately.
+     *
+     * @param out The sink the WAV file is written to
+     * @param format The format of the audio that will be written
+     * @throws IOException If the header could not be written
+     */
+    public WavSink(PositionalSink out, WavFormat format) throws IOException {
+        this.out = out;
+        this.format = format;
+        this.header = ByteBuffer.allocate(format.getHeaderSize());
+
+        format.writeHeader(header, 0);
+        header.flip();
+        out.write(new ByteBuffer[] {header}, 0, 1);
+    }
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            dataBytes += buffers[i].remaining();
+        }
+        out.write(buffers, offset, length);
+    }
+
+    /**
+     * Get the audio format of this file
+     *
+     * @return The format
+     */
+    public WavFormat getFormat() {
+        return format;
+    }
+
+    /**
+     * Get the number of audio data bytes written so far
+     *
+     * @return The data size in bytes
+     */
+    public long getDataBytes() {
+        return dataBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            header.clear();
+            format.writeHeader(header, dataBytes);
+            header.flip();
+            out.writeAt(header, 0);
+        } finally {
+            out.close();
+        }
+    }
+}
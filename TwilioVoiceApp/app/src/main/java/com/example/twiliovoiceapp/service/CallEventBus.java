@@ -0,0 +1,332 @@
+package com.example.twiliovoiceapp.service;
+
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.example.twiliovoiceapp.recording.LevelMeter;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Hands the service's call events to any number of subscribers, e.g. the call screen,
+ * notifications and analytics, each on the executor it chooses.
+ * <p>
+ * Publishing never waits on a subscriber: each one has its own queue, drained by one
+ * task at a time on its executor, so a slow screen only delays itself and still sees
+ * events in the order they were published. Audio levels are coalesced per subscriber,
+ * so one that falls behind gets the latest level instead of a backlog.
+ * <p>
+ * The call state and whether a recording is running are sticky: a new subscriber is
+ * first told the current state, e.g. a call screen recreated on rotation, and is not
+ * told it again if the event that set it was still on its way.
+ */
+public class CallEventBus {
+    private static final String TAG = "CallEventBus";
+
+    private static final Subscriber[] NO_SUBSCRIBERS = new Subscriber[0];
+
+    /**
+     * The sticky part of the call, replaced as a whole on every change
+     */
+    private static final class Snapshot {
+        final long sequence;
+        final VoiceService.CallState state;
+        final String phoneNumber;
+        final boolean recording;
+
+        Snapshot(long sequence, VoiceService.CallState state, String phoneNumber, boolean recording) {
+            this.sequence = sequence;
+            this.state = state;
+            this.phoneNumber = phoneNumber;
+            this.recording = recording;
+        }
+    }
+
+    // Kinds of queued event
+    private static final int EVENT_REPLAY = 0;
+    private static final int EVENT_STATE = 1;
+    private static final int EVENT_RECORDING_STARTED = 2;
+    private static final int EVENT_RECORDING_STOPPED = 3;
+    private static final int EVENT_FAILED = 4;
+    private static final int EVENT_AUDIO_LEVEL = 5;
+
+    /**
+     * An event waiting in a subscriber's queue
+     */
+    private static final class Event {
+        final int kind;
+        // The snapshot a sticky event produced, null for the others
+        final Snapshot snapshot;
+        // Recording location or error message
+        final String detail;
+
+        Event(int kind, Snapshot snapshot, String detail) {
+            this.kind = kind;
+            this.snapshot = snapshot;
+            this.detail = detail;
+        }
+    }
+
+    private static final Event AUDIO_LEVEL = new Event(EVENT_AUDIO_LEVEL, null, null);
+
+    private final AtomicReference<Subscriber[]> subscribers = new AtomicReference<>(NO_SUBSCRIBERS);
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>(
+            new Snapshot(0, VoiceService.CallState.DISCONNECTED, null, false));
+
+    // Latest RMS and peak levels, packed together so they are always read as a pair
+    private final AtomicLong audioLevel = new AtomicLong(
+            packLevel(LevelMeter.SILENCE_DBFS, LevelMeter.SILENCE_DBFS));
+
+    /**
+     * Subscribe to call events; the current state is delivered first
+     *
+     * @param listener The subscriber
+     * @param executor Executor the subscriber's callbacks run on, e.g. the main thread
+     */
+    public void subscribe(VoiceService.CallStateListener listener, Executor executor) {
+        Subscriber subscriber = new Subscriber(listener, executor);
+        Subscriber[] current;
+        Subscriber[] updated;
+        do {
+            current = subscribers.get();
+            if (indexOf(current, listener) >= 0) {
+                return;
+            }
+            updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = subscriber;
+        } while (!subscribers.compareAndSet(current, updated));
+
+        // Taken after joining, so any change from here on is also queued as an event
+        subscriber.post(new Event(EVENT_REPLAY, snapshot.get(), null));
+    }
+
+    /**
+     * Unsubscribe from call events; nothing more is delivered to the listener once this
+     * returns, when called on its executor
+     *
+     * @param listener The subscriber
+     */
+    public void unsubscribe(VoiceService.CallStateListener listener) {
+        Subscriber[] current;
+        Subscriber[] updated;
+        int index;
+        do {
+            current = subscribers.get();
+            index = indexOf(current, listener);
+            if (index < 0) {
+                return;
+            }
+            updated = new Subscriber[current.length - 1];
+            System.arraycopy(current, 0, updated, 0, index);
+            System.arraycopy(current, index + 1, updated, index, updated.length - index);
+        } while (!subscribers.compareAndSet(current, updated));
+        current[index].closed = true;
+    }
+
+    /**
+     * Get the number of subscribers
+     *
+     * @return The subscriber count
+     */
+    public int getSubscriberCount() {
+        return subscribers.get().length;
+    }
+
+    /**
+     * Publish a change of call state. A call that has ended is no longer recording.
+     *
+     * @param state The new state
+     * @param phoneNumber The other side of the call
+     */
+    public void publishState(VoiceService.CallState state, String phoneNumber) {
+        boolean ended = state == VoiceService.CallState.DISCONNECTED || state == VoiceService.CallState.FAILED;
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            updated = new Snapshot(current.sequence + 1, state, phoneNumber, current.recording && !ended);
+        } while (!snapshot.compareAndSet(current, updated));
+        dispatch(new Event(EVENT_STATE, updated, null));
+    }
+
+    /**
+     * Publish that a recording has started
+     */
+    public void publishRecordingStarted() {
+        dispatch(new Event(EVENT_RECORDING_STARTED, updateRecording(true), null));
+    }
+
+    /**
+     * Publish that a recording has stopped
+     *
+     * @param location Where the recording was saved, or null if it failed
+     */
+    public void publishRecordingStopped(@Nullable String location) {
+        dispatch(new Event(EVENT_RECORDING_STOPPED, updateRecording(false), location));
+    }
+
+    /**
+     * Publish why a call failed
+     *
+     * @param errorMessage The error message
+     */
+    public void publishFailure(String errorMessage) {
+        dispatch(new Event(EVENT_FAILED, null, errorMessage));
+    }
+
+    /**
+     * Publish the latest audio levels of the recording. Safe to call at a high rate
+     * from any thread; subscribers get the levels current when their turn comes.
+     *
+     * @param rmsDbfs The RMS level in dBFS
+     * @param peakDbfs The peak level in dBFS
+     */
+    public void publishAudioLevel(float rmsDbfs, float peakDbfs) {
+        audioLevel.set(packLevel(rmsDbfs, peakDbfs));
+        for (Subscriber subscriber : subscribers.get()) {
+            if (subscriber.audioLevelPending.compareAndSet(false, true)) {
+                subscriber.post(AUDIO_LEVEL);
+            }
+        }
+    }
+
+    private Snapshot updateRecording(boolean recording) {
+        Snapshot current;
+        Snapshot updated;
+        do {
+            current = snapshot.get();
+            updated = new Snapshot(current.sequence + 1, current.state, current.phoneNumber, recording);
+        } while (!snapshot.compareAndSet(current, updated));
+        return updated;
+    }
+
+    private void dispatch(Event event) {
+        for (Subscriber subscriber : subscribers.get()) {
+            subscriber.post(event);
+        }
+    }
+
+    private static int indexOf(Subscriber[] subscribers, VoiceService.CallStateListener listener) {
+        for (int i = 0; i < subscribers.length; i++) {
+            if (subscribers[i].listener == listener) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static long packLevel(float rmsDbfs, float peakDbfs) {
+        return ((long) Float.floatToIntBits(rmsDbfs) << 32) | (Float.floatToIntBits(peakDbfs) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * One subscriber's queue of events, and the task that delivers them
+     */
+    private final class Subscriber implements Runnable {
+        final VoiceService.CallStateListener listener;
+        final Executor executor;
+        final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final AtomicBoolean audioLevelPending = new AtomicBoolean();
+        volatile boolean closed;
+
+        // Sequence of the latest sticky event delivered; only touched by the delivery task
+        long delivered = -1;
+
+        Subscriber(VoiceService.CallStateListener listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor;
+        }
+
+        void post(Event event) {
+            queue.add(event);
+            if (scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            Event event;
+            while ((event = queue.poll()) != null) {
+                if (closed) {
+                    queue.clear();
+                    break;
+                }
+                try {
+                    deliver(event);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Call event subscriber failed", e);
+                }
+            }
+            scheduled.set(false);
+
+            // Something posted after the last poll but before the flag was cleared
+            if (!queue.isEmpty() && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        private void deliver(Event event) {
+            Snapshot state = event.snapshot;
+            if (state != null) {
+                if (state.sequence <= delivered) {
+                    // Already covered by a newer snapshot, e.g. the replay on subscribing
+                    return;
+                }
+                delivered = state.sequence;
+            }
+
+            switch (event.kind) {
+                case EVENT_REPLAY:
+                    listener.onCallStateChanged(state.state, state.phoneNumber);
+                    if (state.recording) {
+                        listener.onRecordingStarted();
+                    }
+                    break;
+
+                case EVENT_STATE:
+                    listener.onCallStateChanged(state.state, state.phoneNumber);
+                    switch (state.state) {
+                        case CONNECTED:
+                            listener.onCallConnected();
+                            break;
+                        case DISCONNECTED:
+                            listener.onCallDisconnected();
+                            break;
+                        case FAILED:
+                            listener.onCallFailed("Call failed");
+                            break;
+                    }
+                    break;
+
+                case EVENT_RECORDING_STARTED:
+                    listener.onRecordingStarted();
+                    break;
+
+                case EVENT_RECORDING_STOPPED:
+                    listener.onRecordingStopped(event.detail);
+                    break;
+
+                case EVENT_FAILED:
+                    listener.onCallFailed(event.detail);
+                    break;
+
+                case EVENT_AUDIO_LEVEL:
+                    audioLevelPending.set(false);
+                    if (snapshot.get().recording) {
+                        long level = audioLevel.get();
+                        listener.onAudioLevel(Float.intBitsToFloat((int) (level >>> 32)),
+                                Float.intBitsToFloat((int) level));
+                    }
+                    break;
+            }
+        }
+    }
+}
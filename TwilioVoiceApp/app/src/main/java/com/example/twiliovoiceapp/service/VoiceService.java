@@ -18,31 +18,72 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.PowerManager;
 import android.preference.PreferenceManager;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 import androidx.core.app.NotificationCompat;
 
 import com.example.twiliovoiceapp.CallActivity;
 import com.example.twiliovoiceapp.R;
-import com.twilio.voice.Call;
-import com.twilio.voice.CallException;
-import com.twilio.voice.CallInvite;
-import com.twilio.voice.ConnectOptions;
+import com.example.twiliovoiceapp.audio.CallAudioDevice;
+import com.example.twiliovoiceapp.call.CallEngine;
+import com.example.twiliovoiceapp.call.CallError;
+import com.example.twiliovoiceapp.call.TwilioCallEngine;
+import com.example.twiliovoiceapp.audio.MessageDrop;
+import com.example.twiliovoiceapp.database.AppDatabase;
+import com.example.twiliovoiceapp.metrics.CallSetupMetrics;
+import com.example.twiliovoiceapp.metrics.CallSetupTrace;
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.recording.ArchiveKeyWrapper;
+import com.example.twiliovoiceapp.recording.BlockChecksums;
+import com.example.twiliovoiceapp.recording.ChannelSink;
+import com.example.twiliovoiceapp.recording.ChecksumSink;
+import com.example.twiliovoiceapp.recording.DtmfRedactor;
+import com.example.twiliovoiceapp.recording.EncryptingSink;
+import com.example.twiliovoiceapp.recording.ImaAdpcmEncoder;
+import com.example.twiliovoiceapp.recording.KeyWrapper;
+import com.example.twiliovoiceapp.recording.KeystoreKeyWrapper;
+import com.example.twiliovoiceapp.recording.LevelMeter;
+import com.example.twiliovoiceapp.recording.PeakIndex;
+import com.example.twiliovoiceapp.recording.PeakIndexer;
+import com.example.twiliovoiceapp.recording.PositionalSink;
+import com.example.twiliovoiceapp.recording.PreRollBuffer;
+import com.example.twiliovoiceapp.recording.PreRollSink;
+import com.example.twiliovoiceapp.recording.QuotaSink;
+import com.example.twiliovoiceapp.recording.RecordingFile;
+import com.example.twiliovoiceapp.recording.RecordingSink;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.RecordingWriter;
+import com.example.twiliovoiceapp.recording.Resampler;
+import com.example.twiliovoiceapp.recording.SegmentedSink;
+import com.example.twiliovoiceapp.recording.SilenceMap;
+import com.example.twiliovoiceapp.recording.SilenceSuppressor;
+import com.example.twiliovoiceapp.recording.StorageAccount;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.example.twiliovoiceapp.recording.WavSink;
+import com.example.twiliovoiceapp.storage.RecordingRecovery;
+import com.example.twiliovoiceapp.storage.RecordingStorageManager;
+import com.example.twiliovoiceapp.token.AccessTokenProvider;
+import com.example.twiliovoiceapp.upload.RecordingUploader;
 import com.twilio.voice.RegistrationException;
 import com.twilio.voice.RegistrationListener;
-import com.twilio.voice.Voice;
 
-import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -56,6 +97,28 @@ public class VoiceService extends Service {
     private static final String CHANNEL_ID = "voice_calls_channel";
     private static final int NOTIFICATION_ID = 1;
 
+    // Format of the PCM delivered by Call.AudioRecordingListener
+    private static final WavFormat RECORDING_FORMAT = WavFormat.pcm16(48000, 1);
+    // Format delivered by the dual-channel audio device: local side left, remote side right
+    private static final WavFormat DUAL_CHANNEL_FORMAT = CallAudioDevice.TAP_FORMAT;
+    private static final String RECORDING_MIME_TYPE = "audio/x-wav";
+    
+    // Archive server's RSA public key, Base64 or PEM, for the archive's copy of encrypted recordings' keys
+    public static final String PREF_ARCHIVE_PUBLIC_KEY = "archive_public_key";
+    
+    // Space that must be available before a recording starts
+    private static final int RECORDING_RESERVE_MINUTES = 10;
+    
+    // Audio levels are published to the call screen at about 15 Hz
+    private static final long AUDIO_LEVEL_INTERVAL_MILLIS = 66;
+    
+    // Digital silence lasting this long is logged as a possible dead microphone
+    private static final long DEAD_AUDIO_MILLIS = 5000;
+
+    // Twilio error codes for a rejected access token
+    private static final int ERROR_INVALID_ACCESS_TOKEN = 20101;
+    private static final int ERROR_ACCESS_TOKEN_EXPIRED = 20104;
+
     // Call state constants
     public static final String ACTION_OUTGOING_CALL = "com.example.twiliovoiceapp.ACTION_OUTGOING_CALL";
     public static final String ACTION_INCOMING_CALL = "com.example.twiliovoiceapp.ACTION_INCOMING_CALL";
@@ -74,18 +137,116 @@ public class VoiceService extends Service {
     // Binder for client communication
     private final IBinder binder = new VoiceBinder();
     
+    // Places the calls; replaced by a fake one in tests
+    private static CallEngine engineOverride;
+    private CallEngine callEngine;
+    
     // Call properties
-    private Call activeCall;
+    private CallEngine.Call activeCall;
     private CallState callState = CallState.DISCONNECTED;
     private String phoneNumber;
     private String twilioPhoneNumber;
+    private CallSetupTrace setupTrace;
     private boolean isMuted = false;
     private boolean isSpeakerOn = false;
     
     // Recording properties
     private boolean isRecording = false;
-    private File recordingFile;
-    private FileOutputStream recordingOutputStream;
+    // Set while the space for a new recording is checked, before its writer starts
+    private boolean recordingPreparing = false;
+    private String recordingLocation;
+    // Settings and files of the current recording, handed on to its close
+    private RecordingContext recordingContext;
+    private volatile RecordingWriter recordingWriter;
+    
+    // Ring of the call's most recent audio, captured from connect when pre-roll is enabled
+    private volatile PreRollBuffer preRollBuffer;
+    private PreRollSink recordingPreRoll;
+    // Silences keypad tones in the current recording, when enabled
+    private DtmfRedactor recordingRedactor;
+    // Whether the SDK has been asked to deliver the call's audio
+    private boolean sdkRecording;
+    
+    // Audio device of the current call when it records each side separately or can drop
+    // a message, otherwise null
+    private CallAudioDevice callAudioDevice;
+    private CallAudioDevice customAudioDevice;
+    // Format the current call's audio is delivered in for recording
+    private WavFormat captureFormat = RECORDING_FORMAT;
+    private boolean dualChannelCall;
+    // Whether the current call was set up so a message can be dropped into it
+    private boolean messageDropCall;
+    
+    // Call left playing a pre-recorded message, and a new call waiting for it to finish
+    private CallEngine.Call droppingCall;
+    private CallEngine.Call droppedCall;
+    private Runnable pendingConnect;
+    
+    // Measures the recorded audio on the writer thread
+    private final LevelMeter.Listener levelListener = new LevelMeter.Listener() {
+        @Override
+        public void onLevel(float rmsDbfs, float peakDbfs) {
+            // Coalesced by the bus, so the meter's rate never piles up on a subscriber
+            eventBus.publishAudioLevel(rmsDbfs, peakDbfs);
+        }
+        
+        @Override
+        public void onDeadAudio(boolean dead) {
+            if (dead) {
+                Log.w(TAG, "Recording has been digital silence for " + DEAD_AUDIO_MILLIS
+                        + " ms; the microphone may be dead (muted: " + isMuted + ")");
+            } else {
+                Log.i(TAG, "Recording audio is back");
+            }
+        }
+    };
+    
+    // Receives the call's audio for the current recording, or for the pre-roll ring between recordings
+    private final CallEngine.AudioListener recordingListener = new CallEngine.AudioListener() {
+        @Override
+        public void onRecordingStarted() {
+            if (recordingWriter == null) {
+                // Only the pre-roll ring is capturing
+                return;
+            }
+            isRecording = true;
+            eventBus.publishRecordingStarted();
+        }
+        
+        @Override
+        public void onRecordingFailed(Exception e) {
+            Log.e(TAG, "Recording failed", e);
+            sdkRecording = false;
+            preRollBuffer = null;
+            isRecording = false;
+            closeRecordingWriter(false);
+            eventBus.publishRecordingStopped(null);
+        }
+        
+        @Override
+        public void onRecordingStopped() {
+            sdkRecording = false;
+            if (!isRecording && recordingWriter == null) {
+                return;
+            }
+            isRecording = false;
+            closeRecordingWriter(true);
+        }
+        
+        @Override
+        public void onBufferAvailable(ByteBuffer byteBuffer) {
+            // Copied into the writer's ring; the disk write happens on its own thread
+            RecordingWriter writer = recordingWriter;
+            if (writer != null) {
+                writer.offer(byteBuffer);
+                return;
+            }
+            PreRollBuffer preRoll = preRollBuffer;
+            if (preRoll != null) {
+                preRoll.write(byteBuffer);
+            }
+        }
+    };
     
     // System services
     private AudioManager audioManager;
@@ -93,11 +254,16 @@ public class VoiceService extends Service {
     private ExecutorService executorService;
     private Handler mainHandler;
     
-    // Listeners
-    private CallStateListener callStateListener;
+    // Closes finished recordings; outlives the service so a recording stopped by onDestroy is still saved
+    private static final ExecutorService recordingCloser = Executors.newSingleThreadExecutor();
+    
+    // Subscribers to call events
+    private final CallEventBus eventBus = new CallEventBus();
     
     /**
-     * Interface for notifying call state changes to clients
+     * Interface for notifying call state changes to clients. Callbacks arrive on the
+     * executor the listener was added with; a listener added mid-call is first told the
+     * current state, and that a recording is running, if one is.
      */
     public interface CallStateListener {
         void onCallStateChanged(CallState state, String phoneNumber);
@@ -105,7 +271,8 @@ public class VoiceService extends Service {
         void onCallDisconnected();
         void onCallFailed(String errorMessage);
         void onRecordingStarted();
-        void onRecordingStopped(String filePath);
+        void onRecordingStopped(@Nullable String filePath);
+        void onAudioLevel(float rmsDbfs, float peakDbfs);
     }
     
     /**
@@ -117,6 +284,17 @@ public class VoiceService extends Service {
         }
     }
     
+    /**
+     * Place calls through another engine, e.g. a {@link com.example.twiliovoiceapp.call.FakeCallEngine},
+     * from the next time the service is created
+     * 
+     * @param engine The engine, or null for the Twilio one
+     */
+    @VisibleForTesting
+    public static void setCallEngineForTesting(CallEngine engine) {
+        engineOverride = engine;
+    }
+    
     @Override
     public void onCreate() {
         super.onCreate();
@@ -130,9 +308,16 @@ public class VoiceService extends Service {
         // Initialize handlers and executors
         executorService = Executors.newSingleThreadExecutor();
         mainHandler = new Handler(Looper.getMainLooper());
+        callEngine = engineOverride != null ? engineOverride : new TwilioCallEngine(this);
         
         // Create notification channel for Android O and above
         createNotificationChannel();
+        
+        // Fix up recordings that were cut off by a crash or process kill, once per process
+        RecordingRecovery.getInstance(this).start();
+        
+        // Continue uploads that were interrupted by a restart, once per process
+        RecordingUploader.getInstance(this).start();
     }
     
     @Override
@@ -165,11 +350,18 @@ public class VoiceService extends Service {
         return binder;
     }
     
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        // adb shell dumpsys activity service VoiceService
+        writer.print(CallSetupMetrics.getInstance(this).dump());
+    }
+    
     @Override
     public void onDestroy() {
         Log.d(TAG, "VoiceService onDestroy");
         
         // Clean up resources
+        finishMessageDrop();
         disconnectCall();
         stopRecording();
         releaseWakeLock();
@@ -182,19 +374,22 @@ public class VoiceService extends Service {
     }
     
     /**
-     * Set the call state listener
+     * Add a call state listener
      * 
      * @param listener The call state listener
+     * @param executor Executor the listener's callbacks run on, e.g. the main thread
      */
-    public void setCallStateListener(CallStateListener listener) {
-        this.callStateListener = listener;
+    public void addCallStateListener(CallStateListener listener, Executor executor) {
+        eventBus.subscribe(listener, executor);
     }
     
     /**
-     * Remove the call state listener
+     * Remove a call state listener
+     * 
+     * @param listener The call state listener
      */
-    public void removeCallStateListener() {
-        this.callStateListener = null;
+    public void removeCallStateListener(CallStateListener listener) {
+        eventBus.unsubscribe(listener);
     }
     
     /**
@@ -245,12 +440,32 @@ public class VoiceService extends Service {
     /**
      * Check if call recording is active
      * 
-     * @return true if recording, false otherwise
+     * @return true if recording, or about to start, false otherwise
      */
     public boolean isRecording() {
-        return isRecording;
+        return isRecording || recordingPreparing;
     }
-    
+
+    /**
+     * Get the number of audio frames dropped by the recording writer
+     *
+     * @return The dropped frame count, or 0 if not recording
+     */
+    public long getRecordingDroppedFrames() {
+        RecordingWriter writer = recordingWriter;
+        return writer != null ? writer.getDroppedFrames() : 0;
+    }
+
+    /**
+     * Get the number of buffers waiting in the recording writer's queue
+     *
+     * @return The current queue depth, or 0 if not recording
+     */
+    public int getRecordingQueueDepth() {
+        RecordingWriter writer = recordingWriter;
+        return writer != null ? writer.getQueueDepth() : 0;
+    }
+
     /**
      * Make an outgoing call
      * 
@@ -258,8 +473,21 @@ public class VoiceService extends Service {
      * @param twilioPhoneNumber The Twilio phone number to use as caller ID
      */
     public void makeCall(String phoneNumber, String twilioPhoneNumber) {
+        makeCall(phoneNumber, twilioPhoneNumber, new CallSetupTrace());
+    }
+    
+    /**
+     * Make an outgoing call, timing its setup
+     * 
+     * @param phoneNumber The phone number to call
+     * @param twilioPhoneNumber The Twilio phone number to use as caller ID
+     * @param trace Timestamps of the call so far, continued until it connects
+     */
+    private void makeCall(String phoneNumber, String twilioPhoneNumber, CallSetupTrace trace) {
         this.phoneNumber = phoneNumber;
         this.twilioPhoneNumber = twilioPhoneNumber;
+        trace.mark(CallSetupTrace.Mark.CALL_STARTED);
+        setupTrace = trace;
         
         // Acquire wake lock to prevent CPU from sleeping during call setup
         acquireWakeLock();
@@ -273,31 +501,35 @@ public class VoiceService extends Service {
         // Get Twilio access token from server
         executorService.execute(() -> {
             try {
-                // Get Twilio access token
-                String accessToken = getTwilioAccessToken(twilioPhoneNumber);
+                // Get Twilio access token, usually already cached
+                String accessToken = AccessTokenProvider.getInstance(this).getToken(twilioPhoneNumber);
+                trace.mark(CallSetupTrace.Mark.TOKEN_READY);
                 
                 // Set up call parameters
                 Map<String, String> params = new HashMap<>();
                 params.put("To", phoneNumber);
                 params.put("From", twilioPhoneNumber);
                 
-                // Create connect options
-                ConnectOptions connectOptions = new ConnectOptions.Builder(accessToken)
-                        .params(params)
-                        .build();
-                
-                // Make the call on the main thread
+                // Make the call on the main thread, once any message being dropped has finished
                 mainHandler.post(() -> {
-                    activeCall = Voice.connect(VoiceService.this, connectOptions, new CallListener());
+                    Runnable connect = () -> {
+                        selectAudioDevice();
+                        activeCall = callEngine.connect(accessToken, params, new CallListener());
+                        trace.mark(CallSetupTrace.Mark.CONNECT_CALLED);
+                    };
+                    if (droppingCall != null) {
+                        Log.i(TAG, "Waiting for the previous call's message to finish");
+                        pendingConnect = connect;
+                    } else {
+                        connect.run();
+                    }
                 });
                 
             } catch (Exception e) {
                 Log.e(TAG, "Error making call", e);
                 mainHandler.post(() -> {
                     updateCallState(CallState.FAILED);
-                    if (callStateListener != null) {
-                        callStateListener.onCallFailed("Failed to connect: " + e.getMessage());
-                    }
+                    eventBus.publishFailure("Failed to connect: " + e.getMessage());
                     stopSelf();
                 });
             }
@@ -307,22 +539,24 @@ public class VoiceService extends Service {
     /**
      * Answer an incoming call
      * 
-     * @param callInvite The incoming call invite
+     * @param invite The incoming call, e.g. from {@link TwilioCallEngine#invite}
      */
-    public void answerCall(CallInvite callInvite) {
-        if (callInvite != null) {
+    public void answerCall(CallEngine.Invite invite) {
+        if (invite != null) {
             acquireWakeLock();
             updateCallState(CallState.CONNECTING);
             startForeground(NOTIFICATION_ID, createCallNotification());
             
             // Extract caller information
-            Map<String, String> params = callInvite.getCustomParameters();
+            Map<String, String> params = invite.getParams();
             if (params.containsKey("From")) {
                 phoneNumber = params.get("From");
             }
             
-            // Answer the call
-            activeCall = callInvite.accept(new CallListener());
+            // Answer the call; only outgoing calls are timed
+            setupTrace = null;
+            selectAudioDevice();
+            activeCall = callEngine.accept(invite, new CallListener());
         }
     }
     
@@ -334,14 +568,86 @@ public class VoiceService extends Service {
             activeCall.disconnect();
             activeCall = null;
         }
+        pendingConnect = null;
         
         stopRecording();
+        releasePreRoll();
         updateCallState(CallState.DISCONNECTED);
+        if (droppingCall != null) {
+            // Stay up until the message has played; finishMessageDrop shuts down after
+            return;
+        }
         releaseWakeLock();
         stopForeground(true);
         stopSelf();
     }
     
+    /**
+     * Check whether a pre-recorded message can be dropped into the current call
+     * 
+     * @return true if the call is connected through the custom audio device and a message is set up
+     */
+    public boolean canDropMessage() {
+        return activeCall != null && callState == CallState.CONNECTED && callAudioDevice != null
+                && messageDropCall;
+    }
+    
+    /**
+     * Play the pre-recorded message into the current call in place of the microphone,
+     * and hang up when it ends. The call is handed off at once, so the agent can move
+     * on; a new call placed meanwhile connects as soon as the message has finished.
+     * 
+     * @return true if the message started playing
+     */
+    public boolean dropMessage() {
+        if (!canDropMessage() || droppingCall != null) {
+            return false;
+        }
+        MessageDrop message;
+        try {
+            message = MessageDrop.open(MessageDrop.getFile(this));
+        } catch (IOException e) {
+            Log.e(TAG, "Error opening message to drop", e);
+            return false;
+        }
+        
+        Log.i(TAG, "Dropping a " + message.getDurationMillis() + " ms message");
+        stopRecording();
+        releasePreRoll();
+        droppingCall = activeCall;
+        activeCall = null;
+        callAudioDevice.playMessage(message, () -> mainHandler.post(this::finishMessageDrop));
+        updateCallState(CallState.DISCONNECTED);
+        return true;
+    }
+    
+    /**
+     * Hang up the call a message was dropped into, once the message has played or the
+     * other side hung up, and go on to any call placed meanwhile
+     */
+    private void finishMessageDrop() {
+        CallEngine.Call call = droppingCall;
+        if (call == null) {
+            return;
+        }
+        droppingCall = null;
+        droppedCall = call;
+        if (callAudioDevice != null) {
+            callAudioDevice.stopMessage();
+        }
+        call.disconnect();
+        
+        Runnable connect = pendingConnect;
+        pendingConnect = null;
+        if (connect != null) {
+            connect.run();
+        } else if (activeCall == null && callState == CallState.DISCONNECTED) {
+            releaseWakeLock();
+            stopForeground(true);
+            stopSelf();
+        }
+    }
+    
     /**
      * Toggle mute state
      * 
@@ -351,6 +657,9 @@ public class VoiceService extends Service {
         if (activeCall != null) {
             isMuted = !isMuted;
             activeCall.mute(isMuted);
+            if (callAudioDevice != null) {
+                callAudioDevice.setMuted(isMuted);
+            }
             return isMuted;
         }
         return false;
@@ -383,75 +692,137 @@ public class VoiceService extends Service {
     }
     
     /**
-     * Start call recording
+     * Start call recording. Whether there is room for it is checked in the background
+     * first; if there is not, subscribers are told the recording stopped without a file.
      * 
-     * @return true if recording started successfully, false otherwise
+     * @return true if recording is starting, false otherwise
      */
     public boolean startRecording() {
-        if (activeCall == null || isRecording) {
+        if (activeCall == null || isRecording || recordingPreparing) {
             return false;
         }
         
+        // Make sure the recording has room, so it does not run out of space mid-call
+        RecordingStore store = RecordingStorageManager.getInstance(this).getRecordingStore();
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        CallEngine.Call call = activeCall;
+        recordingPreparing = true;
+        RecordingStorageManager.getInstance(this).prepareForRecording(store, getRecordingReserveBytes(prefs),
+                ready -> mainHandler.post(() -> {
+                    if (!recordingPreparing || activeCall != call) {
+                        // Stopped, or the call ended, while the space was checked
+                        return;
+                    }
+                    recordingPreparing = false;
+                    if (!ready) {
+                        Log.w(TAG, "Not starting recording: storage is full");
+                        eventBus.publishRecordingStopped(null);
+                        return;
+                    }
+                    beginRecording(store);
+                }));
+        return true;
+    }
+    
+    /**
+     * Get the space to make sure is free before a recording starts
+     * 
+     * @param prefs The app preferences
+     * @return The size of the first minutes of the recording as it will be stored
+     */
+    private long getRecordingReserveBytes(SharedPreferences prefs) {
+        int sampleRate = Integer.parseInt(prefs.getString("recording_sample_rate", "0"));
+        WavFormat pcmFormat = sampleRate > 0 && sampleRate < captureFormat.getSampleRate()
+                ? Resampler.outputFormat(captureFormat, sampleRate, !dualChannelCall) : captureFormat;
+        WavFormat storedFormat = "ima_adpcm".equals(prefs.getString("recording_format", "pcm"))
+                ? WavFormat.imaAdpcm(pcmFormat.getSampleRate(), pcmFormat.getChannels())
+                : pcmFormat;
+        return (long) storedFormat.getByteRate() * 60 * RECORDING_RESERVE_MINUTES;
+    }
+    
+    /**
+     * Create the recording's files and start writing the call's audio to them
+     * 
+     * @param store The store to record to, which has been checked to have room
+     */
+    private void beginRecording(RecordingStore store) {
         try {
-            // Create recording directory if it doesn't exist
-            File recordingDir = getRecordingDirectory();
-            if (!recordingDir.exists()) {
-                recordingDir.mkdirs();
+            // Create recording file, or the first segment and manifest in segmented mode
+            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            String baseName = "call_" + timestamp + "_" + phoneNumber.replaceAll("[^0-9]", "");
+            RecordingSink sink;
+    
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+    
+            // Encrypted recordings need the Android Keystore, available from API 23
+            boolean encrypted = prefs.getBoolean("encrypt_recordings", false)
+                    && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+            String suffix = encrypted ? ".wav" + EncryptingSink.SUFFIX : ".wav";
+            String mimeType = encrypted ? EncryptingSink.MIME_TYPE : RECORDING_MIME_TYPE;
+    
+            // Archive at a lower rate if configured, keeping the two sides of a dual-channel call apart
+            int sampleRate = Integer.parseInt(prefs.getString("recording_sample_rate", "0"));
+            boolean resample = sampleRate > 0 && sampleRate < captureFormat.getSampleRate();
+            boolean downmix = !dualChannelCall;
+            WavFormat pcmFormat = resample ? Resampler.outputFormat(captureFormat, sampleRate, downmix) : captureFormat;
+    
+            RecordingContext context = new RecordingContext(store, prefs, pcmFormat, encrypted,
+                    RecordingStorageManager.getInstance(this).newAccount(store));
+            recordingContext = context;
+            long segmentMinutes = Long.parseLong(prefs.getString("recording_segment_minutes", "0"));
+            if (segmentMinutes > 0) {
+                // Every segment is created for this recording, even once a new one has started
+                SegmentedSink segmentedSink = new SegmentedSink(store, baseName, suffix, mimeType,
+                        pcmFormat, segmentMinutes * 60 * 1000, file -> createRecordingSink(context, file));
+                context.location = segmentedSink.getManifestLocation();
+                context.manifestName = segmentedSink.getManifestName();
+                sink = segmentedSink;
+            } else {
+                RecordingFile recordingFile = store.create(baseName + suffix, mimeType);
+                context.location = recordingFile.getLocation();
+                sink = createRecordingSink(context, recordingFile);
             }
+            recordingLocation = context.location;
             
-            // Create recording file
-            String timestamp = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
-            String fileName = "call_" + timestamp + "_" + phoneNumber.replaceAll("[^0-9]", "") + ".wav";
-            recordingFile = new File(recordingDir, fileName);
+            // Convert on the writer thread, ahead of everything that is written to disk
+            if (resample) {
+                sink = new Resampler(sink, captureFormat, sampleRate, downmix);
+            }
             
-            // Open output stream
-            recordingOutputStream = new FileOutputStream(recordingFile);
+            // Keep card numbers and PINs typed on the keypad out of everything written
+            recordingRedactor = null;
+            if (prefs.getBoolean("redact_dtmf", true)) {
+                recordingRedactor = new DtmfRedactor(sink, captureFormat);
+                sink = recordingRedactor;
+            }
             
-            // Start recording
-            activeCall.startRecording(new Call.AudioRecordingListener() {
-                @Override
-                public void onRecordingStarted() {
-                    isRecording = true;
-                    if (callStateListener != null) {
-                        callStateListener.onRecordingStarted();
-                    }
-                }
-                
-                @Override
-                public void onRecordingFailed(Exception e) {
-                    Log.e(TAG, "Recording failed", e);
-                    isRecording = false;
-                    closeRecordingOutputStream();
-                }
-                
-                @Override
-                public void onRecordingStopped() {
-                    isRecording = false;
-                    closeRecordingOutputStream();
-                    if (callStateListener != null && recordingFile != null) {
-                        callStateListener.onRecordingStopped(recordingFile.getAbsolutePath());
-                    }
-                }
-                
-                @Override
-                public void onBufferAvailable(ByteBuffer byteBuffer) {
-                    if (recordingOutputStream != null) {
-                        try {
-                            byte[] data = new byte[byteBuffer.remaining()];
-                            byteBuffer.get(data);
-                            recordingOutputStream.write(data);
-                        } catch (IOException e) {
-                            Log.e(TAG, "Error writing recording data", e);
-                        }
-                    }
-                }
-            });
+            // Lead with the audio from before Record was pressed
+            PreRollBuffer preRoll = preRollBuffer;
+            recordingPreRoll = null;
+            if (preRoll != null) {
+                recordingPreRoll = new PreRollSink(sink, preRoll);
+                sink = recordingPreRoll;
+            }
             
-            return true;
+            // Meter the live audio for the call screen
+            sink = new LevelMeter(sink, captureFormat, levelListener,
+                    AUDIO_LEVEL_INTERVAL_MILLIS, DEAD_AUDIO_MILLIS);
+            
+            // Start the background writer
+            recordingWriter = new RecordingWriter(sink);
+            recordingWriter.start();
+            
+            // Start recording, unless the SDK is already capturing into the pre-roll ring
+            if (sdkRecording) {
+                isRecording = true;
+                eventBus.publishRecordingStarted();
+            } else {
+                startAudioCapture();
+            }
         } catch (Exception e) {
             Log.e(TAG, "Error starting recording", e);
-            closeRecordingOutputStream();
-            return false;
+            closeRecordingWriter(false);
+            eventBus.publishRecordingStopped(null);
         }
     }
     
@@ -459,46 +830,441 @@ public class VoiceService extends Service {
      * Stop call recording
      */
     public void stopRecording() {
+        recordingPreparing = false;
+        PreRollBuffer preRoll = preRollBuffer;
+        if (preRoll != null && activeCall != null && isRecording) {
+            // Keep the SDK capturing so the ring fills again for the next recording
+            isRecording = false;
+            closeRecordingWriter(true, preRoll::reset);
+            return;
+        }
         if (activeCall != null && isRecording) {
-            activeCall.stopRecording();
             isRecording = false;
+            stopAudioCapture();
+            closeRecordingWriter(true);
+            return;
         }
-        closeRecordingOutputStream();
+        closeRecordingWriter(false);
     }
     
     /**
-     * Close the recording output stream
+     * Start capturing the call's audio into the pre-roll ring, if enabled in settings,
+     * so a recording started later can include the preceding seconds of the call
      */
-    private void closeRecordingOutputStream() {
-        if (recordingOutputStream != null) {
-            try {
-                recordingOutputStream.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing recording output stream", e);
-            } finally {
-                recordingOutputStream = null;
+    private void startPreRoll() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        long preRollSeconds = Long.parseLong(prefs.getString("preroll_seconds", "0"));
+        if (activeCall == null || preRollSeconds <= 0 || sdkRecording || isRecording) {
+            return;
+        }
+        
+        preRollBuffer = new PreRollBuffer(captureFormat, preRollSeconds * 1000);
+        Log.d(TAG, "Buffering the last " + preRollSeconds + " seconds of the call ("
+                + preRollBuffer.getCapacity() + " bytes)");
+        startAudioCapture();
+    }
+    
+    /**
+     * Release the pre-roll ring at the end of a call; the SDK stops capturing with the call
+     */
+    private void releasePreRoll() {
+        preRollBuffer = null;
+        sdkRecording = false;
+        if (callAudioDevice != null) {
+            callAudioDevice.stopTap();
+        }
+    }
+    
+    /**
+     * Choose the audio device for a new call: the custom device if each side of the
+     * call is to be recorded separately, or message drops are turned on and a message
+     * is set up, otherwise the SDK's own
+     */
+    private void selectAudioDevice() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
+        dualChannelCall = prefs.getBoolean("dual_channel_recording", false);
+        messageDropCall = prefs.getBoolean("drop_message_enabled", false) && MessageDrop.isAvailable(this);
+        captureFormat = dualChannelCall ? DUAL_CHANNEL_FORMAT : RECORDING_FORMAT;
+        if (dualChannelCall || messageDropCall) {
+            if (customAudioDevice == null) {
+                customAudioDevice = new CallAudioDevice();
             }
+            customAudioDevice.setMuted(false);
+            callAudioDevice = customAudioDevice;
+        } else {
+            callAudioDevice = null;
+        }
+        callEngine.setAudioDevice(callAudioDevice);
+    }
+    
+    /**
+     * Start delivering the call's audio to the recording listener, from the SDK's
+     * mixed recording or from the tap of the dual-channel device
+     */
+    private void startAudioCapture() {
+        sdkRecording = true;
+        if (dualChannelCall) {
+            callAudioDevice.startTap(recordingListener::onBufferAvailable);
+            recordingListener.onRecordingStarted();
+        } else {
+            activeCall.startRecording(recordingListener);
+        }
+    }
+    
+    /**
+     * Stop delivering the call's audio; a tap hands over what it still holds first
+     */
+    private void stopAudioCapture() {
+        sdkRecording = false;
+        if (dualChannelCall) {
+            callAudioDevice.stopTap();
+        } else {
+            activeCall.stopRecording();
         }
     }
     
     /**
-     * Get the recording directory
+     * Build the chain of recording stages for a new recording or segment file
      * 
-     * @return The recording directory
+     * @param context The recording the file belongs to
+     * @param recordingFile The file the recording is written to
+     * @return The first stage of the chain
+     * @throws IOException If the file could not be prepared
      */
-    private File getRecordingDirectory() {
+    private RecordingSink createRecordingSink(RecordingContext context, RecordingFile recordingFile)
+            throws IOException {
         SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String recordingPath = prefs.getString("recording_directory", null);
         
-        if (recordingPath != null) {
-            File customDir = new File(recordingPath);
-            if (customDir.exists() && customDir.canWrite()) {
-                return customDir;
+        ChannelSink fileSink = new ChannelSink(recordingFile);
+        context.files.add(recordingFile);
+        RecordingRecovery.getInstance(this).opened(recordingFile);
+        context.fileSinks.add(fileSink);
+        PositionalSink out = checksumBlocks(context, prefs, recordingFile, fileSink);
+        if (context.keyWrapper != null) {
+            // Seal the file in chunks below the WAV layer so the header is encrypted too
+            out = new EncryptingSink(out, context.keyWrapper, context.archiveWrapper,
+                    EncryptingSink.DEFAULT_CHUNK_SIZE);
+        }
+        RecordingSink chain;
+        if (context.adpcm) {
+            // Compress on the writer thread as the buffers arrive
+            WavFormat adpcmFormat = WavFormat.imaAdpcm(
+                    context.pcmFormat.getSampleRate(), context.pcmFormat.getChannels());
+            chain = new ImaAdpcmEncoder(new WavSink(out, adpcmFormat), adpcmFormat);
+        } else {
+            chain = new WavSink(out, context.pcmFormat);
+        }
+        
+        // Charge the file's growth to the storage budget and stop cleanly if the disk fills up
+        RecordingSink indexed = indexPeaks(context, recordingFile, chain);
+        return new QuotaSink(suppressSilence(context, prefs, recordingFile, indexed), fileSink, context.account);
+    }
+    
+    /**
+     * Get the wrapper for the archive's copy of encrypted recordings' keys
+     * 
+     * @param prefs The app preferences
+     * @return The wrapper, or null if no valid archive key is configured
+     */
+    private static KeyWrapper getArchiveKeyWrapper(SharedPreferences prefs) {
+        String key = prefs.getString(PREF_ARCHIVE_PUBLIC_KEY, "");
+        if (key == null || key.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            String base64 = key.replaceAll("-----[A-Z ]+-----", "").replaceAll("\\s", "");
+            return ArchiveKeyWrapper.fromEncoded(Base64.decode(base64, Base64.DEFAULT));
+        } catch (IOException | IllegalArgumentException e) {
+            Log.e(TAG, "Invalid archive public key", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Put the checksumming stage on top of a file, so damage to the stored bytes can be detected,
+     * and commit the file to the device as often as configured
+     * 
+     * @param context The recording the file belongs to
+     * @param prefs The app preferences
+     * @param recordingFile The file being written; its checksums are created next to it
+     * @param fileSink The sink writing the file
+     * @return The stage to write the file through
+     * @throws IOException If the checksum file could not be created
+     */
+    private PositionalSink checksumBlocks(RecordingContext context, SharedPreferences prefs,
+                                          RecordingFile recordingFile, ChannelSink fileSink)
+            throws IOException {
+        long syncIntervalMillis = Long.parseLong(prefs.getString("recording_sync_ms",
+                String.valueOf(ChecksumSink.SYNC_ON_CLOSE)));
+        RecordingFile checksumFile = context.store.create(
+                BlockChecksums.nameFor(recordingFile.getName()), "application/octet-stream");
+        context.sidecars.add(checksumFile);
+        return new ChecksumSink(fileSink, checksumFile, BlockChecksums.DEFAULT_BLOCK_SIZE, syncIntervalMillis);
+    }
+    
+    /**
+     * Put a peak indexing stage in front of a chain, so the stored audio gets a waveform sidecar
+     * 
+     * @param context The recording the file belongs to
+     * @param recordingFile The file the chain writes to; its peak index is created next to it
+     * @param chain The stages that encode and write the audio
+     * @return The first stage of the chain
+     * @throws IOException If the peak index could not be created
+     */
+    private RecordingSink indexPeaks(RecordingContext context, RecordingFile recordingFile,
+                                     RecordingSink chain) throws IOException {
+        RecordingFile peakFile = context.store.create(
+                PeakIndex.nameFor(recordingFile.getName()), "application/octet-stream");
+        context.sidecars.add(peakFile);
+        return new PeakIndexer(chain, context.pcmFormat, peakFile, PeakIndexer.DEFAULT_FRAMES_PER_PEAK);
+    }
+    
+    /**
+     * Put the silence suppression stage in front of a chain if it is enabled
+     * 
+     * @param context The recording the file belongs to
+     * @param prefs The app preferences
+     * @param recordingFile The file the chain writes to; its silence map is created next to it
+     * @param chain The stages that encode and write the audio
+     * @return The first stage of the chain
+     * @throws IOException If the silence map could not be created
+     */
+    private RecordingSink suppressSilence(RecordingContext context, SharedPreferences prefs,
+                                          RecordingFile recordingFile, RecordingSink chain)
+            throws IOException {
+        if (!prefs.getBoolean("silence_suppression", false)) {
+            return chain;
+        }
+        double thresholdDbfs = Double.parseDouble(prefs.getString("silence_threshold_db", "-50"));
+        long minSilenceMillis = Long.parseLong(prefs.getString("silence_min_ms", "500"));
+        RecordingFile markerFile = context.store.create(
+                SilenceMap.nameFor(recordingFile.getName()), "application/octet-stream");
+        context.sidecars.add(markerFile);
+        return new SilenceSuppressor(chain, context.pcmFormat, markerFile, thresholdDbfs, minSilenceMillis);
+    }
+    
+    /**
+     * Close the recording writer in the background, as draining it, committing the files
+     * and sealing their checksums can take a while, then catalog the recording
+     * 
+     * @param announce Whether to tell subscribers the recording stopped once it is saved
+     */
+    private void closeRecordingWriter(boolean announce) {
+        closeRecordingWriter(announce, null);
+    }
+    
+    /**
+     * Close the recording writer in the background and catalog the recording
+     * 
+     * @param announce Whether to tell subscribers the recording stopped once it is saved
+     * @param afterClose Run on the closing thread once the writer is closed, e.g. to rearm
+     *                   the pre-roll ring only after the recording has taken what it held
+     */
+    private void closeRecordingWriter(boolean announce, @Nullable Runnable afterClose) {
+        RecordingWriter writer = recordingWriter;
+        recordingWriter = null;
+        if (writer == null) {
+            if (afterClose != null) {
+                afterClose.run();
+            }
+            if (announce) {
+                eventBus.publishRecordingStopped(recordingLocation);
+            }
+            return;
+        }
+        
+        // Taken now, so a new recording can start while this one is still closing
+        FinishedRecording recording = new FinishedRecording(writer, recordingContext);
+        recordingContext = null;
+        recordingPreRoll = null;
+        recordingRedactor = null;
+        recordingCloser.execute(() -> {
+            recording.close();
+            if (afterClose != null) {
+                afterClose.run();
+            }
+            if (announce) {
+                mainHandler.post(() -> eventBus.publishRecordingStopped(recording.location));
+            }
+        });
+    }
+    
+    /**
+     * The settings and files of one recording, fixed when it starts. Its segment files are
+     * created from it, so a segment started while the recording drains still belongs to it
+     * after a new recording has begun.
+     */
+    private static final class RecordingContext {
+        final RecordingStore store;
+        // PCM format the recording's files are written from, after any resampling
+        final WavFormat pcmFormat;
+        final boolean adpcm;
+        final String formatName;
+        final long startTime;
+        // Seals the files of an encrypted recording, otherwise null
+        final KeyWrapper keyWrapper;
+        // Wraps the archive's copy of an encrypted recording's key; without it the recording stays on the device
+        final KeyWrapper archiveWrapper;
+        final StorageAccount account;
+        
+        // Every file of the recording with its sink, used to total its size and upload it
+        final List<RecordingFile> files = Collections.synchronizedList(new ArrayList<>());
+        final List<ChannelSink> fileSinks = Collections.synchronizedList(new ArrayList<>());
+        // The checksums, peaks and silence markers next to each file, uploaded along with it
+        final List<RecordingFile> sidecars = Collections.synchronizedList(new ArrayList<>());
+        String location;
+        String manifestName;
+        
+        RecordingContext(RecordingStore store, SharedPreferences prefs, WavFormat pcmFormat,
+                         boolean encrypted, StorageAccount account) {
+            this.store = store;
+            this.pcmFormat = pcmFormat;
+            this.account = account;
+            this.startTime = System.currentTimeMillis();
+            String format = prefs.getString("recording_format", "pcm");
+            this.adpcm = "ima_adpcm".equals(format);
+            if (encrypted && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+                this.keyWrapper = KeystoreKeyWrapper.getInstance();
+                this.archiveWrapper = getArchiveKeyWrapper(prefs);
+                this.formatName = format + "+aes_gcm";
+            } else {
+                this.keyWrapper = null;
+                this.archiveWrapper = null;
+                this.formatName = format;
             }
         }
         
-        // Default to app's external files directory
-        return new File(getExternalFilesDir(null), "call_recordings");
+        /**
+         * Whether the recording can be archived: an encrypted one needs the archive's copy of its key
+         */
+        boolean isUploadable() {
+            return keyWrapper == null || archiveWrapper != null;
+        }
+    }
+    
+    /**
+     * A recording whose writer is being closed, with everything needed to catalog it
+     */
+    private final class FinishedRecording {
+        final RecordingWriter writer;
+        final String location;
+        final RecordingStore store;
+        // The recording's own lists, which a segment opened while draining is still added to
+        final List<RecordingFile> files;
+        final List<ChannelSink> fileSinks;
+        final List<RecordingFile> sidecars;
+        final String manifestName;
+        final PreRollSink preRoll;
+        final DtmfRedactor redactor;
+        // An encrypted recording without the archive's copy of its key stays on the device
+        final boolean uploadable;
+        final String phoneNumber;
+        final String twilioPhoneNumber;
+        final long startTime;
+        final String formatName;
+        final WavFormat format;
+        
+        FinishedRecording(RecordingWriter writer, RecordingContext context) {
+            this.writer = writer;
+            this.location = context.location;
+            this.store = context.store;
+            this.files = context.files;
+            this.fileSinks = context.fileSinks;
+            this.sidecars = context.sidecars;
+            this.manifestName = context.manifestName;
+            this.preRoll = recordingPreRoll;
+            this.redactor = recordingRedactor;
+            this.uploadable = context.isUploadable();
+            this.phoneNumber = VoiceService.this.phoneNumber;
+            this.twilioPhoneNumber = VoiceService.this.twilioPhoneNumber;
+            this.startTime = context.startTime;
+            this.formatName = context.formatName;
+            this.format = captureFormat;
+        }
+        
+        /**
+         * Flush and close the writer, then add the recording to the catalog
+         */
+        void close() {
+            try {
+                writer.close();
+                
+                // Closed cleanly, so there is nothing to repair after a restart
+                RecordingRecovery.getInstance(VoiceService.this).finished(files);
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing recording writer", e);
+            } finally {
+                Log.d(TAG, "Recording writer closed: " + writer.getBytesWritten() + " bytes written, "
+                        + writer.getDroppedFrames() + " frames dropped, max queue depth "
+                        + writer.getMaxQueueDepth() + "/" + writer.getCapacity());
+            }
+            if (redactor != null && redactor.getToneCount() > 0) {
+                // Only how much was removed, never which keys
+                Log.i(TAG, "Redacted " + redactor.getToneCount() + " keypad tones ("
+                        + redactor.getRedactedBlocks() * redactor.getBlockFrames() * 1000
+                        / format.getSampleRate() + " ms) from the recording");
+            }
+            catalog();
+        }
+        
+        /**
+         * Add the finished recording to the recordings catalog
+         */
+        private void catalog() {
+            // Audio from the pre-roll ring came before the recording was started
+            long preRollBytes = preRoll != null ? preRoll.getPreRollBytes() : 0;
+            if (location == null || writer.getBytesWritten() + preRollBytes == 0) {
+                return;
+            }
+            long sizeBytes = 0;
+            for (ChannelSink fileSink : fileSinks) {
+                try {
+                    sizeBytes += fileSink.getSize();
+                } catch (IOException e) {
+                    Log.e(TAG, "Error reading recording size", e);
+                }
+            }
+            
+            // Queue the audio files with their sidecars, and the manifest of a segmented recording,
+            // for upload. The sidecars go too because eviction deletes them with the audio, and
+            // suppressed silences cannot be restored without their markers. An encrypted recording
+            // without the archive's copy of its key could never be decrypted there, so it is kept
+            // on the device only and never counts as archived.
+            List<String[]> uploads = new ArrayList<>();
+            for (RecordingFile file : files) {
+                uploads.add(new String[] {file.getName(), file.getLocation()});
+            }
+            for (RecordingFile sidecar : sidecars) {
+                uploads.add(new String[] {sidecar.getName(), sidecar.getLocation()});
+            }
+            if (manifestName != null) {
+                uploads.add(new String[] {manifestName, location});
+            }
+            if (!uploadable) {
+                if (RecordingUploader.getInstance(VoiceService.this).isEnabled()) {
+                    Log.w(TAG, "Not uploading " + location + ": no archive key to encrypt it for");
+                }
+                uploads.clear();
+            }
+            
+            CallRecording recording = new CallRecording(phoneNumber, twilioPhoneNumber,
+                    startTime - format.getDurationMillis(preRollBytes),
+                    format.getDurationMillis(writer.getBytesWritten() + preRollBytes), sizeBytes,
+                    formatName, location);
+            Context context = VoiceService.this;
+            AppDatabase database = AppDatabase.getDatabase(context);
+            AppDatabase.databaseWriteExecutor.execute(() -> {
+                long id = database.callRecordingDao().insert(recording);
+                Log.d(TAG, "Cataloged recording " + id + ": " + recording);
+                
+                // Queued before the budget is enforced, so the new recording is never evicted unsent
+                RecordingUploader uploader = RecordingUploader.getInstance(context);
+                for (String[] upload : uploads) {
+                    uploader.enqueue(id, upload[0], upload[1]);
+                }
+                RecordingStorageManager.getInstance(context).enforceBudget(store);
+            });
+        }
     }
     
     /**
@@ -511,7 +1277,11 @@ public class VoiceService extends Service {
         String twilioNumber = intent.getStringExtra("twilio_number");
         
         if (phoneNumber != null && twilioNumber != null) {
-            makeCall(phoneNumber, twilioNumber);
+            CallSetupTrace trace = new CallSetupTrace();
+            trace.mark(CallSetupTrace.Mark.TAPPED, intent.getLongExtra(CallSetupTrace.EXTRA_TAPPED, 0));
+            trace.mark(CallSetupTrace.Mark.ACTIVITY_CREATED, intent.getLongExtra(CallSetupTrace.EXTRA_ACTIVITY_CREATED, 0));
+            trace.mark(CallSetupTrace.Mark.SERVICE_BOUND, intent.getLongExtra(CallSetupTrace.EXTRA_SERVICE_BOUND, 0));
+            makeCall(phoneNumber, twilioNumber, trace);
         } else {
             Log.e(TAG, "Missing phone number or Twilio number for outgoing call");
             stopSelf();
@@ -545,22 +1315,8 @@ public class VoiceService extends Service {
             notificationManager.notify(NOTIFICATION_ID, createCallNotification());
         }
         
-        // Notify listener
-        if (callStateListener != null) {
-            callStateListener.onCallStateChanged(newState, phoneNumber);
-            
-            switch (newState) {
-                case CONNECTED:
-                    callStateListener.onCallConnected();
-                    break;
-                case DISCONNECTED:
-                    callStateListener.onCallDisconnected();
-                    break;
-                case FAILED:
-                    callStateListener.onCallFailed("Call failed");
-                    break;
-            }
-        }
+        // Notify listeners
+        eventBus.publishState(newState, phoneNumber);
     }
     
     /**
@@ -630,31 +1386,6 @@ public class VoiceService extends Service {
                 .build();
     }
     
-    /**
-     * Get a Twilio access token for making calls
-     * 
-     * @param twilioNumber The Twilio phone number to use
-     * @return The access token
-     */
-    private String getTwilioAccessToken(String twilioNumber) {
-        // In a real app, this would make a network request to your backend server
-        // The server would generate a token using the Twilio SDK
-        
-        // For this example, we'll use a mock token
-        // In production, replace this with actual token generation
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-        String accountSid = prefs.getString("account_sid", "");
-        String authToken = prefs.getString("auth_token", "");
-        
-        // Log the values for debugging (remove in production)
-        Log.d(TAG, "Using Account SID: " + accountSid);
-        
-        // TODO: Implement actual token generation via server
-        // This would typically be a network request to your backend
-        
-        return "MOCK_TOKEN_" + accountSid + "_" + twilioNumber;
-    }
-    
     /**
      * Acquire wake lock to prevent CPU from sleeping during call
      */
@@ -674,30 +1405,64 @@ public class VoiceService extends Service {
     }
     
     /**
-     * Call listener for Twilio Voice SDK callbacks
+     * Add the setup times of the call that just connected to the latency histograms
      */
-    private class CallListener implements Call.Listener {
+    private void recordCallSetup() {
+        CallSetupTrace trace = setupTrace;
+        setupTrace = null;
+        if (trace == null) {
+            return;
+        }
+        trace.mark(CallSetupTrace.Mark.CONNECTED);
+        Log.i(TAG, "Call setup: token " + trace.getDuration(CallSetupTrace.Phase.TOKEN)
+                + " ms, tap to ringing " + trace.getDuration(CallSetupTrace.Phase.TAP_TO_RINGING)
+                + " ms, tap to connected " + trace.getDuration(CallSetupTrace.Phase.TAP_TO_CONNECTED) + " ms");
+        CallSetupMetrics.getInstance(this).record(trace, twilioPhoneNumber, callEngine.getEdge());
+    }
+    
+    /**
+     * Check whether a call failed because its access token was rejected
+     * 
+     * @param error The call's error
+     * @return true for an invalid or expired token
+     */
+    private static boolean isTokenError(CallError error) {
+        int code = error.getCode();
+        return code == ERROR_INVALID_ACCESS_TOKEN || code == ERROR_ACCESS_TOKEN_EXPIRED;
+    }
+    
+    /**
+     * Call listener for the call engine's callbacks
+     */
+    private class CallListener implements CallEngine.Listener {
         @Override
-        public void onConnectFailure(@NonNull Call call, @NonNull CallException error) {
+        public void onConnectFailure(@NonNull CallEngine.Call call, @NonNull CallError error) {
             Log.e(TAG, "Call connect failure: " + error.getMessage());
-            updateCallState(CallState.FAILED);
-            if (callStateListener != null) {
-                callStateListener.onCallFailed(error.getMessage());
+            setupTrace = null;
+            if (isTokenError(error) && twilioPhoneNumber != null) {
+                // Fetch a new token for the next call rather than reuse the rejected one
+                AccessTokenProvider.getInstance(VoiceService.this).invalidate(twilioPhoneNumber);
             }
+            updateCallState(CallState.FAILED);
+            eventBus.publishFailure(error.getMessage());
             releaseWakeLock();
             stopForeground(true);
             stopSelf();
         }
 
         @Override
-        public void onRinging(@NonNull Call call) {
+        public void onRinging(@NonNull CallEngine.Call call) {
             Log.d(TAG, "Call ringing");
+            if (setupTrace != null) {
+                setupTrace.mark(CallSetupTrace.Mark.RINGING);
+            }
             updateCallState(CallState.RINGING);
         }
 
         @Override
-        public void onConnected(@NonNull Call call) {
+        public void onConnected(@NonNull CallEngine.Call call) {
             Log.d(TAG, "Call connected");
+            recordCallSetup();
             updateCallState(CallState.CONNECTED);
             
             // Check if auto-speaker is enabled
@@ -725,26 +1490,38 @@ public class VoiceService extends Service {
                 audioManager.requestAudioFocus(null, AudioManager.STREAM_VOICE_CALL,
                         AudioManager.AUDIOFOCUS_GAIN_TRANSIENT);
             }
+            
+            startPreRoll();
         }
 
         @Override
-        public void onReconnecting(@NonNull Call call, @NonNull CallException error) {
+        public void onReconnecting(@NonNull CallEngine.Call call, @NonNull CallError error) {
             Log.d(TAG, "Call reconnecting: " + error.getMessage());
         }
 
         @Override
-        public void onReconnected(@NonNull Call call) {
+        public void onReconnected(@NonNull CallEngine.Call call) {
             Log.d(TAG, "Call reconnected");
         }
 
         @Override
-        public void onDisconnected(@NonNull Call call, CallException error) {
+        public void onDisconnected(@NonNull CallEngine.Call call, @Nullable CallError error) {
             Log.d(TAG, "Call disconnected");
             
+            if (call == droppingCall || call == droppedCall) {
+                // A call handed off to drop a message; the current call, if any, carries on
+                finishMessageDrop();
+                droppedCall = null;
+                return;
+            }
+            
             if (error != null) {
                 Log.e(TAG, "Call error: " + error.getMessage());
             }
             
+            setupTrace = null;
+            releasePreRoll();
+            
             // Release audio focus
             if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
                 audioManager.abandonAudioFocusRequest(
@@ -0,0 +1,191 @@
+package com.example.twiliovoiceapp.storage;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import com.example.twiliovoiceapp.recording.RecordingFile;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.WavRecovery;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Finishes recordings that an earlier process left open, e.g. because it was killed
+ * mid-call.
+ * <p>
+ * Every recording file is entered in a small journal when it is created and taken out
+ * again once it has been closed, so at start-up only the files still in the journal
+ * need repairing and the recording directory is never scanned. Recovery runs once per
+ * process, on its own thread, so it never holds up placing a call, and each file is
+ * verified against its checksums and resealed at most once.
+ */
+public class RecordingRecovery {
+    private static final String TAG = "RecordingRecovery";
+
+    // Locations of recording files that have been created but not yet closed
+    private static final String PREF_UNFINISHED = "unfinished_recordings";
+
+    // Set once the recordings from before the journal existed have been checked
+    private static final String PREF_LEGACY_SCAN_DONE = "recovery_legacy_scan_done";
+
+    // Singleton instance
+    private static volatile RecordingRecovery INSTANCE;
+
+    private final Context context;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    // Locations and names of the files opened by this process; they are being written,
+    // not interrupted
+    private final Set<String> openedHere = new HashSet<>();
+    private final Set<String> openedNamesHere = new HashSet<>();
+
+    private RecordingRecovery(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * Get the singleton instance of the recovery
+     *
+     * @param context The context
+     * @return The recovery
+     */
+    public static RecordingRecovery getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (RecordingRecovery.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new RecordingRecovery(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Repair the recordings left open by an earlier process, in the background. Only the
+     * first call in a process does anything.
+     */
+    public void start() {
+        if (started.compareAndSet(false, true)) {
+            executor.execute(this::recover);
+        }
+    }
+
+    /**
+     * Note that a recording file has been created, so it is repaired if the process dies
+     * before it is closed
+     *
+     * @param file The new file
+     */
+    public synchronized void opened(RecordingFile file) {
+        openedHere.add(file.getLocation());
+        openedNamesHere.add(file.getName());
+        Set<String> unfinished = getUnfinished();
+        if (unfinished.add(file.getLocation())) {
+            putUnfinished(unfinished);
+        }
+    }
+
+    /**
+     * Note that recording files have been closed and need no repair
+     *
+     * @param files The closed files
+     */
+    public synchronized void finished(Collection<RecordingFile> files) {
+        Set<String> unfinished = getUnfinished();
+        boolean changed = false;
+        for (RecordingFile file : files) {
+            openedHere.remove(file.getLocation());
+            openedNamesHere.remove(file.getName());
+            changed |= unfinished.remove(file.getLocation());
+        }
+        if (changed) {
+            putUnfinished(unfinished);
+        }
+    }
+
+    private void recover() {
+        RecordingStorageManager storageManager = RecordingStorageManager.getInstance(context);
+        int repaired = 0;
+
+        List<String> candidates;
+        synchronized (this) {
+            candidates = new ArrayList<>(getUnfinished());
+            candidates.removeAll(openedHere);
+        }
+        for (String location : candidates) {
+            String name = storageManager.getNameFor(location);
+            try {
+                if (name != null && WavRecovery.recoverFile(storageManager.getStoreFor(location), name)) {
+                    repaired++;
+                }
+            } catch (FileNotFoundException e) {
+                Log.w(TAG, "Interrupted recording " + location + " no longer exists");
+            } catch (IOException e) {
+                // Not retried: a file that cannot be repaired would otherwise be read
+                // through again on every start
+                Log.e(TAG, "Error recovering " + location, e);
+            }
+            synchronized (this) {
+                Set<String> unfinished = getUnfinished();
+                if (unfinished.remove(location)) {
+                    putUnfinished(unfinished);
+                }
+            }
+        }
+
+        repaired += recoverLegacy(storageManager.getRecordingStore());
+        if (repaired > 0) {
+            Log.i(TAG, "Recovered " + repaired + " interrupted recordings");
+        }
+    }
+
+    /**
+     * Check the recordings made before files were journaled, once after an upgrade
+     */
+    private int recoverLegacy(RecordingStore store) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        if (prefs.getBoolean(PREF_LEGACY_SCAN_DONE, false)) {
+            return 0;
+        }
+        int repaired = 0;
+        for (String name : store.list(".wav")) {
+            synchronized (this) {
+                if (openedNamesHere.contains(name)) {
+                    continue;
+                }
+            }
+            try {
+                if (WavRecovery.recoverFile(store, name)) {
+                    repaired++;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error recovering " + name, e);
+            }
+        }
+        prefs.edit().putBoolean(PREF_LEGACY_SCAN_DONE, true).apply();
+        return repaired;
+    }
+
+    private Set<String> getUnfinished() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        // The returned set must not be modified in place
+        return new HashSet<>(prefs.getStringSet(PREF_UNFINISHED, new HashSet<>()));
+    }
+
+    private void putUnfinished(Set<String> unfinished) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putStringSet(PREF_UNFINISHED, unfinished).apply();
+    }
+}
@@ -0,0 +1,384 @@
+package com.example.twiliovoiceapp.storage;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Build;
+import android.os.storage.StorageManager;
+import android.preference.PreferenceManager;
+import android.provider.DocumentsContract;
+import android.provider.OpenableColumns;
+import android.util.Log;
+
+import com.example.twiliovoiceapp.database.AppDatabase;
+import com.example.twiliovoiceapp.database.CallRecordingDao;
+import com.example.twiliovoiceapp.database.RecordingUploadDao;
+import com.example.twiliovoiceapp.model.CallRecording;
+import com.example.twiliovoiceapp.recording.DocumentTreeRecordingStore;
+import com.example.twiliovoiceapp.recording.FileRecordingStore;
+import com.example.twiliovoiceapp.recording.RecordingStore;
+import com.example.twiliovoiceapp.recording.SegmentedSink;
+import com.example.twiliovoiceapp.recording.StorageAccount;
+import com.example.twiliovoiceapp.upload.RecordingUploader;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recordings within a storage budget.
+ * <p>
+ * The space used by recordings is kept as a running total: it starts from the size
+ * column of the recordings catalog, grows as recording files are written (through
+ * {@link #newAccount}) and shrinks as recordings are deleted, so the recording directory
+ * is never scanned. Once the total exceeds the configured budget the oldest recordings
+ * are evicted, and when an archive server is configured only recordings that have
+ * been uploaded are eligible.
+ * <p>
+ * Before a recording starts, {@link #prepareForRecording} makes sure there is room for
+ * it, asking the system to free cached data where the platform supports it. During a
+ * recording the free space is checked as the file grows; if the disk fills up, the
+ * recording stops cleanly rather than failing mid-call.
+ */
+public class RecordingStorageManager {
+    private static final String TAG = "RecordingStorage";
+
+    public static final String PREF_BUDGET_MB = "storage_budget_mb";
+
+    // Space always left free for the rest of the system
+    private static final long MIN_FREE_BYTES = 50L * 1024 * 1024;
+
+    // How often free space is rechecked while a file grows
+    private static final long CHECK_INTERVAL_BYTES = 1024 * 1024;
+
+    private static final int EVICTION_BATCH = 20;
+
+    // Singleton instance
+    private static volatile RecordingStorageManager INSTANCE;
+
+    private final Context context;
+    private final CallRecordingDao recordingDao;
+    private final RecordingUploadDao uploadDao;
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final AtomicLong usedBytes = new AtomicLong();
+
+    private RecordingStorageManager(Context context) {
+        this.context = context.getApplicationContext();
+        AppDatabase database = AppDatabase.getDatabase(context);
+        this.recordingDao = database.callRecordingDao();
+        this.uploadDao = database.recordingUploadDao();
+    }
+
+    /**
+     * Get the singleton instance of the storage manager
+     *
+     * @param context The context
+     * @return The storage manager
+     */
+    public static RecordingStorageManager getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (RecordingStorageManager.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new RecordingStorageManager(context);
+                    INSTANCE.executor.execute(INSTANCE::loadTotal);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get the space currently used by recordings
+     *
+     * @return The running total in bytes
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * Get the configured storage budget
+     *
+     * @return The budget in bytes, or 0 for no limit
+     */
+    public long getBudgetBytes() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        return Long.parseLong(prefs.getString(PREF_BUDGET_MB, "0")) * 1024 * 1024;
+    }
+
+    /**
+     * Get the store recordings are written to
+     *
+     * @return The document tree chosen in settings if it is still writable,
+     *         otherwise the default recording directory
+     */
+    public RecordingStore getRecordingStore() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String recordingPath = prefs.getString("recording_directory", null);
+
+        if (recordingPath != null) {
+            Uri uri = Uri.parse(recordingPath);
+            if (ContentResolver.SCHEME_CONTENT.equals(uri.getScheme())) {
+                // Directory picked with ACTION_OPEN_DOCUMENT_TREE
+                DocumentTreeRecordingStore treeStore = DocumentTreeRecordingStore.forTree(context, uri);
+                if (treeStore.isWritable()) {
+                    return treeStore;
+                }
+                Log.w(TAG, "No write access to " + recordingPath + ", using default directory");
+            } else {
+                File customDir = new File(recordingPath);
+                if (customDir.exists() && customDir.canWrite()) {
+                    return new FileRecordingStore(customDir);
+                }
+            }
+        }
+
+        // Default to app's external files directory
+        return new FileRecordingStore(new File(context.getExternalFilesDir(null), "call_recordings"));
+    }
+
+    /**
+     * Get the store holding a recording
+     *
+     * @param location The path or document URI of the recording
+     * @return The recording's directory, or the current store for a document
+     */
+    public RecordingStore getStoreFor(String location) {
+        if (location.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            return getRecordingStore();
+        }
+        return new FileRecordingStore(new File(location).getParentFile());
+    }
+
+    /**
+     * Get the file name of a recording within its store
+     *
+     * @param location The path or document URI of the recording
+     * @return The file name, or null if the document no longer exists
+     */
+    public String getNameFor(String location) {
+        if (location.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            return getDisplayName(Uri.parse(location));
+        }
+        return new File(location).getName();
+    }
+
+    /**
+     * Check in the background that a recording of the expected size fits, and reserve
+     * the space on the device where possible. Also starts eviction if the budget is
+     * already exceeded.
+     *
+     * @param store The store the recording will be written to
+     * @param expectedBytes The space to make sure is available
+     * @param callback Told on the storage thread whether recording can start
+     */
+    public void prepareForRecording(RecordingStore store, long expectedBytes, PrepareCallback callback) {
+        // Queued ahead of any eviction, so the recording does not wait for it
+        executor.execute(() -> callback.onPrepared(reserve(store, expectedBytes)));
+        enforceBudget(store);
+    }
+
+    private boolean reserve(RecordingStore store, long expectedBytes) {
+        File directory = getDirectory(store);
+        if (directory == null) {
+            // Free space of a document provider is unknown; only the budget applies
+            return true;
+        }
+        long needed = expectedBytes + MIN_FREE_BYTES;
+        if (getFreeSpace(directory) >= needed) {
+            return true;
+        }
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            // Ask the system to clear cached data of other apps to make room
+            StorageManager storageManager = context.getSystemService(StorageManager.class);
+            try {
+                UUID uuid = storageManager.getUuidForPath(directory);
+                if (storageManager.getAllocatableBytes(uuid) >= needed) {
+                    storageManager.allocateBytes(uuid, needed);
+                    return true;
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error allocating " + needed + " bytes for recording", e);
+            }
+        }
+        Log.w(TAG, "Not enough free space to record: " + getFreeSpace(directory) + " bytes free, "
+                + needed + " needed");
+        return false;
+    }
+
+    /**
+     * Create the account a recording's files are charged to
+     *
+     * @param store The store the files are written to
+     * @return An account that adds to the running total and reports when the disk is full
+     */
+    public StorageAccount newAccount(RecordingStore store) {
+        File directory = getDirectory(store);
+        return new StorageAccount() {
+            private long sinceCheck;
+
+            @Override
+            public boolean charge(long bytes) {
+                usedBytes.addAndGet(bytes);
+                sinceCheck += bytes;
+                if (directory == null || sinceCheck < CHECK_INTERVAL_BYTES) {
+                    return true;
+                }
+                sinceCheck = 0;
+                return getFreeSpace(directory) >= MIN_FREE_BYTES;
+            }
+        };
+    }
+
+    /**
+     * Evict the oldest recordings in the background until the budget is met
+     *
+     * @param store The store recordings are currently written to
+     */
+    public void enforceBudget(RecordingStore store) {
+        long budget = getBudgetBytes();
+        if (budget <= 0 || usedBytes.get() <= budget) {
+            return;
+        }
+        executor.execute(() -> {
+            boolean archiveOnly = RecordingUploader.getInstance(context).isEnabled();
+            Map<Object, List<String>> listings = new HashMap<>();
+            while (usedBytes.get() > budget) {
+                List<CallRecording> oldest = archiveOnly
+                        ? recordingDao.getOldestArchivedRecordings(EVICTION_BATCH)
+                        : recordingDao.getOldestRecordings(EVICTION_BATCH);
+                if (oldest.isEmpty()) {
+                    Log.w(TAG, "Over budget by " + (usedBytes.get() - budget)
+                            + " bytes but nothing left to evict");
+                    return;
+                }
+                for (CallRecording recording : oldest) {
+                    if (usedBytes.get() <= budget) {
+                        break;
+                    }
+                    Log.i(TAG, "Evicting " + recording);
+                    deleteNow(recording, store, listings);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delete a recording's files and catalog entry in the background
+     *
+     * @param recording The recording to delete
+     * @param store The store recordings are currently written to
+     */
+    public void delete(CallRecording recording, RecordingStore store) {
+        executor.execute(() -> deleteNow(recording, store, new HashMap<>()));
+    }
+
+    private void loadTotal() {
+        long total = recordingDao.getTotalSize();
+        usedBytes.addAndGet(total);
+        Log.d(TAG, "Recordings use " + total + " bytes");
+    }
+
+    /**
+     * Delete a recording's files and catalog entry
+     *
+     * @param listings Names in each store, listed at most once per pass and kept up to date
+     */
+    private void deleteNow(CallRecording recording, RecordingStore store, Map<Object, List<String>> listings) {
+        String path = recording.getPath();
+        if (path.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            Uri uri = Uri.parse(path);
+            String name = getDisplayName(uri);
+            try {
+                DocumentsContract.deleteDocument(context.getContentResolver(), uri);
+            } catch (IOException | RuntimeException e) {
+                Log.e(TAG, "Error deleting " + path, e);
+            }
+            if (name != null && getDirectory(store) == null) {
+                deleteCompanions(store, store, name, listings);
+            }
+        } else {
+            File file = new File(path);
+            deleteCompanions(new FileRecordingStore(file.getParentFile()), file.getParentFile(),
+                    file.getName(), listings);
+        }
+
+        uploadDao.deleteForRecording(recording.getId());
+        recordingDao.delete(recording);
+        usedBytes.addAndGet(-recording.getSizeBytes());
+    }
+
+    /**
+     * Delete a recording's file along with its segments and sidecars, which all share its base name
+     *
+     * @param key Identifies the store's listing among the listings
+     */
+    private static void deleteCompanions(RecordingStore store, Object key, String name,
+                                         Map<Object, List<String>> listings) {
+        List<String> names = listings.get(key);
+        if (names == null) {
+            names = new ArrayList<>(store.list(""));
+            listings.put(key, names);
+        }
+        String baseName = getBaseName(name);
+        for (Iterator<String> it = names.iterator(); it.hasNext(); ) {
+            String candidate = it.next();
+            if (candidate.equals(name) || candidate.startsWith(baseName + ".")
+                    || candidate.startsWith(baseName + "_part")) {
+                store.delete(candidate);
+                it.remove();
+            }
+        }
+    }
+
+    private static String getBaseName(String name) {
+        if (name.endsWith(SegmentedSink.MANIFEST_SUFFIX)) {
+            return name.substring(0, name.length() - SegmentedSink.MANIFEST_SUFFIX.length());
+        }
+        int dot = name.indexOf('.');
+        return dot > 0 ? name.substring(0, dot) : name;
+    }
+
+    private String getDisplayName(Uri uri) {
+        String[] projection = {OpenableColumns.DISPLAY_NAME};
+        try (Cursor cursor = context.getContentResolver().query(uri, projection, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error resolving name of " + uri, e);
+        }
+        return null;
+    }
+
+    private static File getDirectory(RecordingStore store) {
+        return store instanceof FileRecordingStore ? ((FileRecordingStore) store).getDirectory() : null;
+    }
+
+    private static long getFreeSpace(File directory) {
+        // The directory may not exist until the first recording; measure its volume instead
+        File existing = directory;
+        while (existing != null && !existing.exists()) {
+            existing = existing.getParentFile();
+        }
+        return existing != null ? existing.getUsableSpace() : 0;
+    }
+
+    /**
+     * Interface for the result of preparing for a recording
+     */
+    public interface PrepareCallback {
+        void onPrepared(boolean ready);
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.twiliovoiceapp.token;
+
+import java.io.IOException;
+import java.util.Map;
+
+import okio.ByteString;
+
+/**
+ * A Twilio access token (a JWT) together with when it stops being valid.
+ * <p>
+ * Expiry is kept on the {@code elapsedRealtime} clock rather than the wall clock: the
+ * token's lifetime is taken from its {@code iat} and {@code exp} claims, both set by
+ * the server, and counted from when it was received. A device clock that is minutes
+ * off therefore does not make fresh tokens look expired, or expired ones look fresh.
+ */
+public class AccessToken {
+
+    private final String jwt;
+    private final long receivedAt;
+    private final long expiresAt;
+
+    private AccessToken(String jwt, long receivedAt, long expiresAt) {
+        this.jwt = jwt;
+        this.receivedAt = receivedAt;
+        this.expiresAt = expiresAt;
+    }
+
+    /**
+     * Read the expiry of a token just received from the server
+     *
+     * @param jwt The encoded token
+     * @param elapsedNow The {@code elapsedRealtime} at which it was received
+     * @param wallNow The wall clock time, used only if the token has no {@code iat} claim
+     * @return The token
+     * @throws IOException If the token is not a JWT with an {@code exp} claim
+     */
+    public static AccessToken parse(String jwt, long elapsedNow, long wallNow) throws IOException {
+        String[] parts = jwt.split("\\.");
+        if (parts.length != 3) {
+            throw new IOException("Access token is not a JWT");
+        }
+        // Base64url without padding; okio decodes it on the JVM as well as on a device
+        ByteString payload = ByteString.decodeBase64(parts[1]);
+        if (payload == null) {
+            throw new IOException("Access token payload is not Base64");
+        }
+        Map<String, String> claims = JsonFields.read(payload.utf8());
+        String exp = claims.get("exp");
+        if (exp == null) {
+            throw new IOException("Access token has no expiry");
+        }
+        String iat = claims.get("iat");
+        try {
+            // NumericDate allows fractional seconds
+            long expires = (long) Double.parseDouble(exp);
+            long issued = iat != null ? (long) Double.parseDouble(iat) : wallNow / 1000;
+            long lifetimeMillis = Math.max(0, expires - issued) * 1000;
+            return new AccessToken(jwt, elapsedNow, elapsedNow + lifetimeMillis);
+        } catch (NumberFormatException e) {
+            throw new IOException("Access token payload is invalid", e);
+        }
+    }
+
+    /**
+     * Get the encoded token
+     *
+     * @return The JWT, as handed to the Voice SDK
+     */
+    public String getJwt() {
+        return jwt;
+    }
+
+    /**
+     * Get when the token was received
+     *
+     * @return The {@code elapsedRealtime} at which it was received
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * Get when the token expires
+     *
+     * @return The {@code elapsedRealtime} at which it stops being valid
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Get how long the token was valid for when it was received
+     *
+     * @return The lifetime in milliseconds
+     */
+    public long getLifetimeMillis() {
+        return expiresAt - receivedAt;
+    }
+}
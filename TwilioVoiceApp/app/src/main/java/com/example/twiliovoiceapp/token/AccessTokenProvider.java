@@ -0,0 +1,319 @@
+package com.example.twiliovoiceapp.token;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of Twilio access tokens, one per Twilio number, kept fresh in the background
+ * so placing a call almost never waits on the token server.
+ * <p>
+ * Each token is refreshed shortly before it expires, going by its JWT expiry, for as
+ * long as its number has been used recently. A call only fetches a token itself when
+ * none is cached or the cached one is about to expire. Requests for the same number
+ * that arrive while a fetch is running wait for that fetch instead of starting
+ * another. Changing the token server or identity in settings drops every cached token.
+ */
+public class AccessTokenProvider {
+    private static final String TAG = "AccessTokenProvider";
+
+    /**
+     * Source of new tokens
+     */
+    public interface Fetcher {
+        /**
+         * Fetch a new token, blocking until it arrives
+         *
+         * @param twilioNumber The Twilio number the token is for
+         * @return The encoded JWT
+         * @throws IOException If no token could be fetched
+         */
+        String fetch(String twilioNumber) throws IOException;
+    }
+
+    /**
+     * Source of the time tokens expire by, {@link SystemClock#elapsedRealtime} outside tests
+     */
+    interface Clock {
+        /**
+         * Get the time
+         *
+         * @return Milliseconds on a clock that keeps counting in deep sleep
+         */
+        long elapsedRealtime();
+    }
+
+    // A cached token is only handed out with at least this long left, to set up a call
+    private static final long MIN_REMAINING_MILLIS = 30 * 1000;
+
+    // Refresh a fifth of the lifetime before expiry, but no earlier than this
+    private static final long MAX_REFRESH_MARGIN_MILLIS = 5 * 60 * 1000;
+
+    // Wait before retrying a failed background refresh
+    private static final long RETRY_DELAY_MILLIS = 15 * 1000;
+
+    // Numbers not used for this long are no longer refreshed
+    private static final long IDLE_LIMIT_MILLIS = 60 * 60 * 1000;
+
+    // Longest a caller waits for a fetch
+    private static final long FETCH_TIMEOUT_SECONDS = 20;
+
+    private static final int MAX_PARALLEL_FETCHES = 2;
+
+    // Singleton instance
+    private static volatile AccessTokenProvider INSTANCE;
+
+    private final Fetcher fetcher;
+    private final Clock clock;
+    private final ConcurrentHashMap<String, AccessToken> tokens = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, FutureTask<AccessToken>> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, ScheduledFuture<?>> refreshes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Long> lastUsed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService fetchers = Executors.newFixedThreadPool(MAX_PARALLEL_FETCHES);
+
+    // Bumped when every token is dropped, so fetches already running are not cached
+    private final AtomicInteger generation = new AtomicInteger();
+
+    // Held in a field because preferences only keep weak references to listeners
+    private SharedPreferences.OnSharedPreferenceChangeListener settingsListener;
+
+    /**
+     * Constructor for a provider with its own source of tokens
+     *
+     * @param fetcher Source of new tokens
+     */
+    public AccessTokenProvider(Fetcher fetcher) {
+        this(fetcher, SystemClock::elapsedRealtime);
+    }
+
+    /**
+     * Constructor for a provider on a given clock
+     *
+     * @param fetcher Source of new tokens
+     * @param clock Source of the time
+     */
+    @VisibleForTesting
+    AccessTokenProvider(Fetcher fetcher, Clock clock) {
+        this.fetcher = fetcher;
+        this.clock = clock;
+    }
+
+    /**
+     * Get the singleton instance of the provider, fetching from the configured token server
+     *
+     * @param context The context
+     * @return The provider
+     */
+    public static AccessTokenProvider getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (AccessTokenProvider.class) {
+                if (INSTANCE == null) {
+                    AccessTokenProvider provider = new AccessTokenProvider(new HttpTokenFetcher(context));
+                    provider.settingsListener = (prefs, key) -> {
+                        if (HttpTokenFetcher.PREF_TOKEN_URL.equals(key) || HttpTokenFetcher.PREF_IDENTITY.equals(key)) {
+                            provider.invalidateAll();
+                        }
+                    };
+                    PreferenceManager.getDefaultSharedPreferences(context.getApplicationContext())
+                            .registerOnSharedPreferenceChangeListener(provider.settingsListener);
+                    INSTANCE = provider;
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Get a token to place a call with. A fresh cached token is returned at once; one
+     * that is due for refresh is still returned, and refreshed in the background.
+     *
+     * @param twilioNumber The Twilio number the call is from
+     * @return The encoded JWT
+     * @throws IOException If no token was cached and none could be fetched
+     */
+    public String getToken(String twilioNumber) throws IOException {
+        long now = clock.elapsedRealtime();
+        lastUsed.put(twilioNumber, now);
+        AccessToken token = tokens.get(twilioNumber);
+        if (token != null && token.getExpiresAt() - now >= MIN_REMAINING_MILLIS) {
+            if (now >= getRefreshAt(token)) {
+                fetch(twilioNumber);
+            }
+            return token.getJwt();
+        }
+
+        Log.d(TAG, "No usable token for " + twilioNumber + ", waiting for a fetch");
+        FutureTask<AccessToken> task = fetch(twilioNumber);
+        try {
+            return task.get(FETCH_TIMEOUT_SECONDS, TimeUnit.SECONDS).getJwt();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Token fetch failed", cause);
+        } catch (TimeoutException e) {
+            throw new IOException("Timed out waiting for a token", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a token");
+        }
+    }
+
+    /**
+     * Make sure a token for a number is cached or on its way, e.g. while the user is
+     * still entering the number to call
+     *
+     * @param twilioNumber The Twilio number a call is likely to be placed from
+     */
+    public void prefetch(String twilioNumber) {
+        long now = clock.elapsedRealtime();
+        lastUsed.put(twilioNumber, now);
+        AccessToken token = tokens.get(twilioNumber);
+        if (token == null || now >= getRefreshAt(token)) {
+            fetch(twilioNumber);
+        }
+    }
+
+    /**
+     * Drop the cached token for a number, e.g. after the server rejected it
+     *
+     * @param twilioNumber The Twilio number
+     */
+    public void invalidate(String twilioNumber) {
+        tokens.remove(twilioNumber);
+        ScheduledFuture<?> refresh = refreshes.remove(twilioNumber);
+        if (refresh != null) {
+            refresh.cancel(false);
+        }
+    }
+
+    /**
+     * Drop every cached token, e.g. after the token server changed
+     */
+    public void invalidateAll() {
+        generation.incrementAndGet();
+        inFlight.clear();
+        for (String twilioNumber : tokens.keySet()) {
+            invalidate(twilioNumber);
+        }
+        Log.d(TAG, "Dropped all cached tokens");
+    }
+
+    /**
+     * Start a fetch for a number, or join the one already running
+     *
+     * @return The running fetch
+     */
+    private FutureTask<AccessToken> fetch(String twilioNumber) {
+        FutureTask<AccessToken> running = inFlight.get(twilioNumber);
+        if (running != null && !running.isDone()) {
+            return running;
+        }
+        int fetchGeneration = generation.get();
+        FutureTask<AccessToken> task = new FutureTask<AccessToken>(() -> load(twilioNumber, fetchGeneration)) {
+            @Override
+            protected void done() {
+                inFlight.remove(twilioNumber, this);
+            }
+        };
+        if (running != null) {
+            // Finished but not removed yet; its token was not good enough for the caller
+            inFlight.remove(twilioNumber, running);
+        }
+        running = inFlight.putIfAbsent(twilioNumber, task);
+        if (running != null) {
+            return running;
+        }
+        fetchers.execute(task);
+        return task;
+    }
+
+    /**
+     * Fetch a token and cache it, unless every token was dropped meanwhile. Runs on a
+     * fetch thread.
+     */
+    private AccessToken load(String twilioNumber, int fetchGeneration) throws IOException {
+        long started = clock.elapsedRealtime();
+        AccessToken token;
+        try {
+            String jwt = fetcher.fetch(twilioNumber);
+            token = AccessToken.parse(jwt, clock.elapsedRealtime(), System.currentTimeMillis());
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Token fetch for " + twilioNumber + " failed", e);
+            scheduleRetry(twilioNumber);
+            throw e;
+        }
+        Log.d(TAG, "Fetched token for " + twilioNumber + " in " + (token.getReceivedAt() - started)
+                + " ms, valid for " + token.getLifetimeMillis() / 1000 + " s");
+
+        if (generation.get() == fetchGeneration) {
+            tokens.put(twilioNumber, token);
+            schedule(twilioNumber, getRefreshAt(token) - token.getReceivedAt());
+        }
+        return token;
+    }
+
+    /**
+     * Retry a failed fetch later if the cached token will still be usable by then
+     */
+    private void scheduleRetry(String twilioNumber) {
+        AccessToken token = tokens.get(twilioNumber);
+        if (token != null
+                && token.getExpiresAt() - clock.elapsedRealtime() - RETRY_DELAY_MILLIS >= MIN_REMAINING_MILLIS) {
+            schedule(twilioNumber, RETRY_DELAY_MILLIS);
+        }
+    }
+
+    private void schedule(String twilioNumber, long delayMillis) {
+        ScheduledFuture<?> refresh = scheduler.schedule(() -> refresh(twilioNumber),
+                Math.max(0, delayMillis), TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> previous = refreshes.put(twilioNumber, refresh);
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Refresh a number's token in the background if the number is still in use. Runs
+     * on the scheduler thread.
+     */
+    private void refresh(String twilioNumber) {
+        Long used = lastUsed.get(twilioNumber);
+        if (used == null || clock.elapsedRealtime() - used > IDLE_LIMIT_MILLIS) {
+            Log.d(TAG, "Not refreshing idle token for " + twilioNumber);
+            refreshes.remove(twilioNumber);
+            return;
+        }
+        fetch(twilioNumber);
+    }
+
+    /**
+     * Get when a token is due for refresh: a fifth of its lifetime before it expires,
+     * within bounds that leave time to retry a failed refresh
+     */
+    private static long getRefreshAt(AccessToken token) {
+        long lifetime = token.getLifetimeMillis();
+        long margin = Math.min(lifetime / 5, MAX_REFRESH_MARGIN_MILLIS);
+        margin = Math.min(lifetime / 2, Math.max(margin, 2 * MIN_REMAINING_MILLIS));
+        return token.getExpiresAt() - margin;
+    }
+}
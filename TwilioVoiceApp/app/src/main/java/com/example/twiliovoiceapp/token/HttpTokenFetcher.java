@@ -0,0 +1,84 @@
+package com.example.twiliovoiceapp.token;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Fetches access tokens from the token server configured in settings.
+ * <p>
+ * The request is {@code GET <token url>?from=<twilio number>&identity=<identity>},
+ * with the identity left out when none is set. The server answers either with the
+ * bare JWT or with a JSON object holding it in a {@code token} field, so a local stub
+ * server can be as simple as a script that prints a token. Timeouts are short, as a
+ * call may be waiting on the answer.
+ */
+public class HttpTokenFetcher implements AccessTokenProvider.Fetcher {
+
+    public static final String PREF_TOKEN_URL = "token_url";
+    public static final String PREF_IDENTITY = "client_identity";
+
+    private final Context context;
+    private final OkHttpClient httpClient;
+
+    /**
+     * Constructor for the fetcher
+     *
+     * @param context The context
+     */
+    public HttpTokenFetcher(Context context) {
+        this.context = context.getApplicationContext();
+        this.httpClient = new OkHttpClient.Builder()
+                .connectTimeout(5, TimeUnit.SECONDS)
+                .readTimeout(10, TimeUnit.SECONDS)
+                .build();
+    }
+
+    @Override
+    public String fetch(String twilioNumber) throws IOException {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String tokenUrl = prefs.getString(PREF_TOKEN_URL, "");
+        if (tokenUrl == null || tokenUrl.trim().isEmpty()) {
+            throw new IOException("No token server is configured");
+        }
+        HttpUrl base = HttpUrl.parse(tokenUrl.trim());
+        if (base == null) {
+            throw new IOException("Invalid token server URL " + tokenUrl);
+        }
+
+        HttpUrl.Builder url = base.newBuilder().addQueryParameter("from", twilioNumber);
+        String identity = prefs.getString(PREF_IDENTITY, "");
+        if (identity != null && !identity.trim().isEmpty()) {
+            url.addQueryParameter("identity", identity.trim());
+        }
+        Request request = new Request.Builder()
+                .url(url.build())
+                .get()
+                .build();
+
+        try (Response response = httpClient.newCall(request).execute()) {
+            ResponseBody body = response.body();
+            if (!response.isSuccessful() || body == null) {
+                throw new IOException("Token request failed: " + response.code());
+            }
+            String text = body.string().trim();
+            if (!text.startsWith("{")) {
+                return text;
+            }
+            String token = JsonFields.read(text).get("token");
+            if (token == null) {
+                throw new IOException("Token response has no token");
+            }
+            return token;
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.twiliovoiceapp.token;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads the plain fields at the top level of a JSON object, which is all token
+ * responses and JWT claims need. Written in plain Java, without the platform's
+ * {@code org.json}, so it behaves the same in JVM tests as on a device.
+ */
+final class JsonFields {
+
+    private final String text;
+    private int position;
+
+    private JsonFields(String text) {
+        this.text = text;
+    }
+
+    /**
+     * Read the string, number and boolean fields of a JSON object. Nested objects and
+     * arrays, and fields that are null, are skipped.
+     *
+     * @param json The JSON text of an object
+     * @return Values by field name: strings unescaped, numbers and booleans as written
+     * @throws IOException If the text is not a JSON object
+     */
+    static Map<String, String> read(String json) throws IOException {
+        JsonFields reader = new JsonFields(json);
+        Map<String, String> fields = new HashMap<>();
+        reader.expect('{');
+        if (!reader.consume('}')) {
+            do {
+                String name = reader.readString();
+                reader.expect(':');
+                String value = reader.readValue();
+                if (value != null) {
+                    fields.put(name, value);
+                }
+            } while (reader.consume(','));
+            reader.expect('}');
+        }
+        reader.skipWhitespace();
+        if (reader.position < json.length()) {
+            throw new IOException("Unexpected data after JSON object at " + reader.position);
+        }
+        return fields;
+    }
+
+    /**
+     * Read a field's value
+     *
+     * @return The value, or null for null, an object or an array
+     */
+    private String readValue() throws IOException {
+        char c = peek();
+        if (c == '"') {
+            return readString();
+        }
+        if (c == '{' || c == '[') {
+            skipNested();
+            return null;
+        }
+        int start = position;
+        while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+            position++;
+        }
+        if (position == start) {
+            throw new IOException("Missing JSON value at " + start);
+        }
+        String literal = text.substring(start, position);
+        return "null".equals(literal) ? null : literal;
+    }
+
+    /**
+     * Skip an object or array with everything in it
+     */
+    private void skipNested() throws IOException {
+        int depth = 0;
+        do {
+            char c = peek();
+            if (c == '"') {
+                // Brackets inside strings do not count
+                readString();
+                continue;
+            }
+            position++;
+            if (c == '{' || c == '[') {
+                depth++;
+            } else if (c == '}' || c == ']') {
+                depth--;
+            }
+        } while (depth > 0);
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        StringBuilder value = new StringBuilder();
+        while (true) {
+            char c = next();
+            if (c == '"') {
+                return value.toString();
+            }
+            if (c != '\\') {
+                value.append(c);
+                continue;
+            }
+            char escaped = next();
+            switch (escaped) {
+                case 'b':
+                    value.append('\b');
+                    break;
+                case 'f':
+                    value.append('\f');
+                    break;
+                case 'n':
+                    value.append('\n');
+                    break;
+                case 'r':
+                    value.append('\r');
+                    break;
+                case 't':
+                    value.append('\t');
+                    break;
+                case 'u':
+                    if (position + 4 > text.length()) {
+                        throw new IOException("Truncated JSON escape at " + position);
+                    }
+                    try {
+                        value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw new IOException("Invalid JSON escape at " + position, e);
+                    }
+                    position += 4;
+                    break;
+                default:
+                    // \" \\ and \/
+                    value.append(escaped);
+                    break;
+            }
+        }
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) {
+            throw new IOException("Expected '" + expected + "' in JSON at " + position);
+        }
+        position++;
+    }
+
+    private boolean consume(char expected) throws IOException {
+        if (peek() != expected) {
+            return false;
+        }
+        position++;
+        return true;
+    }
+
+    private char peek() throws IOException {
+        skipWhitespace();
+        if (position >= text.length()) {
+            throw new IOException("Unexpected end of JSON");
+        }
+        return text.charAt(position);
+    }
+
+    private char next() throws IOException {
+        if (position >= text.length()) {
+            throw new IOException("Unexpected end of JSON");
+        }
+        return text.charAt(position++);
+    }
+
+    private void skipWhitespace() {
+        while (position < text.length() && " \t\r\n".indexOf(text.charAt(position)) >= 0) {
+            position++;
+        }
+    }
+}
@@ -0,0 +1,441 @@
+package com.example.twiliovoiceapp.upload;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.example.twiliovoiceapp.database.AppDatabase;
+import com.example.twiliovoiceapp.database.RecordingUploadDao;
+import com.example.twiliovoiceapp.model.RecordingUpload;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okio.BufferedSink;
+
+/**
+ * Background upload queue that moves finished recordings to the archive server.
+ * <p>
+ * Files are sent with the resumable chunked PUT protocol: each chunk is a PUT to
+ * {@code <endpoint>/<file name>} with a {@code Content-Range: bytes first-last/total}
+ * header. The server answers 308 with a {@code Range: bytes=0-last} header for a chunk
+ * it stored, or 200/201 once the file is complete. Before resuming an interrupted upload
+ * the uploader asks the server for its offset with an empty {@code bytes *}/total PUT.
+ * <p>
+ * The queue lives in the database, so it survives restarts. A bounded number of uploads
+ * run in parallel, failed attempts back off exponentially, and file data is streamed
+ * from disk one small buffer at a time.
+ */
+public class RecordingUploader {
+    private static final String TAG = "RecordingUploader";
+
+    public static final String PREF_ENDPOINT = "upload_endpoint";
+
+    private static final int MAX_PARALLEL_UPLOADS = 2;
+    private static final long CHUNK_SIZE = 1024 * 1024;
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    // Backoff after a failed attempt: 5 s doubling up to an hour, with up to 20% jitter
+    private static final long BACKOFF_BASE_MILLIS = 5000;
+    private static final long BACKOFF_MAX_MILLIS = 60 * 60 * 1000;
+
+    private static final int HTTP_RESUME_INCOMPLETE = 308;
+    private static final MediaType OCTET_STREAM = MediaType.get("application/octet-stream");
+
+    // Singleton instance
+    private static volatile RecordingUploader INSTANCE;
+
+    private final Context context;
+    private final RecordingUploadDao uploadDao;
+    private final OkHttpClient httpClient;
+    private final Random random = new Random();
+
+    // Queue bookkeeping runs on the scheduler thread only; uploads run on the workers
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService workers = Executors.newFixedThreadPool(MAX_PARALLEL_UPLOADS);
+    private final Set<Long> running = new HashSet<>();
+    private ScheduledFuture<?> wakeUp;
+    private final AtomicBoolean started = new AtomicBoolean();
+
+    // Held in a field because preferences only keep weak references to listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener endpointListener;
+
+    private RecordingUploader(Context context) {
+        this(context.getApplicationContext(), AppDatabase.getDatabase(context).recordingUploadDao(),
+                new OkHttpClient.Builder()
+                        .connectTimeout(30, TimeUnit.SECONDS)
+                        .writeTimeout(60, TimeUnit.SECONDS)
+                        .readTimeout(60, TimeUnit.SECONDS)
+                        .build());
+        PreferenceManager.getDefaultSharedPreferences(this.context)
+                .registerOnSharedPreferenceChangeListener(endpointListener);
+    }
+
+    /**
+     * Constructor for tests, which keep the queue in memory and override {@link #getEndpoint}
+     * to point at a local server
+     *
+     * @param context The application context
+     * @param uploadDao The queue
+     * @param httpClient The client to send the chunks with
+     */
+    @VisibleForTesting
+    RecordingUploader(Context context, RecordingUploadDao uploadDao, OkHttpClient httpClient) {
+        this.context = context;
+        this.uploadDao = uploadDao;
+        this.httpClient = httpClient;
+
+        // Start the queue as soon as an endpoint is configured
+        this.endpointListener = (prefs, key) -> {
+            if (PREF_ENDPOINT.equals(key)) {
+                scheduler.execute(this::pump);
+            }
+        };
+    }
+
+    /**
+     * Get the singleton instance of the uploader
+     *
+     * @param context The context
+     * @return The uploader
+     */
+    public static RecordingUploader getInstance(Context context) {
+        if (INSTANCE == null) {
+            synchronized (RecordingUploader.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new RecordingUploader(context);
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * Resume the queue after a restart. Uploads that were running when the process
+     * died are put back in the queue and continue from their last confirmed offset.
+     * Only the first call in a process does anything, so the voice service being
+     * created again, e.g. by a warm-up while dialing, neither delays the call nor
+     * requeues uploads that are still running.
+     */
+    public void start() {
+        if (!started.compareAndSet(false, true)) {
+            return;
+        }
+        scheduler.execute(() -> {
+            uploadDao.resetInterrupted();
+            pump();
+        });
+    }
+
+    /**
+     * Check whether an archive server is configured
+     *
+     * @return true if uploads are enabled
+     */
+    public boolean isEnabled() {
+        return getEndpoint() != null;
+    }
+
+    /**
+     * Add a file to the upload queue. The file is in the queue once this returns, so
+     * it must not be called on the main thread.
+     *
+     * @param recordingId ID of the catalog entry the file belongs to
+     * @param name File name used on the server
+     * @param location File path or content URI of the file
+     */
+    public void enqueue(long recordingId, String name, String location) {
+        long id = uploadDao.insert(new RecordingUpload(recordingId, name, location));
+        Log.d(TAG, "Queued upload " + id + " of " + name);
+        scheduler.execute(this::pump);
+    }
+
+    /**
+     * Start as many due uploads as there are free slots, and schedule a wake-up for the
+     * next upload that is backing off. Runs on the scheduler thread.
+     */
+    private void pump() {
+        HttpUrl endpoint = getEndpoint();
+        if (endpoint == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        int free = MAX_PARALLEL_UPLOADS - running.size();
+        if (free > 0) {
+            // Ask for enough rows to skip the ones that are already running
+            for (RecordingUpload upload : uploadDao.getDueUploads(now, free + running.size())) {
+                if (free == 0) {
+                    break;
+                }
+                if (running.add(upload.getId())) {
+                    free--;
+                    workers.execute(() -> runUpload(upload, endpoint));
+                }
+            }
+        }
+
+        if (wakeUp != null) {
+            wakeUp.cancel(false);
+            wakeUp = null;
+        }
+        Long next = uploadDao.getNextAttemptTime();
+        if (next != null && next > now) {
+            wakeUp = scheduler.schedule(this::pump, next - now, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Get the archive server's upload URL from the settings
+     *
+     * @return The URL, or null if none or an invalid one is configured
+     */
+    @VisibleForTesting
+    HttpUrl getEndpoint() {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String endpoint = prefs.getString(PREF_ENDPOINT, "");
+        if (endpoint == null || endpoint.trim().isEmpty()) {
+            return null;
+        }
+        HttpUrl url = HttpUrl.parse(endpoint.trim());
+        if (url == null) {
+            Log.e(TAG, "Invalid upload endpoint " + endpoint);
+        }
+        return url;
+    }
+
+    /**
+     * Run one attempt of an upload on a worker thread and record the outcome
+     */
+    private void runUpload(RecordingUpload upload, HttpUrl endpoint) {
+        upload.setState(RecordingUpload.STATE_UPLOADING);
+        upload.setAttempts(upload.getAttempts() + 1);
+        uploadDao.update(upload);
+
+        try {
+            upload(upload, endpoint.newBuilder().addPathSegment(upload.getName()).build());
+            upload.setState(RecordingUpload.STATE_DONE);
+            upload.setLastError(null);
+            Log.i(TAG, "Uploaded " + upload.getName() + " (" + upload.getSizeBytes() + " bytes)");
+        } catch (PermanentFailure e) {
+            Log.e(TAG, "Upload of " + upload.getName() + " rejected", e);
+            upload.setState(RecordingUpload.STATE_FAILED);
+            upload.setLastError(e.getMessage());
+        } catch (IOException | RuntimeException e) {
+            long delay = getBackoffMillis(upload.getAttempts());
+            Log.w(TAG, "Upload of " + upload.getName() + " failed, retrying in " + delay + " ms", e);
+            upload.setState(RecordingUpload.STATE_PENDING);
+            upload.setNextAttemptTime(System.currentTimeMillis() + delay);
+            upload.setLastError(e.toString());
+        } finally {
+            uploadDao.update(upload);
+            scheduler.execute(() -> {
+                running.remove(upload.getId());
+                pump();
+            });
+        }
+    }
+
+    private long getBackoffMillis(int attempts) {
+        long delay = BACKOFF_BASE_MILLIS << Math.min(attempts - 1, 20);
+        delay = Math.min(delay, BACKOFF_MAX_MILLIS);
+        return delay + (long) (delay * 0.2 * random.nextDouble());
+    }
+
+    /**
+     * Send the file chunk by chunk from the last confirmed offset
+     */
+    private void upload(RecordingUpload upload, HttpUrl url) throws IOException {
+        UploadSource opened;
+        try {
+            opened = openSource(upload.getLocation());
+        } catch (FileNotFoundException e) {
+            // Deleted or evicted before it was sent; retrying will not bring it back
+            throw new PermanentFailure("Source is gone: " + e.getMessage());
+        }
+        try (UploadSource source = opened) {
+            long size = source.channel.size();
+            upload.setSizeBytes(size);
+
+            long offset = upload.getUploadedBytes();
+            if (offset > 0 || size == 0) {
+                offset = queryOffset(url, size);
+            }
+
+            ByteBuffer buffer = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            while (offset < size) {
+                long length = Math.min(CHUNK_SIZE, size - offset);
+                Request request = new Request.Builder()
+                        .url(url)
+                        .header("Content-Range", "bytes " + offset + "-" + (offset + length - 1) + "/" + size)
+                        .put(new ChunkBody(source.channel, offset, length, buffer))
+                        .build();
+                try (Response response = httpClient.newCall(request).execute()) {
+                    offset = getConfirmedOffset(response, offset + length, size);
+                }
+                upload.setUploadedBytes(offset);
+                uploadDao.setUploadedBytes(upload.getId(), offset);
+            }
+        }
+    }
+
+    /**
+     * Ask the server how much of the file it already has
+     */
+    private long queryOffset(HttpUrl url, long size) throws IOException {
+        Request request = new Request.Builder()
+                .url(url)
+                .header("Content-Range", "bytes */" + size)
+                .put(RequestBody.create(new byte[0], OCTET_STREAM))
+                .build();
+        try (Response response = httpClient.newCall(request).execute()) {
+            return getConfirmedOffset(response, size, size);
+        }
+    }
+
+    /**
+     * Work out the offset the server has stored from its response
+     *
+     * @param response The response to a chunk or offset query
+     * @param sentEnd The offset after the data that was sent
+     * @param size The total file size
+     * @return The confirmed offset
+     */
+    private static long getConfirmedOffset(Response response, long sentEnd, long size) throws IOException {
+        int code = response.code();
+        if (code == 200 || code == 201) {
+            return size;
+        }
+        if (code == HTTP_RESUME_INCOMPLETE) {
+            // Range: bytes=0-N means N + 1 bytes are stored; no header means none are
+            String range = response.header("Range");
+            if (range == null) {
+                return 0;
+            }
+            int dash = range.lastIndexOf('-');
+            try {
+                return Math.min(size, Long.parseLong(range.substring(dash + 1).trim()) + 1);
+            } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                throw new IOException("Malformed Range header: " + range);
+            }
+        }
+        if (code >= 200 && code < 300) {
+            return sentEnd;
+        }
+        if (code >= 400 && code < 500 && code != 408 && code != 429) {
+            throw new PermanentFailure("HTTP " + code + " " + response.message());
+        }
+        throw new IOException("HTTP " + code + " " + response.message());
+    }
+
+    private UploadSource openSource(String location) throws IOException {
+        if (location.startsWith(ContentResolver.SCHEME_CONTENT + ":")) {
+            ParcelFileDescriptor descriptor = context.getContentResolver()
+                    .openFileDescriptor(Uri.parse(location), "r");
+            if (descriptor == null) {
+                throw new FileNotFoundException("Cannot open " + location);
+            }
+            return new UploadSource(new FileInputStream(descriptor.getFileDescriptor()).getChannel(), descriptor);
+        }
+        FileInputStream stream = new FileInputStream(location);
+        return new UploadSource(stream.getChannel(), stream);
+    }
+
+    /**
+     * An open file being uploaded
+     */
+    private static class UploadSource implements Closeable {
+        final FileChannel channel;
+        private final Closeable resource;
+
+        UploadSource(FileChannel channel, Closeable resource) {
+            this.channel = channel;
+            this.resource = resource;
+        }
+
+        @Override
+        public void close() throws IOException {
+            resource.close();
+        }
+    }
+
+    /**
+     * Request body streaming one chunk of the file through a reused buffer.
+     * OkHttp may write the body more than once when it retries, so every write starts
+     * again from the chunk's offset.
+     */
+    private static class ChunkBody extends RequestBody {
+        private final FileChannel channel;
+        private final long offset;
+        private final long length;
+        private final ByteBuffer buffer;
+
+        ChunkBody(FileChannel channel, long offset, long length, ByteBuffer buffer) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+            this.buffer = buffer;
+        }
+
+        @Override
+        public MediaType contentType() {
+            return OCTET_STREAM;
+        }
+
+        @Override
+        public long contentLength() {
+            return length;
+        }
+
+        @Override
+        public void writeTo(@NonNull BufferedSink sink) throws IOException {
+            long position = offset;
+            long end = offset + length;
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new IOException("File shrank during upload");
+                }
+                sink.write(buffer.array(), 0, read);
+                position += read;
+            }
+        }
+    }
+
+    /**
+     * The server rejected the upload in a way retrying will not fix
+     */
+    private static class PermanentFailure extends IOException {
+        PermanentFailure(String message) {
+            super(message);
+        }
+    }
+}
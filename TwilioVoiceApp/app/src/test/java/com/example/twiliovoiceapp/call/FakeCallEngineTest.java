@@ -0,0 +1,257 @@
+package com.example.twiliovoiceapp.call;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scripted calls through {@link FakeCallEngine}, as the service sees them through
+ * {@link CallEngine}
+ */
+public class FakeCallEngineTest {
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final FakeCallEngine engine = new FakeCallEngine(scheduler);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Records a call's callbacks, and optionally its audio
+     */
+    private static class RecordingListener implements CallEngine.Listener, CallEngine.AudioListener {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch ended = new CountDownLatch(1);
+        final boolean record;
+        final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+
+        // Audio, touched only on the callback thread
+        long samples;
+        long frames;
+        long discontinuities;
+
+        RecordingListener(boolean record) {
+            this.record = record;
+        }
+
+        private void event(String event) {
+            threads.add(Thread.currentThread());
+            events.add(event);
+        }
+
+        @Override
+        public void onConnectFailure(CallEngine.Call call, CallError error) {
+            event("failed " + error.getCode());
+            ended.countDown();
+        }
+
+        @Override
+        public void onRinging(CallEngine.Call call) {
+            event("ringing");
+        }
+
+        @Override
+        public void onConnected(CallEngine.Call call) {
+            event("connected");
+            if (record) {
+                call.startRecording(this);
+            }
+        }
+
+        @Override
+        public void onReconnecting(CallEngine.Call call, CallError error) {
+            event("reconnecting " + error.getCode());
+        }
+
+        @Override
+        public void onReconnected(CallEngine.Call call) {
+            event("reconnected");
+        }
+
+        @Override
+        public void onDisconnected(CallEngine.Call call, CallError error) {
+            event("disconnected");
+            ended.countDown();
+        }
+
+        @Override
+        public void onRecordingStarted() {
+            event("recording started");
+        }
+
+        @Override
+        public void onRecordingFailed(Exception e) {
+            event("recording failed");
+        }
+
+        @Override
+        public void onRecordingStopped() {
+            event("recording stopped");
+        }
+
+        @Override
+        public void onBufferAvailable(ByteBuffer buffer) {
+            threads.add(Thread.currentThread());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            // The scripted audio counts up, so a lost or repeated frame shows as a jump
+            while (buffer.hasRemaining()) {
+                if (buffer.getShort() != (short) samples) {
+                    discontinuities++;
+                }
+                samples++;
+            }
+            frames++;
+        }
+    }
+
+    private static FakeCallEngine.AudioSource counter() {
+        return index -> (short) index;
+    }
+
+    @Test
+    public void scriptedCallPlaysOutInOrder() throws InterruptedException {
+        engine.enqueue(new FakeCallEngine.Script()
+                .ringAfter(10)
+                .answerAfter(20)
+                .reconnect(30, 40)
+                .hangUpAfter(150));
+        Map<String, String> params = new HashMap<>();
+        params.put("To", "+15550100");
+        RecordingListener listener = new RecordingListener(false);
+        CallEngine.Call call = engine.connect("token", params, listener);
+
+        assertTrue(listener.ended.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("ringing", "connected",
+                "reconnecting " + FakeCallEngine.ERROR_SIGNALING_DISCONNECTED, "reconnected", "disconnected"),
+                listener.events);
+        assertSame(call, engine.getCalls().get(0));
+        assertEquals(FakeCallEngine.FakeCall.DISCONNECTED, engine.getCalls().get(0).getState());
+        assertEquals("+15550100", engine.getCalls().get(0).getParams().get("To"));
+    }
+
+    @Test
+    public void answeredCallConnectsWithoutRinging() throws InterruptedException {
+        engine.enqueue(new FakeCallEngine.Script()
+                .ringAfter(10)
+                .hangUpAfter(50));
+        Map<String, String> params = new HashMap<>();
+        params.put("From", "+15550123");
+        RecordingListener listener = new RecordingListener(false);
+        CallEngine.Call call = engine.accept(engine.invite(params), listener);
+
+        assertTrue(listener.ended.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("connected", "disconnected"), listener.events);
+        assertSame(call, engine.getCalls().get(0));
+        assertTrue(engine.getCalls().get(0).isIncoming());
+        assertEquals("+15550123", engine.getCalls().get(0).getParams().get("From"));
+    }
+
+    @Test
+    public void failedCallOnlyReportsTheFailure() throws InterruptedException {
+        engine.enqueue(new FakeCallEngine.Script().failWith(31005, "Connection error"));
+        RecordingListener listener = new RecordingListener(false);
+        engine.connect("token", new HashMap<>(), listener);
+
+        assertTrue(listener.ended.await(5, TimeUnit.SECONDS));
+        // Nothing is scheduled after a failure, so nothing more can arrive
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList("failed 31005"), listener.events);
+        assertEquals(FakeCallEngine.FakeCall.FAILED, engine.getCalls().get(0).getState());
+    }
+
+    @Test
+    public void localHangUpEndsTheCall() throws InterruptedException {
+        // Hung up long before the script would ring
+        engine.enqueue(new FakeCallEngine.Script().ringAfter(1000).answerAfter(1000));
+        RecordingListener listener = new RecordingListener(false);
+        CallEngine.Call call = engine.connect("token", new HashMap<>(), listener);
+        call.mute(true);
+        call.sendDigits("12#");
+        call.disconnect();
+
+        assertTrue(listener.ended.await(5, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        assertEquals(Collections.singletonList("disconnected"), listener.events);
+        assertTrue(engine.getCalls().get(0).isMuted());
+        assertEquals("12#", engine.getCalls().get(0).getDigitsSent());
+    }
+
+    @Test
+    public void audioIsDeliveredWhileRecording() throws InterruptedException {
+        engine.enqueue(new FakeCallEngine.Script()
+                .ringAfter(0)
+                .answerAfter(0)
+                .hangUpAfter(200)
+                .audio(counter())
+                .audioSpeed(10));
+        RecordingListener listener = new RecordingListener(true);
+        engine.connect("token", new HashMap<>(), listener);
+
+        assertTrue(listener.ended.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("ringing", "connected", "recording started", "recording stopped",
+                "disconnected"), listener.events);
+        // 200 ms at ten times real time is about 2 s of audio, in 10 ms frames
+        assertTrue("Frames: " + listener.frames, listener.frames > 50 && listener.frames <= 200);
+        assertEquals(480 * listener.frames, listener.samples);
+        assertEquals(0, listener.discontinuities);
+        assertEquals(listener.frames, engine.getCalls().get(0).getFramesDelivered());
+    }
+
+    @Test
+    public void soakManyRecordedCalls() throws InterruptedException {
+        // Back-to-back calls with a network drop each, recording far faster than real time
+        engine.setDefaultScript(new FakeCallEngine.Script()
+                .ringAfter(1)
+                .answerAfter(1)
+                .reconnect(10, 5)
+                .hangUpAfter(40)
+                .audio(counter())
+                .audioSpeed(100));
+        long frames = 0;
+        for (int i = 0; i < 50; i++) {
+            RecordingListener listener = new RecordingListener(true);
+            engine.connect("token", new HashMap<>(), listener);
+            assertTrue("Call " + i, listener.ended.await(5, TimeUnit.SECONDS));
+
+            assertEquals("Call " + i, "disconnected", listener.events.get(listener.events.size() - 1));
+            assertTrue("Call " + i, listener.events.contains("reconnected"));
+            assertEquals("Call " + i, 0, listener.discontinuities);
+            assertEquals("Call " + i, listener.frames, engine.getCalls().get(i).getFramesDelivered());
+            // Every callback of a call comes on the one callback thread
+            assertEquals("Call " + i, 1, new HashSet<>(listener.threads).size());
+            frames += listener.frames;
+        }
+        assertEquals(50, engine.getCalls().size());
+        assertTrue("Frames: " + frames, frames > 50 * 100);
+    }
+
+    @Test
+    public void audioDeviceIsPassedThrough() {
+        CustomAudioDevice device = new CustomAudioDevice() {
+        };
+        engine.setAudioDevice(device);
+        assertSame(device, engine.getAudioDevice());
+        engine.setAudioDevice(null);
+        assertNull(engine.getAudioDevice());
+    }
+}
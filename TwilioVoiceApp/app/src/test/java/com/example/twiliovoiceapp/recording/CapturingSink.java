@@ -0,0 +1,48 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+/**
+ * Last stage for tests that keeps everything written to it
+ */
+class CapturingSink implements RecordingSink {
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private boolean closed;
+
+    @Override
+    public void write(ByteBuffer[] buffers, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            ByteBuffer buffer = buffers[i];
+            byte[] chunk = new byte[buffer.remaining()];
+            buffer.get(chunk);
+            bytes.write(chunk, 0, chunk.length);
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    byte[] getBytes() {
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Get what was written as 16-bit little-endian samples
+     */
+    short[] getSamples() {
+        ShortBuffer samples = ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        short[] result = new short[samples.remaining()];
+        samples.get(result);
+        return result;
+    }
+}
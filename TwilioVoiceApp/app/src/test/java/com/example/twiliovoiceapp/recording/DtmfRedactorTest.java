@@ -0,0 +1,191 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+public class DtmfRedactorTest {
+
+    private static final double[] ROWS = {697, 770, 852, 941};
+    private static final double[] COLUMNS = {1209, 1336, 1477, 1633};
+
+    private static final int RATE = 48000;
+
+    @Test
+    public void everyKeyIsRedactedAcrossLevels() throws IOException {
+        for (double dbfs : new double[] {-6, -15, -25, -35, -42}) {
+            for (double row : ROWS) {
+                for (double column : COLUMNS) {
+                    short[] input = new short[RATE / 2];
+                    addTone(input, 1, RATE, row, column, dbfs, dbfs, RATE / 10, RATE / 10 + RATE / 20);
+                    Result result = redact(input, 1, RATE, input.length * 2);
+                    String key = row + "+" + column + " Hz at " + dbfs + " dBFS";
+                    assertEquals(key, 1, result.tones);
+                    assertEquals(key, 0, Signals.rms(result.output, 1, 0, RATE / 10, RATE / 10 + RATE / 20), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void toneIsRedactedWithinAllowedTwist() throws IOException {
+        for (double twist : new double[] {-8, -4, 4, 8}) {
+            short[] input = new short[RATE / 2];
+            addTone(input, 1, RATE, 770, 1336, -20 + twist, -20, RATE / 10, RATE / 10 + RATE / 20);
+            assertEquals("Twist " + twist + " dB", 1, redact(input, 1, RATE, input.length * 2).tones);
+        }
+        // Further apart than a keypad sends is not a keypad tone
+        short[] input = new short[RATE / 2];
+        addTone(input, 1, RATE, 770, 1336, -6, -24, RATE / 10, RATE / 10 + RATE / 20);
+        assertEquals(0, redact(input, 1, RATE, input.length * 2).tones);
+    }
+
+    @Test
+    public void toneIsRedactedAtTelephonyRateAndInNoise() throws IOException {
+        int rate = 8000;
+        short[] input = new short[rate];
+        addTone(input, 1, rate, 941, 1477, -20, -20, rate / 4, rate / 4 + rate / 20);
+        Signals.addNoise(input, 32768 * Math.pow(10, -40 / 20.0), 3);
+        Result result = redact(input, 1, rate, input.length * 2);
+        assertEquals(1, result.tones);
+        assertEquals(0, Signals.rms(result.output, 1, 0, rate / 4, rate / 4 + rate / 20), 0);
+    }
+
+    @Test
+    public void toneOnOneSideOfAStereoCallIsRedactedOnBoth() throws IOException {
+        short[] input = new short[2 * RATE / 2];
+        Signals.addSine(input, 2, 0, RATE, 852, 32768 * Math.pow(10, -15 / 20.0), RATE / 10, RATE / 10 + RATE / 20);
+        Signals.addSine(input, 2, 0, RATE, 1209, 32768 * Math.pow(10, -15 / 20.0), RATE / 10, RATE / 10 + RATE / 20);
+        Signals.addSine(input, 2, 1, RATE, 300, 3000, 0, RATE / 2);
+        Result result = redact(input, 2, RATE, input.length * 2);
+        assertEquals(1, result.tones);
+        assertEquals(0, Signals.rms(result.output, 2, 0, RATE / 10, RATE / 10 + RATE / 20), 0);
+        assertEquals(0, Signals.rms(result.output, 2, 1, RATE / 10, RATE / 10 + RATE / 20), 0);
+    }
+
+    @Test
+    public void separateKeyPressesAreCountedSeparately() throws IOException {
+        short[] input = new short[RATE];
+        for (int press = 0; press < 4; press++) {
+            int start = RATE / 10 + press * RATE / 5;
+            addTone(input, 1, RATE, ROWS[press], COLUMNS[press], -15, -15, start, start + RATE / 20);
+        }
+        assertEquals(4, redact(input, 1, RATE, input.length * 2).tones);
+    }
+
+    @Test
+    public void noiseIsNotRedacted() throws IOException {
+        for (double dbfs : new double[] {-50, -30, -10}) {
+            short[] input = new short[RATE * 2];
+            Signals.addNoise(input, 32768 * Math.pow(10, dbfs / 20), 4);
+            Result result = redact(input, 1, RATE, input.length * 2);
+            assertEquals("Noise at " + dbfs + " dBFS", 0, result.tones);
+            assertArrayEquals(input, result.output);
+        }
+    }
+
+    @Test
+    public void speechIsNotRedacted() throws IOException {
+        for (long seed = 0; seed < 5; seed++) {
+            short[] input = speech(RATE, 4 * RATE, seed);
+            Result result = redact(input, 1, RATE, input.length * 2);
+            assertEquals("Speech " + seed, 0, result.tones);
+            assertArrayEquals(input, result.output);
+        }
+    }
+
+    @Test
+    public void singleTonesAndDialToneAreNotRedacted() throws IOException {
+        // Each keypad frequency on its own, and the 350 + 440 Hz dial tone
+        double[][] tones = {{697}, {941}, {1209}, {1633}, {350, 440}, {440, 480}};
+        for (double[] frequencies : tones) {
+            short[] input = new short[RATE];
+            for (double hz : frequencies) {
+                Signals.addSine(input, 1, 0, RATE, hz, 8000, 0, RATE);
+            }
+            assertEquals(0, redact(input, 1, RATE, input.length * 2).tones);
+        }
+    }
+
+    @Test
+    public void outputDoesNotDependOnHowInputIsSplit() throws IOException {
+        short[] input = speech(RATE, RATE, 9);
+        addTone(input, 1, RATE, 697, 1209, -20, -20, RATE / 3, RATE / 3 + RATE / 20);
+        addTone(input, 1, RATE, 852, 1477, -20, -20, 2 * RATE / 3, 2 * RATE / 3 + RATE / 15);
+        Result whole = redact(input, 1, RATE, input.length * 2);
+        assertEquals(2, whole.tones);
+        for (int chunkBytes : new int[] {1, 7, 960, 1921, 3840}) {
+            Result split = redact(input, 1, RATE, chunkBytes);
+            assertEquals(whole.tones, split.tones);
+            assertArrayEquals("Split every " + chunkBytes + " bytes", whole.output, split.output);
+        }
+    }
+
+    /**
+     * A voiced, speech-like signal: a gliding pitch with many harmonics shaped by two
+     * formants, in syllables separated by short pauses
+     */
+    private static short[] speech(int rate, int frames, long seed) {
+        Random random = new Random(seed);
+        short[] samples = new short[frames];
+        double phase = 0;
+        double pitch = 110 + 100 * random.nextDouble();
+        int syllableEnd = 0;
+        double formant1 = 700;
+        double formant2 = 1200;
+        for (int n = 0; n < frames; n++) {
+            if (n >= syllableEnd) {
+                syllableEnd = n + rate / 8 + random.nextInt(rate / 4);
+                formant1 = 300 + 600 * random.nextDouble();
+                formant2 = 900 + 1500 * random.nextDouble();
+            }
+            // Pitch drifts slowly, as in intonation
+            pitch = Math.max(80, Math.min(260, pitch + (random.nextDouble() - 0.5) * 0.05));
+            phase += 2 * Math.PI * pitch / rate;
+            double value = 0;
+            for (int h = 1; h * pitch < rate / 2.0 && h < 40; h++) {
+                double hz = h * pitch;
+                double gain = 1 / (1 + Math.pow((hz - formant1) / 150, 2))
+                        + 0.5 / (1 + Math.pow((hz - formant2) / 200, 2)) + 0.02;
+                value += gain * Math.sin(h * phase);
+            }
+            int intoSyllable = syllableEnd - n;
+            double envelope = intoSyllable < rate / 40 ? 0 : Math.sin(Math.PI * n / (rate / 5.0)) * 0.5 + 0.5;
+            samples[n] = (short) Math.max(-32768, Math.min(32767, 4000 * value * envelope));
+        }
+        return samples;
+    }
+
+    private static void addTone(short[] samples, int channels, int rate, double row, double column,
+                                double rowDbfs, double columnDbfs, int from, int to) {
+        Signals.addSine(samples, channels, -1, rate, row, 32768 * Math.pow(10, rowDbfs / 20), from, to);
+        Signals.addSine(samples, channels, -1, rate, column, 32768 * Math.pow(10, columnDbfs / 20), from, to);
+    }
+
+    private static Result redact(short[] input, int channels, int rate, int chunkBytes) throws IOException {
+        CapturingSink sink = new CapturingSink();
+        DtmfRedactor redactor = new DtmfRedactor(sink, WavFormat.pcm16(rate, channels));
+        Signals.feed(redactor, Signals.toBuffer(input), chunkBytes);
+        redactor.close();
+        assertTrue(sink.isClosed());
+        short[] output = sink.getSamples();
+        assertEquals("Every sample is passed on", input.length, output.length);
+        return new Result(output, redactor.getToneCount());
+    }
+
+    private static class Result {
+        final short[] output;
+        final long tones;
+
+        Result(short[] output, long tones) {
+            this.output = output;
+            this.tones = tones;
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.example.twiliovoiceapp.playback.PlaybackSource;
+
+import org.junit.Ignore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Round trips through {@link EncryptingSink} and {@link EncryptedRecordingReader}
+ */
+public class EncryptedRecordingTest {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Stands in for the keystore: wraps keys by masking them, so only a wrapper with
+     * the same mask can unwrap them
+     */
+    private static final class FakeKeyWrapper implements KeyWrapper {
+        private final byte mask;
+
+        FakeKeyWrapper(int mask) {
+            this.mask = (byte) mask;
+        }
+
+        @Override
+        public byte[] wrap(byte[] key) {
+            byte[] wrapped = new byte[key.length + 1];
+            wrapped[0] = mask;
+            for (int i = 0; i < key.length; i++) {
+                wrapped[i + 1] = (byte) (key[i] ^ mask);
+            }
+            return wrapped;
+        }
+
+        @Override
+        public byte[] unwrap(byte[] wrappedKey) throws IOException {
+            if (wrappedKey.length == 0 || wrappedKey[0] != mask) {
+                throw new IOException("Wrapped with another key");
+            }
+            byte[] key = new byte[wrappedKey.length - 1];
+            for (int i = 0; i < key.length; i++) {
+                key[i] = (byte) (wrappedKey[i + 1] ^ mask);
+            }
+            return key;
+        }
+    }
+
+    private final KeyWrapper device = new FakeKeyWrapper(0x5A);
+    private final KeyWrapper archive = new FakeKeyWrapper(0x3C);
+
+    @Test
+    public void recordingSurvivesRoundTrip() throws IOException {
+        // Whole chunks, a partial last chunk, and a recording shorter than one chunk
+        for (int length : new int[] {10 * CHUNK_SIZE, 10 * CHUNK_SIZE + 1234, 100}) {
+            byte[] data = randomBytes(length, length);
+            File file = write(data, null, 777);
+
+            try (FileChannel channel = FileChannel.open(file.toPath())) {
+                EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+                assertEquals(length, reader.size());
+                assertArrayEquals(data, readAll(reader));
+                assertTrue(reader.isComplete());
+            }
+        }
+    }
+
+    @Test
+    public void rewrittenHeaderIsResealed() throws IOException {
+        byte[] data = randomBytes(5 * CHUNK_SIZE, 1);
+        File file = folder.newFile();
+        FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        EncryptingSink sink = new EncryptingSink(new ChannelSink(output), device, CHUNK_SIZE);
+        sink.write(new ByteBuffer[] {ByteBuffer.wrap(data)}, 0, 1);
+        // As WavSink patches its sizes in on close
+        byte[] header = randomBytes(44, 2);
+        sink.writeAt(ByteBuffer.wrap(header), 0);
+        sink.close();
+        System.arraycopy(header, 0, data, 0, header.length);
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            assertArrayEquals(data, readAll(new EncryptedRecordingReader(channel, device)));
+        }
+    }
+
+    @Test
+    public void anyRangeCanBeReadOnItsOwn() throws IOException {
+        byte[] data = randomBytes(20 * CHUNK_SIZE + 500, 3);
+        File file = write(data, null, 1000);
+
+        Random random = new Random(4);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            for (int i = 0; i < 200; i++) {
+                int position = random.nextInt(data.length);
+                int length = 1 + random.nextInt(3 * CHUNK_SIZE);
+                ByteBuffer buffer = ByteBuffer.allocate(length);
+                int read = reader.read(buffer, position);
+                assertEquals(Math.min(length, data.length - position), read);
+                assertArrayEquals(Arrays.copyOfRange(data, position, position + read),
+                        Arrays.copyOf(buffer.array(), read));
+            }
+            assertEquals(-1, reader.read(ByteBuffer.allocate(10), data.length));
+        }
+    }
+
+    @Test
+    public void recordingCutOffByACrashIsReadableButIncomplete() throws IOException {
+        byte[] data = randomBytes(6 * CHUNK_SIZE + 100, 5);
+        File file = folder.newFile();
+        FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        EncryptingSink sink = new EncryptingSink(new ChannelSink(output), device, CHUNK_SIZE);
+        sink.write(new ByteBuffer[] {ByteBuffer.wrap(data)}, 0, 1);
+        // The process dies: the open chunk is never sealed
+        output.close();
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            assertEquals(6 * CHUNK_SIZE, reader.size());
+            assertArrayEquals(Arrays.copyOf(data, 6 * CHUNK_SIZE), readAll(reader));
+            assertFalse(reader.isComplete());
+        }
+    }
+
+    @Test
+    public void wavCutOffByACrashPlaysUpToTheCut() throws IOException {
+        WavFormat format = WavFormat.pcm16(8000, 1);
+        byte[] audio = randomBytes(5 * CHUNK_SIZE + 300, 9);
+        File file = folder.newFile();
+        FileChannel output = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        WavSink sink = new WavSink(new EncryptingSink(new ChannelSink(output), device, CHUNK_SIZE), format);
+        sink.write(new ByteBuffer[] {ByteBuffer.wrap(audio)}, 0, 1);
+        // The process dies: the header still holds its placeholder size
+        output.close();
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            PlaybackSource source = PlaybackSource.decrypt(channel, device);
+            int sealedAudio = 5 * CHUNK_SIZE - format.getHeaderSize();
+            assertEquals(sealedAudio / format.getBlockAlign(), source.getFrames());
+            ByteBuffer tail = source.read(source.getFrames() - 10, 10);
+            byte[] played = new byte[tail.remaining()];
+            tail.get(played);
+            assertArrayEquals(Arrays.copyOfRange(audio, sealedAudio - 20, sealedAudio), played);
+        }
+    }
+
+    @Test
+    public void droppedChunksAreDetected() throws IOException {
+        byte[] data = randomBytes(8 * CHUNK_SIZE, 6);
+        File file = write(data, null, CHUNK_SIZE);
+        long chunkBytes = EncryptingSink.NONCE_SIZE + CHUNK_SIZE + EncryptingSink.TAG_SIZE;
+
+        // Cut at a chunk boundary, so what is left still authenticates
+        truncate(file, EncryptingSink.HEADER_SIZE + 5 * chunkBytes);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            assertArrayEquals(Arrays.copyOf(data, 5 * CHUNK_SIZE), readAll(reader));
+            assertFalse("The new last chunk was not sealed as the last", reader.isComplete());
+        }
+
+        // Cut inside a chunk
+        truncate(file, EncryptingSink.HEADER_SIZE + 3 * chunkBytes + 100);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            ByteBuffer before = ByteBuffer.allocate(3 * CHUNK_SIZE);
+            reader.read(before, 0);
+            assertArrayEquals(Arrays.copyOf(data, 3 * CHUNK_SIZE), before.array());
+            try {
+                reader.read(ByteBuffer.allocate(10), 3 * CHUNK_SIZE);
+                fail("Partial chunk was accepted");
+            } catch (IOException expected) {
+                // The tag is gone with the cut
+            }
+        }
+    }
+
+    @Test
+    public void tamperedChunkFailsAuthentication() throws IOException {
+        byte[] data = randomBytes(4 * CHUNK_SIZE, 7);
+        File file = write(data, null, CHUNK_SIZE);
+        long chunkBytes = EncryptingSink.NONCE_SIZE + CHUNK_SIZE + EncryptingSink.TAG_SIZE;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            long position = EncryptingSink.HEADER_SIZE + chunkBytes + 50;
+            raf.seek(position);
+            int value = raf.read();
+            raf.seek(position);
+            raf.write(value ^ 1);
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            ByteBuffer first = ByteBuffer.allocate(CHUNK_SIZE);
+            reader.read(first, 0);
+            assertArrayEquals(Arrays.copyOf(data, CHUNK_SIZE), first.array());
+            try {
+                reader.read(ByteBuffer.allocate(10), CHUNK_SIZE);
+                fail("Tampered chunk was accepted");
+            } catch (IOException expected) {
+                // Authentication failed
+            }
+        }
+    }
+
+    @Test
+    public void archiveCopyOfTheKeyUnlocksTheSameRecording() throws IOException {
+        byte[] data = randomBytes(3 * CHUNK_SIZE + 10, 8);
+        File file = write(data, archive, 500);
+
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            assertArrayEquals(data, readAll(new EncryptedRecordingReader(channel, device)));
+            assertArrayEquals(data, readAll(new EncryptedRecordingReader(channel, archive, true)));
+        }
+    }
+
+    @Test
+    public void otherKeysAreRejected() throws IOException {
+        File file = write(randomBytes(CHUNK_SIZE, 9), null, CHUNK_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            expectFailure(() -> new EncryptedRecordingReader(channel, archive));
+            // No archive copy in a device-only recording
+            expectFailure(() -> new EncryptedRecordingReader(channel, archive, true));
+        }
+
+        File notEncrypted = folder.newFile();
+        try (RandomAccessFile raf = new RandomAccessFile(notEncrypted, "rw")) {
+            raf.write(randomBytes(1000, 10));
+        }
+        try (FileChannel channel = FileChannel.open(notEncrypted.toPath())) {
+            expectFailure(() -> new EncryptedRecordingReader(channel, device));
+        }
+    }
+
+    @Test
+    @Ignore("Benchmark, run by hand")
+    public void benchmarkThroughput() throws IOException {
+        // One second of 48 kHz stereo, the most the writer thread ever has to seal
+        byte[] data = randomBytes(48000 * 4, 10);
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+
+        // Sealed chunks are dropped, so only the encryption is timed
+        EncryptingSink sink = new EncryptingSink(new PositionalSink() {
+            @Override
+            public void writeAt(ByteBuffer buffer, long position) {
+                buffer.position(buffer.limit());
+            }
+
+            @Override
+            public void write(ByteBuffer[] buffers, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    buffers[i].position(buffers[i].limit());
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, device, EncryptingSink.DEFAULT_CHUNK_SIZE);
+        long bytes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // 20 ms batches, as the writer hands them over
+            Signals.feed(sink, buffer, 3840);
+            bytes += data.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 500_000_000L);
+        double encryptRate = bytes * 1e9 / elapsed;
+
+        File file = folder.newFile();
+        EncryptingSink fileSink = new EncryptingSink(
+                new ChannelSink(FileChannel.open(file.toPath(), StandardOpenOption.WRITE)),
+                device, EncryptingSink.DEFAULT_CHUNK_SIZE);
+        fileSink.write(new ByteBuffer[] {ByteBuffer.wrap(data)}, 0, 1);
+        fileSink.close();
+        ByteBuffer plaintext = ByteBuffer.allocateDirect(4096);
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            EncryptedRecordingReader reader = new EncryptedRecordingReader(channel, device);
+            bytes = 0;
+            start = System.nanoTime();
+            do {
+                // Sequential reads the size the player makes
+                for (long position = 0; position < reader.size(); position += plaintext.position()) {
+                    plaintext.clear();
+                    reader.read(plaintext, position);
+                }
+                bytes += reader.size();
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < 500_000_000L);
+        }
+        double decryptRate = bytes * 1e9 / elapsed;
+
+        System.out.printf("AES-GCM 48000 Hz stereo: encrypt %.1f MB/s (%.0fx real time), "
+                        + "decrypt %.1f MB/s (%.0fx real time)%n",
+                encryptRate / 1e6, encryptRate / data.length, decryptRate / 1e6, decryptRate / data.length);
+    }
+
+    private interface Opener {
+        void open() throws IOException;
+    }
+
+    private static void expectFailure(Opener opener) {
+        try {
+            opener.open();
+            fail("Reader opened");
+        } catch (IOException expected) {
+            // The key could not be recovered
+        }
+    }
+
+    private File write(byte[] data, KeyWrapper archiveWrapper, int writeSize) throws IOException {
+        File file = folder.newFile();
+        EncryptingSink sink = new EncryptingSink(
+                new ChannelSink(FileChannel.open(file.toPath(), StandardOpenOption.WRITE)),
+                device, archiveWrapper, CHUNK_SIZE);
+        Signals.feed(sink, ByteBuffer.wrap(data), writeSize);
+        sink.close();
+        return file;
+    }
+
+    private static byte[] readAll(EncryptedRecordingReader reader) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) reader.size());
+        while (buffer.hasRemaining()) {
+            reader.read(buffer, buffer.position());
+        }
+        return buffer.array();
+    }
+
+    private static void truncate(File file, long size) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        }
+    }
+
+    private static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
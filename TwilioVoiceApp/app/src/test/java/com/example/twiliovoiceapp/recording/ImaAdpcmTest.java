@@ -0,0 +1,208 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Round trips through {@link ImaAdpcmEncoder} and {@link ImaAdpcmDecoder}
+ */
+public class ImaAdpcmTest {
+
+    @Test
+    public void toneSurvivesRoundTrip() throws IOException {
+        // Sample rate, tone, and least SNR in dB; ADPCM tracks fast-changing signals less
+        // closely, so tones near the band edge come back noisier
+        double[][] cases = {
+                {8000, 300, 25}, {8000, 1000, 18}, {8000, 3000, 13},
+                {16000, 300, 30}, {16000, 1000, 24}, {16000, 3000, 18},
+        };
+        for (double[] tone : cases) {
+            int rate = (int) tone[0];
+            WavFormat format = WavFormat.imaAdpcm(rate, 1);
+            short[] input = new short[rate];
+            Signals.addSine(input, 1, 0, rate, tone[1], 10000, 0, rate);
+
+            double snr = snr(input, roundTrip(format, input, 640), 1, 0);
+            assertTrue(rate + " Hz, " + tone[1] + " Hz tone: SNR " + snr, snr > tone[2]);
+        }
+    }
+
+    @Test
+    public void quietAndNoisySignalsSurviveRoundTrip() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(16000, 1);
+        // A quiet tone, as from a distant talker, and a loud noisy one
+        for (double amplitude : new double[] {300, 20000}) {
+            short[] input = new short[16000];
+            Signals.addSine(input, 1, 0, 16000, 440, amplitude, 0, 16000);
+            Signals.addNoise(input, amplitude / 4, 1);
+
+            double snr = snr(input, roundTrip(format, input, 640), 1, 0);
+            assertTrue("Amplitude " + amplitude + ": SNR " + snr, snr > 15);
+        }
+    }
+
+    @Test
+    public void stereoChannelsAreCodedApart() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(16000, 2);
+        short[] input = new short[2 * 16000];
+        Signals.addSine(input, 2, 0, 16000, 500, 12000, 0, 16000);
+        Signals.addSine(input, 2, 1, 16000, 1700, 3000, 0, 16000);
+
+        short[] output = roundTrip(format, input, 1280);
+        assertTrue(snr(input, output, 2, 0) > 20);
+        assertTrue(snr(input, output, 2, 1) > 20);
+    }
+
+    @Test
+    public void blocksStartWithTheirFirstSampleVerbatim() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(8000, 1);
+        int samplesPerBlock = format.getSamplesPerBlock();
+        short[] input = new short[3 * samplesPerBlock];
+        Signals.addNoise(input, 20000, 2);
+
+        byte[] encoded = encode(format, input, 640);
+        assertEquals(3 * format.getBlockAlign(), encoded.length);
+        ByteBuffer blocks = ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN);
+        for (int block = 0; block < 3; block++) {
+            assertEquals(input[block * samplesPerBlock], blocks.getShort(block * format.getBlockAlign()));
+        }
+        short[] output = decode(format, encoded);
+        for (int block = 0; block < 3; block++) {
+            assertEquals(input[block * samplesPerBlock], output[block * samplesPerBlock]);
+        }
+    }
+
+    @Test
+    public void outputDoesNotDependOnHowInputIsSplit() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(16000, 2);
+        short[] input = new short[2 * 8000];
+        Signals.addNoise(input, 8000, 3);
+
+        byte[] whole = encode(format, input, 4 * input.length);
+        // Odd sizes split samples across buffers
+        for (int chunkBytes : new int[] {1, 3, 333, 2047}) {
+            assertArrayEquals("Chunks of " + chunkBytes, whole, encode(format, input, chunkBytes));
+        }
+    }
+
+    @Test
+    public void closeEncodesThePartialBlock() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(8000, 2);
+        short[] input = new short[2 * (format.getSamplesPerBlock() + 10)];
+        Signals.addSine(input, 2, -1, 8000, 400, 5000, 0, input.length / 2);
+
+        CapturingSink sink = new CapturingSink();
+        ImaAdpcmEncoder encoder = new ImaAdpcmEncoder(sink, format);
+        encoder.write(new ByteBuffer[] {Signals.toBuffer(input)}, 0, 1);
+        encoder.close();
+
+        assertTrue(sink.isClosed());
+        assertEquals(2 * format.getBlockAlign(), sink.getBytes().length);
+        short[] output = decode(format, sink.getBytes());
+        // The padding repeats the last frame
+        int last = input.length / 2 - 1;
+        int padded = 2 * format.getSamplesPerBlock() - 1;
+        assertEquals(output[2 * last], output[2 * padded], 600);
+        assertEquals(output[2 * last + 1], output[2 * padded + 1], 600);
+    }
+
+    @Test
+    @Ignore("Benchmark, run by hand")
+    public void benchmarkThroughput() throws IOException {
+        WavFormat format = WavFormat.imaAdpcm(16000, 2);
+        short[] input = new short[2 * 16000 * 2];
+        Signals.addNoise(input, 10000, 4);
+        ByteBuffer buffer = Signals.toBuffer(input);
+
+        // Blocks are dropped, so only the encoder is timed
+        ImaAdpcmEncoder encoder = new ImaAdpcmEncoder(new RecordingSink() {
+            @Override
+            public void write(ByteBuffer[] buffers, int offset, int length) {
+                for (int i = offset; i < offset + length; i++) {
+                    buffers[i].position(buffers[i].limit());
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        }, format);
+        long samples = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            // 20 ms batches, as the writer hands them over
+            Signals.feed(encoder, buffer, 1280);
+            samples += input.length;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 500_000_000L);
+        double encodeRate = samples * 1e9 / elapsed;
+
+        byte[] encoded = encode(format, input, 1280);
+        ImaAdpcmDecoder decoder = new ImaAdpcmDecoder(format);
+        ByteBuffer pcm = ByteBuffer.allocateDirect(4 * format.getSamplesPerBlock());
+        samples = 0;
+        start = System.nanoTime();
+        do {
+            for (int position = 0; position < encoded.length; position += format.getBlockAlign()) {
+                pcm.clear();
+                decoder.decodeBlock(ByteBuffer.wrap(encoded, position, format.getBlockAlign()), pcm);
+            }
+            samples += encoded.length / format.getBlockAlign() * 2L * format.getSamplesPerBlock();
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < 500_000_000L);
+        double decodeRate = samples * 1e9 / elapsed;
+
+        System.out.printf("IMA-ADPCM 16000 Hz stereo: encode %.1f M samples/s (%.0fx real time), "
+                        + "decode %.1f M samples/s (%.0fx real time)%n",
+                encodeRate / 1e6, encodeRate / 32000, decodeRate / 1e6, decodeRate / 32000);
+    }
+
+    private static short[] roundTrip(WavFormat format, short[] input, int chunkBytes) throws IOException {
+        return decode(format, encode(format, input, chunkBytes));
+    }
+
+    private static byte[] encode(WavFormat format, short[] input, int chunkBytes) throws IOException {
+        CapturingSink sink = new CapturingSink();
+        ImaAdpcmEncoder encoder = new ImaAdpcmEncoder(sink, format);
+        Signals.feed(encoder, Signals.toBuffer(input), chunkBytes);
+        encoder.close();
+        return sink.getBytes();
+    }
+
+    private static short[] decode(WavFormat format, byte[] encoded) {
+        ImaAdpcmDecoder decoder = new ImaAdpcmDecoder(format);
+        int blocks = encoded.length / format.getBlockAlign();
+        ByteBuffer pcm = ByteBuffer.allocate(blocks * format.getSamplesPerBlock() * 2 * format.getChannels());
+        for (int block = 0; block < blocks; block++) {
+            decoder.decodeBlock(ByteBuffer.wrap(encoded, block * format.getBlockAlign(), format.getBlockAlign()), pcm);
+        }
+        short[] samples = new short[pcm.capacity() / 2];
+        pcm.flip();
+        pcm.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+
+    /**
+     * Signal to error ratio of one channel in dB, over the frames of the input
+     */
+    private static double snr(short[] input, short[] output, int channels, int channel) {
+        double signal = 0;
+        double error = 0;
+        for (int frame = 0; frame < input.length / channels; frame++) {
+            double value = input[frame * channels + channel];
+            double diff = value - output[frame * channels + channel];
+            signal += value * value;
+            error += diff * diff;
+        }
+        return Signals.db(Math.sqrt(signal / Math.max(1, error)));
+    }
+}
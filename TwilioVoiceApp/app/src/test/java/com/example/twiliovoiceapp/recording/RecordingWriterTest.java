@@ -0,0 +1,110 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RecordingWriterTest {
+
+    @Test
+    public void audioIsWrittenInOrder() throws IOException {
+        CapturingSink sink = new CapturingSink();
+        RecordingWriter writer = new RecordingWriter(sink, 16, 256);
+        writer.start();
+        byte[] expected = new byte[100 * 300];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) (i * 31);
+        }
+        for (int i = 0; i < 100; i++) {
+            // Larger than a slot, so each buffer is split
+            ByteBuffer buffer = ByteBuffer.wrap(expected, i * 300, 300);
+            while (!writer.offer(buffer.duplicate())) {
+                Thread.yield();
+            }
+        }
+        writer.close();
+
+        assertTrue(sink.isClosed());
+        assertArrayEquals(expected, sink.getBytes());
+        assertEquals(expected.length, writer.getBytesWritten());
+    }
+
+    @Test
+    public void fullRingDropsAndCounts() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CapturingSink sink = new CapturingSink() {
+            @Override
+            public void write(ByteBuffer[] buffers, int offset, int length) {
+                // A stalled disk: nothing leaves the ring until released
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.write(buffers, offset, length);
+            }
+        };
+        RecordingWriter writer = new RecordingWriter(sink, 4, 100);
+        assertFalse("Dropped before start", writer.offer(ByteBuffer.allocate(100)));
+        writer.start();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(writer.offer(ByteBuffer.allocate(100)));
+        }
+        ByteBuffer overflow = ByteBuffer.allocate(100);
+        assertFalse("Dropped when full", writer.offer(overflow));
+        assertEquals("Consumed even when dropped", 0, overflow.remaining());
+        assertEquals(4, writer.getMaxQueueDepth());
+
+        release.countDown();
+        writer.close();
+        assertFalse("Dropped after close", writer.offer(ByteBuffer.allocate(50)));
+        assertEquals(400, sink.getBytes().length);
+        assertEquals(3, writer.getDroppedFrames());
+        assertEquals(250, writer.getDroppedBytes());
+    }
+
+    @Test
+    public void offersRacingCloseAreWrittenOrCounted() throws Exception {
+        for (int round = 0; round < 200; round++) {
+            CapturingSink sink = new CapturingSink();
+            RecordingWriter writer = new RecordingWriter(sink, 64, 512);
+            writer.start();
+
+            AtomicBoolean closed = new AtomicBoolean();
+            long[] accepted = new long[1];
+            long[] offered = new long[1];
+            Thread producer = new Thread(() -> {
+                ByteBuffer frame = ByteBuffer.allocateDirect(480);
+                // Keep offering until well after close has returned
+                int after = 0;
+                while (after < 100) {
+                    if (closed.get()) {
+                        after++;
+                    }
+                    frame.clear();
+                    offered[0] += frame.remaining();
+                    if (writer.offer(frame)) {
+                        accepted[0] += 480;
+                    }
+                }
+            });
+            producer.start();
+            Thread.sleep(round % 3);
+            writer.close();
+            closed.set(true);
+            producer.join();
+
+            assertEquals("Round " + round, accepted[0], sink.getBytes().length);
+            assertEquals("Round " + round, accepted[0], writer.getBytesWritten());
+            assertEquals("Round " + round, offered[0], accepted[0] + writer.getDroppedBytes());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ResamplerTest {
+
+    private static final int INPUT_RATE = 48000;
+    private static final double AMPLITUDE = 10000;
+
+    // Skip the filter's start-up transient when measuring
+    private static final int SETTLE_FRAMES = 200;
+
+    @Test
+    public void passbandIsKeptAtUnityGain() throws IOException {
+        // Flat through the voice band, rolling off a little towards the 3.4 kHz telephony edge
+        double[][] bands = {{300, 0.1}, {1000, 0.1}, {2000, 0.1}, {3000, 0.5}};
+        for (double[] band : bands) {
+            double hz = band[0];
+            short[] input = new short[INPUT_RATE];
+            Signals.addSine(input, 1, 0, INPUT_RATE, hz, AMPLITUDE, 0, INPUT_RATE);
+
+            short[] output = resample(input, 1, 8000, true, input.length * 2);
+            double gain = Signals.rms(output, 1, 0, SETTLE_FRAMES, output.length - SETTLE_FRAMES)
+                    / (AMPLITUDE / Math.sqrt(2));
+            assertEquals("Gain at " + hz + " Hz", 0, Signals.db(gain), band[1]);
+        }
+    }
+
+    @Test
+    public void stopbandIsRejected() throws IOException {
+        // Would alias to 3, 2 and 0 kHz at 8 kHz if it got through
+        for (double hz : new double[] {5000, 10000, 16000}) {
+            short[] input = new short[INPUT_RATE];
+            Signals.addSine(input, 1, 0, INPUT_RATE, hz, AMPLITUDE, 0, INPUT_RATE);
+
+            short[] output = resample(input, 1, 8000, true, input.length * 2);
+            double gain = Signals.rms(output, 1, 0, SETTLE_FRAMES, output.length - SETTLE_FRAMES)
+                    / (AMPLITUDE / Math.sqrt(2));
+            assertTrue("Rejection at " + hz + " Hz is only " + Signals.db(gain) + " dB",
+                    Signals.db(gain) < -60);
+        }
+    }
+
+    @Test
+    public void outputHasTheOutputRate() throws IOException {
+        short[] input = new short[INPUT_RATE];
+        assertEquals(8000, resample(input, 1, 8000, true, input.length * 2).length, 1);
+        assertEquals(16000, resample(input, 1, 16000, true, input.length * 2).length, 1);
+    }
+
+    @Test
+    public void downmixAveragesTheChannels() throws IOException {
+        short[] inPhase = new short[2 * INPUT_RATE];
+        Signals.addSine(inPhase, 2, -1, INPUT_RATE, 1000, AMPLITUDE, 0, INPUT_RATE);
+        short[] mono = resample(inPhase, 2, 8000, true, inPhase.length * 2);
+        assertEquals(0, Signals.db(Signals.rms(mono, 1, 0, SETTLE_FRAMES, mono.length - SETTLE_FRAMES)
+                / (AMPLITUDE / Math.sqrt(2))), 0.2);
+
+        short[] oneSide = new short[2 * INPUT_RATE];
+        Signals.addSine(oneSide, 2, 0, INPUT_RATE, 1000, AMPLITUDE, 0, INPUT_RATE);
+        mono = resample(oneSide, 2, 8000, true, oneSide.length * 2);
+        assertEquals(-6.02, Signals.db(Signals.rms(mono, 1, 0, SETTLE_FRAMES, mono.length - SETTLE_FRAMES)
+                / (AMPLITUDE / Math.sqrt(2))), 0.2);
+
+        short[] opposed = new short[2 * INPUT_RATE];
+        Signals.addSine(opposed, 2, 0, INPUT_RATE, 1000, AMPLITUDE, 0, INPUT_RATE);
+        Signals.addSine(opposed, 2, 1, INPUT_RATE, 1000, -AMPLITUDE, 0, INPUT_RATE);
+        mono = resample(opposed, 2, 8000, true, opposed.length * 2);
+        assertTrue(Signals.rms(mono, 1, 0, 0, mono.length) < 2);
+    }
+
+    @Test
+    public void channelsStayApartWithoutDownmix() throws IOException {
+        short[] input = new short[2 * INPUT_RATE];
+        Signals.addSine(input, 2, 0, INPUT_RATE, 1000, AMPLITUDE, 0, INPUT_RATE);
+        Signals.addSine(input, 2, 1, INPUT_RATE, 440, AMPLITUDE / 2, 0, INPUT_RATE);
+
+        short[] output = resample(input, 2, 8000, false, input.length * 2);
+        int frames = output.length / 2;
+        double left = Signals.rms(output, 2, 0, SETTLE_FRAMES, frames - SETTLE_FRAMES);
+        double right = Signals.rms(output, 2, 1, SETTLE_FRAMES, frames - SETTLE_FRAMES);
+        assertEquals(0, Signals.db(left / (AMPLITUDE / Math.sqrt(2))), 0.2);
+        assertEquals(-6.02, Signals.db(right / (AMPLITUDE / Math.sqrt(2))), 0.2);
+    }
+
+    @Test
+    public void outputDoesNotDependOnHowInputIsSplit() throws IOException {
+        short[] input = new short[2 * INPUT_RATE / 10];
+        Signals.addSine(input, 2, 0, INPUT_RATE, 1000, AMPLITUDE, 0, INPUT_RATE / 10);
+        Signals.addNoise(input, 3000, 1);
+
+        short[] whole = resample(input, 2, 16000, false, input.length * 2);
+        // Odd sizes split samples and frames across writes
+        assertArrayEquals(whole, resample(input, 2, 16000, false, 7));
+        assertArrayEquals(whole, resample(input, 2, 16000, false, 1001));
+    }
+
+    @Test
+    @Ignore("Benchmark, run by hand")
+    public void benchmarkThroughput() throws IOException {
+        short[] input = new short[2 * INPUT_RATE];
+        Signals.addNoise(input, 10000, 2);
+        ByteBuffer buffer = Signals.toBuffer(input);
+
+        for (int[] config : new int[][] {{8000, 1}, {16000, 1}, {16000, 0}}) {
+            Resampler resampler = new Resampler(new CapturingSink(), WavFormat.pcm16(INPUT_RATE, 2),
+                    config[0], config[1] == 1);
+            long samples = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                // 20 ms batches, as the writer hands them over
+                Signals.feed(resampler, buffer, 3840);
+                samples += input.length;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < 500_000_000L);
+
+            double perSecond = samples * 1e9 / elapsed;
+            System.out.printf("Resampler 48000 Hz stereo -> %d Hz %s: %.1f M samples/s (%.0fx real time)%n",
+                    config[0], config[1] == 1 ? "mono" : "stereo", perSecond / 1e6, perSecond / (2 * INPUT_RATE));
+        }
+    }
+
+    private static short[] resample(short[] input, int channels, int outputRate, boolean downmix,
+                                    int chunkBytes) throws IOException {
+        CapturingSink sink = new CapturingSink();
+        Resampler resampler = new Resampler(sink, WavFormat.pcm16(INPUT_RATE, channels), outputRate, downmix);
+        Signals.feed(resampler, Signals.toBuffer(input), chunkBytes);
+        resampler.close();
+        assertTrue(sink.isClosed());
+        return sink.getSamples();
+    }
+}
@@ -0,0 +1,100 @@
+package com.example.twiliovoiceapp.recording;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Test signals as 16-bit PCM, and measurements on them
+ */
+final class Signals {
+
+    private Signals() {
+    }
+
+    /**
+     * Add a sine to interleaved samples
+     *
+     * @param samples Interleaved samples to add to
+     * @param channels Channel count of the samples
+     * @param channel Channel to add to, or -1 for all of them
+     * @param rate Sample rate in Hz
+     * @param hz Frequency of the sine
+     * @param amplitude Peak amplitude
+     * @param from First frame
+     * @param to Frame after the last
+     */
+    static void addSine(short[] samples, int channels, int channel, int rate, double hz, double amplitude,
+                        int from, int to) {
+        for (int frame = from; frame < to; frame++) {
+            double value = amplitude * Math.sin(2 * Math.PI * hz * frame / rate);
+            for (int c = 0; c < channels; c++) {
+                if (channel < 0 || channel == c) {
+                    samples[frame * channels + c] = clip(samples[frame * channels + c] + value);
+                }
+            }
+        }
+    }
+
+    /**
+     * Add white noise to interleaved samples
+     */
+    static void addNoise(short[] samples, double amplitude, long seed) {
+        Random random = new Random(seed);
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = clip(samples[i] + amplitude * (2 * random.nextDouble() - 1));
+        }
+    }
+
+    /**
+     * Get the RMS level of one channel over a range of frames
+     */
+    static double rms(short[] samples, int channels, int channel, int from, int to) {
+        double sum = 0;
+        for (int frame = from; frame < to; frame++) {
+            double value = samples[frame * channels + channel];
+            sum += value * value;
+        }
+        return Math.sqrt(sum / Math.max(1, to - from));
+    }
+
+    static double db(double ratio) {
+        return 20 * Math.log10(ratio);
+    }
+
+    static ByteBuffer toBuffer(short[] samples, int from, int to) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * (to - from)).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = from; i < to; i++) {
+            buffer.putShort(samples[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static ByteBuffer toBuffer(short[] samples) {
+        return toBuffer(samples, 0, samples.length);
+    }
+
+    /**
+     * Write audio to a sink in chunks, as the writer thread hands it over
+     *
+     * @param sink The sink to write to
+     * @param buffer The audio, from index 0 to its capacity
+     * @param chunkBytes Size of each write; the last one may be shorter
+     */
+    static void feed(RecordingSink sink, ByteBuffer buffer, int chunkBytes) throws IOException {
+        ByteBuffer[] array = new ByteBuffer[1];
+        for (int position = 0; position < buffer.capacity(); position += chunkBytes) {
+            ByteBuffer chunk = buffer.duplicate();
+            chunk.limit(Math.min(buffer.capacity(), position + chunkBytes));
+            chunk.position(position);
+            array[0] = chunk;
+            sink.write(array, 0, 1);
+        }
+    }
+
+    private static short clip(double value) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(value)));
+    }
+}
@@ -0,0 +1,145 @@
+package com.example.twiliovoiceapp.recording;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+public class StereoInterleaverTest {
+
+    private final List<short[]> frames = new ArrayList<>();
+
+    // Copies each run, as the interleaver reuses its buffer
+    private final StereoInterleaver.Output output = stereo -> {
+        while (stereo.remaining() >= 4) {
+            frames.add(new short[] {stereo.getShort(), stereo.getShort()});
+        }
+    };
+
+    @Test
+    public void samplesArePairedByCount() {
+        StereoInterleaver interleaver = new StereoInterleaver(output, 4800);
+        int left = 1;
+        int right = 1;
+        // Uneven, unrelated chunk sizes on the two sides
+        while (left <= 10000 || right <= 10000) {
+            if (left <= 10000) {
+                interleaver.writeLeft(ramp(left, Math.min(37, 10001 - left), 1));
+                left += Math.min(37, 10001 - left);
+            }
+            if (right <= 10000) {
+                interleaver.writeRight(ramp(right, Math.min(41, 10001 - right), -1));
+                right += Math.min(41, 10001 - right);
+            }
+        }
+        interleaver.close();
+
+        assertEquals(10000, frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i + 1, frames.get(i)[0]);
+            assertEquals(-(i + 1), frames.get(i)[1]);
+        }
+        assertEquals(0, interleaver.getPaddedFrames());
+        assertEquals(10000, interleaver.getFramesWritten());
+    }
+
+    @Test
+    public void streamRunningAheadWaitsUpToTheAllowedLag() {
+        StereoInterleaver interleaver = new StereoInterleaver(output, 1000);
+        interleaver.writeLeft(ramp(1, 1000, 1));
+        assertEquals("Nothing is sent while within the lag", 0, frames.size());
+
+        interleaver.writeRight(ramp(1, 1000, -1));
+        assertEquals(1000, frames.size());
+        assertEquals(0, interleaver.getPaddedFrames());
+    }
+
+    @Test
+    public void stalledStreamIsPaddedWithSilence() {
+        StereoInterleaver interleaver = new StereoInterleaver(output, 1000);
+        interleaver.writeLeft(ramp(1, 5000, 1));
+
+        // All but the allowed lag went out against silence, in order
+        assertTrue(frames.size() >= 4000);
+        for (int i = 0; i < frames.size(); i++) {
+            assertEquals(i + 1, frames.get(i)[0]);
+            assertEquals(0, frames.get(i)[1]);
+        }
+        assertEquals(frames.size(), interleaver.getPaddedFrames());
+
+        interleaver.close();
+        assertEquals(5000, frames.size());
+        assertEquals(5000, interleaver.getPaddedFrames());
+    }
+
+    @Test
+    public void streamsRealignAfterAStall() {
+        StereoInterleaver interleaver = new StereoInterleaver(output, 960);
+        // Both sides send 10 ms at a time, stamped with the time they were captured; the
+        // right side stalls for half a second in the middle
+        int step = 480;
+        int time = 1;
+        for (int tick = 0; tick < 300; tick++) {
+            interleaver.writeLeft(ramp(time, step, 1));
+            if (tick < 100 || tick >= 150) {
+                interleaver.writeRight(ramp(time, step, 1));
+            }
+            time += step;
+        }
+        interleaver.close();
+
+        // Every left sample went out once, in order, and every right sample next to the
+        // left sample captured at the same time
+        assertEquals(300 * step, frames.size());
+        int rightSamples = 0;
+        for (int i = 0; i < frames.size(); i++) {
+            short[] frame = frames.get(i);
+            assertEquals(stamp(i + 1), frame[0]);
+            if (frame[1] != 0) {
+                assertEquals("Frame " + i, frame[0], frame[1]);
+                rightSamples++;
+            }
+        }
+        assertEquals(250 * step, rightSamples);
+        assertEquals(50 * step, interleaver.getPaddedFrames());
+    }
+
+    @Test
+    public void samplesAfterCloseAreIgnored() {
+        StereoInterleaver interleaver = new StereoInterleaver(output, 1000);
+        interleaver.writeLeft(ramp(1, 10, 1));
+        interleaver.close();
+        assertEquals(10, frames.size());
+
+        ByteBuffer late = ramp(11, 10, 1);
+        interleaver.writeRight(late);
+        interleaver.writeLeft(ramp(11, 10, 1));
+        interleaver.close();
+        assertEquals(10, frames.size());
+        assertEquals("Late samples are still consumed", 0, late.remaining());
+    }
+
+    /**
+     * Mono samples counting up from a start value
+     */
+    private static ByteBuffer ramp(int start, int count, int sign) {
+        ByteBuffer buffer = ByteBuffer.allocate(2 * count).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < count; i++) {
+            buffer.putShort((short) (sign * stamp(start + i)));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Sample value for a position, never zero so it cannot be mistaken for padding
+     */
+    private static short stamp(int position) {
+        return (short) (1 + (position - 1) % 30000);
+    }
+}
@@ -0,0 +1,243 @@
+package com.example.twiliovoiceapp.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.robolectric.Shadows.shadowOf;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.preference.PreferenceManager;
+
+import androidx.annotation.Nullable;
+
+import com.example.twiliovoiceapp.call.FakeCallEngine;
+import com.example.twiliovoiceapp.recording.WavFormat;
+import com.example.twiliovoiceapp.recording.WavInfo;
+import com.example.twiliovoiceapp.token.HttpTokenFetcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.android.controller.ServiceController;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+
+/**
+ * Drives {@link VoiceService} through scripted calls from a {@link FakeCallEngine}, with
+ * the engine's callbacks on the main thread as the Voice SDK makes them, and tokens from
+ * a local stub token server
+ */
+@RunWith(RobolectricTestRunner.class)
+public class VoiceServiceTest {
+
+    // Bytes in one 10 ms frame of the fake engine's audio
+    private static final int FRAME_BYTES = FakeCallEngine.AUDIO_FORMAT.getByteRate() / 100;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final FakeCallEngine engine = new FakeCallEngine(scheduler, mainHandler::post);
+    private final MockWebServer tokenServer = new MockWebServer();
+    private final EventListener listener = new EventListener();
+    private ServiceController<VoiceService> controller;
+    private VoiceService service;
+
+    @Before
+    public void setUp() throws IOException {
+        tokenServer.enqueue(new MockResponse().setBody("{\"token\":\"" + token() + "\"}"));
+        tokenServer.start();
+        PreferenceManager.getDefaultSharedPreferences(RuntimeEnvironment.getApplication()).edit()
+                .putString(HttpTokenFetcher.PREF_TOKEN_URL, tokenServer.url("/token").toString())
+                // Keep the recorded audio byte for byte as the engine delivered it
+                .putBoolean("redact_dtmf", false)
+                .commit();
+
+        VoiceService.setCallEngineForTesting(engine);
+        controller = Robolectric.buildService(VoiceService.class).create();
+        service = controller.get();
+        service.addCallStateListener(listener, mainHandler::post);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        controller.destroy();
+        VoiceService.setCallEngineForTesting(null);
+        scheduler.shutdownNow();
+        tokenServer.shutdown();
+    }
+
+    @Test
+    public void placedCallIsRecordedThroughTheEngine() throws Exception {
+        engine.enqueue(new FakeCallEngine.Script()
+                .ringAfter(10)
+                .answerAfter(10)
+                .audioSpeed(10));
+        service.makeCall("+15550100", "+15550199");
+        awaitOnMain(() -> service.getCallState() == VoiceService.CallState.CONNECTED);
+
+        FakeCallEngine.FakeCall call = engine.getCalls().get(0);
+        assertEquals("+15550100", call.getParams().get("To"));
+        assertEquals("+15550199", call.getParams().get("From"));
+
+        assertTrue(service.startRecording());
+        awaitOnMain(() -> listener.recordingStarted && call.getFramesDelivered() >= 100);
+        assertTrue(service.isRecording());
+
+        // Frames only arrive on the main thread, so none slips in between these two
+        long frames = call.getFramesDelivered();
+        service.stopRecording();
+        awaitOnMain(() -> listener.recordingStopped);
+
+        assertNotNull(listener.recordingLocation);
+        File file = new File(listener.recordingLocation);
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            WavInfo info = WavInfo.read(channel);
+            assertNotNull(info);
+            WavFormat format = info.getFormat();
+            assertEquals(FakeCallEngine.AUDIO_FORMAT.getSampleRate(), format.getSampleRate());
+            assertEquals(1, format.getChannels());
+            assertEquals(frames * FRAME_BYTES, info.getDataBytes(channel.size()));
+        }
+
+        service.disconnectCall();
+        awaitOnMain(() -> call.getState() == FakeCallEngine.FakeCall.DISCONNECTED
+                && listener.states.contains(VoiceService.CallState.DISCONNECTED));
+        // The engine's own disconnect callback may repeat the last state
+        assertEquals(Arrays.asList(VoiceService.CallState.CONNECTING, VoiceService.CallState.RINGING,
+                VoiceService.CallState.CONNECTED, VoiceService.CallState.DISCONNECTED),
+                listener.states.subList(0, 4));
+    }
+
+    @Test
+    public void answeredCallRunsUntilTheCallerHangsUp() throws Exception {
+        engine.enqueue(new FakeCallEngine.Script()
+                .ringAfter(10)
+                .hangUpAfter(100));
+        Map<String, String> params = new HashMap<>();
+        params.put("From", "+15550123");
+        service.answerCall(engine.invite(params));
+        awaitOnMain(() -> service.getCallState() == VoiceService.CallState.CONNECTED);
+
+        assertEquals("+15550123", service.getPhoneNumber());
+        assertTrue(engine.getCalls().get(0).isIncoming());
+
+        awaitOnMain(() -> listener.states.contains(VoiceService.CallState.DISCONNECTED));
+        assertEquals(Arrays.asList(VoiceService.CallState.CONNECTING, VoiceService.CallState.CONNECTED,
+                VoiceService.CallState.DISCONNECTED), listener.states);
+    }
+
+    @Test
+    public void connectFailureIsReported() throws Exception {
+        engine.enqueue(new FakeCallEngine.Script().failWith(31005, "Connection error"));
+        service.makeCall("+15550100", "+15550199");
+        awaitOnMain(() -> listener.failures.contains("Connection error"));
+
+        assertEquals(VoiceService.CallState.FAILED, service.getCallState());
+        assertEquals(Arrays.asList(VoiceService.CallState.CONNECTING, VoiceService.CallState.FAILED),
+                listener.states);
+    }
+
+    /**
+     * A condition to wait for on the main thread
+     */
+    private interface Condition {
+        boolean met();
+    }
+
+    /**
+     * Run the main thread's queue until a condition holds, as the engine's events arrive on it
+     */
+    private static void awaitOnMain(Condition condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (true) {
+            shadowOf(Looper.getMainLooper()).idle();
+            if (condition.met()) {
+                return;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                fail("Timed out on the main thread");
+            }
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Build a JWT valid for an hour, as the token server would hand out
+     */
+    private static String token() {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        long now = System.currentTimeMillis() / 1000;
+        String claims = "{\"iat\":" + now + ",\"exp\":" + (now + 3600) + "}";
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+    }
+
+    /**
+     * Records what the service tells its subscribers on the main thread
+     */
+    private static class EventListener implements VoiceService.CallStateListener {
+        // Changes after the state replayed on subscribing
+        final List<VoiceService.CallState> states = new ArrayList<>();
+        private boolean replayed;
+        boolean recordingStarted;
+        boolean recordingStopped;
+        String recordingLocation;
+        final List<String> failures = new ArrayList<>();
+
+        @Override
+        public void onCallStateChanged(VoiceService.CallState state, String phoneNumber) {
+            if (replayed) {
+                states.add(state);
+            }
+            replayed = true;
+        }
+
+        @Override
+        public void onCallConnected() {
+        }
+
+        @Override
+        public void onCallDisconnected() {
+        }
+
+        @Override
+        public void onCallFailed(String errorMessage) {
+            failures.add(errorMessage);
+        }
+
+        @Override
+        public void onRecordingStarted() {
+            recordingStarted = true;
+        }
+
+        @Override
+        public void onRecordingStopped(@Nullable String filePath) {
+            recordingLocation = filePath;
+            recordingStopped = true;
+        }
+
+        @Override
+        public void onAudioLevel(float rmsDbfs, float peakDbfs) {
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package com.example.twiliovoiceapp.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives {@link AccessTokenProvider} with a token source that hands out numbered tokens
+ * only when the test lets it, on a clock the test moves by hand
+ */
+public class AccessTokenProviderTest {
+
+    private static final long LIFETIME_SECONDS = 3600;
+    // A fifth of the lifetime, capped at five minutes
+    private static final long REFRESH_MARGIN_MILLIS = 5 * 60 * 1000;
+
+    private final AtomicLong now = new AtomicLong(1000000);
+    private final StubFetcher fetcher = new StubFetcher();
+    private final AccessTokenProvider provider = new AccessTokenProvider(fetcher, now::get);
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+    }
+
+    @Test
+    public void concurrentRequestsShareOneFetch() throws Exception {
+        List<Future<String>> calls = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            calls.add(callers.submit(() -> provider.getToken("+15550100")));
+        }
+        fetcher.awaitCalls(1);
+        fetcher.release(1);
+
+        for (Future<String> call : calls) {
+            assertEquals(token(1), call.get(10, TimeUnit.SECONDS));
+        }
+        assertEquals(1, fetcher.calls.get());
+    }
+
+    @Test
+    public void tokenDueForRefreshIsStillHandedOutWhileRefreshing() throws Exception {
+        fetcher.release(1);
+        assertEquals(token(1), provider.getToken("+15550100"));
+
+        now.addAndGet(LIFETIME_SECONDS * 1000 - REFRESH_MARGIN_MILLIS - 1);
+        assertEquals(token(1), provider.getToken("+15550100"));
+        assertEquals(1, fetcher.calls.get());
+
+        // Past the refresh point the cached token comes back at once and a new one is fetched
+        now.addAndGet(2);
+        assertEquals(token(1), provider.getToken("+15550100"));
+        fetcher.awaitCalls(2);
+        fetcher.release(1);
+        assertEquals(token(2), awaitToken("+15550100", token(2)));
+        assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void tokenAboutToExpireIsNotHandedOut() throws Exception {
+        fetcher.release(1);
+        assertEquals(token(1), provider.getToken("+15550100"));
+
+        now.addAndGet(LIFETIME_SECONDS * 1000 - 29 * 1000);
+        fetcher.release(1);
+        assertEquals(token(2), provider.getToken("+15550100"));
+    }
+
+    @Test
+    public void tokensForDifferentNumbersAreFetchedSeparately() throws Exception {
+        fetcher.release(2);
+        String first = provider.getToken("+15550100");
+        String second = provider.getToken("+15550199");
+
+        assertEquals(2, fetcher.calls.get());
+        assertEquals(first, provider.getToken("+15550100"));
+        assertEquals(second, provider.getToken("+15550199"));
+    }
+
+    @Test
+    public void fetchRunningWhenAllTokensAreDroppedIsNotCached() throws Exception {
+        Future<String> stale = callers.submit(() -> provider.getToken("+15550100"));
+        fetcher.awaitCalls(1);
+
+        provider.invalidateAll();
+        // A request after the drop does not join the stale fetch
+        Future<String> fresh = callers.submit(() -> provider.getToken("+15550100"));
+        fetcher.awaitCalls(2);
+        fetcher.release(2);
+
+        // Each caller gets the token it waited for, but only the new one is kept
+        String staleToken = stale.get(10, TimeUnit.SECONDS);
+        String freshToken = fresh.get(10, TimeUnit.SECONDS);
+        assertEquals(freshToken, awaitToken("+15550100", freshToken));
+        assertNotEquals(staleToken, freshToken);
+        assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void failedFetchReachesEveryWaitingCaller() throws Exception {
+        fetcher.failing = true;
+        Callable<String> call = () -> provider.getToken("+15550100");
+        List<Future<String>> calls = new ArrayList<>();
+        calls.add(callers.submit(call));
+        calls.add(callers.submit(call));
+        fetcher.awaitCalls(1);
+        fetcher.release(2);
+
+        for (Future<String> waiting : calls) {
+            try {
+                waiting.get(10, TimeUnit.SECONDS);
+                fail("Expected the fetch to fail");
+            } catch (ExecutionException e) {
+                assertEquals("Token server unreachable", e.getCause().getMessage());
+            }
+        }
+    }
+
+    /**
+     * Keep asking for a token until the one expected is cached, as a background fetch
+     * caches its token just after handing it out
+     */
+    private String awaitToken(String twilioNumber, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        String token = provider.getToken(twilioNumber);
+        while (!token.equals(expected) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+            token = provider.getToken(twilioNumber);
+        }
+        return token;
+    }
+
+    /**
+     * Build a JWT with a numbered subject, valid for an hour
+     */
+    static String token(int number) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        String header = encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8));
+        String claims = "{\"sub\":\"token-" + number + "\",\"iat\":1700000000,\"exp\":"
+                + (1700000000 + LIFETIME_SECONDS) + "}";
+        return header + "." + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+    }
+
+    /**
+     * Token source that numbers its tokens and blocks each fetch until released
+     */
+    private static final class StubFetcher implements AccessTokenProvider.Fetcher {
+        final AtomicInteger calls = new AtomicInteger();
+        private final Semaphore permits = new Semaphore(0);
+        volatile boolean failing;
+
+        @Override
+        public String fetch(String twilioNumber) throws IOException {
+            int number = calls.incrementAndGet();
+            try {
+                if (!permits.tryAcquire(10, TimeUnit.SECONDS)) {
+                    throw new IOException("Fetch " + number + " was never released");
+                }
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (failing) {
+                throw new IOException("Token server unreachable");
+            }
+            return token(number);
+        }
+
+        void release(int fetches) {
+            permits.release(fetches);
+        }
+
+        void awaitCalls(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (calls.get() < count) {
+                if (System.currentTimeMillis() > deadline) {
+                    fail("Only " + calls.get() + " of " + count + " fetches started");
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.twiliovoiceapp.token;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+public class AccessTokenTest {
+
+    @Test
+    public void lifetimeIsCountedFromReceiptUsingTheServerClaims() throws IOException {
+        // Wall clock a day off; only iat and exp matter
+        String jwt = jwt("{\"iat\":1700000000,\"exp\":1700003600}");
+        AccessToken token = AccessToken.parse(jwt, 5000, 1700086400000L);
+
+        assertEquals(jwt, token.getJwt());
+        assertEquals(5000, token.getReceivedAt());
+        assertEquals(3600 * 1000, token.getLifetimeMillis());
+        assertEquals(5000 + 3600 * 1000, token.getExpiresAt());
+    }
+
+    @Test
+    public void missingIssueTimeFallsBackToTheWallClock() throws IOException {
+        AccessToken token = AccessToken.parse(jwt("{\"exp\":1700000600}"), 0, 1700000000000L);
+
+        assertEquals(600 * 1000, token.getLifetimeMillis());
+    }
+
+    @Test
+    public void twilioGrantsAreSkipped() throws IOException {
+        String claims = "{\"jti\":\"SK123-1700000000\",\"grants\":{\"identity\":\"ali\\\"ce}\","
+                + "\"voice\":{\"incoming\":{\"allow\":true},\"outgoing\":{\"application_sid\":\"AP1\"}}},"
+                + "\"iat\":1700000000,\"exp\":1700000300.5,\"sub\":\"AC1\",\"tags\":[\"a]\",[1]],\"nbf\":null}";
+        AccessToken token = AccessToken.parse(jwt(claims), 0, 0);
+
+        assertEquals(300 * 1000, token.getLifetimeMillis());
+    }
+
+    @Test
+    public void tokensWithoutExpiryAreRejected() {
+        assertInvalid(jwt("{\"iat\":1700000000}"));
+        assertInvalid(jwt("{\"iat\":1700000000,\"exp\":{\"nested\":1}}"));
+        assertInvalid(jwt("{\"exp\":1700000000"));
+        assertInvalid(jwt("[1700000000]"));
+        assertInvalid("eyJhbGciOiJub25lIn0.!!!.c2ln");
+        assertInvalid("not-a-jwt");
+    }
+
+    private static void assertInvalid(String jwt) {
+        try {
+            AccessToken.parse(jwt, 0, 0);
+            fail("Accepted " + jwt);
+        } catch (IOException expected) {
+            // Rejected as it should be
+        }
+    }
+
+    private static String jwt(String claims) {
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString("{\"alg\":\"none\"}".getBytes(StandardCharsets.UTF_8)) + "."
+                + encoder.encodeToString(claims.getBytes(StandardCharsets.UTF_8)) + ".c2ln";
+    }
+}
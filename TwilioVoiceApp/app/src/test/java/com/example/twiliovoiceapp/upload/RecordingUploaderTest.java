@@ -0,0 +1,312 @@
+package com.example.twiliovoiceapp.upload;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.example.twiliovoiceapp.database.RecordingUploadDao;
+import com.example.twiliovoiceapp.model.RecordingUpload;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+/**
+ * Drives {@link RecordingUploader} against a local server speaking the resumable
+ * chunked PUT protocol, with the queue kept in memory
+ */
+public class RecordingUploaderTest {
+
+    private static final int CHUNK = 1024 * 1024;
+    private static final int SIZE = 2 * CHUNK + CHUNK / 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MockWebServer server = new MockWebServer();
+    private final FakeUploadDao dao = new FakeUploadDao();
+    private RecordingUploader uploader;
+    private byte[] data;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        server.start();
+        uploader = new RecordingUploader(null, dao, new OkHttpClient()) {
+            @Override
+            HttpUrl getEndpoint() {
+                return server.url("/recordings");
+            }
+        };
+        data = new byte[SIZE];
+        new Random(1).nextBytes(data);
+        file = folder.newFile("call.wav");
+        Files.write(file.toPath(), data);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    @Test
+    public void largeFilesAreSentInChunks() throws Exception {
+        server.enqueue(stored(CHUNK));
+        server.enqueue(stored(2 * CHUNK));
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        long id = dao.insert(new RecordingUpload(1, "call.wav", file.getPath()));
+        uploader.start();
+        RecordingUpload upload = dao.awaitAttempt(id, 1);
+
+        assertEquals(RecordingUpload.STATE_DONE, upload.getState());
+        assertEquals(SIZE, upload.getUploadedBytes());
+        assertEquals(3, server.getRequestCount());
+        byte[] received = new byte[SIZE];
+        int position = 0;
+        for (int i = 0; i < 3; i++) {
+            RecordedRequest request = server.takeRequest();
+            int length = Math.min(CHUNK, SIZE - position);
+            assertEquals("PUT", request.getMethod());
+            assertEquals("/recordings/call.wav", request.getPath());
+            assertEquals("bytes " + position + "-" + (position + length - 1) + "/" + SIZE,
+                    request.getHeader("Content-Range"));
+            byte[] body = request.getBody().readByteArray();
+            assertEquals(length, body.length);
+            System.arraycopy(body, 0, received, position, length);
+            position += length;
+        }
+        assertArrayEquals(data, received);
+    }
+
+    @Test
+    public void sendingResumesFromTheOffsetTheServerStored() throws Exception {
+        // The server keeps only half of the first chunk
+        server.enqueue(stored(CHUNK / 2));
+        server.enqueue(stored(CHUNK / 2 + CHUNK));
+        server.enqueue(new MockResponse().setResponseCode(200));
+
+        long id = dao.insert(new RecordingUpload(1, "call.wav", file.getPath()));
+        uploader.start();
+
+        assertEquals(RecordingUpload.STATE_DONE, dao.awaitAttempt(id, 1).getState());
+        assertEquals("bytes 0-" + (CHUNK - 1) + "/" + SIZE, server.takeRequest().getHeader("Content-Range"));
+        RecordedRequest resent = server.takeRequest();
+        assertEquals("bytes " + CHUNK / 2 + "-" + (CHUNK / 2 + CHUNK - 1) + "/" + SIZE,
+                resent.getHeader("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(data, CHUNK / 2, CHUNK / 2 + CHUNK), resent.getBody().readByteArray());
+        assertEquals("bytes " + (CHUNK / 2 + CHUNK) + "-" + (SIZE - 1) + "/" + SIZE,
+                server.takeRequest().getHeader("Content-Range"));
+    }
+
+    @Test
+    public void interruptedUploadAsksForItsOffsetBeforeResuming() throws Exception {
+        // Killed mid-upload after the first chunk was confirmed
+        RecordingUpload interrupted = new RecordingUpload(1, "call.wav", file.getPath());
+        interrupted.setState(RecordingUpload.STATE_UPLOADING);
+        interrupted.setUploadedBytes(CHUNK);
+        interrupted.setAttempts(1);
+        long id = dao.insert(interrupted);
+        server.enqueue(stored(CHUNK));
+        server.enqueue(stored(2 * CHUNK));
+        server.enqueue(new MockResponse().setResponseCode(201));
+
+        uploader.start();
+
+        assertEquals(RecordingUpload.STATE_DONE, dao.awaitAttempt(id, 2).getState());
+        RecordedRequest query = server.takeRequest();
+        assertEquals("bytes */" + SIZE, query.getHeader("Content-Range"));
+        assertEquals(0, query.getBodySize());
+        assertEquals("bytes " + CHUNK + "-" + (2 * CHUNK - 1) + "/" + SIZE,
+                server.takeRequest().getHeader("Content-Range"));
+        assertEquals("bytes " + 2 * CHUNK + "-" + (SIZE - 1) + "/" + SIZE,
+                server.takeRequest().getHeader("Content-Range"));
+    }
+
+    @Test
+    public void serverErrorsBackOffExponentially() throws Exception {
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) {
+                return new MockResponse().setResponseCode(request.getPath().endsWith("/call.wav") ? 503 : 201);
+            }
+        });
+
+        long id = dao.insert(new RecordingUpload(1, "call.wav", file.getPath()));
+        long before = System.currentTimeMillis();
+        uploader.start();
+        RecordingUpload upload = dao.awaitAttempt(id, 1);
+        long after = System.currentTimeMillis();
+
+        assertEquals(RecordingUpload.STATE_PENDING, upload.getState());
+        assertTrue(upload.getLastError().contains("503"));
+        assertBetween(before + 5000, after + 6000, upload.getNextAttemptTime());
+        assertEquals(1, server.getRequestCount());
+
+        // Make it due now; queueing another file wakes the queue and both are attempted
+        dao.makeDue(id);
+        before = System.currentTimeMillis();
+        uploader.enqueue(2, "other.wav", file.getPath());
+        upload = dao.awaitAttempt(id, 2);
+        after = System.currentTimeMillis();
+        assertEquals(RecordingUpload.STATE_DONE, dao.awaitAttempt(id + 1, 1).getState());
+
+        assertEquals(RecordingUpload.STATE_PENDING, upload.getState());
+        assertBetween(before + 10000, after + 12000, upload.getNextAttemptTime());
+    }
+
+    @Test
+    public void rejectedUploadIsNotRetried() throws Exception {
+        server.enqueue(new MockResponse().setResponseCode(403));
+
+        long id = dao.insert(new RecordingUpload(1, "call.wav", file.getPath()));
+        uploader.start();
+        RecordingUpload upload = dao.awaitAttempt(id, 1);
+
+        assertEquals(RecordingUpload.STATE_FAILED, upload.getState());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void missingSourceFailsWithoutRetrying() throws Exception {
+        File gone = new File(folder.getRoot(), "evicted.wav");
+
+        long id = dao.insert(new RecordingUpload(1, "evicted.wav", gone.getPath()));
+        uploader.start();
+        RecordingUpload upload = dao.awaitAttempt(id, 1);
+
+        assertEquals(RecordingUpload.STATE_FAILED, upload.getState());
+        assertTrue(upload.getLastError().startsWith("Source is gone"));
+        assertEquals(0, server.getRequestCount());
+    }
+
+    private static MockResponse stored(long bytes) {
+        return new MockResponse().setResponseCode(308).setHeader("Range", "bytes=0-" + (bytes - 1));
+    }
+
+    private static void assertBetween(long min, long max, long value) {
+        assertTrue(value + " not in [" + min + ", " + max + "]", value >= min && value <= max);
+    }
+
+    /**
+     * The upload queue kept in memory, with a way to wait for attempts to finish
+     */
+    private static final class FakeUploadDao implements RecordingUploadDao {
+        private final Map<Long, RecordingUpload> uploads = new TreeMap<>();
+        // Each upload as it was last stored; the uploader changes the live row before storing it
+        private final Map<Long, RecordingUpload> stored = new TreeMap<>();
+        private long nextId = 1;
+
+        @Override
+        public synchronized long insert(RecordingUpload upload) {
+            upload.setId(nextId);
+            uploads.put(nextId, upload);
+            stored.put(nextId, copy(upload));
+            return nextId++;
+        }
+
+        @Override
+        public synchronized void update(RecordingUpload upload) {
+            uploads.put(upload.getId(), upload);
+            stored.put(upload.getId(), copy(upload));
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void setUploadedBytes(long id, long uploadedBytes) {
+            uploads.get(id).setUploadedBytes(uploadedBytes);
+        }
+
+        @Override
+        public synchronized void resetInterrupted() {
+            for (RecordingUpload upload : uploads.values()) {
+                if (upload.getState() == RecordingUpload.STATE_UPLOADING) {
+                    upload.setState(RecordingUpload.STATE_PENDING);
+                }
+            }
+        }
+
+        @Override
+        public synchronized List<RecordingUpload> getDueUploads(long now, int limit) {
+            List<RecordingUpload> due = new ArrayList<>();
+            for (RecordingUpload upload : uploads.values()) {
+                if (upload.getState() == RecordingUpload.STATE_PENDING && upload.getNextAttemptTime() <= now
+                        && due.size() < limit) {
+                    due.add(upload);
+                }
+            }
+            return due;
+        }
+
+        @Override
+        public synchronized Long getNextAttemptTime() {
+            Long next = null;
+            for (RecordingUpload upload : uploads.values()) {
+                if (upload.getState() == RecordingUpload.STATE_PENDING
+                        && (next == null || upload.getNextAttemptTime() < next)) {
+                    next = upload.getNextAttemptTime();
+                }
+            }
+            return next;
+        }
+
+        @Override
+        public synchronized void deleteForRecording(long recordingId) {
+            uploads.values().removeIf(upload -> upload.getRecordingId() == recordingId);
+        }
+
+        synchronized void makeDue(long id) {
+            uploads.get(id).setNextAttemptTime(0);
+        }
+
+        /**
+         * Wait until an upload has finished the given number of attempts
+         */
+        synchronized RecordingUpload awaitAttempt(long id, int attempts) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            while (true) {
+                RecordingUpload upload = stored.get(id);
+                if (upload.getAttempts() >= attempts && upload.getState() != RecordingUpload.STATE_UPLOADING) {
+                    return upload;
+                }
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    fail("Upload " + id + " still at " + upload);
+                }
+                wait(left);
+            }
+        }
+
+        private static RecordingUpload copy(RecordingUpload upload) {
+            RecordingUpload copy = new RecordingUpload(upload.getRecordingId(), upload.getName(), upload.getLocation());
+            copy.setId(upload.getId());
+            copy.setSizeBytes(upload.getSizeBytes());
+            copy.setUploadedBytes(upload.getUploadedBytes());
+            copy.setState(upload.getState());
+            copy.setAttempts(upload.getAttempts());
+            copy.setNextAttemptTime(upload.getNextAttemptTime());
+            copy.setLastError(upload.getLastError());
+            return copy;
+        }
+    }
+}